@@ -0,0 +1,88 @@
+package http.server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Connections accepted per second by a WebServer started in this JVM on a loopback port, 16
+ * clients each opening a connection, sending a HEAD request with Connection: close and reading
+ * until the server closes it. Compares one acceptor with four, sharing one socket or each with
+ * its own socket bound with SO_REUSEPORT, on both engines.
+ * Runs from the root of the repository, the server serves its doc/ directory.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 3)
+@Measurement(iterations = 3, time = 5)
+@Fork(1)
+@Threads(16)
+@State(Scope.Benchmark)
+public class AcceptBenchmark {
+
+    private static final int PORT = 18081;
+    private static final byte[] REQUEST = "HEAD / HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n"
+            .getBytes(StandardCharsets.US_ASCII);
+
+    @Param({"blocking", "nio"})
+    public String engine;
+
+    @Param({"1", "4"})
+    public int acceptors;
+
+    @Param({"off", "on"})
+    public String reusePort;
+
+    private WebServer server;
+    private InetSocketAddress address;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        ServerConfig config = ServerConfig.fromArgs(new String[]{Integer.toString(PORT), "--engine=" + engine,
+                "--acceptors=" + acceptors, "--reuse-port=" + reusePort, "--backlog=4096"});
+        server = new WebServer(config);
+        server.start();
+        address = new InetSocketAddress(InetAddress.getLoopbackAddress(), PORT);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        server.stop(1000);
+    }
+
+    @Benchmark
+    public int connect() throws IOException {
+        try (Socket socket = new Socket()) {
+            socket.connect(address);
+            socket.setTcpNoDelay(true);
+            socket.getOutputStream().write(REQUEST);
+            InputStream in = socket.getInputStream();
+            byte[] buffer = new byte[1024];
+            int total = 0;
+            int nbRead;
+            while ((nbRead = in.read(buffer)) >= 0) {
+                total += nbRead;
+            }
+            return total;
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package http.server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Content type of a static file, as looked up by the {@link StaticFileHandler} on a cache miss:
+ * the {@link MimeTypes} registry against the original {@code Files.probeContentType}, which
+ * may go through the file type detectors of the platform and returns null for many files.
+ * Runs from the root of the repository, on files of doc/.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ContentTypeBenchmark {
+
+    @Param({"doc/index.html", "doc/404.html", "doc/media/media.json", "doc/users", "doc/unknown.xyz"})
+    public String file;
+
+    private final MimeTypes mimeTypes = MimeTypes.builtIn();
+    private Path path;
+
+    @Setup
+    public void setUp() {
+        path = Paths.get(file);
+    }
+
+    @Benchmark
+    public String mimeTypes() {
+        return mimeTypes.lookup(path.toString());
+    }
+
+    @Benchmark
+    public String originalProbeContentType() throws IOException {
+        return Files.probeContentType(path);
+    }
+}
@@ -0,0 +1,82 @@
+package http.server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decoding of the CreateUser form: the streaming {@link FormDecoder} against the original
+ * HandleRequest, which read the body one char at a time then split it with
+ * {@code buildRequest}, without any percent-decoding.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FormDecoderBenchmark {
+
+    private static final byte[] BODY = ("request=CreateUser&user=jean.dupont&phone=%2B33%206%2012%2034%2056%2078"
+            + "&mail=jean.dupont%40example.com&password=correct+horse+battery+staple")
+            .getBytes(StandardCharsets.US_ASCII);
+
+    private final FormDecoder decoder = new FormDecoder(1000, 64 * 1024);
+
+    @Benchmark
+    public Map<String, String> formDecoder() throws IOException {
+        return decoder.decodeUrlEncoded(new ByteArrayInputStream(BODY));
+    }
+
+    @Benchmark
+    public Map<String, String> originalBuildRequest() throws IOException {
+        return buildRequest(getRequest(new BufferedInputStream(new ByteArrayInputStream(BODY))));
+    }
+
+    @Benchmark
+    public Map<String, String> originalBuildRequestOnly() {
+        return buildRequest(new String(BODY, StandardCharsets.ISO_8859_1));
+    }
+
+    /**
+     * The original HandleRequest.buildRequest.
+     */
+    private static Map<String, String> buildRequest(String request) {
+        Map<String, String> map = new HashMap<String, String>();
+        for (String parameter : request.split("&")) {
+            if (parameter.split("=").length == 1) {
+                map.put(parameter.split("=")[0], "");
+            } else {
+                String id = parameter.split("=")[0];
+                String value = parameter.split("=")[1];
+                map.put(id, value);
+            }
+        }
+        return map;
+    }
+
+    /**
+     * The original HandleRequest.getRequest, without its dump to the console.
+     */
+    private static String getRequest(BufferedInputStream in) throws IOException {
+        String result = "";
+        while (in.available() > 0) {
+            result += (char) in.read();
+        }
+        return result;
+    }
+}
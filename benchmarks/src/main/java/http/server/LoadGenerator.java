@@ -0,0 +1,306 @@
+package http.server;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Closed-loop load generator: starts a WebServer in this JVM on a loopback port, then runs a
+ * number of clients which each send a request, wait for the whole response and send the next
+ * one. Reports the throughput and the latency percentiles of each workload, measured after a
+ * warmup, so that a change can be compared with a baseline on the same machine.
+ * Usage: {@code [--workload=static|keepalive|large|post|all] [--connections=N] [--duration=SECONDS]
+ * [--warmup=SECONDS] [--port=N] [--large-size=BYTES]} followed by any flag of {@link ServerConfig},
+ * such as {@code --engine=nio}, which is given to the server.
+ * Runs from the root of the repository, the server serves its doc/ directory.
+ */
+public class LoadGenerator {
+
+    private static final String LARGE_FILE = "doc/bench-large.bin";
+
+    private enum Workload {
+        STATIC("GET /doc/index.html, a new connection per request"),
+        KEEPALIVE("GET /doc/index.html on persistent connections"),
+        LARGE("GET of a large file on persistent connections"),
+        POST("POST /HandleRequest/Adder on persistent connections");
+
+        private final String description;
+
+        Workload(String description) {
+            this.description = description;
+        }
+    }
+
+    private List<Workload> workloads = Arrays.asList(Workload.values());
+    private int connections = 16;
+    private int duration = 10;
+    private int warmup = 3;
+    private int port = 18080;
+    private long largeSize = 8L * 1024 * 1024;
+    private final List<String> serverArgs = new ArrayList<>();
+
+    private volatile boolean measuring;
+    private volatile boolean stopped;
+
+    public static void main(String[] args) throws Exception {
+        LoadGenerator generator = new LoadGenerator();
+        try {
+            for (String arg : args) {
+                generator.set(arg);
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println("Error, " + e.getMessage());
+            System.exit(1);
+        }
+        generator.run();
+        System.exit(0);
+    }
+
+    private void set(String arg) {
+        int eq = arg.indexOf('=');
+        if (!arg.startsWith("--") || eq < 0) {
+            throw new IllegalArgumentException("invalid option " + arg);
+        }
+        String name = arg.substring(2, eq);
+        String value = arg.substring(eq + 1);
+        switch (name) {
+            case "workload":
+                workloads = value.equals("all") ? Arrays.asList(Workload.values())
+                        : Arrays.asList(Workload.valueOf(value.toUpperCase()));
+                break;
+            case "connections":
+                connections = Integer.parseInt(value);
+                break;
+            case "duration":
+                duration = Integer.parseInt(value);
+                break;
+            case "warmup":
+                warmup = Integer.parseInt(value);
+                break;
+            case "port":
+                port = Integer.parseInt(value);
+                break;
+            case "large-size":
+                largeSize = Long.parseLong(value);
+                break;
+            default:
+                serverArgs.add(arg);
+        }
+    }
+
+    private void run() throws Exception {
+        List<String> args = new ArrayList<>();
+        args.add(Integer.toString(port));
+        args.addAll(serverArgs);
+        ServerConfig config = ServerConfig.fromArgs(args.toArray(new String[0]));
+        WebServer server = new WebServer(config);
+        server.start();
+        waitForServer();
+        Path large = Paths.get(LARGE_FILE);
+        try {
+            if (workloads.contains(Workload.LARGE)) {
+                byte[] content = new byte[(int) Math.min(largeSize, Integer.MAX_VALUE - 8)];
+                ThreadLocalRandom.current().nextBytes(content);
+                Files.write(large, content);
+            }
+            System.out.println();
+            System.out.println(String.format(Locale.ROOT, "%-10s %6s %10s %12s %9s %9s %9s %9s %7s",
+                    "workload", "conns", "requests", "req/s", "p50 ms", "p99 ms", "p999 ms", "max ms", "errors"));
+            for (Workload workload : workloads) {
+                runWorkload(workload);
+            }
+        } finally {
+            Files.deleteIfExists(large);
+            server.stop();
+        }
+    }
+
+    private void waitForServer() throws InterruptedException {
+        for (int i = 0; i < 100; i++) {
+            try (Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress("127.0.0.1", port), 1000);
+                return;
+            } catch (IOException e) {
+                Thread.sleep(100);
+            }
+        }
+        throw new IllegalStateException("server did not start on port " + port);
+    }
+
+    private void runWorkload(Workload workload) throws InterruptedException {
+        LatencyHistogram histogram = new LatencyHistogram();
+        AtomicLong errors = new AtomicLong();
+        measuring = false;
+        stopped = false;
+        Thread[] clients = new Thread[connections];
+        for (int i = 0; i < connections; i++) {
+            clients[i] = new Thread(() -> client(workload, histogram, errors), "client-" + i);
+            clients[i].start();
+        }
+        Thread.sleep(warmup * 1000L);
+        measuring = true;
+        long start = System.nanoTime();
+        Thread.sleep(duration * 1000L);
+        measuring = false;
+        long elapsed = System.nanoTime() - start;
+        stopped = true;
+        for (Thread client : clients) {
+            client.join();
+        }
+        long count = histogram.getCount();
+        System.out.println(String.format(Locale.ROOT, "%-10s %6d %10d %12.1f %9.3f %9.3f %9.3f %9.3f %7d",
+                workload.name().toLowerCase(), connections, count, count * 1e9 / elapsed,
+                histogram.valueAtQuantile(0.5) / 1000.0, histogram.valueAtQuantile(0.99) / 1000.0,
+                histogram.valueAtQuantile(0.999) / 1000.0, histogram.getMax() / 1000.0, errors.get()));
+        System.out.println("           " + workload.description);
+    }
+
+    /**
+     * Client loop: one request at a time, the latency of those completed while measuring is recorded.
+     */
+    private void client(Workload workload, LatencyHistogram histogram, AtomicLong errors) {
+        byte[] request = request(workload);
+        Connection connection = null;
+        while (!stopped) {
+            long start = System.nanoTime();
+            try {
+                if (connection == null) {
+                    connection = new Connection(port);
+                }
+                connection.out.write(request);
+                connection.out.flush();
+                int status = connection.readResponse();
+                if (measuring) {
+                    histogram.record((System.nanoTime() - start) / 1000);
+                    if (status >= 400) {
+                        errors.incrementAndGet();
+                    }
+                }
+                if (workload == Workload.STATIC || connection.closing) {
+                    connection.close();
+                    connection = null;
+                }
+            } catch (IOException e) {
+                if (measuring) {
+                    errors.incrementAndGet();
+                }
+                if (connection != null) {
+                    connection.close();
+                    connection = null;
+                }
+            }
+        }
+        if (connection != null) {
+            connection.close();
+        }
+    }
+
+    private static byte[] request(Workload workload) {
+        String request;
+        switch (workload) {
+            case STATIC:
+                request = "GET /doc/index.html HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n";
+                break;
+            case LARGE:
+                request = "GET /" + LARGE_FILE + " HTTP/1.1\r\nHost: localhost\r\n\r\n";
+                break;
+            case POST:
+                String body = "number1=1234.5&number2=6789";
+                request = "POST /HandleRequest/Adder HTTP/1.1\r\nHost: localhost\r\n"
+                        + "Content-Type: application/x-www-form-urlencoded\r\nContent-Length: " + body.length()
+                        + "\r\n\r\n" + body;
+                break;
+            default:
+                request = "GET /doc/index.html HTTP/1.1\r\nHost: localhost\r\n\r\n";
+        }
+        return request.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Client connection reading responses framed by Content-Length.
+     */
+    private static final class Connection {
+        private final Socket socket;
+        private final InputStream in;
+        private final OutputStream out;
+        private final byte[] skipBuffer = new byte[64 * 1024];
+        private final StringBuilder line = new StringBuilder();
+        private boolean closing;
+
+        Connection(int port) throws IOException {
+            socket = new Socket("127.0.0.1", port);
+            socket.setTcpNoDelay(true);
+            in = new BufferedInputStream(socket.getInputStream(), 64 * 1024);
+            out = socket.getOutputStream();
+        }
+
+        /**
+         * Reads a whole response.
+         * @return its status code
+         */
+        int readResponse() throws IOException {
+            String statusLine = readLine();
+            int status = Integer.parseInt(statusLine.substring(9, 12));
+            long length = 0;
+            for (String header = readLine(); !header.isEmpty(); header = readLine()) {
+                int colon = header.indexOf(':');
+                String name = header.substring(0, colon).trim();
+                String value = header.substring(colon + 1).trim();
+                if (name.equalsIgnoreCase("Content-Length")) {
+                    length = Long.parseLong(value);
+                } else if (name.equalsIgnoreCase("Connection")) {
+                    closing = value.equalsIgnoreCase("close");
+                } else if (name.equalsIgnoreCase("Transfer-Encoding")) {
+                    throw new IOException("unexpected chunked response");
+                }
+            }
+            while (length > 0) {
+                int nbRead = in.read(skipBuffer, 0, (int) Math.min(skipBuffer.length, length));
+                if (nbRead < 0) {
+                    throw new EOFException();
+                }
+                length -= nbRead;
+            }
+            return status;
+        }
+
+        private String readLine() throws IOException {
+            line.setLength(0);
+            for (; ; ) {
+                int b = in.read();
+                if (b < 0) {
+                    throw new EOFException();
+                }
+                if (b == '\n') {
+                    int end = line.length();
+                    if (end > 0 && line.charAt(end - 1) == '\r') {
+                        line.setLength(end - 1);
+                    }
+                    return line.toString();
+                }
+                line.append((char) b);
+            }
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package http.server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing of a typical browser request head: the byte-level {@link RequestParser} against the
+ * original parser, which built the head one char at a time and split it into Strings.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RequestParserBenchmark {
+
+    private static final byte[] REQUEST = ("GET /doc/index.html?lang=fr HTTP/1.1\r\n"
+            + "Host: localhost:8080\r\n"
+            + "User-Agent: Mozilla/5.0 (X11; Linux x86_64; rv:109.0) Gecko/20100101 Firefox/115.0\r\n"
+            + "Accept: text/html,application/xhtml+xml,application/xml;q=0.9,image/avif,image/webp,*/*;q=0.8\r\n"
+            + "Accept-Language: fr,fr-FR;q=0.8,en-US;q=0.5,en;q=0.3\r\n"
+            + "Accept-Encoding: gzip, deflate, br\r\n"
+            + "Connection: keep-alive\r\n"
+            + "Upgrade-Insecure-Requests: 1\r\n"
+            + "If-None-Match: \"2a3f-18b3c4d5e6f\"\r\n"
+            + "\r\n").getBytes(StandardCharsets.US_ASCII);
+
+    private RequestParser parser;
+
+    @Setup
+    public void setUp() {
+        parser = new RequestParser(8 * 1024, 16 * 1024);
+    }
+
+    @Benchmark
+    public HttpRequest requestParser() throws IOException {
+        parser.reset();
+        parser.parse(REQUEST, REQUEST.length);
+        HttpRequest request = parser.getRequest();
+        // the original parser always decoded the Host header
+        request.getHeaders().get("Host");
+        return request;
+    }
+
+    @Benchmark
+    public HttpRequest requestParserFromStream() throws IOException {
+        parser.readHead(new BufferedInputStream(new ByteArrayInputStream(REQUEST)));
+        return parser.getRequest();
+    }
+
+    @Benchmark
+    public Object originalParser() throws IOException {
+        return originalParse(new BufferedInputStream(new ByteArrayInputStream(REQUEST)));
+    }
+
+    /**
+     * The parsing of the original WebServer.handleClient, without its I/O on the socket.
+     */
+    private static Object[] originalParse(BufferedInputStream in) throws IOException {
+        String request = new String();
+        int currentByte = '\0', prevByte = '\0';
+        boolean newline = false;
+        while ((currentByte = in.read()) != -1 && !(newline && prevByte == '\r' && currentByte == '\n')) {
+            if (prevByte == '\r' && currentByte == '\n') {
+                newline = true;
+            } else if (!(prevByte == '\n' && currentByte == '\r')) {
+                newline = false;
+            }
+            prevByte = currentByte;
+            request += (char) currentByte;
+        }
+        String[] requestsLines = request.split("\r\n");
+        String[] requestLine = requestsLines[0].split(" ");
+        String method = requestLine[0];
+        String filename = requestLine[1].substring(1, requestLine[1].length());
+        String version = requestLine[2];
+        String host = requestsLines[1].split(" ")[1];
+        List<String> headers = new ArrayList<>();
+        for (int h = 2; h < requestsLines.length - 1; h++) {
+            headers.add(requestsLines[h]);
+        }
+        return new Object[]{method, filename, version, host, headers};
+    }
+}
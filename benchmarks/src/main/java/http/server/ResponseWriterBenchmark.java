@@ -0,0 +1,98 @@
+package http.server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writing a 200 response with a body in memory to a connection: the {@link ResponseWriter}
+ * against the original sendContentResponse, which encoded a String per header line and wrote
+ * each one to the socket.
+ * The socket is replaced by a stream discarding the bytes, so the scores leave out the cost of
+ * the six socket writes of the original against the single one of the writer, which the
+ * {@link LoadGenerator} measures.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ResponseWriterBenchmark {
+
+    /**
+     * Socket stand-in, discards the bytes.
+     */
+    private static final class NullOutputStream extends OutputStream {
+        private long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+
+    @Param({"64", "4096"})
+    public int size;
+
+    private byte[] body;
+    private NullOutputStream socket;
+    private ConnectionOutputStream connection;
+
+    @Setup
+    public void setUp() {
+        body = new byte[size];
+        Arrays.fill(body, (byte) 'a');
+        socket = new NullOutputStream();
+        connection = new ConnectionOutputStream(socket);
+        connection.setKeepAlive(true);
+    }
+
+    @Benchmark
+    public long responseWriter() throws IOException {
+        connection.response("200 OK")
+                .header(ResponseWriter.CONTENT_TYPE, "text/html")
+                .header(ResponseWriter.CONTENT_LENGTH, body.length)
+                .send(body, 0, body.length);
+        connection.flush();
+        return socket.count;
+    }
+
+    @Benchmark
+    public long originalSendContentResponse() throws IOException {
+        sendContentResponse(socket, "200 OK", "text/html", body, body.length);
+        return socket.count;
+    }
+
+    /**
+     * The original WebServer.sendContentResponse, writing to the stream of the socket.
+     */
+    private static void sendContentResponse(OutputStream clientOutput, String status, String contentType,
+                                            byte[] content, long length) throws IOException {
+        clientOutput.write(("HTTP/1.1 " + status + "\r\n").getBytes());
+        clientOutput.write(("Content-Type: " + contentType + "\r\n").getBytes());
+        clientOutput.write(("Content-Length: " + length + "\r\n").getBytes());
+        clientOutput.write("\r\n".getBytes());
+        clientOutput.write(content);
+        clientOutput.write("\r\n\r\n".getBytes());
+        clientOutput.flush();
+    }
+}
@@ -0,0 +1,63 @@
+package http.server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Route lookup with 10, 100 and 1000 registered routes, which should not depend on their number.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RouterBenchmark {
+
+    @Param({"10", "100", "1000"})
+    public int routes;
+
+    private Router router;
+    private String literalTarget;
+    private String parameterTarget;
+
+    @Setup
+    public void setUp() {
+        router = new Router();
+        RequestHandler handler = (request, body, out, parameters) -> {
+        };
+        router.add("GET", "/doc/*path", handler);
+        for (int i = 0; i < routes; i++) {
+            router.add("GET", "/api/resource" + i, handler)
+                    .add("POST", "/api/resource" + i + "/{id}/items", handler);
+        }
+        literalTarget = "/api/resource" + routes / 2;
+        parameterTarget = "/api/resource" + routes / 2 + "/42/items?sort=name";
+    }
+
+    @Benchmark
+    public Router.Match literal() {
+        return router.find("GET", literalTarget);
+    }
+
+    @Benchmark
+    public Router.Match parameter() {
+        return router.find("POST", parameterTarget);
+    }
+
+    @Benchmark
+    public Router.Match rest() {
+        return router.find("GET", "/doc/css/style.css");
+    }
+}
@@ -0,0 +1,370 @@
+package http.server;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Access log of the server, in the Common or Combined Log Format followed by the latency of
+ * the request in microseconds.
+ * The request threads only fill a record of a ring buffer allocated once: a slot is claimed
+ * with a compare-and-set on the producer sequence and published by writing its sequence
+ * number, without lock. A single background thread formats the published records and writes
+ * them in batches to the log file, which is rotated when it reaches a size or an age. When the
+ * buffer is full, a record is dropped and counted, or the request thread waits for room,
+ * depending on the {@link Overflow} policy.
+ * The Referer and the User-Agent of the Combined format are copied as bytes into arrays of the
+ * slot, and cut at {@link #MAX_HEADER_BYTES}.
+ */
+public class AccessLog {
+
+    /**
+     * Layout of a line: Common Log Format, or Combined with the Referer and the User-Agent.
+     */
+    public enum Format {
+        COMMON, COMBINED;
+
+        static Format parse(String value) {
+            try {
+                return valueOf(value.toUpperCase());
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("access log format must be common or combined");
+            }
+        }
+    }
+
+    /**
+     * What a request thread does when the buffer is full: drop its record, or wait for room.
+     */
+    public enum Overflow {
+        DROP, BLOCK;
+
+        static Overflow parse(String value) {
+            try {
+                return valueOf(value.toUpperCase());
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("access log overflow must be drop or block");
+            }
+        }
+    }
+
+    private static final int MAX_BATCH = 1024;
+    private static final int MAX_HEADER_BYTES = 512;
+    private static final int OUTPUT_BUFFER_SIZE = 64 * 1024;
+    private static final long IDLE_PARK_NANOS = 1_000_000;
+    private static final long FULL_PARK_NANOS = 10_000;
+    private static final DateTimeFormatter TIME_FORMAT =
+            DateTimeFormatter.ofPattern("dd/MMM/yyyy:HH:mm:ss Z", Locale.US).withZone(ZoneId.systemDefault());
+    private static final DateTimeFormatter ROTATION_SUFFIX =
+            DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss", Locale.US).withZone(ZoneId.systemDefault());
+
+    /**
+     * Slot of the ring buffer, reused for every record written in it.
+     */
+    private static final class Record {
+        // sequence of the record the slot holds once published
+        private volatile long sequence;
+        private long time;
+        private String remoteAddress;
+        private String method;
+        private String target;
+        private String version;
+        // only with the Combined format, lengths are -1 when the header is missing
+        private byte[] referer;
+        private int refererLength;
+        private byte[] userAgent;
+        private int userAgentLength;
+        private int status;
+        private long bytes;
+        private long latency;
+    }
+
+    private final Path file;
+    private final Format format;
+    private final Overflow overflow;
+    private final long maxSize;
+    private final long rotationInterval;
+    private final Record[] ring;
+    private final int mask;
+    private final AtomicLong claimed = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private volatile long consumed;
+    private volatile boolean closed;
+    private final Thread writer;
+
+    private OutputStream out;
+    private long size;
+    private long openedAt;
+    private final StringBuilder line = new StringBuilder(256);
+    private long formattedSecond = -1;
+    private String formattedTime;
+
+    /**
+     * Opens the log file and starts the writer thread.
+     * @param file             log file, appended to if it exists
+     * @param format           layout of the lines
+     * @param capacity         number of records the buffer holds, rounded up to a power of two
+     * @param overflow         policy when the buffer is full
+     * @param maxSize          size in bytes past which the file is rotated, 0 for no limit
+     * @param rotationInterval age in milliseconds past which the file is rotated, 0 for no limit
+     * @throws IOException if the file cannot be opened
+     */
+    public AccessLog(Path file, Format format, int capacity, Overflow overflow, long maxSize, long rotationInterval)
+            throws IOException {
+        this.file = file;
+        this.format = format;
+        this.overflow = overflow;
+        this.maxSize = maxSize;
+        this.rotationInterval = rotationInterval;
+        int size = Integer.highestOneBit(Math.max(capacity - 1, 1)) << 1;
+        this.ring = new Record[size];
+        this.mask = size - 1;
+        for (int i = 0; i < size; i++) {
+            ring[i] = new Record();
+            ring[i].sequence = i - size;
+            if (format == Format.COMBINED) {
+                ring[i].referer = new byte[MAX_HEADER_BYTES];
+                ring[i].userAgent = new byte[MAX_HEADER_BYTES];
+            }
+        }
+        open();
+        this.writer = new Thread(this::drain, "access-log");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Records an answered request. Does not allocate and does not wait, unless the buffer is
+     * full with the BLOCK policy.
+     * @param request request line and headers
+     * @param status  status of the response, e.g. "200 OK"
+     * @param bytes   bytes of the response, head included
+     * @param latency time spent on the request in nanoseconds
+     */
+    public void log(HttpRequest request, String status, long bytes, long latency) {
+        long sequence;
+        for (; ; ) {
+            sequence = claimed.get();
+            if (sequence - consumed >= ring.length) {
+                if (overflow == Overflow.DROP || closed) {
+                    dropped.incrementAndGet();
+                    return;
+                }
+                LockSupport.parkNanos(FULL_PARK_NANOS);
+            } else if (claimed.compareAndSet(sequence, sequence + 1)) {
+                break;
+            }
+        }
+        Record record = ring[(int) sequence & mask];
+        record.time = System.currentTimeMillis();
+        record.remoteAddress = request.getRemoteAddress();
+        record.method = request.getMethod();
+        record.target = request.getTarget();
+        record.version = request.getVersion();
+        if (format == Format.COMBINED) {
+            // copied, the headers are overwritten by the next request of the connection
+            record.refererLength = request.getHeaders().copy("Referer", record.referer);
+            record.userAgentLength = request.getHeaders().copy("User-Agent", record.userAgent);
+        }
+        record.status = statusCode(status);
+        record.bytes = bytes;
+        record.latency = latency;
+        record.sequence = sequence;
+    }
+
+    /**
+     * @return number of records dropped because the buffer was full
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * Writes the records already in the buffer, then stops the writer and closes the file.
+     * Records logged afterwards are dropped.
+     */
+    public void close() {
+        closed = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Writer thread: formats the published records in order, a batch at a time.
+     */
+    private void drain() {
+        for (; ; ) {
+            boolean stopping = closed;
+            int written = 0;
+            try {
+                long next = consumed;
+                while (written < MAX_BATCH) {
+                    Record record = ring[(int) next & mask];
+                    if (record.sequence != next) {
+                        break;
+                    }
+                    write(record);
+                    record.remoteAddress = record.method = record.target = record.version = null;
+                    consumed = ++next;
+                    written++;
+                }
+                if (written > 0) {
+                    out.flush();
+                }
+                rotateIfNeeded();
+            } catch (IOException e) {
+                System.out.println("Error: " + e);
+            }
+            if (written == 0) {
+                if (stopping) {
+                    break;
+                }
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+            }
+        }
+        try {
+            out.close();
+        } catch (IOException e) {
+        }
+    }
+
+    private void write(Record record) throws IOException {
+        StringBuilder line = this.line;
+        line.setLength(0);
+        line.append(record.remoteAddress == null ? "-" : record.remoteAddress).append(" - - [")
+                .append(time(record.time)).append("] \"");
+        appendEscaped(line, record.method).append(' ');
+        appendEscaped(line, record.target).append(' ');
+        appendEscaped(line, record.version).append("\" ").append(record.status).append(' ');
+        if (record.bytes > 0) {
+            line.append(record.bytes);
+        } else {
+            line.append('-');
+        }
+        if (format == Format.COMBINED) {
+            line.append(" \"");
+            appendEscaped(line, record.referer, record.refererLength).append("\" \"");
+            appendEscaped(line, record.userAgent, record.userAgentLength).append('"');
+        }
+        line.append(' ').append(record.latency / 1000).append('\n');
+        byte[] bytes = line.toString().getBytes(StandardCharsets.UTF_8);
+        out.write(bytes);
+        size += bytes.length;
+    }
+
+    /**
+     * @return the time in the [day/month/year:hour:minute:second zone] layout, formatted once per second
+     */
+    private String time(long millis) {
+        long second = millis / 1000;
+        if (second != formattedSecond) {
+            formattedTime = TIME_FORMAT.format(Instant.ofEpochSecond(second));
+            formattedSecond = second;
+        }
+        return formattedTime;
+    }
+
+    /**
+     * Escapes the quotes, the backslashes and the control characters sent by the client, so that
+     * a line cannot be forged.
+     */
+    private static StringBuilder appendEscaped(StringBuilder line, String value) {
+        if (value == null) {
+            return line.append('-');
+        }
+        for (int i = 0; i < value.length(); i++) {
+            appendEscaped(line, value.charAt(i));
+        }
+        return line;
+    }
+
+    /**
+     * Escapes a header value copied as bytes, read as ISO-8859-1 like {@link HttpHeaders#get}.
+     */
+    private static StringBuilder appendEscaped(StringBuilder line, byte[] value, int length) {
+        if (length < 0) {
+            return line.append('-');
+        }
+        for (int i = 0; i < length; i++) {
+            appendEscaped(line, (char) (value[i] & 0xff));
+        }
+        return line;
+    }
+
+    private static void appendEscaped(StringBuilder line, char c) {
+        if (c == '"' || c == '\\') {
+            line.append('\\').append(c);
+        } else if (c < 0x20 || c == 0x7f) {
+            line.append("\\x").append(Character.forDigit(c >> 4, 16)).append(Character.forDigit(c & 0xf, 16));
+        } else {
+            line.append(c);
+        }
+    }
+
+    private void open() throws IOException {
+        Path parent = file.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        out = new BufferedOutputStream(new FileOutputStream(file.toFile(), true), OUTPUT_BUFFER_SIZE);
+        size = Files.size(file);
+        openedAt = System.currentTimeMillis();
+    }
+
+    /**
+     * Renames the file with the time of the rotation as suffix and opens a new one, once it is
+     * too large or too old.
+     */
+    private void rotateIfNeeded() throws IOException {
+        long now = System.currentTimeMillis();
+        boolean tooOld = rotationInterval > 0 && now - openedAt >= rotationInterval;
+        if (size == 0 && tooOld) {
+            // nothing to rotate, the period starts again
+            openedAt = now;
+        }
+        if (size == 0 || !(maxSize > 0 && size >= maxSize || tooOld)) {
+            return;
+        }
+        out.close();
+        String suffix = ROTATION_SUFFIX.format(Instant.ofEpochMilli(now));
+        Path rotated = Paths.get(file + "." + suffix);
+        for (int i = 1; Files.exists(rotated); i++) {
+            rotated = Paths.get(file + "." + suffix + "." + i);
+        }
+        Files.move(file, rotated);
+        open();
+    }
+
+    /**
+     * @return the code of a status such as "200 OK", or 0 if it has none
+     */
+    private static int statusCode(String status) {
+        if (status == null || status.length() < 3) {
+            return 0;
+        }
+        int code = 0;
+        for (int i = 0; i < 3; i++) {
+            char c = status.charAt(i);
+            if (c < '0' || c > '9') {
+                return 0;
+            }
+            code = code * 10 + c - '0';
+        }
+        return code;
+    }
+}
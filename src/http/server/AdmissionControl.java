@@ -0,0 +1,209 @@
+package http.server;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Decides whether the server takes a connection or a request, so that one client cannot
+ * starve the others:
+ * <ul>
+ *     <li>the connections of one address are capped when they are accepted, before they take a
+ *     worker;</li>
+ *     <li>the requests of one address to one route are rate limited by {@link TokenBuckets};</li>
+ *     <li>the requests running at once on one route are bounded by an adaptive
+ *     {@link ConcurrencyLimit}, which sheds the load a slow route cannot absorb.</li>
+ * </ul>
+ * Refused requests are answered before their body is read: 429 Too Many Requests for a client
+ * over its limits, 503 Service Unavailable for an overloaded route, both with Retry-After.
+ * The limits can be changed while running, the counts and buckets are kept.
+ */
+public class AdmissionControl {
+
+    // seconds a client refused because of the server load is told to wait
+    static final int OVERLOAD_RETRY_AFTER = 1;
+
+    /**
+     * Outcome of a request: admitted, and then released once answered, or refused.
+     */
+    public static final class Permit {
+        private final ConcurrencyLimit limit;
+        private final int running;
+        private final long start;
+        private final String status;
+        private final long retryAfter;
+
+        private Permit(ConcurrencyLimit limit, int running, long start, String status, long retryAfter) {
+            this.limit = limit;
+            this.running = running;
+            this.start = start;
+            this.status = status;
+            this.retryAfter = retryAfter;
+        }
+
+        public boolean isAdmitted() {
+            return status == null;
+        }
+
+        /**
+         * Answers a refused request.
+         * @param clientOutput stream the response is written to
+         * @throws IOException
+         */
+        public void reject(ConnectionOutputStream clientOutput) throws IOException {
+            clientOutput.response(status).header(ResponseWriter.RETRY_AFTER, retryAfter).send();
+        }
+
+        /**
+         * Ends an admitted request.
+         * @param status status of the response, or null if none could be sent
+         */
+        public void release(String status) {
+            if (limit != null) {
+                limit.release(running, System.nanoTime() - start, status == null || status.startsWith("5"));
+            }
+        }
+    }
+
+    // admitted without a limit to release
+    static final Permit ADMITTED = new Permit(null, 0, 0, null, 0);
+
+    private final Map<String, Integer> connections = new ConcurrentHashMap<>();
+    private final TokenBuckets buckets;
+    private final Map<String, ConcurrencyLimit> limits = new ConcurrentHashMap<>();
+    private final LongAdder connectionsRejected = new LongAdder();
+    private final LongAdder rateLimited = new LongAdder();
+    private final LongAdder overloaded = new LongAdder();
+    private volatile int maxConnectionsPerIp;
+    private volatile int rateLimit;
+    private volatile boolean adaptiveConcurrency;
+    private volatile int maxConcurrency;
+
+    /**
+     * @param config server configuration
+     */
+    public AdmissionControl(ServerConfig config) {
+        buckets = new TokenBuckets(config.getRateLimit(), config.getRateBurst(), config.getRateLimitTable());
+        reconfigure(config);
+    }
+
+    /**
+     * Applies the limits of a new configuration.
+     * @param config server configuration
+     */
+    public void reconfigure(ServerConfig config) {
+        maxConnectionsPerIp = config.getMaxConnectionsPerIp();
+        rateLimit = config.getRateLimit();
+        buckets.configure(config.getRateLimit(), config.getRateBurst(), config.getRateLimitTable());
+        adaptiveConcurrency = config.isAdaptiveConcurrency();
+        maxConcurrency = config.getMaxConcurrency();
+        for (ConcurrencyLimit limit : limits.values()) {
+            limit.setMaxLimit(maxConcurrency);
+        }
+    }
+
+    /**
+     * Counts a connection accepted from an address.
+     * @param address address of the client, or null if unknown
+     * @return false if the address has too many connections, the connection must be refused
+     * without calling {@link #closeConnection}
+     */
+    public boolean openConnection(String address) {
+        if (address == null) {
+            return true;
+        }
+        // counted even without a cap, which a reload may set
+        int count = connections.merge(address, 1, Integer::sum);
+        int max = maxConnectionsPerIp;
+        if (max > 0 && count > max) {
+            closeConnection(address);
+            connectionsRejected.increment();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @param address address of a closed connection, as given to {@link #openConnection}
+     */
+    public void closeConnection(String address) {
+        if (address != null) {
+            connections.computeIfPresent(address, (a, count) -> count == 1 ? null : count - 1);
+        }
+    }
+
+    /**
+     * Decides whether a request is handled now.
+     * @param address address of the client, or null if unknown
+     * @param route   route of the request
+     * @return the permit, to be released once the request is answered if it is admitted
+     */
+    public Permit admit(String address, Router.Route route) {
+        boolean metered = rateLimit > 0 && address != null;
+        if (!metered && !adaptiveConcurrency) {
+            return ADMITTED;
+        }
+        String key = route.getMethod() + " " + route.getPattern();
+        long now = System.nanoTime();
+        if (metered) {
+            long wait = buckets.acquire(address + " " + key, now);
+            if (wait > 0) {
+                rateLimited.increment();
+                return new Permit(null, 0, 0, "429 Too Many Requests", (wait + 999_999_999) / 1_000_000_000);
+            }
+        }
+        if (!adaptiveConcurrency) {
+            return ADMITTED;
+        }
+        ConcurrencyLimit limit = limits.get(key);
+        if (limit == null) {
+            limit = limits.computeIfAbsent(key, k -> new ConcurrencyLimit(maxConcurrency));
+        }
+        int running = limit.tryAcquire();
+        if (running < 0) {
+            overloaded.increment();
+            return new Permit(null, 0, 0, "503 Service Unavailable", OVERLOAD_RETRY_AFTER);
+        }
+        return new Permit(limit, running, now, null, 0);
+    }
+
+    public long getConnectionsRejected() {
+        return connectionsRejected.sum();
+    }
+
+    public long getRateLimited() {
+        return rateLimited.sum();
+    }
+
+    public long getOverloaded() {
+        return overloaded.sum();
+    }
+
+    /**
+     * @return number of token buckets in the table
+     */
+    public long getBucketCount() {
+        return buckets.size();
+    }
+
+    /**
+     * @return sum of the concurrency limits of the routes
+     */
+    public long getConcurrencyLimit() {
+        long sum = 0;
+        for (ConcurrencyLimit limit : limits.values()) {
+            sum += limit.getLimit();
+        }
+        return sum;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder s = new StringBuilder("Admission: ").append(connections.size()).append(" addresses, ")
+                .append(buckets.size()).append(" buckets");
+        limits.forEach((route, limit) -> s.append(", ").append(route).append(" ")
+                .append(limit.getInFlight()).append('/').append(limit.getLimit()));
+        return s.toString();
+    }
+}
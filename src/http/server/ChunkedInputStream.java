@@ -0,0 +1,132 @@
+package http.server;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Body of a request sent with {@code Transfer-Encoding: chunked}.
+ * Decodes the chunks while they are read, so the body is never held in memory, and stops
+ * after the last chunk and its trailers so that the next request of the connection stays in
+ * the underlying stream. Closing it skips the unread part of the body.
+ */
+public class ChunkedInputStream extends InputStream {
+
+    private static final int MAX_LINE_LENGTH = 4096;
+
+    private final InputStream in;
+    private final long maxSize;
+    private long chunkRemaining;
+    private long total;
+    private boolean started;
+    private boolean eof;
+
+    /**
+     * @param in      stream of the connection, positioned at the start of the body
+     * @param maxSize maximum number of decoded bytes, larger bodies are answered 413
+     */
+    public ChunkedInputStream(InputStream in, long maxSize) {
+        this.in = in;
+        this.maxSize = maxSize;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] one = new byte[1];
+        return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (eof) {
+            return -1;
+        }
+        if (len == 0) {
+            return 0;
+        }
+        if (chunkRemaining == 0) {
+            if (!nextChunk()) {
+                return -1;
+            }
+        }
+        int nbRead = in.read(b, off, (int) Math.min(len, chunkRemaining));
+        if (nbRead < 0) {
+            throw new EOFException("connection closed in a chunk");
+        }
+        chunkRemaining -= nbRead;
+        return nbRead;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return eof ? 0 : (int) Math.min(in.available(), chunkRemaining);
+    }
+
+    /**
+     * Discards what is left of the body.
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        byte[] skipped = new byte[4096];
+        while (read(skipped, 0, skipped.length) >= 0) {
+            // skip
+        }
+    }
+
+    /**
+     * Reads the size line of the next chunk, or the trailers after the last one.
+     * @return false if the body is over
+     */
+    private boolean nextChunk() throws IOException {
+        if (started && readLine().length() != 0) {
+            throw new HttpParseException("400 Bad Request", "missing CRLF after a chunk");
+        }
+        started = true;
+        String line = readLine();
+        int semicolon = line.indexOf(';');
+        String size = (semicolon < 0 ? line : line.substring(0, semicolon)).trim();
+        try {
+            chunkRemaining = Long.parseLong(size, 16);
+        } catch (NumberFormatException e) {
+            throw new HttpParseException("400 Bad Request", "invalid chunk size");
+        }
+        if (chunkRemaining < 0) {
+            throw new HttpParseException("400 Bad Request", "invalid chunk size");
+        }
+        if (chunkRemaining == 0) {
+            // trailer fields are ignored
+            while (readLine().length() != 0) {
+                // skip
+            }
+            eof = true;
+            return false;
+        }
+        total += chunkRemaining;
+        if (total > maxSize) {
+            throw new HttpParseException("413 Payload Too Large", "request body too large");
+        }
+        return true;
+    }
+
+    private String readLine() throws IOException {
+        StringBuilder line = new StringBuilder();
+        for (; ; ) {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException("connection closed in a chunk header");
+            }
+            if (b == '\n') {
+                int length = line.length();
+                if (length > 0 && line.charAt(length - 1) == '\r') {
+                    line.setLength(length - 1);
+                }
+                return line.toString();
+            }
+            if (line.length() == MAX_LINE_LENGTH) {
+                throw new HttpParseException("400 Bad Request", "chunk header too long");
+            }
+            line.append((char) b);
+        }
+    }
+}
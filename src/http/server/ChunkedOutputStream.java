@@ -0,0 +1,59 @@
+package http.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Body of a response sent with {@code Transfer-Encoding: chunked}, for content whose length
+ * is not known before it is written. Each write becomes one chunk, so it is meant to be
+ * wrapped in a buffered stream. Closing it writes the last chunk, the connection stays open.
+ */
+public class ChunkedOutputStream extends OutputStream {
+
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final byte[] LAST_CHUNK = {'0', '\r', '\n', '\r', '\n'};
+
+    private final OutputStream out;
+    private boolean closed;
+
+    /**
+     * @param out stream of the connection, positioned after the headers
+     */
+    public ChunkedOutputStream(OutputStream out) {
+        this.out = out;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return;
+        }
+        out.write((Integer.toHexString(len) + "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+        out.write(b, off, len);
+        out.write(CRLF);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    /**
+     * Ends the body with the last chunk, without closing the connection.
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        if (!closed) {
+            closed = true;
+            out.write(LAST_CHUNK);
+            out.flush();
+        }
+    }
+}
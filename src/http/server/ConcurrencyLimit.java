@@ -0,0 +1,106 @@
+package http.server;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Number of requests of one route allowed to run at once, adapted to the latency of the route
+ * instead of being configured.
+ * The limit follows TCP Vegas: the lowest latency seen is taken as the latency without
+ * queueing, and the requests queued behind the others are estimated as
+ * {@code limit * (1 - minLatency / latency)}, the latency being smoothed over the last requests
+ * like the round-trip time of TCP. Below a millisecond, latencies differ by scheduling noise
+ * rather than queueing and count as no queue at all. The limit grows by one while fewer than
+ * {@code alpha} requests queue and shrinks by one above {@code beta}, both growing with the
+ * logarithm of the limit. A failed request, answered 5xx, cuts the limit by a tenth (the
+ * multiplicative decrease of AIMD). The lowest latency is measured again every
+ * {@link #PROBE_SAMPLES} requests so that the limit follows a route which got slower.
+ * Acquiring a slot is a compareAndSet, only the update of the limit is synchronized.
+ */
+final class ConcurrencyLimit {
+
+    private static final int INITIAL_LIMIT = 20;
+    private static final int PROBE_SAMPLES = 1000;
+    private static final long NOISE_FLOOR = 1_000_000;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private volatile int limit = INITIAL_LIMIT;
+    private volatile int maxLimit;
+    // guarded by this
+    private long minLatency = Long.MAX_VALUE;
+    private long probeMinLatency = Long.MAX_VALUE;
+    private double smoothedLatency;
+    private int samples;
+
+    /**
+     * @param maxLimit highest limit the route can reach
+     */
+    ConcurrencyLimit(int maxLimit) {
+        setMaxLimit(maxLimit);
+    }
+
+    void setMaxLimit(int maxLimit) {
+        this.maxLimit = maxLimit;
+        if (limit > maxLimit) {
+            limit = maxLimit;
+        }
+    }
+
+    /**
+     * @return the number of requests in progress before this one, or -1 if the limit is reached
+     */
+    int tryAcquire() {
+        for (; ; ) {
+            int running = inFlight.get();
+            if (running >= limit) {
+                return -1;
+            }
+            if (inFlight.compareAndSet(running, running + 1)) {
+                return running;
+            }
+        }
+    }
+
+    /**
+     * Ends a request and adapts the limit to its outcome.
+     * @param running number of requests in progress when it started
+     * @param latency time the request took in nanoseconds
+     * @param failed  whether the route failed to answer it
+     */
+    void release(int running, long latency, boolean failed) {
+        inFlight.decrementAndGet();
+        synchronized (this) {
+            int current = limit;
+            if (failed) {
+                limit = Math.max(1, current - Math.max(1, current / 10));
+                return;
+            }
+            probeMinLatency = Math.min(probeMinLatency, latency);
+            if (++samples == PROBE_SAMPLES) {
+                minLatency = probeMinLatency;
+                probeMinLatency = Long.MAX_VALUE;
+                samples = 0;
+            } else {
+                minLatency = Math.min(minLatency, latency);
+            }
+            smoothedLatency = smoothedLatency == 0 ? latency : smoothedLatency + (latency - smoothedLatency) / 8;
+            double queued = current * (1 - Math.max(minLatency, NOISE_FLOOR) / Math.max(smoothedLatency, 1));
+            double alpha = 3 * Math.log10(current + 1);
+            if (queued < alpha) {
+                // a route far from its limit tells nothing about a higher one
+                if (running * 2 >= current) {
+                    limit = Math.min(maxLimit, current + 1);
+                }
+            } else if (queued > 2 * alpha) {
+                limit = Math.max(1, current - 1);
+            }
+        }
+    }
+
+    int getLimit() {
+        return limit;
+    }
+
+    int getInFlight() {
+        return inFlight.get();
+    }
+}
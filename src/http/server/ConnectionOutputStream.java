@@ -0,0 +1,272 @@
+package http.server;
+
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Output stream of a client connection.
+ * Remembers whether the connection stays open after the current response so that the
+ * {@link ResponseWriter} can announce it in the Connection header.
+ * Responses stay in the buffer until the owner of the connection flushes it, so that the
+ * responses to pipelined requests can be sent together.
+ * Closing it only flushes the response, the connection itself is closed by its owner.
+ * File contents are sent with {@link #transferFrom(FileChannel, long, long)}, which lets the
+ * kernel copy them straight to the socket when the connection has a channel.
+ * The bytes written are counted in the {@link Metrics} of the server.
+ * A connection writing in blocking mode can bound its writes with a {@link WriteTimeout}: they
+ * are then split so that each one waits for the client to read at most a few hundred
+ * kilobytes, and a client which stops reading is cut off after the timeout.
+ */
+public class ConnectionOutputStream extends BufferedOutputStream {
+
+    private static final int COPY_BUFFER_SIZE = 16 * 1024;
+    // most bytes a write bounded by a timeout sends at once
+    private static final int WRITE_CHUNK = 256 * 1024;
+
+    private final WritableByteChannel channel;
+    private final Metrics metrics;
+    private boolean keepAlive;
+    private ResponseWriter writer;
+    private long written;
+    // null if the writes are not bounded
+    private WriteTimeout.Guard guard;
+
+    public ConnectionOutputStream(OutputStream out) {
+        this(out, null);
+    }
+
+    /**
+     * @param out     stream of the connection
+     * @param channel channel of the same connection used to send files, or null if it has none
+     */
+    public ConnectionOutputStream(OutputStream out, WritableByteChannel channel) {
+        this(out, channel, WebServer.getMetrics());
+    }
+
+    /**
+     * @param out     stream of the connection
+     * @param channel channel of the same connection used to send files, or null if it has none
+     * @param metrics metrics counting the bytes written, or null if the owner of the
+     *                connection counts them, as an HTTP/2 connection does for its streams
+     */
+    public ConnectionOutputStream(OutputStream out, WritableByteChannel channel, Metrics metrics) {
+        super(out);
+        this.channel = channel;
+        this.metrics = metrics;
+    }
+
+    public boolean isKeepAlive() {
+        return keepAlive;
+    }
+
+    public void setKeepAlive(boolean keepAlive) {
+        this.keepAlive = keepAlive;
+    }
+
+    /**
+     * Bounds the writes to the channel of the connection, those of the stream must be bounded
+     * by {@link #channelOutput(WritableByteChannel, WriteTimeout.Guard)}.
+     * @param guard guard of the connection
+     */
+    void setWriteGuard(WriteTimeout.Guard guard) {
+        this.guard = guard;
+    }
+
+    /**
+     * Starts a response on this connection.
+     * @param status status of the response, e.g. "200 OK"
+     * @return the writer of the connection, to add the headers and send the response
+     */
+    public ResponseWriter response(String status) {
+        if (writer == null) {
+            writer = new ResponseWriter(this);
+        }
+        return writer.start(status);
+    }
+
+    /**
+     * @return status of the last response started on this connection, or null if none was
+     */
+    public String getStatus() {
+        return writer == null ? null : writer.getStatus();
+    }
+
+    /**
+     * @return number of bytes written to this stream since it was created
+     */
+    public long getBytesWritten() {
+        return written;
+    }
+
+    /**
+     * Counts bytes sent by a subclass without going through this stream.
+     * @param count number of bytes
+     */
+    protected void countWritten(long count) {
+        written += count;
+        if (metrics != null) {
+            metrics.addBytesOut(count);
+        }
+    }
+
+    @Override
+    public synchronized void write(int b) throws IOException {
+        countWritten(1);
+        super.write(b);
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) throws IOException {
+        countWritten(len);
+        super.write(b, off, len);
+    }
+
+    /**
+     * Writes the head of a response followed by its body.
+     * When they do not fit in the buffer and the connection has a channel, the buffered bytes,
+     * the head and the body are sent with a single gathering write instead of being copied.
+     * @param head       buffer holding the head
+     * @param headLength length of the head
+     * @param body       buffer holding the body
+     * @param off        offset of the body
+     * @param len        length of the body
+     * @throws IOException
+     */
+    synchronized void write(byte[] head, int headLength, byte[] body, int off, int len) throws IOException {
+        if (!(channel instanceof GatheringByteChannel) || count + headLength + len <= buf.length
+                || guard != null && len > WRITE_CHUNK) {
+            write(head, 0, headLength);
+            write(body, off, len);
+            return;
+        }
+        countWritten(headLength + len);
+        ByteBuffer[] buffers = {ByteBuffer.wrap(buf, 0, count), ByteBuffer.wrap(head, 0, headLength),
+                ByteBuffer.wrap(body, off, len)};
+        long remaining = (long) count + headLength + len;
+        while (remaining > 0) {
+            if (guard != null) {
+                guard.begin();
+            }
+            try {
+                remaining -= ((GatheringByteChannel) channel).write(buffers);
+            } finally {
+                if (guard != null) {
+                    guard.end();
+                }
+            }
+        }
+        count = 0;
+    }
+
+    /**
+     * Flushes the response without closing the connection.
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        flush();
+    }
+
+    /**
+     * Stream writing straight to the channel of a socket in blocking mode. On JDK 11 the
+     * streams of a channel's socket share a lock, so a thread blocked reading the socket keeps
+     * the others from writing to it, as the streams of an HTTP/2 connection do while its
+     * thread waits for the next frame.
+     * @param channel channel of the connection, in blocking mode
+     * @return the stream
+     */
+    static OutputStream channelOutput(WritableByteChannel channel) {
+        return channelOutput(channel, null);
+    }
+
+    /**
+     * Stream writing straight to the channel of a socket in blocking mode, each write within
+     * the timeout of a guard.
+     * @param channel channel of the connection, in blocking mode
+     * @param guard   guard of the connection, or null if the writes are not bounded
+     * @return the stream
+     * @see #channelOutput(WritableByteChannel)
+     */
+    static OutputStream channelOutput(WritableByteChannel channel, WriteTimeout.Guard guard) {
+        return new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+                if (guard == null) {
+                    while (buffer.hasRemaining()) {
+                        channel.write(buffer);
+                    }
+                    return;
+                }
+                int end = off + len;
+                while (buffer.position() < end) {
+                    buffer.limit(Math.min(end, buffer.position() + WRITE_CHUNK));
+                    guard.begin();
+                    try {
+                        channel.write(buffer);
+                    } finally {
+                        guard.end();
+                    }
+                }
+            }
+        };
+    }
+
+    /**
+     * Sends a region of a file after the bytes already written.
+     * Uses FileChannel.transferTo (sendfile) when the connection has a channel, otherwise
+     * copies the region through a small buffer. The file is never loaded in memory.
+     * @param file     file to send
+     * @param position offset of the first byte to send
+     * @param count    number of bytes to send
+     * @throws IOException if the file is shorter than expected or the connection fails
+     */
+    public void transferFrom(FileChannel file, long position, long count) throws IOException {
+        flush();
+        countWritten(count);
+        long end = position + count;
+        if (channel != null) {
+            while (position < end) {
+                long sent;
+                if (guard == null) {
+                    sent = file.transferTo(position, end - position, channel);
+                } else {
+                    guard.begin();
+                    try {
+                        sent = file.transferTo(position, Math.min(end - position, WRITE_CHUNK), channel);
+                    } finally {
+                        guard.end();
+                    }
+                }
+                if (sent <= 0 && position >= file.size()) {
+                    throw new EOFException("file truncated while sending it");
+                }
+                position += sent;
+            }
+            return;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(COPY_BUFFER_SIZE, Math.max(count, 1)));
+        while (position < end) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), end - position));
+            int nbRead = file.read(buffer, position);
+            if (nbRead < 0) {
+                throw new EOFException("file truncated while sending it");
+            }
+            out.write(buffer.array(), 0, nbRead);
+            position += nbRead;
+        }
+        out.flush();
+    }
+}
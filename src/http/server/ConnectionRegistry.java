@@ -0,0 +1,102 @@
+package http.server;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Open client connections of the WebServer, kept so that a shutdown can drain them:
+ * idle connections are closed at once, busy ones finish their current request and close
+ * instead of waiting for the next one, and those still open at the deadline are aborted.
+ */
+final class ConnectionRegistry {
+
+    /**
+     * Client connection which can be told to close.
+     */
+    interface Connection {
+
+        /**
+         * Closes the connection if no request is in progress, or once the current request is
+         * answered otherwise. Called at most once, from any thread.
+         */
+        void drain();
+
+        /**
+         * Closes the connection at once, even in the middle of a response.
+         */
+        void abort();
+    }
+
+    private final Set<Connection> connections = new HashSet<>();
+    private volatile boolean draining;
+
+    /**
+     * Registers a connection, which is drained at once if the registry is already draining.
+     * @param connection the opened connection
+     */
+    void add(Connection connection) {
+        synchronized (this) {
+            connections.add(connection);
+        }
+        if (draining) {
+            connection.drain();
+        }
+    }
+
+    /**
+     * @param connection the closed connection
+     */
+    synchronized void remove(Connection connection) {
+        if (connections.remove(connection) && connections.isEmpty()) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * @return whether the connections must close once their current request is answered
+     */
+    boolean isDraining() {
+        return draining;
+    }
+
+    synchronized int size() {
+        return connections.size();
+    }
+
+    /**
+     * Drains every connection and waits for them to close, then aborts those still open.
+     * @param timeoutMillis how long to wait for the requests in progress
+     * @return false if connections had to be aborted
+     */
+    boolean drain(long timeoutMillis) {
+        List<Connection> open;
+        synchronized (this) {
+            draining = true;
+            open = new ArrayList<>(connections);
+        }
+        for (Connection connection : open) {
+            connection.drain();
+        }
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        synchronized (this) {
+            try {
+                for (long left = timeoutMillis; !connections.isEmpty() && left > 0;
+                     left = deadline - System.currentTimeMillis()) {
+                    wait(left);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (connections.isEmpty()) {
+                return true;
+            }
+            open = new ArrayList<>(connections);
+        }
+        for (Connection connection : open) {
+            connection.abort();
+        }
+        return false;
+    }
+}
@@ -0,0 +1,82 @@
+package http.server;
+
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Body of a request delimited by its Content-Length.
+ * Never reads past the end of the body, so the next request of a persistent
+ * connection stays in the underlying stream. Closing it skips the unread part
+ * of the body without closing the connection.
+ */
+public class ContentLengthInputStream extends FilterInputStream {
+
+    private long remaining;
+
+    /**
+     * @param in     stream of the connection, positioned at the start of the body
+     * @param length value of the Content-Length header
+     */
+    public ContentLengthInputStream(InputStream in, long length) {
+        super(in);
+        this.remaining = length;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (remaining <= 0) {
+            return -1;
+        }
+        int b = in.read();
+        if (b < 0) {
+            throw new EOFException("connection closed in the request body");
+        }
+        remaining--;
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (remaining <= 0) {
+            return -1;
+        }
+        int nbRead = in.read(b, off, (int) Math.min(len, remaining));
+        if (nbRead < 0) {
+            throw new EOFException("connection closed in the request body");
+        }
+        remaining -= nbRead;
+        return nbRead;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = in.skip(Math.min(n, remaining));
+        remaining -= skipped;
+        return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return (int) Math.min(in.available(), remaining);
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    /**
+     * Discards what is left of the body.
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        while (remaining > 0) {
+            if (skip(remaining) == 0) {
+                read();
+            }
+        }
+    }
+}
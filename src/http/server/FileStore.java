@@ -0,0 +1,599 @@
+package http.server;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Writes the files modified by the clients: the appends of POST, the replacements of PUT and
+ * of the generated pages, and the deletions.
+ * The modifications of a file are queued and applied in order by a small pool of writer
+ * threads, one file at a time, so that concurrent writers never interleave their bytes and a
+ * slow disk does not hold the request threads. The appends waiting together in the queue of a
+ * file are written with a single gathering write and, with the fsync durability, made durable
+ * with a single force (group commit).
+ * A replacement is written to a temporary file next to the file, then renamed over it, so that
+ * a reader sees either the old content or the new one, never a part of it.
+ * Each file is guarded by one of a fixed set of striped locks, held while its modifications are
+ * applied: a reader holding it sees no append in progress.
+ * The response is sent according to the {@link Durability}.
+ */
+public class FileStore {
+
+    /**
+     * When a modification is acknowledged to the client.
+     * ASYNC once it is queued, WRITE once it is written to the file, FSYNC once it is on the disk.
+     */
+    public enum Durability {
+        ASYNC, WRITE, FSYNC;
+
+        static Durability parse(String value) {
+            try {
+                return valueOf(value.toUpperCase());
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("durability must be async, write or fsync");
+            }
+        }
+    }
+
+    private static final int STRIPES = 64;
+    private static final int WRITER_THREADS = 4;
+    private static final int CHUNK_SIZE = 16 * 1024;
+    // larger appends are spooled to a temporary file instead of being kept in memory
+    private static final long MAX_BUFFERED_APPEND = 1024 * 1024;
+    // past that many bytes waiting in memory, async modifications wait to be written
+    private static final long MAX_PENDING_BYTES = 64L * 1024 * 1024;
+
+    private abstract static class Operation {
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+    }
+
+    /**
+     * Bytes to append, in memory or in a spool file.
+     */
+    private static final class Append extends Operation {
+        final List<ByteBuffer> chunks = new ArrayList<>();
+        Path spool;
+        long size;
+    }
+
+    /**
+     * Temporary file to rename over the file.
+     */
+    private static final class Replace extends Operation {
+        final Path temp;
+
+        Replace(Path temp) {
+            this.temp = temp;
+        }
+    }
+
+    private static final class Delete extends Operation {
+    }
+
+    /**
+     * Modifications of a file waiting to be applied. A queue is in the map while a writer is
+     * scheduled to drain it, and is only read and modified inside the compute of its key.
+     */
+    private static final class FileQueue {
+        final ArrayDeque<Operation> operations = new ArrayDeque<>();
+        // whether the file exists once the queued modifications are applied
+        boolean exists;
+    }
+
+    /**
+     * Replacement of a file being written: the content goes to a temporary file, which replaces
+     * the file on {@link #commit()}, or is deleted on {@link #close()} if not committed.
+     */
+    public final class Replacement extends OutputStream {
+        private final String filename;
+        private final Path temp;
+        private final FileChannel channel;
+        private final OutputStream out;
+        private boolean committed;
+
+        private Replacement(String filename) throws IOException {
+            this.filename = filename;
+            Path path = Paths.get(filename);
+            Path parent = path.toAbsolutePath().getParent();
+            // not Files.createTempFile, whose file is private to the owner and would stay so once renamed
+            Path candidate;
+            FileChannel created;
+            for (; ; ) {
+                candidate = parent.resolve("." + path.getFileName() + "."
+                        + Long.toUnsignedString(ThreadLocalRandom.current().nextLong()) + ".tmp");
+                try {
+                    created = FileChannel.open(candidate, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+                    break;
+                } catch (FileAlreadyExistsException e) {
+                }
+            }
+            this.temp = candidate;
+            this.channel = created;
+            this.out = new BufferedOutputStream(Channels.newOutputStream(channel), CHUNK_SIZE);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        /**
+         * Queues the renaming of the temporary file over the file and waits for the durability.
+         * @return true if the file existed
+         * @throws IOException
+         */
+        public boolean commit() throws IOException {
+            out.flush();
+            if (durability == Durability.FSYNC) {
+                channel.force(true);
+            }
+            channel.close();
+            committed = true;
+            Replace replace = new Replace(temp);
+            boolean existed = submit(filename, replace);
+            await(replace);
+            return existed;
+        }
+
+        @Override
+        public void close() {
+            if (!committed) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                }
+                deleteQuietly(temp);
+            }
+        }
+    }
+
+    private final Durability durability;
+    private final StaticCache cache;
+    private final ReadWriteLock[] stripes = new ReadWriteLock[STRIPES];
+    private final Map<String, FileQueue> queues = new ConcurrentHashMap<>();
+    // queues removed per stripe, tells submit that a file changed while it looked at the disk
+    private final AtomicLongArray drained = new AtomicLongArray(STRIPES);
+    private final ExecutorService writers;
+    private final AtomicLong pendingBytes = new AtomicLong();
+
+    /**
+     * @param durability when the modifications are acknowledged
+     * @param cache      cache invalidated once a modification is applied
+     */
+    public FileStore(Durability durability, StaticCache cache) {
+        this.durability = durability;
+        this.cache = cache;
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new ReentrantReadWriteLock();
+        }
+        AtomicInteger threads = new AtomicInteger();
+        this.writers = Executors.newFixedThreadPool(WRITER_THREADS, task -> {
+            Thread thread = new Thread(task, "file-writer-" + threads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public Durability getDurability() {
+        return durability;
+    }
+
+    /**
+     * Waits for the queued modifications to be applied, then stops the writer threads.
+     * No modification must be submitted once called.
+     * @param timeoutMillis how long to wait for the writers
+     * @return false if modifications were still waiting when the delay expired
+     */
+    public boolean shutdown(long timeoutMillis) {
+        writers.shutdown();
+        try {
+            return writers.awaitTermination(Math.max(timeoutMillis, 0), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * @param filename path of a file
+     * @return lock to hold while reading the file, excluding the appends in progress
+     */
+    public Lock readLock(String filename) {
+        return stripe(key(filename)).readLock();
+    }
+
+    /**
+     * Appends a body to a file, creating it if needed.
+     * @param filename path of the file
+     * @param in       body to append
+     * @return true if the file existed
+     * @throws IOException
+     */
+    public boolean append(String filename, InputStream in) throws IOException {
+        Append append = new Append();
+        OutputStream spoolOut = null;
+        try {
+            // each chunk is filled before the next one is allocated, the memory held is the size of the body
+            byte[] buffer = new byte[CHUNK_SIZE];
+            int filled = 0;
+            int nbRead;
+            while ((nbRead = in.read(buffer, filled, buffer.length - filled)) != -1) {
+                if (spoolOut != null) {
+                    spoolOut.write(buffer, 0, nbRead);
+                } else if (append.size + nbRead > MAX_BUFFERED_APPEND) {
+                    append.spool = Files.createTempFile("append", ".tmp");
+                    spoolOut = new BufferedOutputStream(Files.newOutputStream(append.spool), CHUNK_SIZE);
+                    for (ByteBuffer chunk : append.chunks) {
+                        spoolOut.write(chunk.array(), 0, chunk.limit());
+                    }
+                    append.chunks.clear();
+                    spoolOut.write(buffer, 0, filled + nbRead);
+                    filled = 0;
+                } else {
+                    filled += nbRead;
+                    if (filled == buffer.length) {
+                        append.chunks.add(ByteBuffer.wrap(buffer));
+                        buffer = new byte[CHUNK_SIZE];
+                        filled = 0;
+                    }
+                }
+                append.size += nbRead;
+            }
+            if (spoolOut != null) {
+                spoolOut.close();
+            } else if (filled > 0) {
+                append.chunks.add(ByteBuffer.wrap(buffer, 0, filled));
+            }
+        } catch (IOException e) {
+            if (spoolOut != null) {
+                try {
+                    spoolOut.close();
+                } catch (IOException e1) {
+                }
+                deleteQuietly(append.spool);
+            }
+            throw e;
+        }
+        if (append.spool == null) {
+            pendingBytes.addAndGet(append.size);
+        }
+        boolean existed = submit(filename, append);
+        await(append);
+        return existed;
+    }
+
+    /**
+     * Replaces the content of a file, or creates it, with a body.
+     * @param filename path of the file
+     * @param in       new content
+     * @return true if the file existed
+     * @throws IOException
+     */
+    public boolean replace(String filename, InputStream in) throws IOException {
+        try (Replacement replacement = new Replacement(filename)) {
+            byte[] buffer = new byte[CHUNK_SIZE];
+            int nbRead;
+            while ((nbRead = in.read(buffer)) != -1) {
+                replacement.write(buffer, 0, nbRead);
+            }
+            return replacement.commit();
+        }
+    }
+
+    /**
+     * Starts the replacement of a file, to be written, committed, then closed.
+     * @param filename path of the file
+     * @return the replacement
+     * @throws IOException if the temporary file cannot be created
+     */
+    public Replacement startReplace(String filename) throws IOException {
+        return new Replacement(filename);
+    }
+
+    /**
+     * Deletes a file.
+     * @param filename path of the file
+     * @return true if the file existed
+     * @throws IOException
+     */
+    public boolean delete(String filename) throws IOException {
+        Delete delete = new Delete();
+        boolean existed = submit(filename, delete);
+        await(delete);
+        return existed;
+    }
+
+    /**
+     * Queues a modification of a file and schedules a writer if none drains its queue.
+     * A deletion of a file which will not exist is completed without being queued.
+     * @return whether the file exists before the modification is applied
+     */
+    private boolean submit(String filename, Operation operation) {
+        String key = key(filename);
+        int stripe = stripeIndex(key);
+        boolean[] existed = new boolean[1];
+        boolean[] schedule = new boolean[1];
+        boolean[] stale = new boolean[1];
+        do {
+            // the disk is looked at outside the map, whose bins must not wait for it
+            long seen = drained.get(stripe);
+            boolean onDisk = !queues.containsKey(key) && Files.isRegularFile(Paths.get(key));
+            stale[0] = false;
+            queues.compute(key, (k, queue) -> {
+                boolean created = queue == null;
+                if (created && drained.get(stripe) != seen) {
+                    // a queue was applied meanwhile, the file may have changed: look again
+                    stale[0] = true;
+                    return null;
+                }
+                return enqueue(queue, operation, created ? onDisk : queue.exists, existed, schedule);
+            });
+        } while (stale[0]);
+        if (schedule[0]) {
+            writers.execute(() -> drain(key));
+        }
+        return existed[0];
+    }
+
+    /**
+     * Adds a modification to the queue of a file, run by {@link #submit} in the compute of the map.
+     * @return the queue to keep in the map, null if there is none
+     */
+    private static FileQueue enqueue(FileQueue queue, Operation operation, boolean exists, boolean[] existed,
+                                     boolean[] schedule) {
+        boolean created = queue == null;
+        existed[0] = exists;
+        if (operation instanceof Delete && !exists) {
+            operation.done.complete(null);
+            return queue;
+        }
+        if (created) {
+            queue = new FileQueue();
+            schedule[0] = true;
+        }
+        queue.exists = !(operation instanceof Delete);
+        queue.operations.add(operation);
+        return queue;
+    }
+
+    /**
+     * Applies the modifications of a file until its queue is empty, then removes the queue.
+     */
+    private void drain(String key) {
+        List<Operation> batch = new ArrayList<>();
+        for (; ; ) {
+            queues.compute(key, (k, queue) -> {
+                if (queue.operations.isEmpty()) {
+                    drained.incrementAndGet(stripeIndex(k));
+                    return null;
+                }
+                batch.addAll(queue.operations);
+                queue.operations.clear();
+                return queue;
+            });
+            if (batch.isEmpty()) {
+                return;
+            }
+            apply(key, batch);
+            batch.clear();
+        }
+    }
+
+    /**
+     * Applies a batch of modifications of a file under its write lock, consecutive appends
+     * together, then completes them.
+     */
+    private void apply(String key, List<Operation> batch) {
+        Path path = Paths.get(key);
+        List<Operation> applied = new ArrayList<>(batch.size());
+        boolean renamed = false;
+        Lock lock = stripe(key).writeLock();
+        lock.lock();
+        try {
+            int i = 0;
+            while (i < batch.size()) {
+                Operation operation = batch.get(i);
+                if (operation instanceof Append) {
+                    int end = i + 1;
+                    while (end < batch.size() && batch.get(end) instanceof Append) {
+                        end++;
+                    }
+                    List<Operation> appends = batch.subList(i, end);
+                    try {
+                        writeAppends(path, appends);
+                        applied.addAll(appends);
+                    } catch (IOException e) {
+                        fail(appends, e);
+                    }
+                    i = end;
+                } else {
+                    try {
+                        if (operation instanceof Replace) {
+                            move(((Replace) operation).temp, path);
+                        } else {
+                            Files.deleteIfExists(path);
+                        }
+                        renamed = true;
+                        applied.add(operation);
+                    } catch (IOException e) {
+                        fail(Collections.singletonList(operation), e);
+                    }
+                    i++;
+                }
+            }
+            if (renamed && durability == Durability.FSYNC) {
+                syncDirectory(path.toAbsolutePath().getParent());
+            }
+        } finally {
+            lock.unlock();
+            cache.invalidate(key);
+            for (Operation operation : batch) {
+                if (operation instanceof Append) {
+                    Append append = (Append) operation;
+                    if (append.spool != null) {
+                        deleteQuietly(append.spool);
+                    } else {
+                        pendingBytes.addAndGet(-append.size);
+                    }
+                } else if (operation instanceof Replace) {
+                    deleteQuietly(((Replace) operation).temp);
+                }
+            }
+        }
+        for (Operation operation : applied) {
+            operation.done.complete(null);
+        }
+    }
+
+    /**
+     * Writes consecutive appends to a file, the buffered ones in a single gathering write, and
+     * forces them to the disk at once with the fsync durability.
+     */
+    private void writeAppends(Path path, List<Operation> appends) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND)) {
+            List<ByteBuffer> buffers = new ArrayList<>();
+            for (Operation operation : appends) {
+                Append append = (Append) operation;
+                if (append.spool == null) {
+                    buffers.addAll(append.chunks);
+                    continue;
+                }
+                write(channel, buffers);
+                try (FileChannel spool = FileChannel.open(append.spool, StandardOpenOption.READ)) {
+                    long position = 0;
+                    while (position < append.size) {
+                        position += spool.transferTo(position, append.size - position, channel);
+                    }
+                }
+            }
+            write(channel, buffers);
+            if (durability == Durability.FSYNC) {
+                channel.force(false);
+            }
+        }
+    }
+
+    private static void write(FileChannel channel, List<ByteBuffer> buffers) throws IOException {
+        ByteBuffer[] array = buffers.toArray(new ByteBuffer[0]);
+        int first = 0;
+        while (first < array.length) {
+            channel.write(array, first, array.length - first);
+            while (first < array.length && !array[first].hasRemaining()) {
+                first++;
+            }
+        }
+        buffers.clear();
+    }
+
+    /**
+     * Renames a temporary file over a file, which keeps its permissions when it exists.
+     */
+    private static void move(Path temp, Path path) throws IOException {
+        try {
+            Files.setPosixFilePermissions(temp, Files.getPosixFilePermissions(path));
+        } catch (NoSuchFileException | UnsupportedOperationException e) {
+            // a new file, or a filesystem without POSIX permissions
+        }
+        try {
+            Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Makes the renamings and deletions in a directory durable, where the platform allows it.
+     */
+    private static void syncDirectory(Path directory) {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+        }
+    }
+
+    private static void fail(List<Operation> operations, IOException e) {
+        System.out.println("Error: " + e);
+        for (Operation operation : operations) {
+            operation.done.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * Waits for a modification according to the durability. Async modifications are not waited
+     * for, unless too many bytes wait in memory.
+     */
+    private void await(Operation operation) throws IOException {
+        if (durability == Durability.ASYNC && pendingBytes.get() <= MAX_PENDING_BYTES) {
+            return;
+        }
+        try {
+            operation.done.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    private static void deleteQuietly(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+        }
+    }
+
+    private static String key(String filename) {
+        return Paths.get(filename).normalize().toString();
+    }
+
+    private ReadWriteLock stripe(String key) {
+        return stripes[stripeIndex(key)];
+    }
+
+    private static int stripeIndex(String key) {
+        int h = key.hashCode();
+        return (h ^ h >>> 16) & STRIPES - 1;
+    }
+}
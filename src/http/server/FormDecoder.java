@@ -0,0 +1,449 @@
+package http.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Decodes the parameters of a form from the body of a request, in a single pass over the
+ * body stream.
+ * {@code application/x-www-form-urlencoded} bodies are percent-decoded as UTF-8, '+' being a
+ * space and everything after the first '=' being the value. {@code multipart/form-data}
+ * bodies give their fields as parameters, and their files are streamed to an upload
+ * directory without being held in memory.
+ * The number of parameters and the size of each name and value are bounded, so that a client
+ * cannot flood the parameter map nor make the server buffer a huge field; above the limits the
+ * request is answered 413.
+ */
+public class FormDecoder {
+
+    private static final String URL_ENCODED = "application/x-www-form-urlencoded";
+    private static final String MULTIPART = "multipart/form-data";
+    private static final int BUFFER_SIZE = 8192;
+    private static final int MAX_PART_HEADER_LINE = 4096;
+    private static final int MAX_PART_HEADERS = 16;
+
+    private final int maxParameters;
+    private final int maxParameterSize;
+
+    /**
+     * @param maxParameters    maximum number of parameters of a form
+     * @param maxParameterSize maximum size in bytes of a name or a value, files excepted
+     */
+    public FormDecoder(int maxParameters, int maxParameterSize) {
+        this.maxParameters = maxParameters;
+        this.maxParameterSize = maxParameterSize;
+    }
+
+    /**
+     * @param request request line and headers
+     * @return true if the body of the request is a form this decoder reads
+     */
+    public static boolean isForm(HttpRequest request) {
+        HttpHeaders headers = request.getHeaders();
+        return headers.startsWith("Content-Type", URL_ENCODED) || headers.startsWith("Content-Type", MULTIPART);
+    }
+
+    /**
+     * Decodes a form according to the Content-Type of the request.
+     * @param request         request line and headers, the body being a form
+     * @param in              body of the request
+     * @param uploadDirectory directory the files of a multipart form are written to, or null to
+     *                        discard them and only keep their names
+     * @param uploads         receives the paths of the files written, may be null
+     * @return the parameters by name, the value of a file field being the path it was written to
+     * @throws IOException if the body cannot be read, is invalid or exceeds the limits
+     */
+    public Map<String, String> decode(HttpRequest request, InputStream in, Path uploadDirectory, List<Path> uploads)
+            throws IOException {
+        String contentType = request.getHeaders().get("Content-Type");
+        if (contentType != null && contentType.startsWith(MULTIPART)) {
+            String boundary = attribute(contentType, "boundary");
+            if (boundary == null || boundary.isEmpty() || boundary.length() > 70) {
+                throw new HttpParseException("400 Bad Request", "invalid multipart boundary");
+            }
+            return decodeMultipart(in, boundary, uploadDirectory, uploads);
+        }
+        return decodeUrlEncoded(in);
+    }
+
+    /**
+     * Decodes an {@code application/x-www-form-urlencoded} body.
+     * A parameter repeated several times keeps its last value.
+     * @param in body of the request
+     * @return the parameters by name
+     * @throws IOException if the body cannot be read or exceeds the limits
+     */
+    public Map<String, String> decodeUrlEncoded(InputStream in) throws IOException {
+        Map<String, String> parameters = new HashMap<>();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        Token token = new Token(maxParameterSize);
+        String name = null;
+        // number of hex digits read after a '%', and the first one
+        int escape = 0;
+        int high = 0;
+        int nbRead;
+        while ((nbRead = in.read(buffer)) != -1) {
+            for (int i = 0; i < nbRead; i++) {
+                int b = buffer[i] & 0xff;
+                if (escape > 0) {
+                    int digit = Character.digit(b, 16);
+                    if (digit >= 0 && escape == 1) {
+                        high = digit;
+                        escape = 2;
+                        continue;
+                    }
+                    if (digit >= 0) {
+                        token.add(high << 4 | digit);
+                        escape = 0;
+                        continue;
+                    }
+                    // not an escape, kept as is
+                    token.add('%');
+                    if (escape == 2) {
+                        token.add(Character.forDigit(high, 16));
+                    }
+                    escape = 0;
+                }
+                if (b == '&') {
+                    name = endParameter(parameters, name, token);
+                } else if (b == '=' && name == null) {
+                    name = token.decode();
+                } else if (b == '+') {
+                    token.add(' ');
+                } else if (b == '%') {
+                    escape = 1;
+                } else {
+                    token.add(b);
+                }
+            }
+        }
+        if (escape > 0) {
+            token.add('%');
+            if (escape == 2) {
+                token.add(Character.forDigit(high, 16));
+            }
+        }
+        endParameter(parameters, name, token);
+        return parameters;
+    }
+
+    /**
+     * Stores the parameter being decoded.
+     * @return null, the name of the next parameter
+     */
+    private String endParameter(Map<String, String> parameters, String name, Token token) throws IOException {
+        if (name == null && token.length == 0) {
+            // empty pair, such as in a&&b
+            return null;
+        }
+        String value = token.decode();
+        if (name == null) {
+            // a name without '=' has an empty value
+            name = value;
+            value = "";
+        }
+        put(parameters, name, value);
+        return null;
+    }
+
+    private void put(Map<String, String> parameters, String name, String value) throws IOException {
+        if (parameters.size() >= maxParameters && !parameters.containsKey(name)) {
+            throw new HttpParseException("413 Payload Too Large", "too many form parameters");
+        }
+        parameters.put(name, value);
+    }
+
+    /**
+     * Decodes a {@code multipart/form-data} body.
+     * @param in              body of the request
+     * @param boundary        boundary of the parts, from the Content-Type of the request
+     * @param uploadDirectory directory the files are written to, or null to discard them
+     * @param uploads         receives the paths of the files written, may be null
+     * @return the parameters by name, the value of a file field being the path it was written to,
+     * or the name of the file when it was discarded
+     * @throws IOException if the body cannot be read, is invalid or exceeds the limits
+     */
+    public Map<String, String> decodeMultipart(InputStream in, String boundary, Path uploadDirectory, List<Path> uploads)
+            throws IOException {
+        Map<String, String> parameters = new HashMap<>();
+        MultipartReader reader = new MultipartReader(in, boundary);
+        // the preamble before the first boundary is ignored
+        reader.skipPart();
+        while (reader.nextPart()) {
+            String disposition = null;
+            for (int i = 0; ; i++) {
+                String line = reader.readLine();
+                if (line.isEmpty()) {
+                    break;
+                }
+                if (i == MAX_PART_HEADERS) {
+                    throw new HttpParseException("400 Bad Request", "too many part headers");
+                }
+                int colon = line.indexOf(':');
+                if (colon > 0 && line.substring(0, colon).trim().equalsIgnoreCase("Content-Disposition")) {
+                    disposition = line.substring(colon + 1).trim();
+                }
+            }
+            String name = disposition == null ? null : attribute(disposition, "name");
+            if (name == null) {
+                throw new HttpParseException("400 Bad Request", "part without a name");
+            }
+            String filename = attribute(disposition, "filename");
+            if (filename == null) {
+                Token token = new Token(maxParameterSize);
+                reader.readPart(token);
+                put(parameters, name, token.decode());
+            } else if (uploadDirectory == null || filename.isEmpty()) {
+                // no file chosen, or files are not accepted here
+                reader.skipPart();
+                put(parameters, name, filename);
+            } else {
+                Path file = uploadDirectory.resolve(safeFilename(filename));
+                try (FileStore.Replacement fileOut = WebServer.getStore().startReplace(file.toString())) {
+                    reader.readPart(fileOut);
+                    fileOut.commit();
+                }
+                put(parameters, name, file.toString());
+                if (uploads != null) {
+                    uploads.add(file);
+                }
+            }
+        }
+        return parameters;
+    }
+
+    /**
+     * @return the last component of the file name given by the client
+     * @throws HttpParseException if it does not name a file
+     */
+    private static String safeFilename(String filename) throws HttpParseException {
+        String base = filename.substring(Math.max(filename.lastIndexOf('/'), filename.lastIndexOf('\\')) + 1);
+        if (base.isEmpty() || base.equals(".") || base.equals("..") || base.indexOf('\0') >= 0) {
+            throw new HttpParseException("400 Bad Request", "invalid file name");
+        }
+        return base;
+    }
+
+    /**
+     * Reads an attribute of a header value such as {@code form-data; name="a"; filename="b"}.
+     * @return the unquoted value of the attribute, or null if it is missing
+     */
+    private static String attribute(String header, String name) {
+        int i = header.indexOf(';');
+        while (i >= 0 && i < header.length()) {
+            int start = i + 1;
+            int equals = header.indexOf('=', start);
+            if (equals < 0) {
+                return null;
+            }
+            String key = header.substring(start, equals).trim().toLowerCase(Locale.ROOT);
+            int end;
+            String value;
+            if (equals + 1 < header.length() && header.charAt(equals + 1) == '"') {
+                StringBuilder quoted = new StringBuilder();
+                end = equals + 2;
+                while (end < header.length() && header.charAt(end) != '"') {
+                    char c = header.charAt(end);
+                    if (c == '\\' && end + 1 < header.length()) {
+                        c = header.charAt(++end);
+                    }
+                    quoted.append(c);
+                    end++;
+                }
+                value = quoted.toString();
+                end = header.indexOf(';', end);
+            } else {
+                end = header.indexOf(';', equals);
+                value = header.substring(equals + 1, end < 0 ? header.length() : end).trim();
+            }
+            if (key.equals(name)) {
+                return value;
+            }
+            i = end;
+        }
+        return null;
+    }
+
+    /**
+     * Bytes of a name or a value being decoded, bounded in size.
+     */
+    private static final class Token extends OutputStream {
+        private final int maxSize;
+        private byte[] bytes = new byte[64];
+        private int length;
+
+        Token(int maxSize) {
+            this.maxSize = maxSize;
+        }
+
+        void add(int b) throws IOException {
+            if (length >= maxSize) {
+                throw new HttpParseException("413 Payload Too Large", "form parameter too large");
+            }
+            if (length == bytes.length) {
+                byte[] grown = new byte[Math.min(bytes.length * 2, maxSize)];
+                System.arraycopy(bytes, 0, grown, 0, length);
+                bytes = grown;
+            }
+            bytes[length++] = (byte) b;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            add(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            for (int i = 0; i < len; i++) {
+                add(b[off + i]);
+            }
+        }
+
+        /**
+         * @return the bytes decoded as UTF-8, after which the token is empty again
+         */
+        String decode() {
+            String s = new String(bytes, 0, length, StandardCharsets.UTF_8);
+            length = 0;
+            return s;
+        }
+    }
+
+    /**
+     * Splits a multipart body on its delimiter ({@code CRLF--boundary}) as it is read.
+     * The body is read through a buffer which always keeps enough bytes to recognize a
+     * delimiter cut between two reads.
+     */
+    private static final class MultipartReader {
+        private final InputStream in;
+        private final byte[] delimiter;
+        private final byte[] buffer;
+        private int pos;
+        private int limit;
+        private boolean eof;
+
+        MultipartReader(InputStream in, String boundary) {
+            this.in = in;
+            this.delimiter = ("\r\n--" + boundary).getBytes(StandardCharsets.ISO_8859_1);
+            this.buffer = new byte[BUFFER_SIZE + delimiter.length];
+            // the first delimiter may start the body, without the CRLF before it
+            buffer[0] = '\r';
+            buffer[1] = '\n';
+            limit = 2;
+        }
+
+        /**
+         * Discards the bytes up to the next delimiter.
+         */
+        void skipPart() throws IOException {
+            readPart(null);
+        }
+
+        /**
+         * Copies the bytes up to the next delimiter, which is consumed.
+         * @param out where to copy the part, or null to discard it
+         */
+        void readPart(OutputStream out) throws IOException {
+            for (; ; ) {
+                fill(delimiter.length);
+                int found = indexOfDelimiter();
+                int end = found >= 0 ? found : Math.max(pos, limit - delimiter.length + 1);
+                if (found < 0 && eof && limit - pos < delimiter.length) {
+                    throw new HttpParseException("400 Bad Request", "multipart body without its final boundary");
+                }
+                if (out != null) {
+                    out.write(buffer, pos, end - pos);
+                }
+                pos = end;
+                if (found >= 0) {
+                    pos += delimiter.length;
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Reads what follows a delimiter.
+         * @return true if a part follows, false after the final delimiter
+         */
+        boolean nextPart() throws IOException {
+            fill(2);
+            if (limit - pos >= 2 && buffer[pos] == '-' && buffer[pos + 1] == '-') {
+                // the epilogue after the final delimiter is ignored
+                return false;
+            }
+            if (readLine().trim().length() != 0) {
+                throw new HttpParseException("400 Bad Request", "invalid multipart delimiter");
+            }
+            return true;
+        }
+
+        /**
+         * @return the next line of the part headers, without its CRLF
+         */
+        String readLine() throws IOException {
+            StringBuilder line = new StringBuilder();
+            for (; ; ) {
+                fill(1);
+                if (pos == limit) {
+                    throw new HttpParseException("400 Bad Request", "truncated multipart body");
+                }
+                byte b = buffer[pos++];
+                if (b == '\n') {
+                    int length = line.length();
+                    if (length > 0 && line.charAt(length - 1) == '\r') {
+                        line.setLength(length - 1);
+                    }
+                    // browsers send the file names in UTF-8
+                    return new String(line.toString().getBytes(StandardCharsets.ISO_8859_1), StandardCharsets.UTF_8);
+                }
+                if (line.length() == MAX_PART_HEADER_LINE) {
+                    throw new HttpParseException("400 Bad Request", "multipart header too long");
+                }
+                line.append((char) (b & 0xff));
+            }
+        }
+
+        /**
+         * Reads until at least n bytes are buffered or the body ends.
+         */
+        private void fill(int n) throws IOException {
+            if (limit - pos >= n || eof) {
+                return;
+            }
+            System.arraycopy(buffer, pos, buffer, 0, limit - pos);
+            limit -= pos;
+            pos = 0;
+            while (limit < n && !eof) {
+                int nbRead = in.read(buffer, limit, buffer.length - limit);
+                if (nbRead < 0) {
+                    eof = true;
+                } else {
+                    limit += nbRead;
+                }
+            }
+        }
+
+        private int indexOfDelimiter() {
+            int last = limit - delimiter.length;
+            outer:
+            for (int i = pos; i <= last; i++) {
+                for (int j = 0; j < delimiter.length; j++) {
+                    if (buffer[i + j] != delimiter[j]) {
+                        continue outer;
+                    }
+                }
+                return i;
+            }
+            return -1;
+        }
+    }
+}
@@ -1,152 +1,155 @@
 package http.server;
 
 import java.io.*;
-import java.net.Socket;
+import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
-import java.util.HashMap;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
-import java.util.Scanner;
-import java.util.stream.Collectors;
 
 /**
- * Handles request sent to /HandleRequest.
- * Acts like an ActionServlet.
+ * Handles the form requests sent under /HandleRequest.
+ * Acts like an ActionServlet: each action of our WebClients, CreateUser, Adder and Upload, is a
+ * route of its own served by a single shared instance.
+ * The forms are read with a {@link FormDecoder}, urlencoded or multipart.
  */
 public class HandleRequest {
 
-    private static final String AUTHORIZED_USER_DIRECTORY = "doc/users/";
+    // URLs of the document root, which receives the uploads, and of the users directory, served
+    // under /doc/ whatever the document root
+    private static final String DOC_PATH = "/doc/";
+    private static final String USER_PATH = DOC_PATH + "users/";
+    private static final String USER_TEMPLATE = "user.html";
 
-    public HandleRequest() {
+    private final FormDecoder forms;
+    private final TemplateEngine templates;
+    private final String uploadDirectory;
+    private final String userDirectory;
+
+    /**
+     * @param forms     decoder of the request bodies
+     * @param templates templates of the generated pages
+     * @param docRoot   directory served under /doc/, which receives the uploads and the user pages
+     */
+    public HandleRequest(FormDecoder forms, TemplateEngine templates, String docRoot) {
+        this.forms = forms;
+        this.templates = templates;
+        this.uploadDirectory = docRoot;
+        this.userDirectory = docRoot + "/users/";
     }
 
     /**
-     * Handles a post request directed to /HandleRequest
-     * Our WebClients allows 2 different actions: CreateUser and Adder.
-     * Depending on the action, the server acts differently
-     * @param in
-     * @param client
-     * @throws IOException
+     * Registers the actions on the routes /HandleRequest/CreateUser, /HandleRequest/Adder and
+     * /HandleRequest/Upload.
+     * @param router router of the server
      */
-    public void doPOST(BufferedInputStream in, Socket client) throws IOException {
-        String request = getRequest(in);
-        Map<String, String> map = buildRequest(request);
-        if (map.containsKey("request")) {
-            switch (map.get("request")) {
-                case "CreateUser":
-                    String result = createUser(map);
-                    String filename = AUTHORIZED_USER_DIRECTORY + map.get("user") + ".html";
-                    PrintWriter out = new PrintWriter(filename);
-                    out.println(result);
-                    out.close();
-                    sendContentResponse(client, "200 OK", "text/html", filename, filename.length());
-                    break;
-                case "Adder":
-                    result = doAdder(map);
-                    sendContentResponse(client, "200 OK", "text/html", result, result.length());
-                    break;
-                default:
-                    sendHeader(client, "406 Not Acceptable");
-                    break;
-            }
-        } else {
-            sendHeader(client, "400 Bad Request");
-        }
+    public void register(Router router) {
+        router.add("POST", "/HandleRequest/CreateUser", this::doCreateUser)
+                .add("POST", "/HandleRequest/Adder", this::doAdder)
+                .add("POST", "/HandleRequest/Upload", this::doUpload);
     }
 
     /**
-     * Parses the parameters of the request
+     * Creates the HTML page of a user in the users directory and answers it, with its URL in the
+     * Location header. The page is rendered once from the user template, then written to the
+     * file and to the client.
      * @param request
-     * @return
+     * @param in
+     * @param clientOutput
+     * @param parameters
+     * @throws IOException
      */
-    public Map<String, String> buildRequest(String request) {
-        Map<String, String> map = new HashMap<String, String>();
-        for (String parameter : request.split("&")) {
-            if (parameter.split("=").length == 1) {
-                map.put(parameter.split("=")[0], "");
-            } else {
-                String id = parameter.split("=")[0];
-                String value = parameter.split("=")[1];
-                map.put(id, value);
+    public void doCreateUser(HttpRequest request, InputStream in, ConnectionOutputStream clientOutput,
+                             Map<String, String> parameters) throws IOException {
+        Map<String, String> map = readForm(request, in, clientOutput);
+        if (map == null) {
+            return;
+        }
+        String user = map.get("user");
+        if (user == null || user.isEmpty() || user.indexOf('/') >= 0 || user.indexOf('\\') >= 0
+                || user.indexOf('\0') >= 0 || user.startsWith(".")) {
+            // the name becomes a file name, it must stay in the users directory
+            clientOutput.response("400 Bad Request").send();
+            return;
+        }
+        String filename = userDirectory + user + ".html";
+        try (TemplateEngine.Page page = templates.render(USER_TEMPLATE, map)) {
+            try (FileStore.Replacement out = WebServer.getStore().startReplace(filename)) {
+                page.writeTo(out);
+                out.commit();
             }
+            clientOutput.response("201 Created")
+                    .header("Location", USER_PATH + encode(user) + ".html")
+                    .header(ResponseWriter.CONTENT_TYPE, "text/html; charset=utf-8")
+                    .header(ResponseWriter.CONTENT_LENGTH, page.getLength())
+                    .send(page.getBytes(), 0, page.getLength());
         }
-        return map;
     }
 
-
     /**
-     * Reads the body of a request and stores it into a String
-     *
+     * Adds the numbers number1 and number2 of the form and answers the result.
+     * @param request
      * @param in
-     * @return String, request body
+     * @param clientOutput
+     * @param parameters
      * @throws IOException
      */
-    public String getRequest(BufferedInputStream in) throws IOException {
-        String result = "";
-        //Output stream will be in append mode if the file exists, otherwise in the beginning
-        int currentByte = -1;
-        while (in.available()>0) {
-            result += (char) in.read();
+    public void doAdder(HttpRequest request, InputStream in, ConnectionOutputStream clientOutput,
+                        Map<String, String> parameters) throws IOException {
+        Map<String, String> map = readForm(request, in, clientOutput);
+        if (map == null) {
+            return;
         }
-        System.out.println(result);
-        return result;
+        String result = doAdder(map);
+        clientOutput.response("200 OK").send("text/html", result.getBytes(StandardCharsets.UTF_8));
     }
 
     /**
-     * Sends a response with only a header and the response status
-     * @param client
-     * @param status
+     * Stores the files of a multipart form in the authorized directory and answers their URLs
+     * under /doc/, one per line, without revealing where the files are on the disk.
+     * @param request
+     * @param in
+     * @param clientOutput
+     * @param parameters
      * @throws IOException
      */
-    private static void sendHeader(Socket client, String status) throws IOException {
-        OutputStream clientOutput = client.getOutputStream();
-        clientOutput.write(("HTTP/1.1 " + status + "\r\n").getBytes());
-        clientOutput.write("\r\n".getBytes());
-        clientOutput.flush();
-        clientOutput.close();
+    public void doUpload(HttpRequest request, InputStream in, ConnectionOutputStream clientOutput,
+                         Map<String, String> parameters) throws IOException {
+        if (!request.getHeaders().startsWith("Content-Type", "multipart/form-data")) {
+            clientOutput.response("415 Unsupported Media Type").send();
+            return;
+        }
+        List<Path> uploads = new ArrayList<>();
+        forms.decode(request, in, Paths.get(uploadDirectory), uploads);
+        StringBuilder stored = new StringBuilder();
+        for (Path file : uploads) {
+            stored.append(DOC_PATH).append(encode(file.getFileName().toString())).append('\n');
+        }
+        clientOutput.response("201 Created").send("text/plain", stored.toString().getBytes(StandardCharsets.UTF_8));
     }
 
     /**
-     * Sends a response with a header and a body for the GET request
-     * @param client
-     * @param status
-     * @param contentType
-     * @param content
-     * @throws IOException
+     * Reads the parameters of a form request, or answers 415 if the body is not a form.
+     * Files sent with a multipart form are not kept.
+     * @return the parameters, or null if the request was answered
      */
-    private static void sendContentResponse(Socket client, String status, String contentType, String content, long length) throws IOException {
-        OutputStream clientOutput = client.getOutputStream();
-        clientOutput.write(("HTTP/1.1 " + status + "\r\n").getBytes());
-        clientOutput.write(("Content-Type: " + contentType + "\r\n").getBytes());
-        clientOutput.write(("Content-Length: " + length + "\r\n").getBytes());
-        clientOutput.write("\r\n".getBytes());
-        clientOutput.write(content.getBytes());
-        clientOutput.write("\r\n\r\n".getBytes());
-        clientOutput.flush();
-        clientOutput.close();
+    private Map<String, String> readForm(HttpRequest request, InputStream in, ConnectionOutputStream clientOutput) throws IOException {
+        if (!FormDecoder.isForm(request)) {
+            clientOutput.response("415 Unsupported Media Type").send();
+            return null;
+        }
+        return forms.decode(request, in, null, null);
     }
 
-
     /**
-     * Creates an HTML file for a user
-     * @param map
-     * @return String with the content of the html file
+     * @return a file name percent-encoded as UTF-8 to be a segment of a URL path
      */
-    private String createUser(Map<String, String> map) {
-        String resultat = "";
-        resultat += "<HTML>";
-        resultat += "<HEAD> <TITLE> Hello " + map.get("user") + "</TITLE> </HEAD>";
-        resultat += "<BODY>";
-        resultat += "<H1>" + map.get("user") + "</H1>";
-        resultat += "<DIV> Phone : " + map.get("phone") + "</DIV>";
-        resultat += "<DIV> Email : " + map.get("mail") + "</DIV>";
-        resultat += "<DIV> Password : " + map.get("password") + "</DIV>";
-        resultat += "</BODY></HTML>";
-
-        return resultat;
+    private static String encode(String name) throws IOException {
+        return URLEncoder.encode(name, "UTF-8").replace("+", "%20");
     }
 
-
     /**
      * Realises an adder operation
      * @param map with the numbers to add
@@ -0,0 +1,447 @@
+package http.server;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * HPACK, the header compression of HTTP/2 (RFC 7541).
+ * Header fields are sent as indexes into a static table of common fields and into a dynamic
+ * table both ends fill in the same order, or as literals, optionally Huffman coded.
+ * The {@link Decoder} reads the request headers of a connection and the {@link Encoder} writes
+ * its response headers; each one keeps its own dynamic table and must see the header blocks in
+ * the order they travel on the connection.
+ * The Huffman code is canonical: it is rebuilt from the length of the code of each symbol.
+ */
+final class Hpack {
+
+    /** Size of the dynamic tables unless the peer asks for another one. */
+    static final int DEFAULT_TABLE_SIZE = 4096;
+
+    private static final String[][] STATIC_TABLE = {
+            {":authority", ""}, {":method", "GET"}, {":method", "POST"}, {":path", "/"},
+            {":path", "/index.html"}, {":scheme", "http"}, {":scheme", "https"}, {":status", "200"},
+            {":status", "204"}, {":status", "206"}, {":status", "304"}, {":status", "400"},
+            {":status", "404"}, {":status", "500"}, {"accept-charset", ""}, {"accept-encoding", "gzip, deflate"},
+            {"accept-language", ""}, {"accept-ranges", ""}, {"accept", ""}, {"access-control-allow-origin", ""},
+            {"age", ""}, {"allow", ""}, {"authorization", ""}, {"cache-control", ""},
+            {"content-disposition", ""}, {"content-encoding", ""}, {"content-language", ""}, {"content-length", ""},
+            {"content-location", ""}, {"content-range", ""}, {"content-type", ""}, {"cookie", ""},
+            {"date", ""}, {"etag", ""}, {"expect", ""}, {"expires", ""},
+            {"from", ""}, {"host", ""}, {"if-match", ""}, {"if-modified-since", ""},
+            {"if-none-match", ""}, {"if-range", ""}, {"if-unmodified-since", ""}, {"last-modified", ""},
+            {"link", ""}, {"location", ""}, {"max-forwards", ""}, {"proxy-authenticate", ""},
+            {"proxy-authorization", ""}, {"range", ""}, {"referer", ""}, {"refresh", ""},
+            {"retry-after", ""}, {"server", ""}, {"set-cookie", ""}, {"strict-transport-security", ""},
+            {"transfer-encoding", ""}, {"user-agent", ""}, {"vary", ""}, {"via", ""},
+            {"www-authenticate", ""},
+    };
+
+    // length in bits of the Huffman code of each byte, the last one is the end of string symbol
+    private static final byte[] HUFFMAN_LENGTHS = {
+            13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 28,
+            6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6, 5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10,
+            13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6,
+            15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5, 6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13, 28,
+            20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23, 24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24,
+            22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23, 21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23,
+            26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26, 24, 25, 19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27,
+            20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23, 26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26,
+            30,
+    };
+    private static final int EOS = 256;
+    private static final int MAX_CODE_LENGTH = 30;
+
+    private static final int[] HUFFMAN_CODES = new int[HUFFMAN_LENGTHS.length];
+    // canonical decoding: first code and number of codes of each length, symbols sorted by code
+    private static final int[] FIRST_CODE = new int[MAX_CODE_LENGTH + 1];
+    private static final int[] CODE_COUNT = new int[MAX_CODE_LENGTH + 1];
+    private static final int[] FIRST_SYMBOL = new int[MAX_CODE_LENGTH + 1];
+    private static final int[] SYMBOLS = new int[HUFFMAN_LENGTHS.length];
+    // index of the first entry of the static table with each name
+    private static final Map<String, Integer> STATIC_NAMES = new HashMap<>();
+
+    static {
+        for (byte length : HUFFMAN_LENGTHS) {
+            CODE_COUNT[length]++;
+        }
+        int code = 0;
+        int symbol = 0;
+        for (int length = 1; length <= MAX_CODE_LENGTH; length++) {
+            code = (code + CODE_COUNT[length - 1]) << 1;
+            FIRST_CODE[length] = code;
+            FIRST_SYMBOL[length] = symbol;
+            symbol += CODE_COUNT[length];
+        }
+        int[] next = new int[MAX_CODE_LENGTH + 1];
+        for (int s = 0; s < HUFFMAN_LENGTHS.length; s++) {
+            int length = HUFFMAN_LENGTHS[s];
+            HUFFMAN_CODES[s] = FIRST_CODE[length] + next[length];
+            SYMBOLS[FIRST_SYMBOL[length] + next[length]++] = s;
+        }
+        for (int i = STATIC_TABLE.length - 1; i >= 0; i--) {
+            STATIC_NAMES.put(STATIC_TABLE[i][0], i + 1);
+        }
+    }
+
+    private Hpack() {
+    }
+
+    /**
+     * Receives the header fields of a block as they are decoded.
+     * The whole block is always decoded, to keep the dynamic table in step with the peer, so
+     * invalid fields are to be remembered and reported once it is done.
+     */
+    @FunctionalInterface
+    interface Listener {
+        void header(String name, String value);
+    }
+
+    /**
+     * Decodes the header blocks received on a connection.
+     */
+    static final class Decoder {
+        private final DynamicTable table;
+        private final int maxTableSize;
+        private byte[] buf;
+        private int pos;
+        private int end;
+
+        /**
+         * @param maxTableSize size of the dynamic table announced to the peer
+         */
+        Decoder(int maxTableSize) {
+            this.maxTableSize = maxTableSize;
+            this.table = new DynamicTable(maxTableSize);
+        }
+
+        /**
+         * Decodes a whole header block, fragments already joined.
+         * @param block bytes of the block
+         * @param length length of the block
+         * @param listener receives the fields in order
+         * @throws Http2Exception COMPRESSION_ERROR if the block is invalid
+         */
+        void decode(byte[] block, int length, Listener listener) throws Http2Exception {
+            buf = block;
+            pos = 0;
+            end = length;
+            boolean fieldSeen = false;
+            while (pos < end) {
+                int b = buf[pos] & 0xff;
+                if ((b & 0x80) != 0) {
+                    int index = readInt(7);
+                    listener.header(name(index), value(index));
+                    fieldSeen = true;
+                } else if ((b & 0x40) != 0) {
+                    String[] field = readLiteral(6);
+                    table.add(field[0], field[1]);
+                    listener.header(field[0], field[1]);
+                    fieldSeen = true;
+                } else if ((b & 0x20) != 0) {
+                    if (fieldSeen) {
+                        throw error("table size update after a header field");
+                    }
+                    int size = readInt(5);
+                    if (size > maxTableSize) {
+                        throw error("table size update above the announced size");
+                    }
+                    table.setMaxSize(size);
+                } else {
+                    // without indexing or never indexed, which only matters to intermediaries
+                    String[] field = readLiteral(4);
+                    listener.header(field[0], field[1]);
+                    fieldSeen = true;
+                }
+            }
+            buf = null;
+        }
+
+        private String name(int index) throws Http2Exception {
+            if (index >= 1 && index <= STATIC_TABLE.length) {
+                return STATIC_TABLE[index - 1][0];
+            }
+            int i = index - STATIC_TABLE.length - 1;
+            if (index == 0 || i >= table.count) {
+                throw error("invalid index " + index);
+            }
+            return table.name(i);
+        }
+
+        private String value(int index) {
+            return index <= STATIC_TABLE.length ? STATIC_TABLE[index - 1][1] : table.value(index - STATIC_TABLE.length - 1);
+        }
+
+        private String[] readLiteral(int prefix) throws Http2Exception {
+            int index = readInt(prefix);
+            String name = index == 0 ? readString() : name(index);
+            return new String[]{name, readString()};
+        }
+
+        private int readInt(int prefix) throws Http2Exception {
+            int mask = (1 << prefix) - 1;
+            int value = buf[pos++] & mask;
+            if (value < mask) {
+                return value;
+            }
+            for (int shift = 0; ; shift += 7) {
+                if (pos == end || shift > 21) {
+                    throw error("invalid integer");
+                }
+                int b = buf[pos++] & 0xff;
+                value += (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+        }
+
+        private String readString() throws Http2Exception {
+            if (pos == end) {
+                throw error("missing string");
+            }
+            boolean huffman = (buf[pos] & 0x80) != 0;
+            int length = readInt(7);
+            if (length > end - pos) {
+                throw error("string past the end of the block");
+            }
+            String s = huffman ? huffmanDecode(buf, pos, length) : new String(buf, pos, length, StandardCharsets.ISO_8859_1);
+            pos += length;
+            return s;
+        }
+
+        private static String huffmanDecode(byte[] buf, int off, int len) throws Http2Exception {
+            StringBuilder sb = new StringBuilder(len * 8 / 5);
+            int code = 0;
+            int length = 0;
+            for (int i = off; i < off + len; i++) {
+                int b = buf[i];
+                for (int bit = 7; bit >= 0; bit--) {
+                    code = code << 1 | (b >> bit & 1);
+                    length++;
+                    int rank = code - FIRST_CODE[length];
+                    if (rank >= 0 && rank < CODE_COUNT[length]) {
+                        int symbol = SYMBOLS[FIRST_SYMBOL[length] + rank];
+                        if (symbol == EOS) {
+                            throw error("end of string symbol in a string");
+                        }
+                        sb.append((char) symbol);
+                        code = 0;
+                        length = 0;
+                    } else if (length == MAX_CODE_LENGTH) {
+                        throw error("invalid Huffman code");
+                    }
+                }
+            }
+            // the padding is the most significant bits of the end of string symbol, all ones
+            if (length > 7 || code != (1 << length) - 1) {
+                throw error("invalid Huffman padding");
+            }
+            return sb.toString();
+        }
+
+        private static Http2Exception error(String message) {
+            return new Http2Exception(Http2Exception.COMPRESSION_ERROR, message);
+        }
+    }
+
+    /**
+     * Encodes the header blocks sent on a connection.
+     */
+    static final class Encoder {
+        private final DynamicTable table = new DynamicTable(DEFAULT_TABLE_SIZE);
+        // smallest table size since the last block, to be announced at the start of the next one
+        private int sizeUpdate = -1;
+
+        /**
+         * Applies the table size the peer announced, the table never grows past the default size.
+         * @param size value of SETTINGS_HEADER_TABLE_SIZE
+         */
+        void setMaxTableSize(int size) {
+            int newSize = Math.min(size, DEFAULT_TABLE_SIZE);
+            if (newSize != table.maxSize) {
+                table.setMaxSize(newSize);
+                sizeUpdate = sizeUpdate < 0 ? newSize : Math.min(sizeUpdate, newSize);
+            }
+        }
+
+        /**
+         * Starts a header block with the :status pseudo-header.
+         * @param status status code of the response
+         * @param out block being encoded
+         */
+        void status(int status, ByteArrayOutputStream out) {
+            if (sizeUpdate >= 0) {
+                writeInt(out, 0x20, 5, sizeUpdate);
+                if (sizeUpdate != table.maxSize) {
+                    writeInt(out, 0x20, 5, table.maxSize);
+                }
+                sizeUpdate = -1;
+            }
+            for (int i = 7; i < 14; i++) {
+                if (STATIC_TABLE[i][1].equals(Integer.toString(status))) {
+                    writeInt(out, 0x80, 7, i + 1);
+                    return;
+                }
+            }
+            writeInt(out, 0x00, 4, 8);
+            writeString(out, Integer.toString(status));
+        }
+
+        /**
+         * Encodes a header field, from the tables when they have it.
+         * @param name lowercase name of the field
+         * @param value value of the field
+         * @param indexed true to add the field to the dynamic table, for values that repeat
+         * @param out block being encoded
+         */
+        void header(String name, String value, boolean indexed, ByteArrayOutputStream out) {
+            int found = table.indexOf(name, value);
+            if (found >= 0) {
+                writeInt(out, 0x80, 7, STATIC_TABLE.length + 1 + found);
+                return;
+            }
+            Integer nameIndex = STATIC_NAMES.get(name);
+            if (indexed) {
+                writeInt(out, 0x40, 6, nameIndex == null ? 0 : nameIndex);
+                table.add(name, value);
+            } else {
+                writeInt(out, 0x00, 4, nameIndex == null ? 0 : nameIndex);
+            }
+            if (nameIndex == null) {
+                writeString(out, name);
+            }
+            writeString(out, value);
+        }
+
+        private static void writeInt(ByteArrayOutputStream out, int pattern, int prefix, int value) {
+            int mask = (1 << prefix) - 1;
+            if (value < mask) {
+                out.write(pattern | value);
+                return;
+            }
+            out.write(pattern | mask);
+            value -= mask;
+            while (value >= 0x80) {
+                out.write(value & 0x7f | 0x80);
+                value >>>= 7;
+            }
+            out.write(value);
+        }
+
+        /**
+         * Writes a string literal, Huffman coded when that is shorter.
+         */
+        private static void writeString(ByteArrayOutputStream out, String s) {
+            long bits = 0;
+            for (int i = 0; i < s.length(); i++) {
+                bits += HUFFMAN_LENGTHS[s.charAt(i) & 0xff];
+            }
+            int huffmanLength = (int) ((bits + 7) / 8);
+            if (huffmanLength >= s.length()) {
+                writeInt(out, 0x00, 7, s.length());
+                for (int i = 0; i < s.length(); i++) {
+                    out.write(s.charAt(i));
+                }
+                return;
+            }
+            writeInt(out, 0x80, 7, huffmanLength);
+            long pending = 0;
+            int pendingBits = 0;
+            for (int i = 0; i < s.length(); i++) {
+                int symbol = s.charAt(i) & 0xff;
+                pending = pending << HUFFMAN_LENGTHS[symbol] | HUFFMAN_CODES[symbol];
+                pendingBits += HUFFMAN_LENGTHS[symbol];
+                while (pendingBits >= 8) {
+                    pendingBits -= 8;
+                    out.write((int) (pending >>> pendingBits));
+                }
+            }
+            if (pendingBits > 0) {
+                out.write((int) (pending << (8 - pendingBits) | 0xff >>> pendingBits));
+            }
+        }
+    }
+
+    /**
+     * Dynamic table, the most recent entry first. An entry counts its name and value lengths
+     * plus 32 bytes against the size of the table, the oldest entries are evicted to make room.
+     */
+    private static final class DynamicTable {
+        private String[] names = new String[16];
+        private String[] values = new String[16];
+        // position of the most recent entry in the circular arrays
+        private int head;
+        private int count;
+        private int size;
+        private int maxSize;
+
+        DynamicTable(int maxSize) {
+            this.maxSize = maxSize;
+        }
+
+        String name(int i) {
+            return names[(head + i) & (names.length - 1)];
+        }
+
+        String value(int i) {
+            return values[(head + i) & (names.length - 1)];
+        }
+
+        /**
+         * @return index of the entry with this name and value, or -1
+         */
+        int indexOf(String name, String value) {
+            for (int i = 0; i < count; i++) {
+                if (name(i).equals(name) && value(i).equals(value)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        void add(String name, String value) {
+            int entrySize = 32 + name.length() + value.length();
+            evict(maxSize - entrySize);
+            if (entrySize > maxSize) {
+                // larger than the table, which it leaves empty
+                return;
+            }
+            if (count == names.length) {
+                String[] largerNames = new String[names.length * 2];
+                String[] largerValues = new String[names.length * 2];
+                for (int i = 0; i < count; i++) {
+                    largerNames[i] = name(i);
+                    largerValues[i] = value(i);
+                }
+                names = largerNames;
+                values = largerValues;
+                head = 0;
+            }
+            head = (head - 1) & (names.length - 1);
+            names[head] = name;
+            values[head] = value;
+            count++;
+            size += entrySize;
+        }
+
+        void setMaxSize(int maxSize) {
+            this.maxSize = maxSize;
+            evict(maxSize);
+        }
+
+        /**
+         * Evicts the oldest entries until the table holds at most the given size.
+         */
+        private void evict(int targetSize) {
+            while (count > 0 && size > targetSize) {
+                int last = (head + count - 1) & (names.length - 1);
+                size -= 32 + names[last].length() + values[last].length();
+                names[last] = null;
+                values[last] = null;
+                count--;
+            }
+        }
+    }
+}
@@ -0,0 +1,1442 @@
+package http.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * HTTP/2 over cleartext TCP (h2c, RFC 9113) on a connection taken over from the HTTP/1.1
+ * engines, once the client sent the connection preface directly (prior knowledge) or asked for
+ * it with an {@code Upgrade: h2c} request, which is then answered on stream 1.
+ * The thread of the connection, a reader of the {@link WorkerPool} rather than one of its workers,
+ * reads the frames and keeps the state of the connection. Each
+ * stream is a request run on the worker pool by the same handlers as HTTP/1.1: they write an
+ * HTTP/1.1 response to a {@link ConnectionOutputStream} which turns its head into a HEADERS
+ * frame compressed with {@link Hpack} and its body into DATA frames. Frames are written whole
+ * under a single lock, so the responses of concurrent streams interleave frame by frame.
+ * Flow control works both ways: a stream buffers no more request body than its window, which
+ * is opened again as the handler reads the body, and a handler sending its response waits
+ * while the windows the client granted are exhausted.
+ * The bytes of the connection are counted in the {@link Metrics} once, as frames, the streams
+ * only count their own responses for the access log.
+ */
+public class Http2Connection {
+
+    private static final byte[] PREFACE = ascii("PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n");
+    // part of the preface the HTTP/1.1 parser reads as the head of a PRI request
+    private static final int PREFACE_HEAD_LENGTH = 18;
+    private static final byte[] SWITCHING_PROTOCOLS =
+            ascii("HTTP/1.1 101 Switching Protocols\r\nConnection: Upgrade\r\nUpgrade: h2c\r\n\r\n");
+
+    private static final int DATA = 0x0;
+    private static final int HEADERS = 0x1;
+    private static final int PRIORITY = 0x2;
+    private static final int RST_STREAM = 0x3;
+    private static final int SETTINGS = 0x4;
+    private static final int PUSH_PROMISE = 0x5;
+    private static final int PING = 0x6;
+    private static final int GOAWAY = 0x7;
+    private static final int WINDOW_UPDATE = 0x8;
+    private static final int CONTINUATION = 0x9;
+
+    private static final int FLAG_END_STREAM = 0x1;
+    private static final int FLAG_ACK = 0x1;
+    private static final int FLAG_END_HEADERS = 0x4;
+    private static final int FLAG_PADDED = 0x8;
+    private static final int FLAG_PRIORITY = 0x20;
+
+    private static final int SETTINGS_HEADER_TABLE_SIZE = 0x1;
+    private static final int SETTINGS_ENABLE_PUSH = 0x2;
+    private static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+    private static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+    private static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+    private static final int SETTINGS_MAX_HEADER_LIST_SIZE = 0x6;
+
+    private static final int DEFAULT_WINDOW = 65535;
+    // largest frame accepted, the default which the server does not raise
+    private static final int MAX_FRAME_SIZE = 16384;
+    private static final int MAX_FRAME_SIZE_LIMIT = (1 << 24) - 1;
+    private static final byte[] EMPTY = new byte[0];
+
+    private final WorkerPool pool;
+    private final String remoteAddress;
+    private final int maxStreams;
+    private final int streamWindow;
+    private final int maxHeaderSize;
+    private final long maxBodySize;
+    private final Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+    private final Hpack.Encoder encoder = new Hpack.Encoder();
+    private final Map<Integer, Stream> streams = new ConcurrentHashMap<>();
+    private final byte[] payload = new byte[MAX_FRAME_SIZE];
+    private DataInputStream in;
+    private OutputStream out;
+    private volatile int lastStreamId;
+    private volatile boolean goingAway;
+    // set by drain(), the connection ends once its last stream is done
+    private volatile boolean draining;
+    // header block of a HEADERS frame followed by CONTINUATION frames
+    private final ByteArrayOutputStream headerBlock = new ByteArrayOutputStream();
+    private int headerBlockStream;
+    private int headerBlockFlags;
+
+    // frames are written whole while holding it, the encoder is only used under it too
+    private final Object writeLock = new Object();
+    private final byte[] frameHeader = new byte[9];
+    private final byte[] control = new byte[8];
+    // the settings are sent, guarded by the write lock
+    private boolean started;
+
+    // the windows below are guarded by it, the handlers waiting for the client wait on it
+    private final Object windowLock = new Object();
+    private long sendWindow = DEFAULT_WINDOW;
+    private int initialSendWindow = DEFAULT_WINDOW;
+    private long receiveWindow = DEFAULT_WINDOW;
+    private boolean closed;
+    private volatile int maxSendFrameSize = MAX_FRAME_SIZE;
+
+    /**
+     * @param config server configuration
+     * @param pool pool running the streams
+     * @param remoteAddress address of the client, or null if unknown
+     */
+    public Http2Connection(ServerConfig config, WorkerPool pool, String remoteAddress) {
+        this.pool = pool;
+        this.remoteAddress = remoteAddress;
+        this.maxStreams = config.getHttp2MaxStreams();
+        this.streamWindow = config.getHttp2Window();
+        this.maxHeaderSize = config.getMaxHeaderSize();
+        this.maxBodySize = config.getMaxBodySize();
+    }
+
+    /**
+     * @param request head parsed by the HTTP/1.1 parser
+     * @return true if it is the start of the HTTP/2 connection preface
+     */
+    public static boolean isPreface(HttpRequest request) {
+        return "PRI".equals(request.getMethod()) && "*".equals(request.getTarget())
+                && "HTTP/2.0".equals(request.getVersion());
+    }
+
+    /**
+     * Upgrades are only accepted on requests without a body, the others stay in HTTP/1.1.
+     * @param request head parsed by the HTTP/1.1 parser
+     * @return true if the request asks to switch to h2c
+     */
+    public static boolean isUpgrade(HttpRequest request) {
+        HttpHeaders headers = request.getHeaders();
+        try {
+            return "HTTP/1.1".equals(request.getVersion()) && headers.containsToken("Upgrade", "h2c")
+                    && headers.contains("HTTP2-Settings") && !headers.contains("Transfer-Encoding")
+                    && headers.getLong("Content-Length", 0) == 0;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Serves the connection until the client closes it, stays idle for the keep-alive timeout
+     * or breaks the protocol. The caller closes the socket afterwards.
+     * @param in stream of the connection, buffered, positioned after the head of the PRI or
+     *           upgrade request
+     * @param out stream of the connection
+     * @param upgrade request which asked for the upgrade, answered on stream 1, or null if the
+     *                client sent the preface
+     */
+    public void serve(InputStream in, OutputStream out, HttpRequest upgrade) {
+        this.in = new DataInputStream(in);
+        this.out = out;
+        try {
+            try {
+                if (upgrade != null) {
+                    out.write(SWITCHING_PROTOCOLS);
+                }
+                writeSettings();
+                flush();
+                synchronized (writeLock) {
+                    started = true;
+                }
+                if (draining) {
+                    goAway(Http2Exception.NO_ERROR, "shutdown");
+                }
+                if (upgrade != null) {
+                    String settings = upgrade.getHeaders().get("HTTP2-Settings");
+                    byte[] decoded;
+                    try {
+                        decoded = Base64.getUrlDecoder().decode(settings.trim());
+                    } catch (IllegalArgumentException e) {
+                        throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "invalid HTTP2-Settings");
+                    }
+                    applySettings(decoded, decoded.length);
+                    readPreface(0);
+                    startUpgradedStream(upgrade);
+                } else {
+                    readPreface(PREFACE_HEAD_LENGTH);
+                }
+                readFrames();
+            } catch (Http2Exception e) {
+                goAway(e.getErrorCode(), e.getMessage());
+            }
+        } catch (IOException e) {
+            // the client went away, or stopped in the middle of a frame
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * Tells the client with GOAWAY that no new stream is accepted, the streams in progress
+     * complete and the connection is closed once the last one is done.
+     * Can be called from any thread, even before {@link #serve} starts.
+     */
+    public void drain() {
+        synchronized (writeLock) {
+            if (draining) {
+                return;
+            }
+            draining = true;
+            goingAway = true;
+            if (!started) {
+                // serve() sends it after the settings
+                return;
+            }
+        }
+        goAway(Http2Exception.NO_ERROR, "shutdown");
+        closeIfDrained();
+    }
+
+    /**
+     * Ends a draining connection without streams: closing the input wakes up the thread of
+     * the connection waiting for the next frame.
+     */
+    private void closeIfDrained() {
+        if (draining && streams.isEmpty()) {
+            try {
+                flush();
+            } catch (IOException e) {
+            }
+            try {
+                in.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    private void readPreface(int alreadyRead) throws IOException {
+        byte[] rest = new byte[PREFACE.length - alreadyRead];
+        in.readFully(rest);
+        for (int i = 0; i < rest.length; i++) {
+            if (rest[i] != PREFACE[alreadyRead + i]) {
+                throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "invalid connection preface");
+            }
+        }
+    }
+
+    /**
+     * Reads and handles the frames until the connection ends.
+     */
+    private void readFrames() throws IOException {
+        boolean first = true;
+        for (; ; ) {
+            if (!readFrameHeader()) {
+                return;
+            }
+            int length = (payload[0] & 0xff) << 16 | (payload[1] & 0xff) << 8 | payload[2] & 0xff;
+            int type = payload[3] & 0xff;
+            int flags = payload[4] & 0xff;
+            int streamId = readInt(payload, 5) & 0x7fffffff;
+            if (length > MAX_FRAME_SIZE) {
+                throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "frame of " + length + " bytes");
+            }
+            in.readFully(payload, 0, length);
+            if (first && type != SETTINGS) {
+                throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "the preface must end with SETTINGS");
+            }
+            first = false;
+            if (headerBlockStream != 0 && (type != CONTINUATION || streamId != headerBlockStream)) {
+                throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "header block interrupted");
+            }
+            try {
+                onFrame(type, flags, streamId, length);
+            } catch (Http2Exception e) {
+                if (e.getStreamId() == 0) {
+                    throw e;
+                }
+                resetStream(e.getStreamId(), e.getErrorCode());
+            }
+        }
+    }
+
+    /**
+     * Reads the 9 byte header of the next frame into the payload buffer, flushing the frames
+     * written meanwhile if no frame is already there. An idle timeout with streams in progress
+     * is not an idle connection, and is ignored.
+     * @return false if the connection ended
+     */
+    private boolean readFrameHeader() throws IOException {
+        if (draining && streams.isEmpty()) {
+            return false;
+        }
+        if (in.available() == 0) {
+            flush();
+        }
+        int b;
+        for (; ; ) {
+            try {
+                b = in.read();
+                break;
+            } catch (SocketTimeoutException e) {
+                if (streams.isEmpty()) {
+                    goAway(Http2Exception.NO_ERROR, "idle");
+                    return false;
+                }
+            }
+        }
+        if (b < 0) {
+            return false;
+        }
+        payload[0] = (byte) b;
+        in.readFully(payload, 1, 8);
+        return true;
+    }
+
+    private void onFrame(int type, int flags, int streamId, int length) throws IOException {
+        switch (type) {
+            case DATA:
+                onData(flags, streamId, length);
+                break;
+            case HEADERS:
+                onHeaders(flags, streamId, length);
+                break;
+            case CONTINUATION:
+                if (headerBlockStream == 0) {
+                    throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "CONTINUATION without HEADERS");
+                }
+                appendHeaderBlock(0, length);
+                if ((flags & FLAG_END_HEADERS) != 0) {
+                    int id = headerBlockStream;
+                    headerBlockStream = 0;
+                    endHeaders(id, headerBlockFlags);
+                }
+                break;
+            case PRIORITY:
+                if (streamId == 0) {
+                    throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "PRIORITY on stream 0");
+                }
+                if (length != 5) {
+                    throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, streamId, "PRIORITY of " + length + " bytes");
+                }
+                break;
+            case RST_STREAM:
+                if (streamId == 0 || streamId > lastStreamId) {
+                    throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "RST_STREAM on an idle stream");
+                }
+                if (length != 4) {
+                    throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "RST_STREAM of " + length + " bytes");
+                }
+                Stream reset = streams.get(streamId);
+                if (reset != null) {
+                    reset.abort(new IOException("stream reset by the client"));
+                }
+                break;
+            case SETTINGS:
+                onSettings(flags, streamId, length);
+                break;
+            case PUSH_PROMISE:
+                throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "PUSH_PROMISE from a client");
+            case PING:
+                if (streamId != 0) {
+                    throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "PING on a stream");
+                }
+                if (length != 8) {
+                    throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "PING of " + length + " bytes");
+                }
+                if ((flags & FLAG_ACK) == 0) {
+                    synchronized (writeLock) {
+                        writeFrame(PING, FLAG_ACK, 0, payload, 0, 8);
+                    }
+                }
+                break;
+            case GOAWAY:
+                if (streamId != 0) {
+                    throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "GOAWAY on a stream");
+                }
+                // the streams in progress complete, the client opens no other one
+                goingAway = true;
+                break;
+            case WINDOW_UPDATE:
+                onWindowUpdate(streamId, length);
+                break;
+            default:
+                // unknown frame types are ignored
+        }
+    }
+
+    private void onData(int flags, int streamId, int length) throws IOException {
+        if (streamId == 0) {
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "DATA on stream 0");
+        }
+        int end = length;
+        int off = 0;
+        if ((flags & FLAG_PADDED) != 0) {
+            off = 1;
+            end -= length == 0 ? 0 : payload[0] & 0xff;
+            if (length == 0 || end < off) {
+                throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "padding larger than the frame");
+            }
+        }
+        synchronized (windowLock) {
+            receiveWindow -= length;
+            if (receiveWindow < 0) {
+                throw new Http2Exception(Http2Exception.FLOW_CONTROL_ERROR, "connection window exceeded");
+            }
+        }
+        Stream stream = streams.get(streamId);
+        if (stream == null || stream.remoteClosed) {
+            if (streamId > lastStreamId) {
+                throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "DATA on an idle stream");
+            }
+            // in flight when the stream was closed, only the connection window matters
+            windowUpdate(0, length);
+            if (stream != null) {
+                throw new Http2Exception(Http2Exception.STREAM_CLOSED, streamId, "DATA after the end of the stream");
+            }
+            return;
+        }
+        boolean endStream = (flags & FLAG_END_STREAM) != 0;
+        if (!stream.body.offer(payload, off, end - off, length)) {
+            // refused or dropped, the stream window stays closed until the stream ends
+            windowUpdate(0, length);
+        } else if (end - off < length) {
+            windowUpdate(endStream ? 0 : streamId, length - (end - off));
+        }
+        if (endStream) {
+            stream.remoteClosed = true;
+            stream.body.finish();
+        }
+    }
+
+    private void onHeaders(int flags, int streamId, int length) throws IOException {
+        if (streamId == 0 || streamId % 2 == 0) {
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "HEADERS on stream " + streamId);
+        }
+        int off = 0;
+        int end = length;
+        if ((flags & FLAG_PADDED) != 0) {
+            off = 1;
+            end -= length == 0 ? 0 : payload[0] & 0xff;
+        }
+        if ((flags & FLAG_PRIORITY) != 0) {
+            off += 5;
+        }
+        if (end < off) {
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "HEADERS shorter than its padding");
+        }
+        headerBlock.reset();
+        headerBlockFlags = flags;
+        appendHeaderBlock(off, end - off);
+        if ((flags & FLAG_END_HEADERS) == 0) {
+            headerBlockStream = streamId;
+        } else {
+            endHeaders(streamId, flags);
+        }
+    }
+
+    private void appendHeaderBlock(int off, int length) throws Http2Exception {
+        if (headerBlock.size() + length > 4 * maxHeaderSize + MAX_FRAME_SIZE) {
+            throw new Http2Exception(Http2Exception.ENHANCE_YOUR_CALM, "header block too large");
+        }
+        headerBlock.write(payload, off, length);
+    }
+
+    /**
+     * Decodes a complete header block and opens its stream, or ends a stream with trailers.
+     */
+    private void endHeaders(int streamId, int flags) throws IOException {
+        RequestBuilder builder = new RequestBuilder(maxHeaderSize);
+        byte[] block = headerBlock.toByteArray();
+        decoder.decode(block, block.length, builder);
+        boolean endStream = (flags & FLAG_END_STREAM) != 0;
+        Stream stream = streams.get(streamId);
+        if (stream != null || streamId <= lastStreamId) {
+            if (stream == null || stream.remoteClosed) {
+                throw new Http2Exception(Http2Exception.STREAM_CLOSED, "HEADERS on a closed stream");
+            }
+            if (!endStream) {
+                throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, streamId, "trailers without END_STREAM");
+            }
+            // trailers, which no handler reads
+            stream.remoteClosed = true;
+            stream.body.finish();
+            return;
+        }
+        lastStreamId = streamId;
+        if (goingAway) {
+            return;
+        }
+        if (streams.size() >= maxStreams) {
+            throw new Http2Exception(Http2Exception.REFUSED_STREAM, streamId, "too many concurrent streams");
+        }
+        HttpRequest request = builder.build(remoteAddress);
+        if (request == null) {
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, streamId, "malformed request: " + builder.error);
+        }
+        long contentLength;
+        try {
+            contentLength = request.getHeaders().getLong("content-length", -1);
+        } catch (NumberFormatException e) {
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, streamId, "invalid content-length");
+        }
+        if (endStream && contentLength > 0) {
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, streamId, "content-length without DATA");
+        }
+        stream = new Stream(streamId, request, contentLength);
+        streams.put(streamId, stream);
+        if (endStream) {
+            stream.remoteClosed = true;
+            stream.body.finish();
+        } else if (request.getHeaders().containsToken("expect", "100-continue")) {
+            synchronized (writeLock) {
+                writeHeaders(stream, 100, new ArrayList<>(), false);
+            }
+        }
+        if (builder.tooLarge) {
+            respond(stream, "431 Request Header Fields Too Large");
+            return;
+        }
+        start(stream);
+    }
+
+    /**
+     * Runs the upgrade request on stream 1, which the client already half-closed.
+     */
+    private void startUpgradedStream(HttpRequest upgrade) throws Http2Exception {
+        lastStreamId = 1;
+        upgrade.setRequestLine(upgrade.getMethod(), upgrade.getTarget(), "HTTP/2.0");
+        Stream stream = new Stream(1, upgrade, 0);
+        stream.remoteClosed = true;
+        stream.body.finish();
+        streams.put(1, stream);
+        start(stream);
+    }
+
+    private void start(Stream stream) {
+        if (!pool.offer(() -> run(stream))) {
+            respond(stream, "503 Service Unavailable");
+        }
+    }
+
+    /**
+     * Handles the request of a stream, on a worker.
+     */
+    private void run(Stream stream) {
+        ConnectionOutputStream clientOutput = new ConnectionOutputStream(stream.output, null, null);
+        clientOutput.setKeepAlive(true);
+        try {
+            WebServer.ClientHandler.handleStream(stream.request, stream.body, clientOutput);
+            clientOutput.flush();
+            finish(stream);
+        } catch (IOException e) {
+            // reset by the client or connection closed
+            if (!stream.reset) {
+                resetStream(stream.id, Http2Exception.INTERNAL_ERROR);
+            }
+        } catch (RuntimeException e) {
+            System.out.println("Error: " + e);
+            resetStream(stream.id, Http2Exception.INTERNAL_ERROR);
+        }
+    }
+
+    /**
+     * Answers a stream without running a handler, from the thread of the connection.
+     */
+    private void respond(Stream stream, String status) {
+        ConnectionOutputStream clientOutput = new ConnectionOutputStream(stream.output, null, null);
+        try {
+            clientOutput.response(status).send();
+            clientOutput.flush();
+            finish(stream);
+        } catch (IOException e) {
+            resetStream(stream.id, Http2Exception.INTERNAL_ERROR);
+        }
+        WebServer.getMetrics().record(null, status, 0);
+    }
+
+    /**
+     * Ends the response of a stream, and the stream itself: a client still sending the request
+     * body is told to stop with RST_STREAM NO_ERROR (RFC 9113 section 8.1).
+     */
+    private void finish(Stream stream) throws IOException {
+        stream.output.finish();
+        if (!stream.remoteClosed) {
+            resetStream(stream.id, Http2Exception.NO_ERROR);
+        } else {
+            stream.abort(null);
+        }
+    }
+
+    /**
+     * Sends RST_STREAM and forgets the stream.
+     */
+    private void resetStream(int streamId, int errorCode) {
+        Stream stream = streams.get(streamId);
+        if (stream != null) {
+            stream.abort(new IOException("stream reset"));
+        }
+        try {
+            synchronized (writeLock) {
+                writeInt(control, 0, errorCode);
+                writeFrame(RST_STREAM, 0, streamId, control, 0, 4);
+            }
+            flush();
+        } catch (IOException e) {
+        }
+    }
+
+    private void onSettings(int flags, int streamId, int length) throws IOException {
+        if (streamId != 0) {
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "SETTINGS on a stream");
+        }
+        if ((flags & FLAG_ACK) != 0) {
+            if (length != 0) {
+                throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "SETTINGS ACK with a payload");
+            }
+            return;
+        }
+        if (length % 6 != 0) {
+            throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "SETTINGS of " + length + " bytes");
+        }
+        applySettings(payload, length);
+        synchronized (writeLock) {
+            writeFrame(SETTINGS, FLAG_ACK, 0, EMPTY, 0, 0);
+        }
+    }
+
+    private void applySettings(byte[] settings, int length) throws Http2Exception {
+        if (length % 6 != 0) {
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "invalid settings");
+        }
+        for (int i = 0; i < length; i += 6) {
+            int id = (settings[i] & 0xff) << 8 | settings[i + 1] & 0xff;
+            int value = readInt(settings, i + 2);
+            switch (id) {
+                case SETTINGS_HEADER_TABLE_SIZE:
+                    synchronized (writeLock) {
+                        encoder.setMaxTableSize(value < 0 ? Integer.MAX_VALUE : value);
+                    }
+                    break;
+                case SETTINGS_ENABLE_PUSH:
+                    if (value != 0 && value != 1) {
+                        throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "invalid SETTINGS_ENABLE_PUSH");
+                    }
+                    break;
+                case SETTINGS_INITIAL_WINDOW_SIZE:
+                    if (value < 0) {
+                        throw new Http2Exception(Http2Exception.FLOW_CONTROL_ERROR, "invalid SETTINGS_INITIAL_WINDOW_SIZE");
+                    }
+                    synchronized (windowLock) {
+                        int delta = value - initialSendWindow;
+                        initialSendWindow = value;
+                        for (Stream stream : streams.values()) {
+                            stream.sendWindow += delta;
+                            if (stream.sendWindow > Integer.MAX_VALUE) {
+                                throw new Http2Exception(Http2Exception.FLOW_CONTROL_ERROR, "stream window overflow");
+                            }
+                        }
+                        windowLock.notifyAll();
+                    }
+                    break;
+                case SETTINGS_MAX_FRAME_SIZE:
+                    if (value < MAX_FRAME_SIZE || value > MAX_FRAME_SIZE_LIMIT) {
+                        throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "invalid SETTINGS_MAX_FRAME_SIZE");
+                    }
+                    maxSendFrameSize = value;
+                    break;
+                default:
+                    // SETTINGS_MAX_CONCURRENT_STREAMS only limits server push, unknown ones are ignored
+            }
+        }
+    }
+
+    private void onWindowUpdate(int streamId, int length) throws IOException {
+        if (length != 4) {
+            throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "WINDOW_UPDATE of " + length + " bytes");
+        }
+        int increment = readInt(payload, 0) & 0x7fffffff;
+        if (increment == 0) {
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, streamId, "window increment of 0");
+        }
+        synchronized (windowLock) {
+            if (streamId == 0) {
+                sendWindow += increment;
+                if (sendWindow > Integer.MAX_VALUE) {
+                    throw new Http2Exception(Http2Exception.FLOW_CONTROL_ERROR, "connection window overflow");
+                }
+            } else {
+                Stream stream = streams.get(streamId);
+                if (stream == null) {
+                    if (streamId > lastStreamId) {
+                        throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "WINDOW_UPDATE on an idle stream");
+                    }
+                    return;
+                }
+                stream.sendWindow += increment;
+                if (stream.sendWindow > Integer.MAX_VALUE) {
+                    throw new Http2Exception(Http2Exception.FLOW_CONTROL_ERROR, streamId, "stream window overflow");
+                }
+            }
+            windowLock.notifyAll();
+        }
+    }
+
+    /**
+     * Sends the settings of the server and opens the connection window for every stream.
+     */
+    private void writeSettings() throws IOException {
+        byte[] settings = new byte[18];
+        int n = 0;
+        n = putSetting(settings, n, SETTINGS_MAX_CONCURRENT_STREAMS, maxStreams);
+        n = putSetting(settings, n, SETTINGS_INITIAL_WINDOW_SIZE, streamWindow);
+        n = putSetting(settings, n, SETTINGS_MAX_HEADER_LIST_SIZE, maxHeaderSize);
+        long window = Math.min((long) maxStreams * Math.max(streamWindow, DEFAULT_WINDOW), Integer.MAX_VALUE);
+        synchronized (writeLock) {
+            writeFrame(SETTINGS, 0, 0, settings, 0, n);
+        }
+        if (window > DEFAULT_WINDOW) {
+            windowUpdate(0, (int) (window - DEFAULT_WINDOW));
+        }
+    }
+
+    private static int putSetting(byte[] settings, int off, int id, int value) {
+        settings[off] = (byte) (id >>> 8);
+        settings[off + 1] = (byte) id;
+        writeInt(settings, off + 2, value);
+        return off + 6;
+    }
+
+    /**
+     * Gives back receive window to the client, on a stream and on the connection.
+     * @param streamId stream to open the window of, 0 for the connection only
+     * @param increment number of bytes
+     */
+    private void windowUpdate(int streamId, int increment) throws IOException {
+        if (increment <= 0) {
+            return;
+        }
+        synchronized (windowLock) {
+            receiveWindow += increment;
+        }
+        synchronized (writeLock) {
+            writeInt(control, 0, increment);
+            if (streamId != 0) {
+                writeFrame(WINDOW_UPDATE, 0, streamId, control, 0, 4);
+            }
+            writeFrame(WINDOW_UPDATE, 0, 0, control, 0, 4);
+        }
+    }
+
+    private void goAway(int errorCode, String message) {
+        try {
+            byte[] debug = ascii(message == null ? "" : message);
+            byte[] frame = new byte[8 + debug.length];
+            writeInt(frame, 0, lastStreamId);
+            writeInt(frame, 4, errorCode);
+            System.arraycopy(debug, 0, frame, 8, debug.length);
+            synchronized (writeLock) {
+                writeFrame(GOAWAY, 0, 0, frame, 0, frame.length);
+            }
+            flush();
+        } catch (IOException e) {
+        }
+    }
+
+    /**
+     * Aborts the streams still in progress, their handlers fail on their next read or write.
+     */
+    private void close() {
+        synchronized (windowLock) {
+            closed = true;
+            windowLock.notifyAll();
+        }
+        for (Stream stream : streams.values()) {
+            stream.abort(new IOException("connection closed"));
+        }
+    }
+
+    private void flush() throws IOException {
+        synchronized (writeLock) {
+            out.flush();
+        }
+    }
+
+    /**
+     * Writes a frame, the caller holds the write lock.
+     */
+    private void writeFrame(int type, int flags, int streamId, byte[] data, int off, int len) throws IOException {
+        frameHeader[0] = (byte) (len >>> 16);
+        frameHeader[1] = (byte) (len >>> 8);
+        frameHeader[2] = (byte) len;
+        frameHeader[3] = (byte) type;
+        frameHeader[4] = (byte) flags;
+        writeInt(frameHeader, 5, streamId);
+        out.write(frameHeader, 0, 9);
+        if (len > 0) {
+            out.write(data, off, len);
+        }
+    }
+
+    /**
+     * Encodes and writes a header block, split in CONTINUATION frames if the client's frame size
+     * requires it. The caller holds the write lock, which keeps the blocks in encoding order.
+     * @param fields names and values of the header fields, alternately
+     */
+    private void writeHeaders(Stream stream, int status, List<String> fields, boolean endStream) throws IOException {
+        if (stream.reset) {
+            throw new IOException("stream reset");
+        }
+        ByteArrayOutputStream block = new ByteArrayOutputStream(128);
+        encoder.status(status, block);
+        for (int i = 0; i < fields.size(); i += 2) {
+            encoder.header(fields.get(i), fields.get(i + 1), indexed(fields.get(i)), block);
+        }
+        byte[] bytes = block.toByteArray();
+        int maxSize = maxSendFrameSize;
+        int off = 0;
+        int type = HEADERS;
+        do {
+            int len = Math.min(maxSize, bytes.length - off);
+            boolean last = off + len == bytes.length;
+            int flags = (last ? FLAG_END_HEADERS : 0) | (endStream && type == HEADERS ? FLAG_END_STREAM : 0);
+            writeFrame(type, flags, stream.id, bytes, off, len);
+            off += len;
+            type = CONTINUATION;
+        } while (off < bytes.length);
+    }
+
+    /**
+     * @return true if the values of a response header repeat enough to be worth the dynamic table
+     */
+    private static boolean indexed(String name) {
+        switch (name) {
+            case "content-length":
+            case "content-range":
+            case "etag":
+            case "last-modified":
+            case "date":
+            case "set-cookie":
+            case "location":
+                return false;
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * Sends body bytes of a stream in DATA frames, as fast as the windows of the client allow.
+     */
+    private void writeData(Stream stream, byte[] b, int off, int len, boolean endStream) throws IOException {
+        if (len == 0) {
+            synchronized (writeLock) {
+                checkOpen(stream);
+                writeFrame(DATA, endStream ? FLAG_END_STREAM : 0, stream.id, b, off, 0);
+            }
+            return;
+        }
+        while (len > 0) {
+            int n = reserveWindow(stream, len);
+            synchronized (writeLock) {
+                checkOpen(stream);
+                writeFrame(DATA, endStream && n == len ? FLAG_END_STREAM : 0, stream.id, b, off, n);
+            }
+            off += n;
+            len -= n;
+        }
+    }
+
+    private static void checkOpen(Stream stream) throws IOException {
+        if (stream.reset) {
+            throw new IOException("stream reset");
+        }
+    }
+
+    /**
+     * Takes up to {@code wanted} bytes from the send windows of the stream and of the
+     * connection, waiting until both are open. The frames written so far are flushed before
+     * waiting: the client may be waiting for them to open the windows.
+     * @return number of bytes the stream may send
+     */
+    private int reserveWindow(Stream stream, int wanted) throws IOException {
+        boolean flushed = false;
+        for (; ; ) {
+            synchronized (windowLock) {
+                while (flushed && !closed && !stream.reset && (sendWindow <= 0 || stream.sendWindow <= 0)) {
+                    try {
+                        windowLock.wait();
+                    } catch (InterruptedException e) {
+                        throw new IOException("interrupted");
+                    }
+                }
+                if (closed || stream.reset) {
+                    throw new IOException("stream reset");
+                }
+                int n = (int) Math.min(Math.min(wanted, maxSendFrameSize), Math.min(sendWindow, stream.sendWindow));
+                if (n > 0) {
+                    sendWindow -= n;
+                    stream.sendWindow -= n;
+                    return n;
+                }
+            }
+            flush();
+            flushed = true;
+        }
+    }
+
+    private static int readInt(byte[] b, int off) {
+        return (b[off] & 0xff) << 24 | (b[off + 1] & 0xff) << 16 | (b[off + 2] & 0xff) << 8 | b[off + 3] & 0xff;
+    }
+
+    private static void writeInt(byte[] b, int off, int value) {
+        b[off] = (byte) (value >>> 24);
+        b[off + 1] = (byte) (value >>> 16);
+        b[off + 2] = (byte) (value >>> 8);
+        b[off + 3] = (byte) value;
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * A request and its response.
+     */
+    private final class Stream {
+        private final int id;
+        private final HttpRequest request;
+        private final StreamBody body;
+        private final StreamOutput output = new StreamOutput(this);
+        // END_STREAM received, only changed by the thread of the connection
+        private volatile boolean remoteClosed;
+        private volatile boolean reset;
+        // guarded by the window lock
+        private long sendWindow;
+
+        Stream(int id, HttpRequest request, long contentLength) {
+            this.id = id;
+            this.request = request;
+            this.body = new StreamBody(this, contentLength);
+            synchronized (windowLock) {
+                sendWindow = initialSendWindow;
+            }
+        }
+
+        /**
+         * Forgets the stream, wakes up its handler and gives back the unread body bytes to the
+         * connection window.
+         * @param cause error the handler gets on its next read or write, null if it is done
+         */
+        void abort(IOException cause) {
+            if (streams.remove(id) == null) {
+                return;
+            }
+            synchronized (windowLock) {
+                reset = cause != null;
+                windowLock.notifyAll();
+            }
+            int unread = body.discard(cause);
+            try {
+                windowUpdate(0, unread);
+            } catch (IOException e) {
+            }
+            closeIfDrained();
+        }
+    }
+
+    /**
+     * Request body of a stream on its way from the thread of the connection to the handler.
+     * Holds at most the window of the stream, which is opened again once the handler has read
+     * half of it.
+     */
+    private final class StreamBody extends InputStream {
+        private final Stream stream;
+        private final long contentLength;
+        private byte[] ring;
+        private int readPos;
+        private int count;
+        private long received;
+        // bytes read by the handler and not given back to the client yet
+        private int consumed;
+        private int window = Math.max(streamWindow, DEFAULT_WINDOW);
+        private boolean finished;
+        private boolean discarded;
+        private IOException error;
+
+        StreamBody(Stream stream, long contentLength) {
+            this.stream = stream;
+            this.contentLength = contentLength;
+        }
+
+        /**
+         * Adds the data of a DATA frame.
+         * @param flowLength length of the frame, padding included, counted against the window
+         * @return false if the bytes were dropped because the stream no longer reads its body
+         * @throws Http2Exception if the client exceeded the window or the announced length
+         */
+        synchronized boolean offer(byte[] b, int off, int len, int flowLength) throws Http2Exception {
+            if (flowLength > window) {
+                throw new Http2Exception(Http2Exception.FLOW_CONTROL_ERROR, stream.id, "stream window exceeded");
+            }
+            received += len;
+            if (contentLength >= 0 && received > contentLength) {
+                throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, stream.id, "body longer than its content-length");
+            }
+            if (discarded || error != null) {
+                return false;
+            }
+            if (received > maxBodySize) {
+                error = new HttpParseException("413 Payload Too Large", "request body too large");
+                notifyAll();
+                return false;
+            }
+            window -= flowLength;
+            if (ring == null) {
+                ring = new byte[Math.max(streamWindow, DEFAULT_WINDOW)];
+            }
+            int writePos = (readPos + count) % ring.length;
+            int first = Math.min(len, ring.length - writePos);
+            System.arraycopy(b, off, ring, writePos, first);
+            System.arraycopy(b, off + first, ring, 0, len - first);
+            count += len;
+            notifyAll();
+            return true;
+        }
+
+        synchronized void finish() throws Http2Exception {
+            if (contentLength >= 0 && received != contentLength && error == null) {
+                throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, stream.id, "body shorter than its content-length");
+            }
+            finished = true;
+            notifyAll();
+        }
+
+        /**
+         * Drops the buffered bytes.
+         * @param cause error of the next read, null to end the body
+         * @return number of bytes taken from the connection window and not given back yet
+         */
+        synchronized int discard(IOException cause) {
+            int unread = discarded ? 0 : count + consumed;
+            discarded = true;
+            count = 0;
+            consumed = 0;
+            if (cause != null && error == null) {
+                error = cause;
+            }
+            notifyAll();
+            return unread;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            int nbRead;
+            int credit = 0;
+            synchronized (this) {
+                while (count == 0 && !finished && !discarded && error == null) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        throw new IOException("interrupted");
+                    }
+                }
+                if (error != null) {
+                    throw error;
+                }
+                if (count == 0) {
+                    return -1;
+                }
+                nbRead = Math.min(len, count);
+                int first = Math.min(nbRead, ring.length - readPos);
+                System.arraycopy(ring, readPos, b, off, first);
+                System.arraycopy(ring, 0, b, off + first, nbRead - first);
+                readPos = (readPos + nbRead) % ring.length;
+                count -= nbRead;
+                consumed += nbRead;
+                if (consumed >= streamWindow / 2 || finished && count == 0) {
+                    credit = consumed;
+                    consumed = 0;
+                    window += credit;
+                }
+            }
+            if (credit > 0) {
+                windowUpdate(stream.remoteClosed ? 0 : stream.id, credit);
+                flush();
+            }
+            return nbRead;
+        }
+
+        @Override
+        public synchronized int available() {
+            return count;
+        }
+    }
+
+    /**
+     * Receives the HTTP/1.1 response a handler writes for a stream and sends it as frames: the
+     * head becomes a HEADERS frame, without the fields specific to HTTP/1.1 connections, and
+     * the body, decoded if it is chunked, becomes DATA frames. The stream ends with the last
+     * byte of a Content-Length body, or when the handler is done.
+     */
+    private final class StreamOutput extends OutputStream {
+        private final Stream stream;
+        private final ByteArrayOutputStream head = new ByteArrayOutputStream(256);
+        private boolean headersSent;
+        private boolean ended;
+        private long remaining = -1;
+        private ChunkDecoder chunks;
+
+        StreamOutput(Stream stream) {
+            this.stream = stream;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0 && !headersSent) {
+                head.write(b[off++]);
+                len--;
+                if (endsHead()) {
+                    sendHead();
+                }
+            }
+            if (len == 0 || ended) {
+                return;
+            }
+            if (chunks != null) {
+                chunks.decode(b, off, len);
+            } else {
+                data(b, off, len);
+            }
+        }
+
+        private boolean endsHead() {
+            int size = head.size();
+            if (size < 4) {
+                return false;
+            }
+            byte[] bytes = head.toByteArray();
+            return bytes[size - 4] == '\r' && bytes[size - 3] == '\n' && bytes[size - 2] == '\r' && bytes[size - 1] == '\n';
+        }
+
+        private void sendHead() throws IOException {
+            String[] lines = new String(head.toByteArray(), StandardCharsets.ISO_8859_1).split("\r\n");
+            head.reset();
+            int status = Integer.parseInt(lines[0].substring(9, 12));
+            List<String> fields = new ArrayList<>();
+            for (int i = 1; i < lines.length; i++) {
+                int colon = lines[i].indexOf(':');
+                if (colon <= 0) {
+                    continue;
+                }
+                String name = lines[i].substring(0, colon).trim().toLowerCase(Locale.ROOT);
+                String value = lines[i].substring(colon + 1).trim();
+                switch (name) {
+                    case "connection":
+                    case "keep-alive":
+                    case "proxy-connection":
+                    case "upgrade":
+                        continue;
+                    case "transfer-encoding":
+                        chunks = new ChunkDecoder(this);
+                        continue;
+                    case "content-length":
+                        remaining = Long.parseLong(value);
+                        break;
+                    default:
+                }
+                fields.add(name);
+                fields.add(value);
+            }
+            if (status < 200) {
+                // interim response, the final one follows
+                chunks = null;
+                remaining = -1;
+                synchronized (writeLock) {
+                    writeHeaders(stream, status, fields, false);
+                }
+                return;
+            }
+            boolean noBody = stream.request.getMethod().equals("HEAD") || status == 204 || status == 304 || remaining == 0;
+            synchronized (writeLock) {
+                writeHeaders(stream, status, fields, noBody);
+            }
+            headersSent = true;
+            ended = noBody;
+        }
+
+        /**
+         * Sends body bytes, up to the announced length.
+         */
+        void data(byte[] b, int off, int len) throws IOException {
+            if (ended) {
+                return;
+            }
+            boolean last = false;
+            if (remaining >= 0) {
+                len = (int) Math.min(len, remaining);
+                remaining -= len;
+                last = remaining == 0;
+            }
+            writeData(stream, b, off, len, last);
+            ended = last;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            Http2Connection.this.flush();
+        }
+
+        /**
+         * Ends the stream once the handler is done.
+         */
+        void finish() throws IOException {
+            if (!headersSent) {
+                throw new IOException("no response");
+            }
+            if (!ended) {
+                ended = true;
+                writeData(stream, EMPTY, 0, 0, true);
+            }
+            flush();
+        }
+    }
+
+    /**
+     * Follows the chunked coding of a response body and passes the chunk data on.
+     */
+    private static final class ChunkDecoder {
+        private static final int SIZE = 0;
+        private static final int EXTENSION = 1;
+        private static final int DATA = 2;
+        private static final int DATA_END = 3;
+        private static final int TRAILER = 4;
+        private static final int DONE = 5;
+
+        private final StreamOutput output;
+        private int state = SIZE;
+        private long chunkSize;
+        private boolean emptyLine = true;
+
+        ChunkDecoder(StreamOutput output) {
+            this.output = output;
+        }
+
+        void decode(byte[] b, int off, int len) throws IOException {
+            int end = off + len;
+            while (off < end && state != DONE) {
+                byte c = b[off];
+                switch (state) {
+                    case SIZE:
+                        int digit = Character.digit(c, 16);
+                        if (digit >= 0) {
+                            chunkSize = chunkSize * 16 + digit;
+                        } else if (c == '\n') {
+                            endSizeLine();
+                        } else {
+                            state = EXTENSION;
+                        }
+                        off++;
+                        break;
+                    case EXTENSION:
+                        if (c == '\n') {
+                            endSizeLine();
+                        }
+                        off++;
+                        break;
+                    case DATA:
+                        int n = (int) Math.min(chunkSize, end - off);
+                        output.data(b, off, n);
+                        chunkSize -= n;
+                        off += n;
+                        if (chunkSize == 0) {
+                            state = DATA_END;
+                        }
+                        break;
+                    case DATA_END:
+                        if (c == '\n') {
+                            state = SIZE;
+                        }
+                        off++;
+                        break;
+                    default:
+                        if (c == '\n') {
+                            if (emptyLine) {
+                                state = DONE;
+                            }
+                            emptyLine = true;
+                        } else if (c != '\r') {
+                            emptyLine = false;
+                        }
+                        off++;
+                }
+            }
+        }
+
+        private void endSizeLine() {
+            state = chunkSize == 0 ? TRAILER : DATA;
+        }
+    }
+
+    /**
+     * Builds the request of a stream from its decoded header fields, checking the rules of
+     * RFC 9113 section 8.2 and 8.3. The regular fields are copied in a buffer the
+     * {@link HttpHeaders} point to, the cookie fields joined back in a single one.
+     */
+    private static final class RequestBuilder implements Hpack.Listener {
+        private final int maxHeaderSize;
+        private final ByteArrayOutputStream buffer = new ByteArrayOutputStream(256);
+        private final List<int[]> offsets = new ArrayList<>();
+        private String method;
+        private String scheme;
+        private String path;
+        private String authority;
+        private StringBuilder cookie;
+        private boolean regularSeen;
+        private boolean hostSeen;
+        private int size;
+        private boolean tooLarge;
+        private String error;
+
+        RequestBuilder(int maxHeaderSize) {
+            this.maxHeaderSize = maxHeaderSize;
+        }
+
+        @Override
+        public void header(String name, String value) {
+            size += 32 + name.length() + value.length();
+            tooLarge |= size > maxHeaderSize;
+            if (error != null || tooLarge) {
+                return;
+            }
+            if (name.startsWith(":")) {
+                if (regularSeen) {
+                    error = "pseudo-header after a regular field";
+                    return;
+                }
+                switch (name) {
+                    case ":method":
+                        method = method == null ? value : fail(method);
+                        break;
+                    case ":scheme":
+                        scheme = scheme == null ? value : fail(scheme);
+                        break;
+                    case ":path":
+                        path = path == null ? value : fail(path);
+                        break;
+                    case ":authority":
+                        authority = authority == null ? value : fail(authority);
+                        break;
+                    default:
+                        error = "unknown pseudo-header " + name;
+                }
+                return;
+            }
+            regularSeen = true;
+            for (int i = 0; i < name.length(); i++) {
+                char c = name.charAt(i);
+                if (c >= 'A' && c <= 'Z') {
+                    error = "uppercase field name " + name;
+                    return;
+                }
+            }
+            switch (name) {
+                case "connection":
+                case "keep-alive":
+                case "proxy-connection":
+                case "transfer-encoding":
+                case "upgrade":
+                    error = "connection-specific field " + name;
+                    return;
+                case "te":
+                    if (!value.equals("trailers")) {
+                        error = "te other than trailers";
+                    }
+                    return;
+                case "cookie":
+                    cookie = cookie == null ? new StringBuilder(value) : cookie.append("; ").append(value);
+                    return;
+                case "host":
+                    hostSeen = true;
+                    break;
+                default:
+            }
+            add(name, value);
+        }
+
+        private String fail(String value) {
+            error = "repeated pseudo-header";
+            return value;
+        }
+
+        private void add(String name, String value) {
+            int nameStart = buffer.size();
+            buffer.write(name.getBytes(StandardCharsets.ISO_8859_1), 0, name.length());
+            int valueStart = buffer.size();
+            buffer.write(value.getBytes(StandardCharsets.ISO_8859_1), 0, value.length());
+            offsets.add(new int[]{nameStart, valueStart, valueStart, buffer.size()});
+        }
+
+        /**
+         * @return the request, or null if it is malformed
+         */
+        HttpRequest build(String remoteAddress) {
+            if (tooLarge) {
+                // answered 431, only the request line matters
+                method = method == null ? "GET" : method;
+                path = path == null ? "/" : path;
+                offsets.clear();
+            } else if (error == null && (method == null || scheme == null || path == null || path.isEmpty())) {
+                error = "missing pseudo-header";
+            }
+            if (error != null) {
+                return null;
+            }
+            if (cookie != null) {
+                add("cookie", cookie.toString());
+            }
+            if (!hostSeen && authority != null) {
+                add("host", authority);
+            }
+            HttpRequest request = new HttpRequest();
+            request.setRequestLine(method, path, "HTTP/2.0");
+            request.setRemoteAddress(remoteAddress);
+            HttpHeaders headers = request.getHeaders();
+            headers.setBuffer(buffer.toByteArray());
+            for (int[] field : offsets) {
+                headers.add(field[0], field[1], field[2], field[3]);
+            }
+            return request;
+        }
+    }
+}
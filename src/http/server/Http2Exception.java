@@ -0,0 +1,58 @@
+package http.server;
+
+import java.io.IOException;
+
+/**
+ * Thrown when an HTTP/2 peer breaks the protocol.
+ * Carries the error code sent to the peer, in a RST_STREAM frame when only a stream is
+ * affected, or in a GOAWAY frame before closing the connection.
+ */
+public class Http2Exception extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    public static final int NO_ERROR = 0x0;
+    public static final int PROTOCOL_ERROR = 0x1;
+    public static final int INTERNAL_ERROR = 0x2;
+    public static final int FLOW_CONTROL_ERROR = 0x3;
+    public static final int STREAM_CLOSED = 0x5;
+    public static final int FRAME_SIZE_ERROR = 0x6;
+    public static final int REFUSED_STREAM = 0x7;
+    public static final int CANCEL = 0x8;
+    public static final int COMPRESSION_ERROR = 0x9;
+    public static final int ENHANCE_YOUR_CALM = 0xb;
+
+    private final int errorCode;
+    private final int streamId;
+
+    /**
+     * Connection error, the connection is closed.
+     * @param errorCode HTTP/2 error code, such as {@link #PROTOCOL_ERROR}
+     * @param message description of the problem
+     */
+    public Http2Exception(int errorCode, String message) {
+        this(errorCode, 0, message);
+    }
+
+    /**
+     * @param errorCode HTTP/2 error code, such as {@link #PROTOCOL_ERROR}
+     * @param streamId stream the error is limited to, 0 for a connection error
+     * @param message description of the problem
+     */
+    public Http2Exception(int errorCode, int streamId, String message) {
+        super(message);
+        this.errorCode = errorCode;
+        this.streamId = streamId;
+    }
+
+    public int getErrorCode() {
+        return errorCode;
+    }
+
+    /**
+     * @return stream the error is limited to, 0 for a connection error
+     */
+    public int getStreamId() {
+        return streamId;
+    }
+}
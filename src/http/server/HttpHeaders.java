@@ -0,0 +1,226 @@
+package http.server;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Header fields of a request, kept as offsets into the buffer the head was parsed from.
+ * Names are compared case-insensitively byte by byte and values are only turned into
+ * Strings when they are asked for, so parsing a request does not allocate per header.
+ * The headers are only valid until the buffer is reused for the next request.
+ */
+public class HttpHeaders {
+
+    private byte[] buffer;
+    // nameStart, nameEnd, valueStart, valueEnd of each header
+    private int[] offsets = new int[4 * 16];
+    private int size;
+
+    /**
+     * @return number of header fields
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @param i index of the header field
+     * @return name of the header field as sent by the client
+     */
+    public String name(int i) {
+        return string(offsets[4 * i], offsets[4 * i + 1]);
+    }
+
+    /**
+     * @param i index of the header field
+     * @return value of the header field, without surrounding whitespace
+     */
+    public String value(int i) {
+        return string(offsets[4 * i + 2], offsets[4 * i + 3]);
+    }
+
+    /**
+     * @param name name of the header field, case-insensitive
+     * @return the value of the first field with this name, or null if there is none
+     */
+    public String get(String name) {
+        int i = indexOf(name);
+        return i < 0 ? null : value(i);
+    }
+
+    /**
+     * @param name name of the header field, case-insensitive
+     * @return true if the request has a field with this name
+     */
+    public boolean contains(String name) {
+        return indexOf(name) >= 0;
+    }
+
+    /**
+     * Reads a numeric header field such as Content-Length without creating a String.
+     * @param name name of the header field, case-insensitive
+     * @param defaultValue value returned if the field is missing
+     * @return the value of the field
+     * @throws NumberFormatException if the value is not a non-negative integer, or if the field is
+     * repeated: two lengths for one body are how requests get smuggled past a proxy
+     */
+    public long getLong(String name, long defaultValue) {
+        int i = indexOf(name);
+        if (i < 0) {
+            return defaultValue;
+        }
+        for (int j = i + 1; j < size; j++) {
+            if (matches(offsets[4 * j], offsets[4 * j + 1], name)) {
+                throw new NumberFormatException("repeated " + name);
+            }
+        }
+        int start = offsets[4 * i + 2];
+        int end = offsets[4 * i + 3];
+        if (start == end || end - start > 18) {
+            throw new NumberFormatException("invalid " + name);
+        }
+        long result = 0;
+        for (int p = start; p < end; p++) {
+            int digit = buffer[p] - '0';
+            if (digit < 0 || digit > 9) {
+                throw new NumberFormatException("invalid " + name);
+            }
+            result = result * 10 + digit;
+        }
+        return result;
+    }
+
+    /**
+     * Looks for a token in a comma separated header field, such as "close" in Connection.
+     * @param name name of the header field, case-insensitive
+     * @param token token to look for, case-insensitive
+     * @return true if one of the fields with this name contains the token
+     */
+    public boolean containsToken(String name, String token) {
+        for (int i = 0; i < size; i++) {
+            if (!matches(offsets[4 * i], offsets[4 * i + 1], name)) {
+                continue;
+            }
+            int p = offsets[4 * i + 2];
+            int end = offsets[4 * i + 3];
+            while (p < end) {
+                while (p < end && (buffer[p] == ' ' || buffer[p] == '\t' || buffer[p] == ',')) {
+                    p++;
+                }
+                int tokenStart = p;
+                while (p < end && buffer[p] != ',') {
+                    p++;
+                }
+                int tokenEnd = p;
+                while (tokenEnd > tokenStart && (buffer[tokenEnd - 1] == ' ' || buffer[tokenEnd - 1] == '\t')) {
+                    tokenEnd--;
+                }
+                if (matches(tokenStart, tokenEnd, token)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Checks whether a header field value starts with a prefix, ignoring case, for
+     * instance a Content-Type followed by parameters.
+     * @param name name of the header field, case-insensitive
+     * @param prefix expected start of the value
+     * @return true if the first field with this name starts with the prefix
+     */
+    public boolean startsWith(String name, String prefix) {
+        int i = indexOf(name);
+        if (i < 0) {
+            return false;
+        }
+        int start = offsets[4 * i + 2];
+        int end = offsets[4 * i + 3];
+        return end - start >= prefix.length() && matches(start, start + prefix.length(), prefix);
+    }
+
+    /**
+     * Copies the value of a header field without creating a String, into a buffer reused by the caller.
+     * @param name name of the header field, case-insensitive
+     * @param dest array receiving the bytes of the value, which is truncated to its length
+     * @return number of bytes copied, or -1 if the request has no field with this name
+     */
+    public int copy(String name, byte[] dest) {
+        int i = indexOf(name);
+        if (i < 0) {
+            return -1;
+        }
+        int start = offsets[4 * i + 2];
+        int length = Math.min(offsets[4 * i + 3] - start, dest.length);
+        System.arraycopy(buffer, start, dest, 0, length);
+        return length;
+    }
+
+    void clear() {
+        size = 0;
+    }
+
+    /**
+     * Points the headers at another buffer holding the same head at the same offsets.
+     * @param buffer buffer the head was parsed from, or a copy of it
+     */
+    void setBuffer(byte[] buffer) {
+        this.buffer = buffer;
+    }
+
+    void add(int nameStart, int nameEnd, int valueStart, int valueEnd) {
+        if (4 * size == offsets.length) {
+            int[] larger = new int[offsets.length * 2];
+            System.arraycopy(offsets, 0, larger, 0, offsets.length);
+            offsets = larger;
+        }
+        int i = 4 * size++;
+        offsets[i] = nameStart;
+        offsets[i + 1] = nameEnd;
+        offsets[i + 2] = valueStart;
+        offsets[i + 3] = valueEnd;
+    }
+
+    private int indexOf(String name) {
+        for (int i = 0; i < size; i++) {
+            if (matches(offsets[4 * i], offsets[4 * i + 1], name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Compares a region of the buffer with an ASCII string, ignoring case.
+     */
+    private boolean matches(int start, int end, String s) {
+        if (end - start != s.length()) {
+            return false;
+        }
+        for (int i = 0; i < s.length(); i++) {
+            int a = buffer[start + i];
+            int b = s.charAt(i);
+            if (a == b) {
+                continue;
+            }
+            int lower = a | 0x20;
+            if (lower < 'a' || lower > 'z' || lower != (b | 0x20)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private String string(int start, int end) {
+        return new String(buffer, start, end - start, StandardCharsets.ISO_8859_1);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < size; i++) {
+            sb.append(name(i)).append(": ").append(value(i)).append("\r\n");
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,27 @@
+package http.server;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a request cannot be parsed.
+ * Carries the status the server answers before closing the connection.
+ */
+public class HttpParseException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String status;
+
+    /**
+     * @param status response status, such as "400 Bad Request"
+     * @param message description of the problem
+     */
+    public HttpParseException(String status, String message) {
+        super(message);
+        this.status = status;
+    }
+
+    public String getStatus() {
+        return status;
+    }
+}
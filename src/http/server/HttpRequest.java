@@ -0,0 +1,69 @@
+package http.server;
+
+/**
+ * Request line and headers of a request, filled by a {@link RequestParser}.
+ * The same instance is reused for every request of a connection, which also gives it the
+ * address of the client.
+ */
+public class HttpRequest {
+
+    private String method;
+    private String target;
+    private String version;
+    private final HttpHeaders headers = new HttpHeaders();
+    private String remoteAddress;
+
+    /**
+     * @return request method, such as GET or POST
+     */
+    public String getMethod() {
+        return method;
+    }
+
+    /**
+     * @return request target as sent by the client, such as /doc/index.html
+     */
+    public String getTarget() {
+        return target;
+    }
+
+    /**
+     * @return protocol version, such as HTTP/1.1
+     */
+    public String getVersion() {
+        return version;
+    }
+
+    public HttpHeaders getHeaders() {
+        return headers;
+    }
+
+    /**
+     * @return address of the client, or null if unknown
+     */
+    public String getRemoteAddress() {
+        return remoteAddress;
+    }
+
+    void setRemoteAddress(String remoteAddress) {
+        this.remoteAddress = remoteAddress;
+    }
+
+    void setRequestLine(String method, String target, String version) {
+        this.method = method;
+        this.target = target;
+        this.version = version;
+    }
+
+    void clear() {
+        method = null;
+        target = null;
+        version = null;
+        headers.clear();
+    }
+
+    @Override
+    public String toString() {
+        return method + " " + target + " " + version;
+    }
+}
@@ -0,0 +1,190 @@
+package http.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Keep-alive connections of the blocking engine waiting for their next request. A worker
+ * blocked on such a connection would be lost to the other clients until the client speaks or
+ * the keep-alive timeout expires, so the connection is parked here instead: its channel is
+ * registered in non-blocking mode with a Selector, watched by a single thread, and handed back
+ * in blocking mode as soon as the client sends something or closes it. The connections idle
+ * for longer than their timeout are closed, at most once per second, as the NIO engine does.
+ */
+final class IdleConnections implements Closeable {
+
+    private static final long SWEEP_INTERVAL = 1000;
+
+    /**
+     * Connection parked between two requests. Exactly one of its methods is called, from the
+     * thread of the selector.
+     */
+    interface Parked {
+        /**
+         * Called once the client sent something or closed the connection, the channel being
+         * in blocking mode again.
+         */
+        void resume();
+
+        /**
+         * Called when the connection stayed idle past its timeout, or could not be parked.
+         * Closes the connection.
+         */
+        void expire();
+    }
+
+    private static final class Idle {
+        final Parked connection;
+        final long deadline;
+
+        Idle(Parked connection, long deadline) {
+            this.connection = connection;
+            this.deadline = deadline;
+        }
+    }
+
+    private final Selector selector;
+    private final Queue<Runnable> pending = new ConcurrentLinkedQueue<>();
+    // guarded by this, no connection is parked once set
+    private boolean closed;
+    private volatile boolean stopping;
+    private long lastSweep;
+
+    /**
+     * Opens the selector and starts its thread.
+     * @throws IOException if the selector cannot be opened
+     */
+    IdleConnections() throws IOException {
+        selector = Selector.open();
+        Thread thread = new Thread(this::run, "idle-connections");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Waits for the next bytes of a connection without holding a thread.
+     * @param channel channel of the connection in blocking mode, whose bytes received so far
+     *                have all been read
+     * @param timeoutMillis how long the connection may stay idle
+     * @param connection resumed or expired once the client speaks or the timeout expires
+     */
+    void park(SocketChannel channel, long timeoutMillis, Parked connection) {
+        synchronized (this) {
+            if (!closed) {
+                pending.add(() -> register(channel, System.currentTimeMillis() + timeoutMillis, connection));
+                selector.wakeup();
+                return;
+            }
+        }
+        connection.expire();
+    }
+
+    /**
+     * @return number of connections parked
+     */
+    int size() {
+        return selector.keys().size();
+    }
+
+    /**
+     * Stops the thread of the selector, the connections still parked are expired.
+     */
+    @Override
+    public void close() {
+        stopping = true;
+        selector.wakeup();
+    }
+
+    private void register(SocketChannel channel, long deadline, Parked connection) {
+        try {
+            channel.configureBlocking(false);
+            channel.register(selector, SelectionKey.OP_READ, new Idle(connection, deadline));
+        } catch (IOException e) {
+            // closed meanwhile
+            connection.expire();
+        }
+    }
+
+    private void run() {
+        try {
+            while (!stopping) {
+                selector.select(SWEEP_INTERVAL);
+                Runnable task;
+                while ((task = pending.poll()) != null) {
+                    task.run();
+                }
+                if (!selector.selectedKeys().isEmpty()) {
+                    resume();
+                }
+                expireIdle();
+            }
+        } catch (IOException e) {
+            System.out.println("Error: " + e);
+        } finally {
+            synchronized (this) {
+                closed = true;
+            }
+            Runnable task;
+            while ((task = pending.poll()) != null) {
+                task.run();
+            }
+            for (SelectionKey key : selector.keys()) {
+                key.cancel();
+                ((Idle) key.attachment()).connection.expire();
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    /**
+     * Hands the connections the client spoke on back to their owner, once their channel is out
+     * of the selector and blocking again.
+     */
+    private void resume() throws IOException {
+        List<SelectionKey> ready = new ArrayList<>(selector.selectedKeys());
+        selector.selectedKeys().clear();
+        for (SelectionKey key : ready) {
+            key.cancel();
+        }
+        // deregisters the cancelled keys, a channel cannot block while it is registered
+        selector.selectNow();
+        for (SelectionKey key : ready) {
+            Idle idle = (Idle) key.attachment();
+            try {
+                ((SocketChannel) key.channel()).configureBlocking(true);
+            } catch (IOException e) {
+                idle.connection.expire();
+                continue;
+            }
+            idle.connection.resume();
+        }
+    }
+
+    /**
+     * Closes, at most once per second, the connections idle for longer than their timeout.
+     */
+    private void expireIdle() {
+        long now = System.currentTimeMillis();
+        if (now - lastSweep < SWEEP_INTERVAL) {
+            return;
+        }
+        lastSweep = now;
+        for (SelectionKey key : selector.keys()) {
+            Idle idle = (Idle) key.attachment();
+            if (key.isValid() && now > idle.deadline) {
+                key.cancel();
+                idle.connection.expire();
+            }
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package http.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Listening side of one port: its server sockets and the acceptor threads taking their
+ * connections, shared by both engines.
+ * With SO_REUSEPORT each acceptor has its own socket bound to the port and the kernel spreads
+ * the new connections between them, so the acceptors never contend on one queue and other
+ * server processes can listen on the same port; otherwise the acceptors share one socket.
+ * The accepted connections get the socket options of the configuration, then are handed
+ * over to the engine.
+ */
+final class Listener {
+
+    /**
+     * Takes the connections accepted by the listener.
+     */
+    interface Handler {
+
+        /**
+         * @param channel connection just accepted, in blocking mode
+         * @throws IOException if the connection cannot be served, it is then closed
+         */
+        void accepted(SocketChannel channel) throws IOException;
+    }
+
+    private final String name;
+    private final ServerSocketChannel[] servers;
+    private final int acceptors;
+    private volatile ServerConfig config;
+
+    /**
+     * Binds the port.
+     * @param name   name of the acceptor threads
+     * @param port   port to listen on, 0 for any free port
+     * @param config server configuration: acceptors, SO_REUSEPORT, backlog and socket options
+     * @throws IOException if the port cannot be bound
+     */
+    Listener(String name, int port, ServerConfig config) throws IOException {
+        this.name = name;
+        this.config = config;
+        this.acceptors = config.getAcceptors();
+        boolean reusePort = config.isReusePort() && isReusePortSupported();
+        if (config.isReusePort() && !reusePort) {
+            System.out.println("SO_REUSEPORT is not supported, the acceptors of port " + port + " share one socket");
+        }
+        servers = new ServerSocketChannel[reusePort ? acceptors : 1];
+        try {
+            for (int i = 0; i < servers.length; i++) {
+                servers[i] = ServerSocketChannel.open();
+                if (reusePort) {
+                    servers[i].setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                }
+                // inherited by the connections, the window scale is agreed before they are accepted
+                if (config.getReceiveBuffer() > 0) {
+                    servers[i].setOption(StandardSocketOptions.SO_RCVBUF, config.getReceiveBuffer());
+                }
+                // the other sockets join the port the first one got
+                servers[i].bind(new InetSocketAddress(i == 0 ? port : getPort()), config.getBacklog());
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return port the listener is bound to
+     */
+    int getPort() {
+        return servers[0].socket().getLocalPort();
+    }
+
+    /**
+     * Applies the socket options of a new configuration to the next connections.
+     * @param config server configuration
+     */
+    void reconfigure(ServerConfig config) {
+        this.config = config;
+    }
+
+    /**
+     * Starts the acceptor threads, which hand the connections to the handler until the
+     * listener is closed.
+     * @param handler handler of the accepted connections
+     */
+    void start(Handler handler) {
+        for (int i = 0; i < acceptors; i++) {
+            ServerSocketChannel server = servers[i % servers.length];
+            String thread = acceptors == 1 ? name : name + "-" + (i + 1);
+            new Thread(() -> acceptLoop(server, handler), thread).start();
+        }
+    }
+
+    /**
+     * Closes the server sockets, the accepted connections are left alone.
+     */
+    void close() {
+        for (ServerSocketChannel server : servers) {
+            if (server != null) {
+                try {
+                    server.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    private static boolean isReusePortSupported() throws IOException {
+        try (ServerSocketChannel probe = ServerSocketChannel.open()) {
+            return probe.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        }
+    }
+
+    private void acceptLoop(ServerSocketChannel server, Handler handler) {
+        for (; ; ) {
+            SocketChannel channel;
+            try {
+                // wait for a connection
+                channel = server.accept();
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException e) {
+                System.out.println("Error: " + e);
+                continue;
+            }
+            try {
+                configure(channel.socket(), config);
+                handler.accepted(channel);
+            } catch (IOException e) {
+                System.out.println("Error: " + e);
+                try {
+                    channel.close();
+                } catch (IOException e2) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Applies the socket options of the configuration to an accepted connection.
+     * @param socket the connection
+     * @param config server configuration
+     * @throws IOException
+     */
+    private static void configure(Socket socket, ServerConfig config) throws IOException {
+        socket.setTcpNoDelay(config.isTcpNoDelay());
+        if (config.getSendBuffer() > 0) {
+            socket.setSendBufferSize(config.getSendBuffer());
+        }
+    }
+}
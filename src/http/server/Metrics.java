@@ -0,0 +1,209 @@
+package http.server;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Counters and latency histograms of the server, exposed in the Prometheus text format.
+ * Requests are recorded per route and status code in a {@link LatencyHistogram}, in
+ * microseconds from the end of their head to the end of their handler. Bytes and connections
+ * are counted with LongAdder so that the threads of the connections do not contend.
+ * Recording allocates nothing once the histogram of a route and status exists, the cost is
+ * paid by the scrape which walks the counters. Other components expose their own statistics
+ * by registering a supplier read at scrape time.
+ */
+public class Metrics {
+
+    /** Content type of the Prometheus text exposition format. */
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private static final int MAX_STATUS = 600;
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    /**
+     * Histograms of a route, indexed by status code, created on first use.
+     */
+    private static final class RouteMetrics {
+        private final String method;
+        private final String pattern;
+        private final AtomicReferenceArray<LatencyHistogram> statuses = new AtomicReferenceArray<>(MAX_STATUS);
+
+        private RouteMetrics(String method, String pattern) {
+            this.method = method;
+            this.pattern = pattern;
+        }
+
+        private LatencyHistogram histogram(int status) {
+            LatencyHistogram histogram = statuses.get(status);
+            if (histogram == null) {
+                statuses.compareAndSet(status, null, new LatencyHistogram());
+                histogram = statuses.get(status);
+            }
+            return histogram;
+        }
+    }
+
+    /**
+     * Value read from another component when the metrics are scraped.
+     */
+    private static final class Sampled {
+        private final String name;
+        private final String type;
+        private final String help;
+        private final LongSupplier value;
+
+        private Sampled(String name, String type, String help, LongSupplier value) {
+            this.name = name;
+            this.type = type;
+            this.help = help;
+            this.value = value;
+        }
+    }
+
+    private final Map<Router.Route, RouteMetrics> routes = new ConcurrentHashMap<>();
+    // requests answered without a route: parse errors, forbidden paths, unsupported methods
+    private final RouteMetrics unrouted = new RouteMetrics("", "");
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder connections = new LongAdder();
+    private final AtomicLong activeConnections = new AtomicLong();
+    private final List<Sampled> sampled = new CopyOnWriteArrayList<>();
+
+    /**
+     * Records an answered request.
+     * @param route   route of the request, or null if it had none
+     * @param status  status of the response, e.g. "200 OK", or null if none was sent
+     * @param latency time spent on the request in nanoseconds
+     */
+    public void record(Router.Route route, String status, long latency) {
+        int code = statusCode(status);
+        if (code < 0) {
+            return;
+        }
+        RouteMetrics metrics = unrouted;
+        if (route != null) {
+            metrics = routes.get(route);
+            if (metrics == null) {
+                metrics = routes.computeIfAbsent(route, r -> new RouteMetrics(r.getMethod(), r.getPattern()));
+            }
+        }
+        metrics.histogram(code).record(latency / 1000);
+    }
+
+    public void addBytesIn(long count) {
+        bytesIn.add(count);
+    }
+
+    public void addBytesOut(long count) {
+        bytesOut.add(count);
+    }
+
+    public void connectionOpened() {
+        connections.increment();
+        activeConnections.incrementAndGet();
+    }
+
+    public void connectionClosed() {
+        activeConnections.decrementAndGet();
+    }
+
+    /**
+     * Exposes a value of another component, read on each scrape.
+     * @param name  name of the metric
+     * @param type  Prometheus type of the metric, counter or gauge
+     * @param help  description of the metric
+     * @param value supplier of the current value
+     */
+    public void register(String name, String type, String help, LongSupplier value) {
+        sampled.add(new Sampled(name, type, help, value));
+    }
+
+    /**
+     * Answers the metrics in the Prometheus text format.
+     * @param clientOutput stream the response is written to
+     * @throws IOException
+     */
+    public void doGET(ConnectionOutputStream clientOutput) throws IOException {
+        clientOutput.response("200 OK").send(CONTENT_TYPE, format().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @return every metric in the Prometheus text format
+     */
+    public String format() {
+        StringBuilder out = new StringBuilder(4096);
+        counter(out, "http_server_bytes_received_total", "counter", "Bytes read from the clients.", bytesIn.sum());
+        counter(out, "http_server_bytes_sent_total", "counter", "Bytes written to the clients.", bytesOut.sum());
+        counter(out, "http_server_connections_total", "counter", "Connections accepted.", connections.sum());
+        counter(out, "http_server_active_connections", "gauge", "Connections currently open.", activeConnections.get());
+        for (Sampled metric : sampled) {
+            counter(out, metric.name, metric.type, metric.help, metric.value.getAsLong());
+        }
+        String name = "http_server_request_duration_seconds";
+        out.append("# HELP ").append(name)
+                .append(" Time from the end of the request head to the end of the response, by route and status.\n");
+        out.append("# TYPE ").append(name).append(" summary\n");
+        format(out, name, unrouted);
+        for (RouteMetrics metrics : routes.values()) {
+            format(out, name, metrics);
+        }
+        return out.toString();
+    }
+
+    private static void counter(StringBuilder out, String name, String type, String help, long value) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void format(StringBuilder out, String name, RouteMetrics metrics) {
+        for (int status = 0; status < MAX_STATUS; status++) {
+            LatencyHistogram histogram = metrics.statuses.get(status);
+            if (histogram == null) {
+                continue;
+            }
+            String labels = "method=\"" + escape(metrics.method) + "\",route=\"" + escape(metrics.pattern)
+                    + "\",status=\"" + status + "\"";
+            for (double quantile : QUANTILES) {
+                out.append(name).append('{').append(labels).append(",quantile=\"").append(quantile).append("\"} ")
+                        .append(seconds(histogram.valueAtQuantile(quantile))).append('\n');
+            }
+            out.append(name).append("_sum{").append(labels).append("} ").append(seconds(histogram.getSum())).append('\n');
+            out.append(name).append("_count{").append(labels).append("} ").append(histogram.getCount()).append('\n');
+        }
+    }
+
+    private static double seconds(long micros) {
+        return micros / 1e6;
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    /**
+     * @return the code of a status such as "200 OK", or -1 if it has none
+     */
+    private static int statusCode(String status) {
+        if (status == null || status.length() < 3) {
+            return -1;
+        }
+        int code = 0;
+        for (int i = 0; i < 3; i++) {
+            char c = status.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            code = code * 10 + c - '0';
+        }
+        return code < MAX_STATUS ? code : -1;
+    }
+}
@@ -0,0 +1,208 @@
+package http.server;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Content types of the static files, by file extension.
+ * Built once at startup from a table of the common types, which a file in the format of
+ * Apache's {@code mime.types} ({@code type ext1 ext2 ...}, {@code #} for comments) completes
+ * or overrides. The extensions are kept in an open addressing table that is never modified
+ * afterwards, so every thread reads it without locking, and a lookup hashes and compares the
+ * extension in place in the file name, ignoring case, without allocating.
+ * Text types carry a {@code charset=utf-8} parameter, files without a known extension are
+ * {@code application/octet-stream}.
+ */
+public final class MimeTypes {
+
+    public static final String DEFAULT_TYPE = "application/octet-stream";
+    private static final String CHARSET = "; charset=utf-8";
+
+    private static final String[] BUILT_IN = {
+            "text/html html htm shtml",
+            "text/css css",
+            "text/plain txt text log conf ini",
+            "text/csv csv",
+            "text/markdown md markdown",
+            "text/xml xml",
+            "text/calendar ics",
+            "text/vtt vtt",
+            "application/javascript js mjs",
+            "application/json json map",
+            "application/manifest+json webmanifest",
+            "application/xhtml+xml xhtml",
+            "application/rss+xml rss",
+            "application/atom+xml atom",
+            "application/pdf pdf",
+            "application/zip zip",
+            "application/gzip gz",
+            "application/x-tar tar",
+            "application/x-7z-compressed 7z",
+            "application/java-archive jar",
+            "application/wasm wasm",
+            "application/rtf rtf",
+            "application/msword doc",
+            "application/vnd.openxmlformats-officedocument.wordprocessingml.document docx",
+            "application/vnd.ms-excel xls",
+            "application/vnd.openxmlformats-officedocument.spreadsheetml.sheet xlsx",
+            "application/vnd.ms-powerpoint ppt",
+            "application/vnd.openxmlformats-officedocument.presentationml.presentation pptx",
+            "application/vnd.oasis.opendocument.text odt",
+            "application/vnd.ms-fontobject eot",
+            "image/png png",
+            "image/jpeg jpg jpeg jpe",
+            "image/gif gif",
+            "image/webp webp",
+            "image/avif avif",
+            "image/svg+xml svg svgz",
+            "image/x-icon ico",
+            "image/bmp bmp",
+            "image/tiff tif tiff",
+            "font/woff woff",
+            "font/woff2 woff2",
+            "font/ttf ttf",
+            "font/otf otf",
+            "audio/mpeg mp3",
+            "audio/ogg ogg oga",
+            "audio/wav wav",
+            "audio/flac flac",
+            "audio/aac aac",
+            "audio/webm weba",
+            "video/mp4 mp4 m4v",
+            "video/webm webm",
+            "video/ogg ogv",
+            "video/quicktime mov",
+            "video/x-msvideo avi",
+    };
+
+    private static final MimeTypes BUILT_IN_TYPES = new MimeTypes(parse(new LinkedHashMap<>(), BUILT_IN));
+
+    // lowercase extensions and their content types, at the same index, null for a free slot
+    private final String[] extensions;
+    private final String[] types;
+    private final int mask;
+
+    private MimeTypes(Map<String, String> byExtension) {
+        int capacity = Integer.highestOneBit(Math.max(byExtension.size(), 1) * 2) * 2;
+        extensions = new String[capacity];
+        types = new String[capacity];
+        mask = capacity - 1;
+        for (Map.Entry<String, String> entry : byExtension.entrySet()) {
+            String extension = entry.getKey();
+            int i = hash(extension, 0, extension.length()) & mask;
+            while (extensions[i] != null) {
+                i = (i + 1) & mask;
+            }
+            extensions[i] = extension;
+            types[i] = withCharset(entry.getValue());
+        }
+    }
+
+    /**
+     * @return the registry of the built-in types
+     */
+    public static MimeTypes builtIn() {
+        return BUILT_IN_TYPES;
+    }
+
+    /**
+     * Builds the registry of the built-in types completed by a mime.types file, whose entries
+     * take precedence.
+     * @param file file in the format of Apache's mime.types
+     * @return the registry
+     * @throws IOException
+     */
+    public static MimeTypes load(Path file) throws IOException {
+        Map<String, String> byExtension = parse(new LinkedHashMap<>(), BUILT_IN);
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                parse(byExtension, line);
+            }
+        }
+        return new MimeTypes(byExtension);
+    }
+
+    /**
+     * Content type of a file, from the extension of its name.
+     * @param filename name or path of the file
+     * @return the content type, {@link #DEFAULT_TYPE} if the extension is missing or unknown
+     */
+    public String lookup(String filename) {
+        int end = filename.length();
+        int dot = -1;
+        for (int i = end - 1; i >= 0; i--) {
+            char c = filename.charAt(i);
+            if (c == '.') {
+                dot = i;
+                break;
+            }
+            if (c == '/' || c == '\\') {
+                break;
+            }
+        }
+        if (dot <= 0 || dot == end - 1 || filename.charAt(dot - 1) == '/' || filename.charAt(dot - 1) == '\\') {
+            // no extension, or a hidden file such as .htaccess
+            return DEFAULT_TYPE;
+        }
+        int start = dot + 1;
+        int length = end - start;
+        for (int i = hash(filename, start, end) & mask; extensions[i] != null; i = (i + 1) & mask) {
+            String extension = extensions[i];
+            if (extension.length() == length && extension.regionMatches(true, 0, filename, start, length)) {
+                return types[i];
+            }
+        }
+        return DEFAULT_TYPE;
+    }
+
+    private static Map<String, String> parse(Map<String, String> byExtension, String... lines) {
+        for (String line : lines) {
+            int comment = line.indexOf('#');
+            if (comment >= 0) {
+                line = line.substring(0, comment);
+            }
+            String[] fields = line.trim().split("\\s+");
+            for (int i = 1; i < fields.length; i++) {
+                String extension = fields[i].startsWith(".") ? fields[i].substring(1) : fields[i];
+                if (!extension.isEmpty()) {
+                    byExtension.put(extension.toLowerCase(Locale.ROOT), fields[0].toLowerCase(Locale.ROOT));
+                }
+            }
+        }
+        return byExtension;
+    }
+
+    /**
+     * Hash of an extension, ignoring the case of its ASCII letters.
+     */
+    private static int hash(String s, int start, int end) {
+        int h = 0;
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if (c >= 'A' && c <= 'Z') {
+                c += 'a' - 'A';
+            }
+            h = 31 * h + c;
+        }
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Appends the charset parameter to the textual types.
+     */
+    private static String withCharset(String type) {
+        if (type.indexOf(';') < 0 && (type.startsWith("text/") || type.endsWith("+xml") || type.endsWith("+json")
+                || type.equals("application/javascript") || type.equals("application/json")
+                || type.equals("application/xml"))) {
+            return type + CHARSET;
+        }
+        return type;
+    }
+}
@@ -0,0 +1,1169 @@
+package http.server;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Non-blocking engine of the WebServer built on a ServerSocketChannel and Selectors.
+ * The acceptor threads of a {@link Listener} distribute the connections between N event loops. Each event loop
+ * parses the request heads incrementally with a {@link RequestParser}, and once a head is
+ * complete the request is handed to the worker pool which runs the same handling code as the
+ * blocking engine. The body is streamed to the worker through a bounded {@link BodyPipe} and
+ * the response streamed back through a bounded {@link ResponseOutput}, so neither is ever held
+ * entirely in memory: the event loop stops reading while the worker lags behind, and the
+ * worker waits while the client does not read its response.
+ * Persistent connections are read again once their response is written, pipelined requests
+ * already buffered are served in order. Idle connections only cost a selection key, so a few
+ * threads can hold thousands of them; they are closed after the keep-alive timeout, and the
+ * clients which stall in the middle of a request or a response after the read or write timeout.
+ * The connections are kept in a {@link ConnectionRegistry} so that a shutdown can drain them,
+ * and the limits can be changed while running by {@link #reconfigure(ServerConfig)}.
+ * The connections of the HTTPS port go through a non-blocking {@link TlsChannel}, whose
+ * handshake is driven by the same read and write events as the requests.
+ */
+public class NioServer {
+
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+    private static final int BODY_PIPE_SIZE = 64 * 1024;
+    private static final int MAX_PENDING_OUTPUT = 256 * 1024;
+
+    private static final int READING_HEAD = 0;
+    private static final int READING_BODY = 1;
+    private static final int RESPONDING = 2;
+
+    private final WorkerPool pool;
+    private final ConnectionRegistry registry;
+    private final EventLoop[] loops;
+    private volatile long idleTimeout;
+    private volatile long readTimeout;
+    private volatile long writeTimeout;
+    private volatile int maxRequests;
+    private volatile int maxRequestLine;
+    private volatile int maxHeaderSize;
+    private volatile long maxBodySize;
+    private volatile ServerConfig config;
+    private final Metrics metrics = WebServer.getMetrics();
+    private final AdmissionControl admission = WebServer.getAdmission();
+    // bounds the blocking writes of the HTTP/2 connections
+    private final WriteTimeout writeWatchdog = WebServer.getWriteTimeout();
+    // null without an HTTPS port
+    private final TlsContext tls;
+    private Listener listener;
+    private Listener tlsListener;
+    private volatile boolean running;
+    private final AtomicInteger nextLoop = new AtomicInteger();
+
+    /**
+     * Creates the event loops, they are started by {@link #start(int)}.
+     *
+     * @param config   server configuration
+     * @param pool     pool running the request handlers
+     * @param registry registry of the open connections
+     * @param tls      TLS settings of the HTTPS port, null without one
+     * @throws IOException if a selector cannot be opened
+     */
+    NioServer(ServerConfig config, WorkerPool pool, ConnectionRegistry registry, TlsContext tls) throws IOException {
+        this.pool = pool;
+        this.registry = registry;
+        this.tls = tls;
+        reconfigure(config);
+        this.loops = new EventLoop[config.getEventLoops()];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop();
+        }
+    }
+
+    /**
+     * Applies the limits of a new configuration: the timeouts and the maximum number of
+     * requests to the open connections, the other limits and the socket options to the next
+     * requests and connections.
+     *
+     * @param config server configuration
+     */
+    public void reconfigure(ServerConfig config) {
+        this.idleTimeout = config.getKeepAliveTimeout() * 1000L;
+        this.readTimeout = config.getReadTimeout() * 1000L;
+        this.writeTimeout = config.getWriteTimeout() * 1000L;
+        this.maxRequests = config.getMaxRequests();
+        this.maxRequestLine = config.getMaxRequestLine();
+        this.maxHeaderSize = config.getMaxHeaderSize();
+        this.maxBodySize = config.getMaxBodySize();
+        this.config = config;
+        if (listener != null) {
+            listener.reconfigure(config);
+        }
+        if (tlsListener != null) {
+            tlsListener.reconfigure(config);
+        }
+    }
+
+    /**
+     * Binds the ports, then starts the event loops and the threads accepting the connections.
+     *
+     * @param port port to listen on, the HTTPS port comes from the configuration
+     * @throws IOException if a server channel cannot be opened
+     */
+    public void start(int port) throws IOException {
+        listener = new Listener("nio-acceptor", port, config);
+        if (tls != null) {
+            try {
+                tlsListener = new Listener("nio-tls-acceptor", config.getTlsPort(), config);
+            } catch (IOException e) {
+                listener.close();
+                throw e;
+            }
+        }
+        running = true;
+        for (int i = 0; i < loops.length; i++) {
+            new Thread(loops[i], "nio-loop-" + (i + 1)).start();
+        }
+        System.out.println("Waiting for connection (" + loops.length + " event loops, "
+                + config.getAcceptors() + " acceptors per port)");
+        listener.start(channel -> accept(channel, null));
+        if (tls != null) {
+            tlsListener.start(channel -> accept(channel, tls));
+        }
+    }
+
+    /**
+     * Hands an accepted connection to the next event loop, the acceptors of a port taking
+     * turns on a shared counter. The addresses with too many connections are refused at once.
+     * @param channel channel of the connection
+     * @param tls TLS settings of the HTTPS port, null for HTTP
+     * @throws IOException if the channel cannot be made non-blocking
+     */
+    private void accept(SocketChannel channel, TlsContext tls) throws IOException {
+        String address = remoteAddress(channel);
+        if (!admission.openConnection(address)) {
+            WebServer.rejectClient(channel.socket(), tls != null, "429 Too Many Requests");
+            return;
+        }
+        try {
+            channel.configureBlocking(false);
+        } catch (IOException e) {
+            admission.closeConnection(address);
+            throw e;
+        }
+        EventLoop loop = loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)];
+        loop.execute(() -> loop.register(channel, tls, address));
+    }
+
+    /**
+     * Closes the server channels, the open connections are left alone.
+     */
+    public void stopAccepting() {
+        listener.close();
+        if (tlsListener != null) {
+            tlsListener.close();
+        }
+    }
+
+    /**
+     * Stops the event loops, closing the connections still open.
+     */
+    public void stop() {
+        running = false;
+        for (EventLoop loop : loops) {
+            loop.selector.wakeup();
+        }
+    }
+
+    /**
+     * Selector thread owning a subset of the connections.
+     * Other threads interact with it through {@link #execute(Runnable)}.
+     */
+    private final class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+        private long lastSweep = System.currentTimeMillis();
+
+        EventLoop() throws IOException {
+            this.selector = Selector.open();
+        }
+
+        /**
+         * Runs a task on the event loop thread.
+         * @param task task to run
+         */
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    selector.select(1000);
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        try {
+                            task.run();
+                        } catch (RuntimeException e) {
+                            System.out.println("Error: " + e);
+                        }
+                    }
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        Connection connection = (Connection) key.attachment();
+                        try {
+                            if (key.isValid() && key.isWritable()) {
+                                connection.flushOutput();
+                            }
+                            if (key.isValid() && key.isReadable()) {
+                                connection.read();
+                            }
+                        } catch (IOException | RuntimeException e) {
+                            connection.close();
+                        }
+                    }
+                    closeIdleConnections();
+                } catch (IOException e) {
+                    System.out.println("Error: " + e);
+                }
+            }
+            for (SelectionKey key : selector.keys()) {
+                ((Connection) key.attachment()).close();
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+            }
+        }
+
+        /**
+         * Closes, at most once per second, the connections which waited for the client
+         * longer than their timeout: the keep-alive timeout between two requests, the read
+         * timeout in the middle of a request and the write timeout while the client does not
+         * read its response. Connections waiting for a worker are left alone.
+         */
+        private void closeIdleConnections() {
+            long now = System.currentTimeMillis();
+            if (now - lastSweep < 1000) {
+                return;
+            }
+            lastSweep = now;
+            for (SelectionKey key : selector.keys()) {
+                Connection connection = (Connection) key.attachment();
+                if (connection.waitingForClient() && now - connection.lastActive > connection.timeout()) {
+                    connection.close();
+                }
+            }
+        }
+
+        void register(SocketChannel channel, TlsContext tls, String address) {
+            try {
+                Connection connection = new Connection(this, channel, tls == null ? null : new TlsChannel(channel, tls), address);
+                connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                registry.add(connection);
+            } catch (IOException e) {
+                admission.closeConnection(address);
+                try {
+                    channel.close();
+                } catch (IOException e2) {
+                }
+            }
+        }
+    }
+
+    /**
+     * State of one connection. Only touched by its event loop thread.
+     * The request buffer is allocated when the first bytes of a request arrive and released
+     * once it is empty, so idle connections do not hold any buffer.
+     */
+    private final class Connection implements ConnectionRegistry.Connection {
+        private final EventLoop loop;
+        private final SocketChannel channel;
+        // null on the HTTP port
+        private final TlsChannel tls;
+        private final String address;
+        private SelectionKey key;
+        private int state = READING_HEAD;
+        private ByteBuffer request;
+        private RequestParser parser;
+        private long bodyRemaining;
+        private ChunkedScanner chunked;
+        private BodyPipe pipe;
+        private ResponseOutput output;
+        private boolean wantRead = true;
+        private boolean wantWrite;
+        private int served;
+        private long lastActive = System.currentTimeMillis();
+        // set once the connection switched to HTTP/2, which a worker then owns
+        private volatile Http2Connection http2;
+        private boolean closed;
+
+        Connection(EventLoop loop, SocketChannel channel, TlsChannel tls, String address) {
+            this.loop = loop;
+            this.channel = channel;
+            this.tls = tls;
+            this.address = address;
+            metrics.connectionOpened();
+        }
+
+        /**
+         * Closes the connection if it waits for the next request, otherwise the current
+         * response is sent with Connection: close or the connection closes once it is sent.
+         */
+        @Override
+        public void drain() {
+            Http2Connection connection = http2;
+            if (connection != null) {
+                connection.drain();
+                return;
+            }
+            loop.execute(() -> {
+                if (state == READING_HEAD && request == null && output == null) {
+                    close();
+                }
+            });
+        }
+
+        @Override
+        public void abort() {
+            if (http2 != null) {
+                // the worker serving it closes the connection once its read fails
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                }
+                return;
+            }
+            loop.execute(this::close);
+        }
+
+        /**
+         * Reads the available bytes and processes them.
+         */
+        void read() throws IOException {
+            ByteBuffer buffer = loop.readBuffer;
+            buffer.clear();
+            int nbRead = tls != null ? tls.read(buffer) : channel.read(buffer);
+            if (nbRead < 0) {
+                close();
+                return;
+            }
+            lastActive = System.currentTimeMillis();
+            if (tls != null) {
+                // the handshake, or the answer to the client, may wait for the socket
+                if (tls.hasPendingOutput()) {
+                    setInterest(wantRead, true);
+                }
+                if (nbRead == 0) {
+                    return;
+                }
+            }
+            metrics.addBytesIn(nbRead);
+            buffer.flip();
+            append(buffer);
+            process();
+            readBufferedLater();
+        }
+
+        /**
+         * Schedules a read if records the socket will not signal are already received: a read
+         * stops once the read buffer is full, and the handshake may receive the first request.
+         */
+        private void readBufferedLater() {
+            // the key is cancelled once the connection is closed or a worker owns it for HTTP/2
+            if (tls != null && wantRead && key.isValid() && tls.hasBufferedInput()) {
+                loop.execute(() -> {
+                    if (wantRead && key.isValid() && tls.hasBufferedInput()) {
+                        try {
+                            read();
+                        } catch (IOException e) {
+                            close();
+                        }
+                    }
+                });
+            }
+        }
+
+        /**
+         * Parses the head of the next request, or forwards the body of the current one.
+         */
+        private void process() {
+            if (state == READING_BODY) {
+                forwardBody();
+                return;
+            }
+            if (state != READING_HEAD || request == null) {
+                return;
+            }
+            if (parser == null) {
+                parser = new RequestParser(maxRequestLine, maxHeaderSize);
+                parser.getRequest().setRemoteAddress(address);
+            }
+            String status;
+            int headEnd = -1;
+            try {
+                headEnd = parser.parse(request.array(), request.position());
+                if (headEnd < 0) {
+                    return;
+                }
+                status = checkFraming();
+            } catch (HttpParseException e) {
+                status = e.getStatus();
+            }
+            if (status != null) {
+                respond(status);
+                return;
+            }
+            HttpRequest parsed = parser.getRequest();
+            boolean preface = config.isHttp2() && Http2Connection.isPreface(parsed);
+            if (preface || config.isHttp2() && Http2Connection.isUpgrade(parsed)) {
+                if (pool.reserveReader()) {
+                    switchToHttp2(headEnd);
+                    return;
+                }
+                if (preface) {
+                    // no room for another HTTP/2 connection, and the client speaks nothing else
+                    close();
+                    return;
+                }
+                // the upgrade is optional, the request is answered in HTTP/1.1
+            }
+            startRequest(headEnd);
+        }
+
+        private void append(ByteBuffer data) {
+            if (request == null) {
+                request = ByteBuffer.allocate(Math.max(4096, data.remaining()));
+            } else if (request.remaining() < data.remaining()) {
+                ByteBuffer larger = ByteBuffer.allocate(Math.max(request.capacity() * 2, request.position() + data.remaining()));
+                request.flip();
+                larger.put(request);
+                request = larger;
+            }
+            request.put(data);
+        }
+
+        /**
+         * Removes bytes from the start of the request buffer.
+         * @param count number of bytes to remove
+         */
+        private void consume(int count) {
+            int left = request.position() - count;
+            if (left == 0) {
+                request = null;
+            } else {
+                byte[] bytes = request.array();
+                System.arraycopy(bytes, count, bytes, 0, left);
+                request.position(left);
+            }
+        }
+
+        /**
+         * Finds out how the body of the parsed request is delimited.
+         * @return the error status to answer, or null if the request can be read
+         */
+        private String checkFraming() {
+            HttpHeaders headers = parser.getRequest().getHeaders();
+            chunked = null;
+            bodyRemaining = 0;
+            if (headers.contains("Transfer-Encoding")) {
+                if (!"chunked".equalsIgnoreCase(headers.get("Transfer-Encoding"))) {
+                    return "501 Not Implemented";
+                }
+                if (headers.contains("Content-Length")) {
+                    // conflicting framing, RFC 7230 section 3.3.3
+                    return "400 Bad Request";
+                }
+                chunked = new ChunkedScanner();
+                return null;
+            }
+            try {
+                bodyRemaining = headers.getLong("Content-Length", 0);
+            } catch (NumberFormatException e) {
+                return "400 Bad Request";
+            }
+            if (bodyRemaining > maxBodySize) {
+                return "413 Payload Too Large";
+            }
+            return null;
+        }
+
+        /**
+         * Runs the request handler on the worker pool and starts forwarding the body to it.
+         * Bytes following the request (pipelined requests) stay in the buffer.
+         * @param headEnd index of the first body byte
+         */
+        private void startRequest(int headEnd) {
+            served++;
+            boolean lastRequest = served >= maxRequests || registry.isDraining();
+            HttpRequest parsed = parser.getRequest();
+            // the parsed headers now point to a copy, the connection buffer is reused for the body
+            parsed.getHeaders().setBuffer(Arrays.copyOf(request.array(), headEnd));
+            consume(headEnd);
+            boolean hasBody = chunked != null || bodyRemaining > 0;
+            InputStream body = hasBody ? (pipe = new BodyPipe(this)) : new ByteArrayInputStream(new byte[0]);
+            ResponseOutput response = output = new ResponseOutput(this);
+            state = hasBody ? READING_BODY : RESPONDING;
+            boolean submitted = pool.submit(() -> {
+                ConnectionOutputStream clientOutput = new ConnectionOutputStream(response) {
+                    @Override
+                    public void transferFrom(FileChannel file, long position, long count) throws IOException {
+                        flush();
+                        countWritten(count);
+                        response.transferFrom(file, position, count);
+                    }
+                };
+                boolean reuse;
+                try {
+                    reuse = WebServer.ClientHandler.handleRequest(parsed, body, clientOutput, lastRequest, config);
+                    clientOutput.flush();
+                } catch (Exception e) {
+                    System.out.println("Error: " + e);
+                    reuse = false;
+                    try {
+                        clientOutput.setKeepAlive(false);
+                        clientOutput.response("500 Internal Server Error").send();
+                        clientOutput.flush();
+                    } catch (Exception e2) {
+                    }
+                }
+                response.finish(reuse);
+            });
+            if (!submitted) {
+                output = null;
+                respond("503 Service Unavailable");
+            } else if (hasBody) {
+                forwardBody();
+            } else {
+                setInterest(false, wantWrite);
+            }
+        }
+
+        /**
+         * Hands the connection over to an {@link Http2Connection} run by a reader thread of the
+         * pool, reserved by the caller, which reads and writes the socket in blocking mode: the
+         * streams of the connection are handled by the workers while it waits for the next frame.
+         * The key is cancelled, and the channel switched to blocking once the next select has
+         * dropped it; from then on the connection is only touched by the reader and its streams.
+         * @param headEnd index of the byte following the head of the PRI or upgrade request
+         */
+        private void switchToHttp2(int headEnd) {
+            HttpRequest parsed = parser.getRequest();
+            HttpRequest upgrade = Http2Connection.isUpgrade(parsed) ? parsed : null;
+            parsed.getHeaders().setBuffer(Arrays.copyOf(request.array(), headEnd));
+            consume(headEnd);
+            byte[] buffered = request == null ? new byte[0] : Arrays.copyOf(request.array(), request.position());
+            request = null;
+            state = RESPONDING;
+            key.cancel();
+            loop.execute(() -> {
+                if (!pool.startReader(() -> serveHttp2(buffered, upgrade))) {
+                    close();
+                }
+            });
+        }
+
+        private void serveHttp2(byte[] buffered, HttpRequest upgrade) {
+            WriteTimeout.Guard guard = null;
+            try {
+                channel.configureBlocking(true);
+                Socket socket = channel.socket();
+                socket.setSoTimeout((int) idleTimeout);
+                InputStream socketInput = new FilterInputStream(tls != null ? tls.inputStream() : socket.getInputStream()) {
+                    @Override
+                    public int read() throws IOException {
+                        int b = super.read();
+                        if (b >= 0) {
+                            metrics.addBytesIn(1);
+                        }
+                        return b;
+                    }
+
+                    @Override
+                    public int read(byte[] b, int off, int len) throws IOException {
+                        int nbRead = super.read(b, off, len);
+                        if (nbRead > 0) {
+                            metrics.addBytesIn(nbRead);
+                        }
+                        return nbRead;
+                    }
+                };
+                InputStream in = new BufferedInputStream(new SequenceInputStream(new ByteArrayInputStream(buffered), socketInput));
+                WritableByteChannel target = tls != null ? tls : channel;
+                guard = writeWatchdog.guard(channel);
+                ConnectionOutputStream out = new ConnectionOutputStream(ConnectionOutputStream.channelOutput(target, guard), target);
+                out.setWriteGuard(guard);
+                Http2Connection connection = http2 = new Http2Connection(config, pool, address);
+                if (registry.isDraining()) {
+                    connection.drain();
+                }
+                connection.serve(in, out, upgrade);
+            } catch (IOException e) {
+            } finally {
+                if (guard != null) {
+                    guard.close();
+                }
+                close();
+            }
+        }
+
+        /**
+         * Moves the buffered body bytes into the pipe, as far as the pipe has room.
+         * Stops reading the socket while the pipe is full, the worker resumes it.
+         */
+        private void forwardBody() {
+            while (request != null && !bodyComplete()) {
+                int count = Math.min(request.position(), pipe.space());
+                if (count == 0) {
+                    break;
+                }
+                if (chunked != null) {
+                    count = chunked.scan(request.array(), 0, count);
+                } else {
+                    count = (int) Math.min(count, bodyRemaining);
+                    bodyRemaining -= count;
+                }
+                pipe.offer(request.array(), 0, count);
+                consume(count);
+            }
+            if (bodyComplete()) {
+                pipe.finish();
+                state = RESPONDING;
+                setInterest(false, wantWrite);
+            } else {
+                setInterest(!pipe.pauseIfFull(), wantWrite);
+            }
+        }
+
+        private boolean bodyComplete() {
+            return chunked != null ? chunked.isDone() : bodyRemaining == 0;
+        }
+
+        /**
+         * Called on the event loop once the worker made room in a full pipe.
+         */
+        void resumeBody() {
+            if (state == READING_BODY && key.isValid()) {
+                forwardBody();
+            }
+        }
+
+        /**
+         * Answers an error status from the event loop and closes the connection afterwards.
+         * A 503, the worker pool being full, tells the client when to retry.
+         */
+        private void respond(String status) {
+            state = RESPONDING;
+            setInterest(false, wantWrite);
+            ResponseOutput out = output = new ResponseOutput(this);
+            try {
+                ConnectionOutputStream clientOutput = new ConnectionOutputStream(out);
+                ResponseWriter response = clientOutput.response(status);
+                if (status.startsWith("503")) {
+                    response.header(ResponseWriter.RETRY_AFTER, AdmissionControl.OVERLOAD_RETRY_AFTER);
+                }
+                response.send();
+                clientOutput.flush();
+            } catch (IOException e) {
+            }
+            metrics.record(null, status, 0);
+            out.finish(false);
+        }
+
+        /**
+         * Writes the pending response bytes as far as the socket accepts them, all the queued
+         * chunks in one gathering write, and waits for OP_WRITE if it could not write everything.
+         * Once the whole response is written, the connection is either closed or read again.
+         */
+        void flushOutput() throws IOException {
+            // the client is reading, a long transfer does not make the connection idle
+            lastActive = System.currentTimeMillis();
+            if (tls != null && !tls.flush()) {
+                setInterest(wantRead, true);
+                return;
+            }
+            ResponseOutput out = output;
+            if (out == null) {
+                // the records of the handshake are sent
+                setInterest(wantRead, false);
+                readBufferedLater();
+                return;
+            }
+            GatheringByteChannel target = tls != null ? tls : channel;
+            for (; ; ) {
+                ByteBuffer[] chunks = out.pending();
+                if (chunks == null) {
+                    break;
+                }
+                target.write(chunks);
+                out.removeWritten();
+                if (chunks[chunks.length - 1].hasRemaining()) {
+                    setInterest(wantRead, true);
+                    return;
+                }
+            }
+            if (!out.transferRegion(target) || tls != null && tls.hasPendingOutput()) {
+                setInterest(wantRead, true);
+                return;
+            }
+            setInterest(wantRead, false);
+            if (out.isFinished()) {
+                responseDone(out.isKeepAlive());
+            }
+        }
+
+        /**
+         * Prepares the connection for the next request, or closes it.
+         * A response sent before the whole body was read, or while the server drains its
+         * connections, also closes the connection.
+         */
+        private void responseDone(boolean keepAlive) {
+            output = null;
+            if (!keepAlive || state != RESPONDING || registry.isDraining()) {
+                close();
+                return;
+            }
+            pipe = null;
+            chunked = null;
+            parser.reset();
+            state = READING_HEAD;
+            setInterest(true, false);
+            process();
+        }
+
+        private void setInterest(boolean read, boolean write) {
+            boolean resumed = read && !wantRead;
+            wantRead = read;
+            wantWrite = write;
+            try {
+                key.interestOps((read ? SelectionKey.OP_READ : 0) | (write ? SelectionKey.OP_WRITE : 0));
+            } catch (CancelledKeyException e) {
+                // closed meanwhile
+            }
+            if (resumed) {
+                readBufferedLater();
+            }
+        }
+
+        /**
+         * @return true if the connection waits for the client to send or read something,
+         * false while it waits for a worker
+         */
+        boolean waitingForClient() {
+            return state == READING_HEAD || wantWrite || state == READING_BODY && wantRead;
+        }
+
+        /**
+         * @return milliseconds the connection may wait for the client in its current state
+         */
+        long timeout() {
+            if (wantWrite) {
+                return writeTimeout;
+            }
+            return state == READING_HEAD && request == null ? idleTimeout : readTimeout;
+        }
+
+        void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            registry.remove(this);
+            metrics.connectionClosed();
+            admission.closeConnection(address);
+            key.cancel();
+            try {
+                if (tls != null) {
+                    tls.close();
+                } else {
+                    channel.close();
+                }
+            } catch (IOException e) {
+            }
+            if (pipe != null) {
+                pipe.abort();
+            }
+            if (output != null) {
+                output.abort();
+            }
+        }
+    }
+
+    /**
+     * @return the address of the client of a connection, or null if it is no longer connected
+     */
+    private static String remoteAddress(SocketChannel channel) {
+        try {
+            SocketAddress address = channel.getRemoteAddress();
+            if (address instanceof InetSocketAddress) {
+                return ((InetSocketAddress) address).getAddress().getHostAddress();
+            }
+        } catch (IOException e) {
+        }
+        return null;
+    }
+
+    /**
+     * Request body on its way from an event loop to a worker.
+     * The event loop offers the bytes it reads, the worker reads them as a blocking stream.
+     * The pipe holds at most {@link #BODY_PIPE_SIZE} bytes: when it is full the event loop
+     * stops reading the socket until the worker has consumed some of them.
+     */
+    private static final class BodyPipe extends InputStream {
+        private final Connection connection;
+        private final byte[] ring = new byte[BODY_PIPE_SIZE];
+        private int readPos;
+        private int count;
+        private boolean finished;
+        private boolean aborted;
+        private boolean paused;
+
+        BodyPipe(Connection connection) {
+            this.connection = connection;
+        }
+
+        synchronized int space() {
+            return ring.length - count;
+        }
+
+        /**
+         * Adds bytes to the pipe, the caller checked there is enough space.
+         */
+        synchronized void offer(byte[] b, int off, int len) {
+            int writePos = (readPos + count) % ring.length;
+            int first = Math.min(len, ring.length - writePos);
+            System.arraycopy(b, off, ring, writePos, first);
+            System.arraycopy(b, off + first, ring, 0, len - first);
+            count += len;
+            notifyAll();
+        }
+
+        /**
+         * @return true if the pipe is full, in which case the worker resumes the event loop
+         * once it has read from it
+         */
+        synchronized boolean pauseIfFull() {
+            paused = count == ring.length;
+            return paused;
+        }
+
+        synchronized void finish() {
+            finished = true;
+            notifyAll();
+        }
+
+        synchronized void abort() {
+            aborted = true;
+            notifyAll();
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            while (count == 0 && !finished && !aborted) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+            }
+            if (aborted) {
+                throw new IOException("connection closed");
+            }
+            if (count == 0) {
+                return -1;
+            }
+            int nbRead = Math.min(len, count);
+            int first = Math.min(nbRead, ring.length - readPos);
+            System.arraycopy(ring, readPos, b, off, first);
+            System.arraycopy(ring, 0, b, off + first, nbRead - first);
+            readPos = (readPos + nbRead) % ring.length;
+            count -= nbRead;
+            if (paused) {
+                paused = false;
+                connection.loop.execute(connection::resumeBody);
+            }
+            return nbRead;
+        }
+
+        @Override
+        public synchronized int available() {
+            return count;
+        }
+    }
+
+    /**
+     * Response on its way from a worker to an event loop.
+     * The worker writes into it as a blocking stream and waits while more than
+     * {@link #MAX_PENDING_OUTPUT} bytes are waiting for the client, the event loop
+     * writes the queued bytes to the socket when it accepts them.
+     * File regions are not copied: the worker waits while the event loop transfers them
+     * from the file to the socket with FileChannel.transferTo.
+     */
+    private static final class ResponseOutput extends OutputStream {
+        private final Connection connection;
+        private final ArrayDeque<ByteBuffer> chunks = new ArrayDeque<>();
+        private int pending;
+        private boolean scheduled;
+        private boolean finished;
+        private boolean keepAlive;
+        private boolean aborted;
+        private FileChannel regionFile;
+        private long regionPosition;
+        private long regionEnd;
+        private boolean regionTruncated;
+
+        ResponseOutput(Connection connection) {
+            this.connection = connection;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) throws IOException {
+            while (pending > MAX_PENDING_OUTPUT && !aborted) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+            }
+            if (aborted) {
+                throw new IOException("connection closed");
+            }
+            if (len == 0) {
+                return;
+            }
+            chunks.add(ByteBuffer.wrap(Arrays.copyOfRange(b, off, off + len)));
+            pending += len;
+            schedule();
+        }
+
+        /**
+         * Sends a region of a file after the bytes already written, and waits until it is sent.
+         */
+        synchronized void transferFrom(FileChannel file, long position, long count) throws IOException {
+            regionFile = file;
+            regionPosition = position;
+            regionEnd = position + count;
+            regionTruncated = false;
+            schedule();
+            while (regionFile != null && !aborted) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+            }
+            if (aborted) {
+                throw new IOException("connection closed");
+            }
+            if (regionTruncated) {
+                throw new EOFException("file truncated while sending it");
+            }
+        }
+
+        /**
+         * Transfers the pending file region, if any, as far as the socket accepts it.
+         * @return false if part of the region is still waiting for the socket
+         */
+        synchronized boolean transferRegion(WritableByteChannel channel) throws IOException {
+            while (regionFile != null) {
+                long sent = regionFile.transferTo(regionPosition, regionEnd - regionPosition, channel);
+                regionPosition += sent;
+                if (regionPosition == regionEnd || sent == 0 && regionPosition >= regionFile.size()) {
+                    regionTruncated = regionPosition < regionEnd;
+                    regionFile = null;
+                    notifyAll();
+                } else if (sent == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Marks the end of the response.
+         * @param keepAlive true if the connection can be used for another request
+         */
+        synchronized void finish(boolean keepAlive) {
+            this.finished = true;
+            this.keepAlive = keepAlive;
+            schedule();
+        }
+
+        synchronized void abort() {
+            aborted = true;
+            notifyAll();
+        }
+
+        private void schedule() {
+            if (!scheduled) {
+                scheduled = true;
+                connection.loop.execute(() -> {
+                    try {
+                        connection.flushOutput();
+                    } catch (IOException e) {
+                        connection.close();
+                    }
+                });
+            }
+        }
+
+        /**
+         * @return the queued chunks to write, or null if there is none for now
+         */
+        synchronized ByteBuffer[] pending() {
+            if (chunks.isEmpty()) {
+                // the next write schedules a new flush
+                scheduled = false;
+                return null;
+            }
+            return chunks.toArray(new ByteBuffer[0]);
+        }
+
+        /**
+         * Removes the chunks the socket has entirely accepted.
+         */
+        synchronized void removeWritten() {
+            while (!chunks.isEmpty() && !chunks.peek().hasRemaining()) {
+                pending -= chunks.poll().capacity();
+            }
+            notifyAll();
+        }
+
+        synchronized boolean isFinished() {
+            return finished && chunks.isEmpty();
+        }
+
+        synchronized boolean isKeepAlive() {
+            return keepAlive;
+        }
+    }
+
+    /**
+     * Follows the framing of a chunked body as its bytes go by, without decoding it,
+     * to find where the body ends. The worker decodes the chunks with a {@link ChunkedInputStream}.
+     */
+    private static final class ChunkedScanner {
+        private static final int SIZE = 0;
+        private static final int EXTENSION = 1;
+        private static final int DATA = 2;
+        private static final int DATA_END = 3;
+        private static final int TRAILER = 4;
+        private static final int DONE = 5;
+
+        private int state = SIZE;
+        private long chunkSize;
+        private int digits;
+        private boolean invalid;
+        private boolean emptyLine = true;
+
+        boolean isDone() {
+            return state == DONE;
+        }
+
+        /**
+         * @return number of bytes of buf[off, off + len) which belong to the body
+         */
+        int scan(byte[] buf, int off, int len) {
+            int p = off;
+            int end = off + len;
+            while (p < end && state != DONE) {
+                byte b = buf[p];
+                switch (state) {
+                    case SIZE:
+                        int digit = Character.digit(b, 16);
+                        if (digit >= 0 && digits < 15) {
+                            chunkSize = chunkSize * 16 + digit;
+                            digits++;
+                        } else if (b == '\n') {
+                            endSizeLine();
+                        } else {
+                            // an invalid size ends the body after its line, the worker answers 400
+                            invalid |= digits == 0 || digit >= 0;
+                            state = EXTENSION;
+                        }
+                        p++;
+                        break;
+                    case EXTENSION:
+                        if (b == '\n') {
+                            endSizeLine();
+                        }
+                        p++;
+                        break;
+                    case DATA:
+                        int skipped = (int) Math.min(chunkSize, end - p);
+                        chunkSize -= skipped;
+                        p += skipped;
+                        if (chunkSize == 0) {
+                            state = DATA_END;
+                        }
+                        break;
+                    case DATA_END:
+                        if (b == '\n') {
+                            state = SIZE;
+                            digits = 0;
+                        }
+                        p++;
+                        break;
+                    default:
+                        if (b == '\n') {
+                            if (emptyLine) {
+                                state = DONE;
+                            }
+                            emptyLine = true;
+                        } else if (b != '\r') {
+                            emptyLine = false;
+                        }
+                        p++;
+                }
+            }
+            return p - off;
+        }
+
+        private void endSizeLine() {
+            if (digits == 0 || invalid) {
+                state = DONE;
+            } else if (chunkSize == 0) {
+                state = TRAILER;
+                emptyLine = true;
+            } else {
+                state = DATA;
+            }
+        }
+    }
+}
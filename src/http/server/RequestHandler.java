@@ -0,0 +1,24 @@
+package http.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+
+/**
+ * Handler of the requests matching a route of the {@link Router}.
+ * A single instance serves every request, from several threads at once.
+ */
+@FunctionalInterface
+public interface RequestHandler {
+
+    /**
+     * Answers a request.
+     * @param request      request line and headers
+     * @param body         body of the request, empty if it has none
+     * @param clientOutput stream the response is written to
+     * @param parameters   values of the parameters of the route, by name
+     * @throws IOException
+     */
+    void handle(HttpRequest request, InputStream body, ConnectionOutputStream clientOutput,
+                Map<String, String> parameters) throws IOException;
+}
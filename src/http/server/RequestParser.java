@@ -0,0 +1,210 @@
+package http.server;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Byte-level parser of request heads.
+ * Scans the bytes once, remembers where the request line and the header fields are, and only
+ * creates Strings for the request target (common methods and versions are shared constants,
+ * header values are decoded on demand by {@link HttpHeaders}).
+ * Parsing is incremental: {@link #parse(byte[], int)} can be called again when more bytes have
+ * arrived, which is how the NIO engine uses it. The blocking engine reads through
+ * {@link #readHead(BufferedInputStream)} into a buffer reused for every request of the connection.
+ */
+public class RequestParser {
+
+    private static final String[] METHODS = {"GET", "HEAD", "POST", "PUT", "DELETE", "OPTIONS", "TRACE", "CONNECT", "PATCH"};
+    private static final String[] VERSIONS = {"HTTP/1.1", "HTTP/1.0"};
+
+    private final int maxRequestLine;
+    private final int maxHeadSize;
+    private final HttpRequest request = new HttpRequest();
+    private byte[] buffer;
+    private int pos;
+    private int lineStart;
+    private boolean requestLineParsed;
+
+    /**
+     * @param maxRequestLine maximum length of the request line, longer ones are answered 414
+     * @param maxHeadSize maximum size of the request line and headers, larger ones are answered 431
+     */
+    public RequestParser(int maxRequestLine, int maxHeadSize) {
+        this.maxRequestLine = maxRequestLine;
+        this.maxHeadSize = maxHeadSize;
+    }
+
+    /**
+     * @return the request parsed by the last successful call
+     */
+    public HttpRequest getRequest() {
+        return request;
+    }
+
+    /**
+     * Prepares the parser for the next request.
+     */
+    public void reset() {
+        pos = 0;
+        lineStart = 0;
+        requestLineParsed = false;
+        request.clear();
+    }
+
+    /**
+     * Reads the head of the next request from a blocking stream.
+     * Leaves the stream positioned on the first byte of the body.
+     * @param in stream of the connection
+     * @return false if the stream ended before the first byte of the request
+     * @throws HttpParseException if the head is invalid or too large
+     * @throws IOException
+     */
+    public boolean readHead(BufferedInputStream in) throws IOException {
+        if (buffer == null) {
+            buffer = new byte[maxHeadSize];
+        }
+        reset();
+        in.mark(buffer.length);
+        int filled = 0;
+        for (; ; ) {
+            int nbRead = in.read(buffer, filled, buffer.length - filled);
+            if (nbRead < 0) {
+                if (filled == 0) {
+                    return false;
+                }
+                throw new HttpParseException("400 Bad Request", "connection closed in the request head");
+            }
+            filled += nbRead;
+            int headEnd = parse(buffer, filled);
+            if (headEnd >= 0) {
+                in.reset();
+                in.skip(headEnd);
+                return true;
+            }
+            if (filled == buffer.length) {
+                throw new HttpParseException("431 Request Header Fields Too Large", "request head too large");
+            }
+        }
+    }
+
+    /**
+     * Parses the head of a request held at the start of a buffer.
+     * If the head is not complete, can be called again once more bytes have been appended;
+     * the bytes already examined are not scanned twice.
+     * @param buf bytes received, starting with the request
+     * @param end number of bytes received
+     * @return index of the first byte following the head, or -1 if the head is not complete yet
+     * @throws HttpParseException if the head is invalid or exceeds the limits
+     */
+    public int parse(byte[] buf, int end) throws HttpParseException {
+        request.getHeaders().setBuffer(buf);
+        while (pos < end) {
+            if (buf[pos++] != '\n') {
+                continue;
+            }
+            int lineEnd = pos - 1;
+            if (lineEnd > lineStart && buf[lineEnd - 1] == '\r') {
+                lineEnd--;
+            }
+            if (!requestLineParsed) {
+                // empty lines before the request line are ignored
+                if (lineEnd > lineStart) {
+                    parseRequestLine(buf, lineStart, lineEnd);
+                    requestLineParsed = true;
+                }
+            } else if (lineEnd == lineStart) {
+                return pos;
+            } else {
+                parseHeader(buf, lineStart, lineEnd);
+            }
+            lineStart = pos;
+            checkLimits();
+        }
+        checkLimits();
+        return -1;
+    }
+
+    private void checkLimits() throws HttpParseException {
+        if (!requestLineParsed && pos - lineStart > maxRequestLine) {
+            throw new HttpParseException("414 URI Too Long", "request line too long");
+        }
+        if (pos > maxHeadSize) {
+            throw new HttpParseException("431 Request Header Fields Too Large", "request head too large");
+        }
+    }
+
+    private void parseRequestLine(byte[] buf, int start, int end) throws HttpParseException {
+        if (end - start > maxRequestLine) {
+            throw new HttpParseException("414 URI Too Long", "request line too long");
+        }
+        int firstSpace = indexOf(buf, start, end, (byte) ' ');
+        int lastSpace = lastIndexOf(buf, start, end, (byte) ' ');
+        if (firstSpace <= start || lastSpace <= firstSpace + 1 || lastSpace == end - 1) {
+            throw new HttpParseException("400 Bad Request", "malformed request line");
+        }
+        String method = constant(METHODS, buf, start, firstSpace);
+        String target = new String(buf, firstSpace + 1, lastSpace - firstSpace - 1, StandardCharsets.ISO_8859_1);
+        String version = constant(VERSIONS, buf, lastSpace + 1, end);
+        request.setRequestLine(method, target, version);
+    }
+
+    private void parseHeader(byte[] buf, int start, int end) throws HttpParseException {
+        int colon = indexOf(buf, start, end, (byte) ':');
+        // no name, whitespace before the colon or obsolete line folding are rejected (RFC 7230 section 3.2.4)
+        if (colon <= start || buf[colon - 1] == ' ' || buf[colon - 1] == '\t' || buf[start] == ' ' || buf[start] == '\t') {
+            throw new HttpParseException("400 Bad Request", "malformed header field");
+        }
+        int valueStart = colon + 1;
+        while (valueStart < end && (buf[valueStart] == ' ' || buf[valueStart] == '\t')) {
+            valueStart++;
+        }
+        int valueEnd = end;
+        while (valueEnd > valueStart && (buf[valueEnd - 1] == ' ' || buf[valueEnd - 1] == '\t')) {
+            valueEnd--;
+        }
+        request.getHeaders().add(start, colon, valueStart, valueEnd);
+    }
+
+    /**
+     * @return the constant equal to the bytes, or a new String if none matches
+     */
+    private static String constant(String[] constants, byte[] buf, int start, int end) {
+        for (String constant : constants) {
+            if (equals(constant, buf, start, end)) {
+                return constant;
+            }
+        }
+        return new String(buf, start, end - start, StandardCharsets.ISO_8859_1);
+    }
+
+    private static boolean equals(String s, byte[] buf, int start, int end) {
+        if (s.length() != end - start) {
+            return false;
+        }
+        for (int i = 0; i < s.length(); i++) {
+            if (buf[start + i] != s.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int indexOf(byte[] buf, int start, int end, byte b) {
+        for (int i = start; i < end; i++) {
+            if (buf[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int lastIndexOf(byte[] buf, int start, int end, byte b) {
+        for (int i = end - 1; i >= start; i--) {
+            if (buf[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
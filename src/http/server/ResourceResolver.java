@@ -0,0 +1,269 @@
+package http.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Maps the path of a request to a file of the document root.
+ * The path loses its query string, is percent-decoded as UTF-8, then normalized segment by
+ * segment: a {@code ..} which would leave the root is forbidden, and so is a backslash, which
+ * some filesystems take as a separator. The file found must also be under the real path of the
+ * root once its symbolic links are followed, and a file which does not exist yet must have its
+ * nearest existing parent under it, so that neither a link nor an upload escapes the root.
+ * A directory is served through the first of its index files which exists.
+ * What a path designates is kept in the {@link StaticCache} along with the files, so that the
+ * requests on a known path make no system call before the file is opened, and is forgotten
+ * whenever the cache invalidates the path.
+ */
+public class ResourceResolver {
+
+    /**
+     * What a request path designates under the document root.
+     */
+    public static final class Resource {
+        enum Kind { FILE, DIRECTORY, MISSING, FORBIDDEN, INVALID }
+
+        private static final Resource INVALID = new Resource(null, Kind.INVALID, -1, 0);
+        private static final Resource FORBIDDEN = new Resource(null, Kind.FORBIDDEN, -1, 0);
+
+        private final String path;
+        private final Kind kind;
+        private final long size;
+        private final long lastModified;
+
+        Resource(String path, Kind kind, long size, long lastModified) {
+            this.path = path;
+            this.kind = kind;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+
+        /**
+         * @return normalized path of the file, or null if the request path is invalid or forbidden
+         */
+        public String getPath() {
+            return path;
+        }
+
+        public boolean isFile() {
+            return kind == Kind.FILE;
+        }
+
+        public boolean isDirectory() {
+            return kind == Kind.DIRECTORY;
+        }
+
+        public boolean exists() {
+            return kind == Kind.FILE || kind == Kind.DIRECTORY;
+        }
+
+        /**
+         * @return size of the file in bytes, -1 if it is not a file
+         */
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * @return modification time of the file in milliseconds
+         */
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        /**
+         * @return the status refusing the request whatever its method: 400 for a path which cannot
+         * be decoded or named on the filesystem, 403 for a path outside the root, otherwise null
+         */
+        public String getError() {
+            if (kind == Kind.INVALID) {
+                return "400 Bad Request";
+            }
+            return kind == Kind.FORBIDDEN ? "403 Forbidden" : null;
+        }
+    }
+
+    private final Path root;
+    private final Path realRoot;
+    private final List<String> indexFiles;
+    private final StaticCache cache;
+
+    /**
+     * @param config server configuration: document root and index files
+     * @param cache  cache keeping what the paths designate
+     */
+    public ResourceResolver(ServerConfig config, StaticCache cache) {
+        this.root = Paths.get(config.getDocRoot()).normalize();
+        this.realRoot = realPath(root);
+        this.indexFiles = config.getIndexFiles();
+        this.cache = cache;
+    }
+
+    /**
+     * Resolves the path of a request, the index of a directory replacing the directory.
+     * @param path path relative to the root, still percent-encoded, possibly with a query string
+     * @return the resource, which may not exist
+     */
+    public Resource resolve(String path) {
+        Resource resource = locate(path);
+        if (!resource.isDirectory()) {
+            return resource;
+        }
+        for (String index : indexFiles) {
+            Resource file = lookup(Paths.get(resource.path, index));
+            if (file.isFile() || file.getError() != null) {
+                return file;
+            }
+        }
+        return resource;
+    }
+
+    /**
+     * Resolves the path of a request as is, to write or delete the file it designates.
+     * @param path path relative to the root, still percent-encoded, possibly with a query string
+     * @return the resource, which may not exist
+     */
+    public Resource locate(String path) {
+        int query = path.indexOf('?');
+        if (query >= 0) {
+            path = path.substring(0, query);
+        }
+        String decoded = decode(path);
+        if (decoded == null) {
+            return Resource.INVALID;
+        }
+        Deque<String> segments = new ArrayDeque<>();
+        for (String segment : decoded.split("/")) {
+            if (segment.isEmpty() || segment.equals(".")) {
+                continue;
+            }
+            if (segment.equals("..")) {
+                if (segments.pollLast() == null) {
+                    return Resource.FORBIDDEN;
+                }
+            } else if (segment.indexOf('\\') >= 0) {
+                return Resource.FORBIDDEN;
+            } else {
+                segments.addLast(segment);
+            }
+        }
+        Path file;
+        try {
+            file = root.resolve(String.join("/", segments));
+        } catch (InvalidPathException e) {
+            // not representable in the encoding of the file names
+            return Resource.INVALID;
+        }
+        return lookup(file);
+    }
+
+    /**
+     * @return what a normalized path designates, from the cache or from the filesystem
+     */
+    private Resource lookup(Path file) {
+        String key = file.toString();
+        Resource resource = cache.getResource(key);
+        if (resource != null) {
+            return resource;
+        }
+        long version = cache.version();
+        resource = stat(file, key);
+        cache.putResource(key, resource, version);
+        return resource;
+    }
+
+    private Resource stat(Path file, String key) {
+        try {
+            BasicFileAttributes attributes;
+            try {
+                attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            } catch (NoSuchFileException e) {
+                // created by an upload, its parent decides where it would go
+                Path parent = file.getParent();
+                while (parent != null && !Files.exists(parent)) {
+                    parent = parent.getParent();
+                }
+                if (parent != null && !parent.toRealPath().startsWith(realRoot)) {
+                    return Resource.FORBIDDEN;
+                }
+                return new Resource(key, Resource.Kind.MISSING, -1, 0);
+            }
+            if (!file.toRealPath().startsWith(realRoot)) {
+                return Resource.FORBIDDEN;
+            }
+            if (attributes.isDirectory()) {
+                return new Resource(key, Resource.Kind.DIRECTORY, -1, attributes.lastModifiedTime().toMillis());
+            }
+            if (!attributes.isRegularFile()) {
+                return Resource.FORBIDDEN;
+            }
+            return new Resource(key, Resource.Kind.FILE, attributes.size(), attributes.lastModifiedTime().toMillis());
+        } catch (IOException e) {
+            // not readable by the server, or under a file
+            return Resource.FORBIDDEN;
+        }
+    }
+
+    /**
+     * @return the real path of the root, or its absolute path while it does not exist
+     */
+    private static Path realPath(Path root) {
+        try {
+            return root.toRealPath();
+        } catch (IOException e) {
+            return root.toAbsolutePath().normalize();
+        }
+    }
+
+    /**
+     * Decodes the %XX escapes of a path as UTF-8.
+     * @return the decoded path, or null if an escape or its bytes are invalid, or if it decodes to NUL
+     */
+    static String decode(String path) {
+        if (path.indexOf('%') < 0) {
+            return path.indexOf('\0') < 0 ? path : null;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(path.length());
+        for (int i = 0; i < path.length(); i++) {
+            char c = path.charAt(i);
+            if (c == '%') {
+                if (i + 2 >= path.length()) {
+                    return null;
+                }
+                int high = Character.digit(path.charAt(i + 1), 16);
+                int low = Character.digit(path.charAt(i + 2), 16);
+                if (high < 0 || low < 0) {
+                    return null;
+                }
+                bytes.write(high << 4 | low);
+                i += 2;
+            } else {
+                byte[] raw = String.valueOf(c).getBytes(StandardCharsets.UTF_8);
+                bytes.write(raw, 0, raw.length);
+            }
+        }
+        String decoded;
+        try {
+            decoded = StandardCharsets.UTF_8.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPORT)
+                    .onUnmappableCharacter(CodingErrorAction.REPORT)
+                    .decode(ByteBuffer.wrap(bytes.toByteArray())).toString();
+        } catch (CharacterCodingException e) {
+            return null;
+        }
+        return decoded.indexOf('\0') < 0 ? decoded : null;
+    }
+}
@@ -0,0 +1,252 @@
+package http.server;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Writes the status line and the headers of a response.
+ * The head is assembled in a buffer taken from a shared pool, from pre-encoded ASCII constants
+ * for the common statuses and header names, so that a response costs no String concatenation
+ * and no charset encoding. A writer is obtained from {@link ConnectionOutputStream#response(String)}
+ * and reused for every response of the connection.
+ * The head is handed to the connection together with the body when the body is in memory, so
+ * that both leave in one gathering write. Nothing is flushed here: the connection decides when
+ * to flush, which lets the responses to pipelined requests leave together.
+ */
+public class ResponseWriter {
+
+    public static final byte[] CONTENT_TYPE = ascii("Content-Type: ");
+    public static final byte[] CONTENT_LENGTH = ascii("Content-Length: ");
+    public static final byte[] CONTENT_ENCODING = ascii("Content-Encoding: ");
+    public static final byte[] CONTENT_RANGE = ascii("Content-Range: ");
+    public static final byte[] TRANSFER_ENCODING = ascii("Transfer-Encoding: ");
+    public static final byte[] ETAG = ascii("ETag: ");
+    public static final byte[] LAST_MODIFIED = ascii("Last-Modified: ");
+    public static final byte[] VARY = ascii("Vary: ");
+    public static final byte[] ALLOW = ascii("Allow: ");
+    public static final byte[] RETRY_AFTER = ascii("Retry-After: ");
+    /** Interim response to a request sent with {@code Expect: 100-continue}. */
+    public static final byte[] CONTINUE = ascii("HTTP/1.1 100 Continue\r\n\r\n");
+
+    private static final byte[] CRLF = ascii("\r\n");
+    private static final byte[] HEADER_SEPARATOR = ascii(": ");
+    private static final byte[] KEEP_ALIVE = ascii("Connection: keep-alive\r\n");
+    private static final byte[] CLOSE = ascii("Connection: close\r\n");
+    private static final byte[] NO_CONTENT = ascii("Content-Length: 0\r\n");
+    private static final Map<String, byte[]> STATUS_LINES = new HashMap<>();
+
+    static {
+        for (String status : new String[]{"200 OK", "201 Created", "204 No Content", "206 Partial Content",
+                "304 Not Modified", "400 Bad Request", "403 Forbidden", "404 Not Found", "405 Method Not Allowed",
+                "406 Not Acceptable", "408 Request Timeout", "413 Payload Too Large", "414 URI Too Long",
+                "415 Unsupported Media Type", "416 Range Not Satisfiable",
+                "431 Request Header Fields Too Large", "500 Internal Server Error", "501 Not Implemented",
+                "503 Service Unavailable", "505 HTTP Version Not Supported"}) {
+            STATUS_LINES.put(status, statusLine(status));
+        }
+    }
+
+    private static final int BUFFER_SIZE = 1024;
+    private static final int POOL_SIZE = 256;
+    // heads grown past that size are left to the garbage collector
+    private static final int MAX_POOLED_SIZE = 16 * 1024;
+    private static final ArrayBlockingQueue<byte[]> POOL = new ArrayBlockingQueue<>(POOL_SIZE);
+
+    private final ConnectionOutputStream out;
+    private byte[] head;
+    private int length;
+    private String status;
+
+    /**
+     * @param out stream of the connection the responses are written to
+     */
+    ResponseWriter(ConnectionOutputStream out) {
+        this.out = out;
+    }
+
+    /**
+     * Starts a response with its status line and its Connection header.
+     * A response started and never sent is discarded by the next one.
+     * @param status status of the response, e.g. "200 OK"
+     * @return this writer
+     */
+    public ResponseWriter start(String status) {
+        if (head == null) {
+            head = POOL.poll();
+            if (head == null) {
+                head = new byte[BUFFER_SIZE];
+            }
+        }
+        length = 0;
+        this.status = status;
+        byte[] line = STATUS_LINES.get(status);
+        append(line != null ? line : statusLine(status));
+        append(out.isKeepAlive() ? KEEP_ALIVE : CLOSE);
+        return this;
+    }
+
+    /**
+     * @return status of the last response started, or null if none was
+     */
+    public String getStatus() {
+        return status;
+    }
+
+    /**
+     * @param name  pre-encoded header name followed by ": ", one of the constants of this class
+     * @param value value of the header
+     * @return this writer
+     */
+    public ResponseWriter header(byte[] name, String value) {
+        append(name);
+        appendAscii(value);
+        append(CRLF);
+        return this;
+    }
+
+    /**
+     * @param name  pre-encoded header name followed by ": ", one of the constants of this class
+     * @param value numeric value of the header
+     * @return this writer
+     */
+    public ResponseWriter header(byte[] name, long value) {
+        append(name);
+        appendDecimal(value);
+        append(CRLF);
+        return this;
+    }
+
+    /**
+     * @param name  name of a header which has no constant
+     * @param value value of the header
+     * @return this writer
+     */
+    public ResponseWriter header(String name, String value) {
+        appendAscii(name);
+        append(HEADER_SEPARATOR);
+        appendAscii(value);
+        append(CRLF);
+        return this;
+    }
+
+    /**
+     * @param encoded header lines already encoded, each one ending with CRLF
+     * @return this writer
+     */
+    public ResponseWriter headers(byte[] encoded) {
+        append(encoded);
+        return this;
+    }
+
+    /**
+     * Ends the head and writes it, the body follows through the stream of the connection.
+     * The headers given must announce how the body is framed.
+     * @throws IOException
+     */
+    public void sendHead() throws IOException {
+        append(CRLF);
+        byte[] written = release();
+        out.write(written, 0, length);
+        recycle(written);
+    }
+
+    /**
+     * Sends the response without body, with {@code Content-Length: 0} unless the status has no body.
+     * @throws IOException
+     */
+    public void send() throws IOException {
+        if (!status.startsWith("1") && !status.startsWith("204") && !status.startsWith("304")) {
+            append(NO_CONTENT);
+        }
+        sendHead();
+    }
+
+    /**
+     * Sends the response with a body in memory, framed with a Content-Length header.
+     * @param contentType content type of the body
+     * @param body        content of the response
+     * @throws IOException
+     */
+    public void send(String contentType, byte[] body) throws IOException {
+        header(CONTENT_TYPE, contentType);
+        header(CONTENT_LENGTH, body.length);
+        send(body, 0, body.length);
+    }
+
+    /**
+     * Sends the head and a body in memory together, the headers given must announce its length.
+     * @param body content of the response
+     * @param off  offset of the first byte to send
+     * @param len  number of bytes to send
+     * @throws IOException
+     */
+    public void send(byte[] body, int off, int len) throws IOException {
+        append(CRLF);
+        byte[] written = release();
+        out.write(written, length, body, off, len);
+        recycle(written);
+    }
+
+    private byte[] release() {
+        byte[] written = head;
+        head = null;
+        return written;
+    }
+
+    private static void recycle(byte[] buffer) {
+        if (buffer.length <= MAX_POOLED_SIZE) {
+            POOL.offer(buffer);
+        }
+    }
+
+    private void ensureCapacity(int extra) {
+        if (length + extra > head.length) {
+            byte[] grown = new byte[Math.max(head.length * 2, length + extra)];
+            System.arraycopy(head, 0, grown, 0, length);
+            head = grown;
+        }
+    }
+
+    private void append(byte[] bytes) {
+        ensureCapacity(bytes.length);
+        System.arraycopy(bytes, 0, head, length, bytes.length);
+        length += bytes.length;
+    }
+
+    private void appendAscii(String value) {
+        int n = value.length();
+        ensureCapacity(n);
+        for (int i = 0; i < n; i++) {
+            head[length++] = (byte) value.charAt(i);
+        }
+    }
+
+    private void appendDecimal(long value) {
+        if (value < 0) {
+            ensureCapacity(1);
+            head[length++] = '-';
+            value = -value;
+        }
+        int digits = 1;
+        for (long rest = value / 10; rest != 0; rest /= 10) {
+            digits++;
+        }
+        ensureCapacity(digits);
+        for (int i = length + digits - 1; i >= length; i--) {
+            head[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        length += digits;
+    }
+
+    private static byte[] statusLine(String status) {
+        return ascii("HTTP/1.1 " + status + "\r\n");
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,205 @@
+package http.server;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Maps the method and the path of a request to its handler.
+ * Routes are registered at startup with a pattern made of segments separated by '/':
+ * a literal segment only matches itself, {@code {name}} matches any non empty segment and
+ * {@code *name}, as the last segment, matches the rest of the path, possibly empty. The values
+ * of the parameters are given to the handler under their name.
+ * The patterns are compiled into a tree of segments, so finding the route of a request costs
+ * one step per segment of its path whatever the number of routes. A literal segment takes
+ * precedence over a parameter, which takes precedence over the rest of the path.
+ * The query string is not part of the path.
+ */
+public class Router {
+
+    private static final class Node {
+        private final Map<String, Node> children = new HashMap<>();
+        private Node parameter;
+        private String parameterName;
+        private Node rest;
+        private String restName;
+        // in registration order, for the Allow header
+        private final Map<String, Route> routes = new LinkedHashMap<>();
+    }
+
+    /**
+     * Registered route, the same instance for every request it matches.
+     */
+    public static final class Route {
+        private final String method;
+        private final String pattern;
+        private final RequestHandler handler;
+
+        private Route(String method, String pattern, RequestHandler handler) {
+            this.method = method;
+            this.pattern = pattern;
+            this.handler = handler;
+        }
+
+        public String getMethod() {
+            return method;
+        }
+
+        public String getPattern() {
+            return pattern;
+        }
+
+        public RequestHandler getHandler() {
+            return handler;
+        }
+    }
+
+    /**
+     * Route found for a request.
+     */
+    public static final class Match {
+        private final Route route;
+        private final Map<String, String> parameters;
+        private final Set<String> allowedMethods;
+
+        private Match(Route route, Map<String, String> parameters, Set<String> allowedMethods) {
+            this.route = route;
+            this.parameters = parameters;
+            this.allowedMethods = allowedMethods;
+        }
+
+        /**
+         * @return handler of the request, or null if the path has no route for its method
+         */
+        public RequestHandler getHandler() {
+            return route == null ? null : route.handler;
+        }
+
+        /**
+         * @return route of the request, or null if the path has no route for its method
+         */
+        public Route getRoute() {
+            return route;
+        }
+
+        public Map<String, String> getParameters() {
+            return parameters;
+        }
+
+        /**
+         * @return methods the path has a route for
+         */
+        public Set<String> getAllowedMethods() {
+            return allowedMethods;
+        }
+    }
+
+    private final Node root = new Node();
+
+    /**
+     * Registers a route.
+     * @param method  method of the requests, such as GET
+     * @param pattern path pattern starting with '/', such as /doc/*path or /users/{name}
+     * @param handler handler of the matching requests
+     * @return this router
+     * @throws IllegalArgumentException if the pattern is invalid or the route already exists
+     */
+    public Router add(String method, String pattern, RequestHandler handler) {
+        if (!pattern.startsWith("/")) {
+            throw new IllegalArgumentException("route pattern must start with /: " + pattern);
+        }
+        String[] segments = pattern.substring(1).split("/", -1);
+        Node node = root;
+        for (int i = 0; i < segments.length; i++) {
+            String segment = segments[i];
+            if (segment.startsWith("*")) {
+                if (i != segments.length - 1) {
+                    throw new IllegalArgumentException("* must be the last segment: " + pattern);
+                }
+                if (node.rest == null) {
+                    node.rest = new Node();
+                    node.restName = segment.substring(1);
+                } else if (!node.restName.equals(segment.substring(1))) {
+                    throw new IllegalArgumentException("conflicting parameter name: " + pattern);
+                }
+                node = node.rest;
+            } else if (segment.startsWith("{") && segment.endsWith("}")) {
+                String name = segment.substring(1, segment.length() - 1);
+                if (node.parameter == null) {
+                    node.parameter = new Node();
+                    node.parameterName = name;
+                } else if (!node.parameterName.equals(name)) {
+                    throw new IllegalArgumentException("conflicting parameter name: " + pattern);
+                }
+                node = node.parameter;
+            } else {
+                node = node.children.computeIfAbsent(segment, s -> new Node());
+            }
+        }
+        if (node.routes.putIfAbsent(method, new Route(method, pattern, handler)) != null) {
+            throw new IllegalArgumentException("duplicate route: " + method + " " + pattern);
+        }
+        return this;
+    }
+
+    /**
+     * Finds the route of a request.
+     * @param method method of the request
+     * @param target request target, starting with '/'
+     * @return the route, with a null handler if the path only has routes for other methods,
+     * or null if no route matches the path
+     */
+    public Match find(String method, String target) {
+        int query = target.indexOf('?');
+        String path = target.substring(1, query < 0 ? target.length() : query);
+        Map<String, String> parameters = new HashMap<>(4);
+        Node node = find(root, path, 0, parameters);
+        if (node == null) {
+            return null;
+        }
+        return new Match(node.routes.get(method), parameters, Collections.unmodifiableSet(node.routes.keySet()));
+    }
+
+    /**
+     * @param start index of the segment to match, or -1 once the whole path is matched
+     * @return the node of the route matching the path from this segment on, or null if none does
+     */
+    private static Node find(Node node, String path, int start, Map<String, String> parameters) {
+        if (start < 0) {
+            if (!node.routes.isEmpty()) {
+                return node;
+            }
+            if (node.rest != null) {
+                parameters.put(node.restName, "");
+                return node.rest;
+            }
+            return null;
+        }
+        int end = path.indexOf('/', start);
+        int next = end < 0 ? -1 : end + 1;
+        if (end < 0) {
+            end = path.length();
+        }
+        Node child = node.children.get(path.substring(start, end));
+        if (child != null) {
+            Node found = find(child, path, next, parameters);
+            if (found != null) {
+                return found;
+            }
+        }
+        if (node.parameter != null && end > start) {
+            Node found = find(node.parameter, path, next, parameters);
+            if (found != null) {
+                parameters.put(node.parameterName, path.substring(start, end));
+                return found;
+            }
+        }
+        if (node.rest != null) {
+            parameters.put(node.restName, path.substring(start));
+            return node.rest;
+        }
+        return null;
+    }
+}
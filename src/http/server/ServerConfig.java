@@ -0,0 +1,868 @@
+package http.server;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Runtime configuration of the WebServer.
+ * Values are read from the command line: the port comes first, followed by optional
+ * {@code --name=value} flags. Every flag has a default so that
+ * {@code java -jar HTTP-Server.jar <PORT_NUMBER>} keeps working as before.
+ * The flags can also be written in a configuration file given with {@code --config}, one
+ * {@code name=value} per line, which the server reads again when it changes; the command
+ * line takes precedence over the file.
+ */
+public class ServerConfig {
+
+    /**
+     * I/O engine used to serve the connections.
+     * BLOCKING uses one java.net.Socket per worker, NIO multiplexes the connections on selector threads.
+     */
+    public enum Engine {
+        BLOCKING, NIO;
+
+        static Engine parse(String value) {
+            try {
+                return valueOf(value.toUpperCase());
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("engine must be blocking or nio");
+            }
+        }
+    }
+
+    private int port;
+    private Engine engine = Engine.BLOCKING;
+    private int eventLoops = Runtime.getRuntime().availableProcessors();
+    private WorkerPool.Mode executorMode = WorkerPool.Mode.POOL;
+    private int workerThreads = Runtime.getRuntime().availableProcessors() * 8;
+    private int queueCapacity = 1024;
+    private WorkerPool.RejectionPolicy rejectionPolicy = WorkerPool.RejectionPolicy.REJECT;
+    private int statsInterval = 0;
+    private int keepAliveTimeout = 15;
+    private int maxRequests = 100;
+    private int maxRequestLine = 8 * 1024;
+    private int maxHeaderSize = 16 * 1024;
+    private long maxBodySize = 512L * 1024 * 1024;
+    private long zeroCopyThreshold = 64 * 1024;
+    private long cacheSize = 32L * 1024 * 1024;
+    private int pathCacheSize = 10000;
+    private List<String> indexFiles = Arrays.asList("index.html");
+    private boolean compression = true;
+    private long compressionMinSize = 1024;
+    private int maxFormParameters = 1000;
+    private int maxFormFieldSize = 64 * 1024;
+    private FileStore.Durability durability = FileStore.Durability.WRITE;
+    private String accessLog;
+    private AccessLog.Format accessLogFormat = AccessLog.Format.COMBINED;
+    private int accessLogBuffer = 8192;
+    private AccessLog.Overflow accessLogOverflow = AccessLog.Overflow.DROP;
+    private long accessLogMaxSize = 100L * 1024 * 1024;
+    private int accessLogRotation = 24 * 60 * 60;
+    private String mimeTypes;
+    private boolean http2 = true;
+    private int http2MaxStreams = 100;
+    private int http2MaxConnections = 256;
+    private int http2Window = 65535;
+    private String configFile;
+    private String docRoot = "doc";
+    private String templates = "templates";
+    private int shutdownTimeout = 30;
+    private int reloadInterval = 2;
+    private int tlsPort;
+    private String keystore = "keystore.p12";
+    private String keystorePassword = "changeit";
+    private List<String> tlsProtocols = Arrays.asList("TLSv1.3", "TLSv1.2");
+    private int tlsSessionCache = 20480;
+    private int tlsSessionTimeout = 86400;
+    private boolean tlsSessionTickets = true;
+    private int maxConnectionsPerIp;
+    private int rateLimit;
+    private int rateBurst = 20;
+    private int rateLimitTable = 100000;
+    private boolean adaptiveConcurrency;
+    private int maxConcurrency = 1000;
+    private int acceptors = 1;
+    private boolean reusePort;
+    private int backlog = 1024;
+    private boolean tcpNoDelay = true;
+    private int sendBuffer;
+    private int receiveBuffer;
+    private int readTimeout = 30;
+    private int writeTimeout = 30;
+    // command line, kept to read the configuration again
+    private String[] args = new String[0];
+
+    public ServerConfig(int port) {
+        this.port = port;
+    }
+
+    /**
+     * Builds a configuration from the command line arguments.
+     * Usage: {@code <port> [--engine=blocking|nio] [--event-loops=N] [--executor=pool|virtual|thread]
+     * [--workers=N] [--queue=N] [--rejection=reject|caller-runs] [--stats-interval=SECONDS]
+     * [--keep-alive-timeout=SECONDS] [--max-requests=N] [--max-request-line=BYTES] [--max-header-size=BYTES]
+     * [--max-body-size=BYTES] [--zero-copy-threshold=BYTES] [--cache-size=BYTES] [--path-cache-size=N]
+     * [--index=LIST] [--compression=on|off] [--compression-min-size=BYTES] [--max-form-parameters=N]
+     * [--max-form-field-size=BYTES] [--durability=async|write|fsync] [--access-log=FILE]
+     * [--access-log-format=common|combined] [--access-log-buffer=N] [--access-log-overflow=drop|block]
+     * [--access-log-max-size=BYTES] [--access-log-rotation=SECONDS] [--mime-types=FILE]
+     * [--http2=on|off] [--http2-max-streams=N] [--http2-max-connections=N] [--http2-window=BYTES]
+     * [--config=FILE] [--doc-root=DIR] [--templates=DIR] [--shutdown-timeout=SECONDS]
+     * [--reload-interval=SECONDS] [--tls-port=PORT] [--keystore=FILE] [--keystore-password=PASSWORD] [--tls-protocols=LIST] [--tls-session-cache=N]
+     * [--tls-session-timeout=SECONDS] [--tls-session-tickets=on|off] [--max-connections-per-ip=N]
+     * [--rate-limit=N] [--rate-burst=N] [--rate-limit-table=N] [--adaptive-concurrency=on|off]
+     * [--max-concurrency=N] [--acceptors=N] [--reuse-port=on|off] [--backlog=N] [--tcp-nodelay=on|off]
+     * [--send-buffer=BYTES] [--receive-buffer=BYTES] [--read-timeout=SECONDS] [--write-timeout=SECONDS]}
+     *
+     * @param args command line arguments
+     * @return the configuration
+     * @throws IllegalArgumentException if an argument is missing or invalid
+     */
+    public static ServerConfig fromArgs(String[] args) {
+        if (args.length < 1) {
+            throw new IllegalArgumentException("missing port number");
+        }
+        ServerConfig config = new ServerConfig(parseInt("port", args[0]));
+        config.args = args.clone();
+        // the file first, so that the command line overrides it
+        for (int i = 1; i < args.length; i++) {
+            if (args[i].startsWith("--config=")) {
+                config.set(args[i]);
+                config.readFile();
+            }
+        }
+        for (int i = 1; i < args.length; i++) {
+            config.set(args[i]);
+        }
+        return config;
+    }
+
+    /**
+     * Reads the configuration again from the same command line and configuration file.
+     *
+     * @return the new configuration
+     * @throws IllegalArgumentException if the file cannot be read or an option is invalid
+     */
+    public ServerConfig reload() {
+        return fromArgs(args);
+    }
+
+    /**
+     * Applies the lines of the configuration file. They are named as the flags without their
+     * leading dashes, blank lines and lines starting with {@code #} are ignored.
+     */
+    private void readFile() {
+        if (configFile == null) {
+            return;
+        }
+        List<String> lines;
+        try {
+            lines = Files.readAllLines(Paths.get(configFile), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("cannot read " + configFile + ": " + e);
+        }
+        for (int i = 0; i < lines.size(); i++) {
+            String line = lines.get(i).trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            int eq = line.indexOf('=');
+            String name = eq < 0 ? line : line.substring(0, eq).trim();
+            try {
+                if (eq < 0 || name.equals("config")) {
+                    throw new IllegalArgumentException("invalid line " + line);
+                }
+                set("--" + name + "=" + line.substring(eq + 1).trim());
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException(configFile + ":" + (i + 1) + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Lists the options a running server does not apply when its configuration is reloaded.
+     *
+     * @param next configuration read again
+     * @return the names of those options whose value differs in the other configuration
+     */
+    public List<String> restartRequired(ServerConfig next) {
+        List<String> names = new ArrayList<>();
+        compare(names, "port", port, next.port);
+        compare(names, "engine", engine, next.engine);
+        compare(names, "event-loops", eventLoops, next.eventLoops);
+        compare(names, "executor", executorMode, next.executorMode);
+        compare(names, "queue", queueCapacity, next.queueCapacity);
+        compare(names, "rejection", rejectionPolicy, next.rejectionPolicy);
+        compare(names, "stats-interval", statsInterval, next.statsInterval);
+        compare(names, "durability", durability, next.durability);
+        compare(names, "access-log", accessLog, next.accessLog);
+        compare(names, "access-log-format", accessLogFormat, next.accessLogFormat);
+        compare(names, "access-log-buffer", accessLogBuffer, next.accessLogBuffer);
+        compare(names, "access-log-overflow", accessLogOverflow, next.accessLogOverflow);
+        compare(names, "access-log-max-size", accessLogMaxSize, next.accessLogMaxSize);
+        compare(names, "access-log-rotation", accessLogRotation, next.accessLogRotation);
+        compare(names, "tls-port", tlsPort, next.tlsPort);
+        compare(names, "keystore", keystore, next.keystore);
+        compare(names, "keystore-password", keystorePassword, next.keystorePassword);
+        compare(names, "tls-protocols", tlsProtocols, next.tlsProtocols);
+        compare(names, "tls-session-cache", tlsSessionCache, next.tlsSessionCache);
+        compare(names, "tls-session-timeout", tlsSessionTimeout, next.tlsSessionTimeout);
+        compare(names, "tls-session-tickets", tlsSessionTickets, next.tlsSessionTickets);
+        compare(names, "acceptors", acceptors, next.acceptors);
+        compare(names, "reuse-port", reusePort, next.reusePort);
+        compare(names, "backlog", backlog, next.backlog);
+        compare(names, "receive-buffer", receiveBuffer, next.receiveBuffer);
+        return names;
+    }
+
+    private static void compare(List<String> names, String name, Object value, Object next) {
+        if (!Objects.equals(value, next)) {
+            names.add(name);
+        }
+    }
+
+    /**
+     * Applies a single {@code --name=value} flag.
+     *
+     * @param arg the flag
+     */
+    private void set(String arg) {
+        int eq = arg.indexOf('=');
+        if (!arg.startsWith("--") || eq < 0) {
+            throw new IllegalArgumentException("invalid option " + arg);
+        }
+        String name = arg.substring(2, eq);
+        String value = arg.substring(eq + 1);
+        switch (name) {
+            case "engine":
+                engine = Engine.parse(value);
+                break;
+            case "event-loops":
+                eventLoops = parsePositive(name, value);
+                break;
+            case "executor":
+                executorMode = WorkerPool.Mode.parse(value);
+                break;
+            case "workers":
+                workerThreads = parsePositive(name, value);
+                break;
+            case "queue":
+                queueCapacity = parseInt(name, value);
+                break;
+            case "rejection":
+                rejectionPolicy = WorkerPool.RejectionPolicy.parse(value);
+                break;
+            case "stats-interval":
+                statsInterval = parseInt(name, value);
+                break;
+            case "keep-alive-timeout":
+                keepAliveTimeout = parsePositive(name, value);
+                break;
+            case "max-requests":
+                maxRequests = parsePositive(name, value);
+                break;
+            case "max-request-line":
+                maxRequestLine = parsePositive(name, value);
+                break;
+            case "max-header-size":
+                maxHeaderSize = parsePositive(name, value);
+                break;
+            case "max-body-size":
+                maxBodySize = parseLong(name, value);
+                break;
+            case "zero-copy-threshold":
+                zeroCopyThreshold = parseLong(name, value);
+                break;
+            case "cache-size":
+                cacheSize = parseLong(name, value);
+                break;
+            case "path-cache-size":
+                pathCacheSize = parseInt(name, value);
+                break;
+            case "index":
+                indexFiles = parseList(name, value);
+                break;
+            case "compression":
+                compression = parseSwitch(name, value);
+                break;
+            case "compression-min-size":
+                compressionMinSize = parseLong(name, value);
+                break;
+            case "max-form-parameters":
+                maxFormParameters = parsePositive(name, value);
+                break;
+            case "max-form-field-size":
+                maxFormFieldSize = parsePositive(name, value);
+                break;
+            case "durability":
+                durability = FileStore.Durability.parse(value);
+                break;
+            case "access-log":
+                accessLog = value.isEmpty() ? null : value;
+                break;
+            case "access-log-format":
+                accessLogFormat = AccessLog.Format.parse(value);
+                break;
+            case "access-log-buffer":
+                accessLogBuffer = parsePositive(name, value);
+                break;
+            case "access-log-overflow":
+                accessLogOverflow = AccessLog.Overflow.parse(value);
+                break;
+            case "access-log-max-size":
+                accessLogMaxSize = parseLong(name, value);
+                break;
+            case "access-log-rotation":
+                accessLogRotation = parseInt(name, value);
+                break;
+            case "mime-types":
+                mimeTypes = value.isEmpty() ? null : value;
+                break;
+            case "http2":
+                http2 = parseSwitch(name, value);
+                break;
+            case "http2-max-streams":
+                http2MaxStreams = parsePositive(name, value);
+                break;
+            case "http2-max-connections":
+                http2MaxConnections = parsePositive(name, value);
+                break;
+            case "http2-window":
+                http2Window = parsePositive(name, value);
+                break;
+            case "config":
+                configFile = value.isEmpty() ? null : value;
+                break;
+            case "doc-root":
+                docRoot = parsePath(name, value);
+                break;
+            case "templates":
+                templates = parsePath(name, value);
+                break;
+            case "shutdown-timeout":
+                shutdownTimeout = parseInt(name, value);
+                break;
+            case "reload-interval":
+                reloadInterval = parseInt(name, value);
+                break;
+            case "tls-port":
+                tlsPort = parseInt(name, value);
+                break;
+            case "keystore":
+                keystore = value;
+                break;
+            case "keystore-password":
+                keystorePassword = value;
+                break;
+            case "tls-protocols":
+                tlsProtocols = parseList(name, value);
+                break;
+            case "tls-session-cache":
+                tlsSessionCache = parseInt(name, value);
+                break;
+            case "tls-session-timeout":
+                tlsSessionTimeout = parseInt(name, value);
+                break;
+            case "tls-session-tickets":
+                tlsSessionTickets = parseSwitch(name, value);
+                break;
+            case "max-connections-per-ip":
+                maxConnectionsPerIp = parseInt(name, value);
+                break;
+            case "rate-limit":
+                rateLimit = parseInt(name, value);
+                break;
+            case "rate-burst":
+                rateBurst = parsePositive(name, value);
+                break;
+            case "rate-limit-table":
+                rateLimitTable = parsePositive(name, value);
+                break;
+            case "adaptive-concurrency":
+                adaptiveConcurrency = parseSwitch(name, value);
+                break;
+            case "max-concurrency":
+                maxConcurrency = parsePositive(name, value);
+                break;
+            case "acceptors":
+                acceptors = parsePositive(name, value);
+                break;
+            case "reuse-port":
+                reusePort = parseSwitch(name, value);
+                break;
+            case "backlog":
+                backlog = parsePositive(name, value);
+                break;
+            case "tcp-nodelay":
+                tcpNoDelay = parseSwitch(name, value);
+                break;
+            case "send-buffer":
+                sendBuffer = parseInt(name, value);
+                break;
+            case "receive-buffer":
+                receiveBuffer = parseInt(name, value);
+                break;
+            case "read-timeout":
+                readTimeout = parsePositive(name, value);
+                break;
+            case "write-timeout":
+                writeTimeout = parsePositive(name, value);
+                break;
+            default:
+                throw new IllegalArgumentException("unknown option --" + name);
+        }
+    }
+
+    private static int parseInt(String name, String value) {
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(name + " must be an integer");
+        }
+    }
+
+    private static long parseLong(String name, String value) {
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(name + " must be an integer");
+        }
+    }
+
+    private static boolean parseSwitch(String name, String value) {
+        if (value.equals("on")) {
+            return true;
+        } else if (value.equals("off")) {
+            return false;
+        }
+        throw new IllegalArgumentException(name + " must be on or off");
+    }
+
+    private static List<String> parseList(String name, String value) {
+        List<String> items = new ArrayList<>();
+        for (String item : value.split(",")) {
+            if (!item.trim().isEmpty()) {
+                items.add(item.trim());
+            }
+        }
+        if (items.isEmpty()) {
+            throw new IllegalArgumentException(name + " must be a comma-separated list");
+        }
+        return items;
+    }
+
+    private static String parsePath(String name, String value) {
+        String path = value.endsWith("/") ? value.substring(0, value.length() - 1) : value;
+        if (path.isEmpty()) {
+            throw new IllegalArgumentException(name + " must be a directory");
+        }
+        return path;
+    }
+
+    private static int parsePositive(String name, String value) {
+        int result = parseInt(name, value);
+        if (result < 1) {
+            throw new IllegalArgumentException(name + " must be at least 1");
+        }
+        return result;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public Engine getEngine() {
+        return engine;
+    }
+
+    /**
+     * @return number of selector threads of the NIO engine
+     */
+    public int getEventLoops() {
+        return eventLoops;
+    }
+
+    public WorkerPool.Mode getExecutorMode() {
+        return executorMode;
+    }
+
+    public int getWorkerThreads() {
+        return workerThreads;
+    }
+
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    public WorkerPool.RejectionPolicy getRejectionPolicy() {
+        return rejectionPolicy;
+    }
+
+    /**
+     * @return interval in seconds between two pool statistics reports, 0 to disable them
+     */
+    public int getStatsInterval() {
+        return statsInterval;
+    }
+
+    /**
+     * @return seconds a persistent connection may stay idle before being closed
+     */
+    public int getKeepAliveTimeout() {
+        return keepAliveTimeout;
+    }
+
+    /**
+     * @return maximum number of requests served on one connection, 1 disables keep-alive
+     */
+    public int getMaxRequests() {
+        return maxRequests;
+    }
+
+    /**
+     * @return maximum length in bytes of the request line, longer ones are answered 414
+     */
+    public int getMaxRequestLine() {
+        return maxRequestLine;
+    }
+
+    /**
+     * @return maximum size in bytes of the request line and headers, larger ones are answered 431
+     */
+    public int getMaxHeaderSize() {
+        return maxHeaderSize;
+    }
+
+    /**
+     * @return maximum size in bytes of a request body, larger ones are answered 413
+     */
+    public long getMaxBodySize() {
+        return maxBodySize;
+    }
+
+    /**
+     * @return size in bytes from which files are streamed from the disk instead of read in memory
+     */
+    public long getZeroCopyThreshold() {
+        return zeroCopyThreshold;
+    }
+
+    /**
+     * @return maximum number of bytes of static files kept in memory, 0 disables the cache
+     */
+    public long getCacheSize() {
+        return cacheSize;
+    }
+
+    /**
+     * @return maximum number of resolved request paths kept with the static cache, 0 disables them
+     */
+    public int getPathCacheSize() {
+        return pathCacheSize;
+    }
+
+    /**
+     * @return names of the files serving a directory, tried in order
+     */
+    public List<String> getIndexFiles() {
+        return indexFiles;
+    }
+
+    /**
+     * @return true if responses may be compressed according to the Accept-Encoding of the request
+     */
+    public boolean isCompression() {
+        return compression;
+    }
+
+    /**
+     * @return size in bytes below which files are never compressed
+     */
+    public long getCompressionMinSize() {
+        return compressionMinSize;
+    }
+
+    /**
+     * @return maximum number of parameters of a form, larger forms are answered 413
+     */
+    public int getMaxFormParameters() {
+        return maxFormParameters;
+    }
+
+    /**
+     * @return maximum size in bytes of a form field name or value, larger ones are answered 413
+     */
+    public int getMaxFormFieldSize() {
+        return maxFormFieldSize;
+    }
+
+    /**
+     * @return when the modifications of the files are acknowledged to the client
+     */
+    public FileStore.Durability getDurability() {
+        return durability;
+    }
+
+    /**
+     * @return file of the access log, or null if requests are not logged
+     */
+    public String getAccessLog() {
+        return accessLog;
+    }
+
+    public AccessLog.Format getAccessLogFormat() {
+        return accessLogFormat;
+    }
+
+    /**
+     * @return number of records the access log buffers before writing them
+     */
+    public int getAccessLogBuffer() {
+        return accessLogBuffer;
+    }
+
+    /**
+     * @return what a request does when the access log buffer is full
+     */
+    public AccessLog.Overflow getAccessLogOverflow() {
+        return accessLogOverflow;
+    }
+
+    /**
+     * @return size in bytes past which the access log is rotated, 0 for no limit
+     */
+    public long getAccessLogMaxSize() {
+        return accessLogMaxSize;
+    }
+
+    /**
+     * @return age in seconds past which the access log is rotated, 0 for no limit
+     */
+    public int getAccessLogRotation() {
+        return accessLogRotation;
+    }
+
+    /**
+     * @return mime.types file completing the built-in content types, or null to use only those
+     */
+    public String getMimeTypes() {
+        return mimeTypes;
+    }
+
+    /**
+     * @return true if clients may switch to HTTP/2 over cleartext (h2c)
+     */
+    public boolean isHttp2() {
+        return http2;
+    }
+
+    /**
+     * @return maximum number of concurrent streams of an HTTP/2 connection
+     */
+    public int getHttp2MaxStreams() {
+        return http2MaxStreams;
+    }
+
+    /**
+     * @return maximum number of HTTP/2 connections open at once, each with a thread reading its frames
+     */
+    public int getHttp2MaxConnections() {
+        return http2MaxConnections;
+    }
+
+    /**
+     * @return bytes of request body an HTTP/2 client may send on a stream before the handler reads them
+     */
+    public int getHttp2Window() {
+        return http2Window;
+    }
+
+    /**
+     * @return configuration file read again when it changes, or null if there is none
+     */
+    public String getConfigFile() {
+        return configFile;
+    }
+
+    /**
+     * @return directory of the files served under /doc/
+     */
+    public String getDocRoot() {
+        return docRoot;
+    }
+
+    /**
+     * @return directory of the templates of the generated pages
+     */
+    public String getTemplates() {
+        return templates;
+    }
+
+    /**
+     * @return seconds a shutdown waits for the requests in progress before closing their connections
+     */
+    public int getShutdownTimeout() {
+        return shutdownTimeout;
+    }
+
+    /**
+     * @return seconds between two checks of the configuration file, 0 to never reload it
+     */
+    public int getReloadInterval() {
+        return reloadInterval;
+    }
+
+    /**
+     * @return port of the HTTPS listener, 0 if there is none
+     */
+    public int getTlsPort() {
+        return tlsPort;
+    }
+
+    /**
+     * @return keystore holding the key and the certificate chain of the HTTPS listener
+     */
+    public String getKeystore() {
+        return keystore;
+    }
+
+    public String getKeystorePassword() {
+        return keystorePassword;
+    }
+
+    /**
+     * @return TLS versions accepted by the HTTPS listener, such as TLSv1.3
+     */
+    public List<String> getTlsProtocols() {
+        return tlsProtocols;
+    }
+
+    /**
+     * @return number of TLS sessions kept for resumption, 0 for no limit
+     */
+    public int getTlsSessionCache() {
+        return tlsSessionCache;
+    }
+
+    /**
+     * @return seconds a TLS session can be resumed, 0 for no limit
+     */
+    public int getTlsSessionTimeout() {
+        return tlsSessionTimeout;
+    }
+
+    /**
+     * @return whether the sessions are resumed from tickets kept by the clients (JDK 13+)
+     * rather than from the server cache
+     */
+    public boolean isTlsSessionTickets() {
+        return tlsSessionTickets;
+    }
+
+    /**
+     * @return maximum number of connections of one client address, 0 for no limit
+     */
+    public int getMaxConnectionsPerIp() {
+        return maxConnectionsPerIp;
+    }
+
+    /**
+     * @return requests per second allowed to one client address on one route, 0 for no limit
+     */
+    public int getRateLimit() {
+        return rateLimit;
+    }
+
+    /**
+     * @return requests a client can send at once before the rate limit applies
+     */
+    public int getRateBurst() {
+        return rateBurst;
+    }
+
+    /**
+     * @return maximum number of client and route pairs whose rate is tracked
+     */
+    public int getRateLimitTable() {
+        return rateLimitTable;
+    }
+
+    /**
+     * @return whether the requests running at once on each route are bounded by a limit
+     * adapted to its latency
+     */
+    public boolean isAdaptiveConcurrency() {
+        return adaptiveConcurrency;
+    }
+
+    /**
+     * @return highest concurrency limit of a route
+     */
+    public int getMaxConcurrency() {
+        return maxConcurrency;
+    }
+
+    /**
+     * @return number of threads accepting the connections of each port
+     */
+    public int getAcceptors() {
+        return acceptors;
+    }
+
+    /**
+     * @return whether the ports are bound with SO_REUSEPORT, one socket per acceptor, so that
+     * other servers can listen on the same ports
+     */
+    public boolean isReusePort() {
+        return reusePort;
+    }
+
+    /**
+     * @return length of the queue of the connections not accepted yet, capped by the system
+     */
+    public int getBacklog() {
+        return backlog;
+    }
+
+    /**
+     * @return whether the small writes are sent at once, without waiting for the
+     * acknowledgment of the previous ones (Nagle's algorithm disabled)
+     */
+    public boolean isTcpNoDelay() {
+        return tcpNoDelay;
+    }
+
+    /**
+     * @return size of the socket send buffer of the connections, 0 for the system default
+     */
+    public int getSendBuffer() {
+        return sendBuffer;
+    }
+
+    /**
+     * @return size of the socket receive buffer of the connections, 0 for the system default
+     */
+    public int getReceiveBuffer() {
+        return receiveBuffer;
+    }
+
+    /**
+     * @return seconds a request being received may wait for the next bytes of the client
+     */
+    public int getReadTimeout() {
+        return readTimeout;
+    }
+
+    /**
+     * @return seconds a response being sent may wait for the client to read it
+     */
+    public int getWriteTimeout() {
+        return writeTimeout;
+    }
+}
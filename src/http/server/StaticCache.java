@@ -0,0 +1,499 @@
+package http.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Shared cache of the static files served by the WebServer.
+ * Keeps the pre-encoded headers and the content of small files, and the headers of the large
+ * ones, so that a cached GET or HEAD does not touch the filesystem until a large file is opened.
+ * The total size of the cached files is bounded, a large file counting for its headers, the
+ * least recently used ones are evicted first. The entries are spread over segments, each kept
+ * in the order of its accesses under its own lock, so that an eviction only compares the
+ * oldest entry of every segment instead of sorting the whole cache.
+ * A file can have several cached variants, one per content coding, which are invalidated
+ * together with the file and with its precompressed siblings ({@code .gz}, {@code .br}).
+ * It also keeps what the {@link ResourceResolver} found at each request path, a bounded number
+ * of them, forgotten with the file at the path and, for a directory, with everything under it.
+ * Entries are invalidated when the server modifies a file and, for changes made by other
+ * processes, when a WatchService reports a change under the watched directory.
+ */
+public class StaticCache {
+
+    private static final int SEGMENTS = 16;
+    private static final String[] CODINGS = {"br", "gzip", "deflate"};
+    private static final String[] SIBLING_SUFFIXES = {".br", ".gz"};
+    // cannot appear in a path, so variant keys never collide with a file name
+    private static final char VARIANT_SEPARATOR = '\0';
+
+    /**
+     * Response of a file: its metadata, its pre-encoded 200 headers and its content.
+     * Files too large to be kept in memory have the same metadata but no content.
+     */
+    public static final class Entry {
+        private final String contentType;
+        private final long length;
+        private final long lastModified;
+        private final String etag;
+        private final byte[] headers;
+        private final byte[] content;
+        private final List<String> precompressed;
+        private volatile long lastAccess;
+
+        /**
+         * @param contentType  content type of the file
+         * @param length       size of the file in bytes
+         * @param lastModified modification time of the file in milliseconds
+         * @param etag         entity tag of this version of the file
+         * @param headers      headers of a 200 response after the Connection header, without the empty line
+         * @param content      content of the file, or null if it is not kept in memory
+         * @param precompressed content codings of the precompressed siblings of the file
+         */
+        public Entry(String contentType, long length, long lastModified, String etag, byte[] headers, byte[] content,
+                     List<String> precompressed) {
+            this.contentType = contentType;
+            this.length = length;
+            this.lastModified = lastModified;
+            this.etag = etag;
+            this.headers = headers;
+            this.content = content;
+            this.precompressed = precompressed;
+        }
+
+        public String getContentType() {
+            return contentType;
+        }
+
+        public long getLength() {
+            return length;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        public String getETag() {
+            return etag;
+        }
+
+        public byte[] getHeaders() {
+            return headers;
+        }
+
+        public byte[] getContent() {
+            return content;
+        }
+
+        public List<String> getPrecompressed() {
+            return precompressed;
+        }
+    }
+
+    /**
+     * Part of the entries, from the least to the most recently used, guarded by the segment.
+     */
+    private static final class Segment {
+        private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    private volatile long maxSize;
+    private volatile int maxResources;
+    private WatchService watcher;
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private final Map<String, ResourceResolver.Resource> resources = new ConcurrentHashMap<>();
+    private final AtomicLong size = new AtomicLong();
+    private final AtomicLong clock = new AtomicLong();
+    private final AtomicLong version = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+
+    /**
+     * @param maxSize maximum number of content bytes kept in the cache, 0 disables it
+     */
+    public StaticCache(long maxSize) {
+        this(maxSize, 0);
+    }
+
+    /**
+     * @param maxSize      maximum number of content bytes kept in the cache, 0 disables it
+     * @param maxResources maximum number of resolved request paths kept in the cache, 0 disables them
+     */
+    public StaticCache(long maxSize, int maxResources) {
+        this.maxSize = maxSize;
+        this.maxResources = maxResources;
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment();
+        }
+    }
+
+    /**
+     * Changes the budget of the cache, evicting the entries which no longer fit.
+     * @param maxSize maximum number of content bytes kept in the cache, 0 disables it
+     */
+    public void setMaxSize(long maxSize) {
+        this.maxSize = maxSize;
+        evict();
+    }
+
+    /**
+     * Changes the number of resolved request paths kept, forgetting them if it is lowered.
+     * @param maxResources maximum number of resolved request paths kept in the cache, 0 disables them
+     */
+    public void setMaxResources(int maxResources) {
+        int previous = this.maxResources;
+        this.maxResources = maxResources;
+        if (maxResources < previous) {
+            resources.clear();
+        }
+    }
+
+    /**
+     * @param path normalized path under the document root
+     * @return what the path designates, or null if it is not cached
+     */
+    public ResourceResolver.Resource getResource(String path) {
+        if (maxSize <= 0 || maxResources <= 0) {
+            return null;
+        }
+        return resources.get(path);
+    }
+
+    /**
+     * Caches what a path designates, unless a file was invalidated since it was looked up.
+     * When the table is full, a quarter of it is forgotten first.
+     * @param path normalized path under the document root
+     * @param resource what the path designates
+     * @param readVersion value of {@link #version()} before the path was looked up
+     */
+    public void putResource(String path, ResourceResolver.Resource resource, long readVersion) {
+        int max = maxResources;
+        if (maxSize <= 0 || max <= 0) {
+            return;
+        }
+        if (resources.size() >= max) {
+            trimResources(max);
+        }
+        resources.put(path, resource);
+        if (version.get() != readVersion) {
+            // the path changed while it was looked up
+            resources.remove(path, resource);
+        }
+    }
+
+    private synchronized void trimResources(int max) {
+        Iterator<String> paths = resources.keySet().iterator();
+        while (resources.size() > max * 3 / 4 && paths.hasNext()) {
+            paths.next();
+            paths.remove();
+        }
+    }
+
+    /**
+     * @param path normalized path of the file
+     * @return the cached response of the file, or null if it is not cached
+     */
+    public Entry get(String path) {
+        return get(path, null);
+    }
+
+    /**
+     * @param path normalized path of the file
+     * @param coding content coding of the variant, null for the file itself
+     * @return the cached response, or null if it is not cached
+     */
+    public Entry get(String path, String coding) {
+        if (maxSize <= 0) {
+            return null;
+        }
+        String key = key(path, coding);
+        Segment segment = segment(key);
+        Entry entry;
+        synchronized (segment) {
+            entry = segment.entries.get(key);
+        }
+        if (entry == null) {
+            if (coding == null) {
+                // a missing variant does not mean reading the disk, only a missing file does
+                misses.incrementAndGet();
+            }
+            return null;
+        }
+        hits.incrementAndGet();
+        entry.lastAccess = clock.incrementAndGet();
+        return entry;
+    }
+
+    /**
+     * Returns the version to give to {@link #put}, to be read before reading the file.
+     * @return the current version of the cache
+     */
+    public long version() {
+        return version.get();
+    }
+
+    /**
+     * Caches the response of a file, unless it was invalidated since it was read.
+     * @param path normalized path of the file
+     * @param entry response of the file
+     * @param readVersion value of {@link #version()} before the file was read
+     */
+    public void put(String path, Entry entry, long readVersion) {
+        put(path, null, entry, readVersion);
+    }
+
+    /**
+     * Caches a variant of a file, unless the file was invalidated since it was read.
+     * @param path normalized path of the file
+     * @param coding content coding of the variant, null for the file itself
+     * @param entry response of the variant
+     * @param readVersion value of {@link #version()} before the file was read
+     */
+    public void put(String path, String coding, Entry entry, long readVersion) {
+        if (maxSize <= 0 || weight(entry) > maxSize) {
+            return;
+        }
+        entry.lastAccess = clock.incrementAndGet();
+        String key = key(path, coding);
+        Segment segment = segment(key);
+        Entry previous;
+        synchronized (segment) {
+            previous = segment.entries.put(key, entry);
+        }
+        size.addAndGet(weight(entry) - (previous == null ? 0 : weight(previous)));
+        if (version.get() != readVersion) {
+            // the file changed while it was read, the content may be stale
+            remove(key);
+        }
+        if (size.get() > maxSize) {
+            evict();
+        }
+    }
+
+    /**
+     * Removes a file from the cache, to be called whenever the file is modified.
+     * @param path path of the file
+     */
+    public void invalidate(String path) {
+        version.incrementAndGet();
+        // called with the paths of the store and of the watcher, which may not be normalized
+        String base = Paths.get(path).normalize().toString();
+        for (String suffix : SIBLING_SUFFIXES) {
+            if (base.endsWith(suffix)) {
+                // a precompressed sibling changed, the variants of its file are stale
+                invalidateVariants(base.substring(0, base.length() - suffix.length()));
+            }
+        }
+        invalidateVariants(base);
+        ResourceResolver.Resource resource = resources.remove(base);
+        if ((resource == null || !resource.isFile()) && !resources.isEmpty()) {
+            // maybe a directory or a link to one, what was found under it is stale
+            String prefix = base + File.separator;
+            resources.keySet().removeIf(key -> key.startsWith(prefix));
+        }
+    }
+
+    private void invalidateVariants(String base) {
+        if (remove(base)) {
+            invalidations.incrementAndGet();
+        }
+        for (String coding : CODINGS) {
+            if (remove(base + VARIANT_SEPARATOR + coding)) {
+                invalidations.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Empties the cache.
+     */
+    public void invalidateAll() {
+        version.incrementAndGet();
+        resources.clear();
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                for (Entry entry : segment.entries.values()) {
+                    size.addAndGet(-weight(entry));
+                    invalidations.incrementAndGet();
+                }
+                segment.entries.clear();
+            }
+        }
+    }
+
+    private boolean remove(String key) {
+        Segment segment = segment(key);
+        Entry removed;
+        synchronized (segment) {
+            removed = segment.entries.remove(key);
+        }
+        if (removed != null) {
+            size.addAndGet(-weight(removed));
+        }
+        return removed != null;
+    }
+
+    /**
+     * Evicts the least recently used entries until the cache fits in its budget, each time the
+     * oldest of the least recently used entries of the segments.
+     */
+    private synchronized void evict() {
+        while (size.get() > maxSize) {
+            Segment oldest = null;
+            long oldestAccess = Long.MAX_VALUE;
+            for (Segment segment : segments) {
+                synchronized (segment) {
+                    Iterator<Entry> eldest = segment.entries.values().iterator();
+                    if (eldest.hasNext()) {
+                        long access = eldest.next().lastAccess;
+                        if (access < oldestAccess) {
+                            oldest = segment;
+                            oldestAccess = access;
+                        }
+                    }
+                }
+            }
+            if (oldest == null) {
+                return;
+            }
+            synchronized (oldest) {
+                // its eldest may have been used since it was compared, the next one is then as old
+                Iterator<Entry> eldest = oldest.entries.values().iterator();
+                if (eldest.hasNext()) {
+                    Entry entry = eldest.next();
+                    eldest.remove();
+                    size.addAndGet(-weight(entry));
+                    evictions.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    /**
+     * Starts a daemon thread invalidating the entries of the files modified under a directory
+     * and its subdirectories by other processes. Replaces the directory watched before, whose
+     * entries are invalidated.
+     * @param root directory to watch
+     * @throws IOException if the directory cannot be watched
+     */
+    public synchronized void watch(Path root) throws IOException {
+        if (this.watcher != null) {
+            this.watcher.close();
+            this.watcher = null;
+            invalidateAll();
+        }
+        if (maxSize <= 0) {
+            return;
+        }
+        WatchService watcher = FileSystems.getDefault().newWatchService();
+        try {
+            registerTree(watcher, root);
+        } catch (IOException e) {
+            watcher.close();
+            throw e;
+        }
+        this.watcher = watcher;
+        Thread thread = new Thread(() -> {
+            try {
+                for (; ; ) {
+                    WatchKey key = watcher.take();
+                    Path dir = (Path) key.watchable();
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                            invalidateAll();
+                            continue;
+                        }
+                        Path changed = dir.resolve((Path) event.context());
+                        invalidate(changed.toString());
+                        if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(changed)) {
+                            try {
+                                registerTree(watcher, changed);
+                            } catch (IOException e) {
+                                System.out.println("Error: " + e);
+                            }
+                        }
+                    }
+                    key.reset();
+                }
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+            }
+        }, "cache-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static void registerTree(WatchService watcher, Path root) throws IOException {
+        try (Stream<Path> dirs = Files.walk(root)) {
+            for (Path dir : (Iterable<Path>) dirs.filter(Files::isDirectory)::iterator) {
+                dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+            }
+        }
+    }
+
+    /**
+     * @return bytes an entry counts for: its content, or its headers if it has no content
+     */
+    private static long weight(Entry entry) {
+        return entry.content != null ? entry.content.length : entry.headers.length;
+    }
+
+    private static String key(String path, String coding) {
+        return coding == null ? path : path + VARIANT_SEPARATOR + coding;
+    }
+
+    private Segment segment(String key) {
+        int hash = key.hashCode();
+        return segments[(hash ^ hash >>> 16) & SEGMENTS - 1];
+    }
+
+    public long getSize() {
+        return size.get();
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    public long getInvalidationCount() {
+        return invalidations.get();
+    }
+
+    @Override
+    public String toString() {
+        int count = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                count += segment.entries.size();
+            }
+        }
+        return "StaticCache[entries=" + count + ", resources=" + resources.size() + ", size=" + getSize() + ", hits=" + getHitCount()
+                + ", misses=" + getMissCount() + ", evictions=" + getEvictionCount()
+                + ", invalidations=" + getInvalidationCount() + "]";
+    }
+}
@@ -0,0 +1,605 @@
+package http.server;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.Lock;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Serves the GET and HEAD requests on the static files.
+ * Every response carries an ETag and a Last-Modified header, so that clients can revalidate
+ * their copy with If-None-Match or If-Modified-Since and get a 304 without the content.
+ * Range requests are answered 206 with the requested slices, as a multipart/byteranges body
+ * when several ranges are asked, and If-Range falls back to the whole file when it changed.
+ * Small files are served from the {@link StaticCache}, large ones are streamed from the disk
+ * with their headers taken from the cache.
+ * Compressible files are sent with the best content coding the client accepts: a precompressed
+ * {@code .br} or {@code .gz} sibling when there is one, otherwise gzip or deflate computed on
+ * the fly. The siblings are looked up once, when the file is loaded in the cache. Compressed
+ * variants of small files are cached, those of large files are streamed in chunks. Files below
+ * the compression floor and range requests are always sent as is.
+ */
+public class StaticFileHandler {
+
+    private static final DateTimeFormatter HTTP_DATE =
+            DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US).withZone(ZoneOffset.UTC);
+    // more ranges than that are answered with the whole file
+    private static final int MAX_RANGES = 16;
+    private static final int STREAM_BUFFER_SIZE = 16 * 1024;
+    // content codings in order of preference when the client accepts several equally
+    private static final List<String> CODINGS = Arrays.asList("br", "gzip", "deflate");
+    private static final Set<String> COMPRESSIBLE_TYPES = new HashSet<>(Arrays.asList(
+            "application/javascript", "application/x-javascript", "application/json", "application/xml",
+            "application/xhtml+xml", "application/rss+xml", "application/atom+xml", "image/svg+xml",
+            "application/wasm", "font/ttf", "font/otf", "application/vnd.ms-fontobject"));
+
+    private final StaticCache cache;
+    private final FileStore store;
+    private final MimeTypes mimeTypes;
+    private final long zeroCopyThreshold;
+    private final boolean compression;
+    private final long compressionMinSize;
+
+    /**
+     * @param cache  cache of the small files and of their compressed variants
+     * @param store  store writing the files, whose locks keep a file from being read while it is appended to
+     * @param mimeTypes content types of the files, by extension
+     * @param config server configuration
+     */
+    public StaticFileHandler(StaticCache cache, FileStore store, MimeTypes mimeTypes, ServerConfig config) {
+        this.cache = cache;
+        this.store = store;
+        this.mimeTypes = mimeTypes;
+        this.zeroCopyThreshold = config.getZeroCopyThreshold();
+        this.compression = config.isCompression();
+        this.compressionMinSize = config.getCompressionMinSize();
+    }
+
+    /**
+     * Sends the content of a file, the requested ranges of it, or 304 if the client has it already.
+     * @param request the request
+     * @param clientOutput stream the response is written to
+     * @param resource file designated by the request
+     * @throws IOException
+     */
+    public void doGET(HttpRequest request, ConnectionOutputStream clientOutput, ResourceResolver.Resource resource) throws IOException {
+        serve(request, clientOutput, resource, true);
+    }
+
+    /**
+     * Sends the headers a GET request would return.
+     * @param request the request
+     * @param clientOutput stream the response is written to
+     * @param resource file designated by the request
+     * @throws IOException
+     */
+    public void doHEAD(HttpRequest request, ConnectionOutputStream clientOutput, ResourceResolver.Resource resource) throws IOException {
+        serve(request, clientOutput, resource, false);
+    }
+
+    private void serve(HttpRequest request, ConnectionOutputStream clientOutput, ResourceResolver.Resource resource,
+                       boolean withContent) throws IOException {
+        String error = resource.getError();
+        if (error != null || !resource.isFile()) {
+            clientOutput.response(error != null ? error : "404 Not Found").send();
+            return;
+        }
+        String filename = resource.getPath();
+        long version = cache.version();
+        StaticCache.Entry entry = cache.get(filename);
+        if (entry == null) {
+            entry = load(Paths.get(filename), null, null, version, filename);
+            if (entry == null) {
+                clientOutput.response("404 Not Found").send();
+                return;
+            }
+        }
+        if (isCompressible(entry.getContentType(), entry.getLength())) {
+            for (String coding : acceptedCodings(request.getHeaders())) {
+                if (serveVariant(request, clientOutput, filename, entry, coding, version, withContent)) {
+                    return;
+                }
+            }
+        }
+        respondFile(request, clientOutput, entry, Paths.get(filename), withContent);
+    }
+
+    /**
+     * Reads the metadata of a file, and its content if it is small enough to be kept in memory.
+     * @param filePath file to read
+     * @param contentType content type of the variant, or null to look it up from the file name
+     * @param coding content coding of the file, null for a plain file
+     * @param version value of {@link StaticCache#version()} before the file was read
+     * @param filename path of the requested file, the cache key
+     * @return the response of the file, or null if it does not exist
+     */
+    private StaticCache.Entry load(Path filePath, String contentType, String coding, long version, String filename) throws IOException {
+        Lock lock = store.readLock(filePath.toString());
+        lock.lock();
+        try {
+            return read(filePath, contentType, coding, version, filename);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Reads a file, under its read lock so that no append changes it between its size and its content.
+     */
+    private StaticCache.Entry read(Path filePath, String contentType, String coding, long version, String filename) throws IOException {
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(filePath, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        if (!attributes.isRegularFile()) {
+            return null;
+        }
+        if (contentType == null) {
+            contentType = mimeTypes.lookup(filePath.toString());
+        }
+        long lastModified = attributes.lastModifiedTime().toMillis();
+        String etag = etag(attributes.size(), lastModified, coding);
+        List<String> precompressed = Collections.emptyList();
+        if (coding == null && isCompressible(contentType, attributes.size())) {
+            precompressed = new ArrayList<>(2);
+            for (String sibling : Arrays.asList("br", "gzip")) {
+                if (Files.isRegularFile(Paths.get(filePath + siblingSuffix(sibling)))) {
+                    precompressed.add(sibling);
+                }
+            }
+        }
+        byte[] content = null;
+        if (attributes.size() < zeroCopyThreshold) {
+            content = Files.readAllBytes(filePath);
+        }
+        StaticCache.Entry entry = newEntry(contentType, coding, content != null ? content.length : attributes.size(),
+                lastModified, etag, content, precompressed);
+        cache.put(filename, coding, entry, version);
+        return entry;
+    }
+
+    /**
+     * Sends a compressed variant of a file, from its precompressed sibling or compressed on the fly.
+     * @return false if this coding is not available for the file
+     */
+    private boolean serveVariant(HttpRequest request, ConnectionOutputStream clientOutput, String filename,
+                                 StaticCache.Entry entry, String coding, long version, boolean withContent) throws IOException {
+        boolean precompressed = entry.getPrecompressed().contains(coding);
+        if (!precompressed && coding.equals("br")) {
+            // no brotli encoder in the JDK, only precompressed files
+            return false;
+        }
+        if (!precompressed && entry.getContent() == null && request.getVersion().equals("HTTP/1.0")) {
+            // the compressed length is unknown, and HTTP/1.0 clients cannot read chunks
+            return false;
+        }
+        StaticCache.Entry variant = cache.get(filename, coding);
+        if (variant != null) {
+            // only the precompressed siblings are kept without their content
+            respondFile(request, clientOutput, variant, Paths.get(filename + siblingSuffix(coding)), withContent);
+            return true;
+        }
+        if (precompressed) {
+            Path sibling = Paths.get(filename + siblingSuffix(coding));
+            variant = load(sibling, entry.getContentType(), coding, version, filename);
+            if (variant == null) {
+                // removed meanwhile
+                return false;
+            }
+            respondFile(request, clientOutput, variant, sibling, withContent);
+            return true;
+        }
+        String etag = etag(entry, coding);
+        if (entry.getContent() != null) {
+            byte[] compressed = compress(entry.getContent(), coding);
+            variant = newEntry(entry.getContentType(), coding, compressed.length,
+                    entry.getLastModified(), etag, compressed, Collections.emptyList());
+            cache.put(filename, coding, variant, version);
+            respond(request, clientOutput, variant, null, withContent);
+            return true;
+        }
+        variant = new StaticCache.Entry(entry.getContentType(), -1, entry.getLastModified(), etag, null, null,
+                Collections.emptyList());
+        if (notModified(request.getHeaders(), variant)) {
+            sendNotModified(clientOutput, variant);
+            return true;
+        }
+        clientOutput.response("200 OK")
+                .header(ResponseWriter.CONTENT_TYPE, entry.getContentType())
+                .header(ResponseWriter.CONTENT_ENCODING, coding)
+                .header(ResponseWriter.TRANSFER_ENCODING, "chunked")
+                .header(ResponseWriter.ETAG, etag)
+                .header(ResponseWriter.LAST_MODIFIED, httpDate(entry.getLastModified()))
+                .header(ResponseWriter.VARY, "Accept-Encoding")
+                .sendHead();
+        if (withContent) {
+            try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ);
+                 InputStream in = Channels.newInputStream(channel);
+                 OutputStream compressor = compressor(new BufferedOutputStream(new ChunkedOutputStream(clientOutput), STREAM_BUFFER_SIZE), coding, Deflater.DEFAULT_COMPRESSION)) {
+                byte[] buffer = new byte[STREAM_BUFFER_SIZE];
+                int nbRead;
+                while ((nbRead = in.read(buffer)) != -1) {
+                    compressor.write(buffer, 0, nbRead);
+                }
+            }
+        }
+        return true;
+    }
+
+    private StaticCache.Entry newEntry(String contentType, String coding, long length, long lastModified, String etag,
+                                       byte[] content, List<String> precompressed) {
+        String headers = "Content-Type: " + contentType + "\r\n";
+        if (coding != null) {
+            headers += "Content-Encoding: " + coding + "\r\n";
+        }
+        headers += "Content-Length: " + length + "\r\n"
+                + validators(etag, lastModified);
+        if (coding != null || isCompressible(contentType, length)) {
+            headers += "Vary: Accept-Encoding\r\n";
+        }
+        if (coding == null) {
+            // a Range header makes the request fall back to identity, so only that variant has ranges
+            headers += "Accept-Ranges: bytes\r\n";
+        }
+        return new StaticCache.Entry(contentType, length, lastModified, etag, headers.getBytes(StandardCharsets.ISO_8859_1),
+                content, precompressed);
+    }
+
+    /**
+     * Sends a file from its content in memory, or from the disk if it is not kept in memory.
+     */
+    private void respondFile(HttpRequest request, ConnectionOutputStream clientOutput, StaticCache.Entry entry,
+                             Path filePath, boolean withContent) throws IOException {
+        if (entry.getContent() != null) {
+            respond(request, clientOutput, entry, null, withContent);
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(filePath, StandardOpenOption.READ)) {
+            respond(request, clientOutput, entry, channel, withContent);
+        }
+    }
+
+    /**
+     * Answers a request on a file, from its content in memory or from its channel.
+     */
+    private void respond(HttpRequest request, ConnectionOutputStream clientOutput, StaticCache.Entry entry,
+                         FileChannel channel, boolean withContent) throws IOException {
+        HttpHeaders headers = request.getHeaders();
+        if (notModified(headers, entry)) {
+            sendNotModified(clientOutput, entry);
+            return;
+        }
+        List<long[]> ranges = null;
+        if (withContent && headers.contains("Range") && ifRangeMatches(headers, entry)) {
+            ranges = parseRanges(headers.get("Range"), entry.getLength());
+        }
+        if (ranges == null) {
+            ResponseWriter response = clientOutput.response("200 OK").headers(entry.getHeaders());
+            sendSlice(response, clientOutput, entry, channel, 0, withContent ? entry.getLength() : 0);
+        } else if (ranges.isEmpty()) {
+            clientOutput.response("416 Range Not Satisfiable")
+                    .header(ResponseWriter.CONTENT_RANGE, "bytes */" + entry.getLength())
+                    .send();
+        } else if (ranges.size() == 1) {
+            long[] range = ranges.get(0);
+            long count = range[1] - range[0] + 1;
+            ResponseWriter response = clientOutput.response("206 Partial Content")
+                    .header(ResponseWriter.CONTENT_TYPE, entry.getContentType())
+                    .header(ResponseWriter.CONTENT_RANGE, "bytes " + range[0] + "-" + range[1] + "/" + entry.getLength())
+                    .header(ResponseWriter.CONTENT_LENGTH, count)
+                    .header(ResponseWriter.ETAG, entry.getETag())
+                    .header(ResponseWriter.LAST_MODIFIED, httpDate(entry.getLastModified()));
+            sendSlice(response, clientOutput, entry, channel, range[0], count);
+        } else {
+            sendMultipart(clientOutput, entry, channel, ranges);
+        }
+    }
+
+    private static void sendNotModified(ConnectionOutputStream clientOutput, StaticCache.Entry entry) throws IOException {
+        clientOutput.response("304 Not Modified")
+                .header(ResponseWriter.ETAG, entry.getETag())
+                .header(ResponseWriter.LAST_MODIFIED, httpDate(entry.getLastModified()))
+                .send();
+    }
+
+    /**
+     * Sends several ranges as a multipart/byteranges body.
+     */
+    private static void sendMultipart(ConnectionOutputStream clientOutput, StaticCache.Entry entry,
+                                      FileChannel channel, List<long[]> ranges) throws IOException {
+        String boundary = "BYTERANGES" + Long.toHexString(ThreadLocalRandom.current().nextLong());
+        List<byte[]> partHeads = new ArrayList<>(ranges.size());
+        long length = 0;
+        for (long[] range : ranges) {
+            byte[] head = ("\r\n--" + boundary + "\r\n"
+                    + "Content-Type: " + entry.getContentType() + "\r\n"
+                    + "Content-Range: bytes " + range[0] + "-" + range[1] + "/" + entry.getLength() + "\r\n"
+                    + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+            partHeads.add(head);
+            length += head.length + range[1] - range[0] + 1;
+        }
+        byte[] end = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.ISO_8859_1);
+        length += end.length;
+        clientOutput.response("206 Partial Content")
+                .header(ResponseWriter.CONTENT_TYPE, "multipart/byteranges; boundary=" + boundary)
+                .header(ResponseWriter.CONTENT_LENGTH, length)
+                .header(ResponseWriter.ETAG, entry.getETag())
+                .header(ResponseWriter.LAST_MODIFIED, httpDate(entry.getLastModified()))
+                .sendHead();
+        for (int i = 0; i < ranges.size(); i++) {
+            long[] range = ranges.get(i);
+            clientOutput.write(partHeads.get(i));
+            sendSlice(clientOutput, entry, channel, range[0], range[1] - range[0] + 1);
+        }
+        clientOutput.write(end);
+    }
+
+    /**
+     * Sends a response head followed by a slice of the file, both in one write when the file is in memory.
+     */
+    private static void sendSlice(ResponseWriter response, ConnectionOutputStream clientOutput, StaticCache.Entry entry,
+                                  FileChannel channel, long position, long count) throws IOException {
+        if (count > 0 && channel == null) {
+            response.send(entry.getContent(), (int) position, (int) count);
+            return;
+        }
+        response.sendHead();
+        if (count > 0) {
+            clientOutput.transferFrom(channel, position, count);
+        }
+    }
+
+    private static void sendSlice(ConnectionOutputStream clientOutput, StaticCache.Entry entry, FileChannel channel,
+                                  long position, long count) throws IOException {
+        if (channel == null) {
+            clientOutput.write(entry.getContent(), (int) position, (int) count);
+        } else {
+            clientOutput.transferFrom(channel, position, count);
+        }
+    }
+
+    /**
+     * @return true if the copy of the client is still valid, If-None-Match taking precedence over
+     * If-Modified-Since
+     */
+    private static boolean notModified(HttpHeaders headers, StaticCache.Entry entry) {
+        String ifNoneMatch = headers.get("If-None-Match");
+        if (ifNoneMatch != null) {
+            for (String tag : ifNoneMatch.split(",")) {
+                tag = tag.trim();
+                if (tag.equals("*") || weakTag(tag).equals(entry.getETag())) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        long since = parseDate(headers.get("If-Modified-Since"));
+        return since >= 0 && entry.getLastModified() / 1000 <= since / 1000;
+    }
+
+    /**
+     * @return true if the ranges apply: If-Range is missing, or names the current version of the file
+     */
+    private static boolean ifRangeMatches(HttpHeaders headers, StaticCache.Entry entry) {
+        String ifRange = headers.get("If-Range");
+        if (ifRange == null) {
+            return true;
+        }
+        if (ifRange.startsWith("\"")) {
+            // strong comparison
+            return ifRange.equals(entry.getETag());
+        }
+        long date = parseDate(ifRange);
+        return date >= 0 && entry.getLastModified() / 1000 == date / 1000;
+    }
+
+    /**
+     * Parses a Range header.
+     * @param header value of the header
+     * @param length size of the file
+     * @return the satisfiable ranges as {first, last} byte positions, an empty list if none is
+     * satisfiable, or null if the header is invalid or asks too many ranges and must be ignored
+     */
+    static List<long[]> parseRanges(String header, long length) {
+        if (!header.startsWith("bytes=")) {
+            return null;
+        }
+        String[] specs = header.substring(6).split(",");
+        if (specs.length > MAX_RANGES) {
+            return null;
+        }
+        List<long[]> ranges = new ArrayList<>(specs.length);
+        for (String spec : specs) {
+            spec = spec.trim();
+            int dash = spec.indexOf('-');
+            if (dash < 0) {
+                return null;
+            }
+            long first;
+            long last;
+            try {
+                if (dash == 0) {
+                    long suffix = Long.parseLong(spec.substring(1));
+                    if (suffix == 0) {
+                        continue;
+                    }
+                    first = Math.max(0, length - suffix);
+                    last = length - 1;
+                } else {
+                    first = Long.parseLong(spec.substring(0, dash));
+                    // an open end is past any start, a start past the file then makes the range unsatisfiable
+                    last = dash == spec.length() - 1 ? Long.MAX_VALUE : Long.parseLong(spec.substring(dash + 1));
+                    if (last < first) {
+                        return null;
+                    }
+                    last = Math.min(last, length - 1);
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            if (first < 0) {
+                return null;
+            }
+            if (first < length) {
+                ranges.add(new long[]{first, last});
+            }
+        }
+        return ranges;
+    }
+
+    /**
+     * Lists the content codings the client accepts, best first.
+     * Identity only when compression is disabled or a range is asked, since ranges apply to the
+     * bytes of the file as is.
+     * @param headers request headers
+     * @return the accepted codings among br, gzip and deflate
+     */
+    private List<String> acceptedCodings(HttpHeaders headers) {
+        String accept = headers.get("Accept-Encoding");
+        if (!compression || accept == null || headers.contains("Range")) {
+            return Collections.emptyList();
+        }
+        double wildcard = 0;
+        double[] quality = new double[CODINGS.size()];
+        Arrays.fill(quality, -1);
+        for (String item : accept.split(",")) {
+            String[] parts = item.split(";");
+            String coding = parts[0].trim().toLowerCase(Locale.ROOT);
+            double q = 1;
+            for (int i = 1; i < parts.length; i++) {
+                String parameter = parts[i].trim();
+                if (parameter.startsWith("q=")) {
+                    try {
+                        q = Double.parseDouble(parameter.substring(2));
+                    } catch (NumberFormatException e) {
+                        q = 0;
+                    }
+                }
+            }
+            if (coding.equals("*")) {
+                wildcard = q;
+            } else if (CODINGS.contains(coding)) {
+                quality[CODINGS.indexOf(coding)] = q;
+            }
+        }
+        List<String> accepted = new ArrayList<>(CODINGS.size());
+        for (int i = 0; i < quality.length; i++) {
+            if (quality[i] < 0) {
+                quality[i] = wildcard;
+            }
+            if (quality[i] > 0) {
+                accepted.add(CODINGS.get(i));
+            }
+        }
+        // stable sort: equal qualities keep the order of preference
+        accepted.sort((a, b) -> Double.compare(quality[CODINGS.indexOf(b)], quality[CODINGS.indexOf(a)]));
+        return accepted;
+    }
+
+    private boolean isCompressible(String contentType, long length) {
+        if (!compression || contentType == null || length < compressionMinSize) {
+            return false;
+        }
+        int semicolon = contentType.indexOf(';');
+        String type = (semicolon < 0 ? contentType : contentType.substring(0, semicolon)).trim().toLowerCase(Locale.ROOT);
+        return type.startsWith("text/") || type.endsWith("+xml") || type.endsWith("+json") || COMPRESSIBLE_TYPES.contains(type);
+    }
+
+    private static byte[] compress(byte[] content, String coding) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(content.length / 2 + 64);
+        try (OutputStream compressor = compressor(bytes, coding, Deflater.BEST_COMPRESSION)) {
+            compressor.write(content);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static OutputStream compressor(OutputStream out, String coding, int level) throws IOException {
+        if (coding.equals("gzip")) {
+            return new GZIPOutputStream(out, STREAM_BUFFER_SIZE) {
+                {
+                    def.setLevel(level);
+                }
+            };
+        }
+        return new DeflaterOutputStream(out, new Deflater(level), STREAM_BUFFER_SIZE) {
+            @Override
+            public void close() throws IOException {
+                super.close();
+                def.end();
+            }
+        };
+    }
+
+    private static String siblingSuffix(String coding) {
+        return coding.equals("br") ? ".br" : ".gz";
+    }
+
+    private static String etag(long length, long lastModified, String coding) {
+        return "\"" + Long.toHexString(length) + "-" + Long.toHexString(lastModified)
+                + (coding == null ? "" : "-" + coding) + "\"";
+    }
+
+    /**
+     * @return the entity tag of a compressed variant computed from a file
+     */
+    private static String etag(StaticCache.Entry entry, String coding) {
+        String etag = entry.getETag();
+        return etag.substring(0, etag.length() - 1) + "-" + coding + "\"";
+    }
+
+    private static String validators(String etag, long lastModified) {
+        return "ETag: " + etag + "\r\n"
+                + "Last-Modified: " + httpDate(lastModified) + "\r\n";
+    }
+
+    private static String httpDate(long millis) {
+        return HTTP_DATE.format(Instant.ofEpochMilli(millis));
+    }
+
+    private static String weakTag(String tag) {
+        return tag.startsWith("W/") ? tag.substring(2) : tag;
+    }
+
+    /**
+     * @return the date in milliseconds, or -1 if it is missing or invalid
+     */
+    private static long parseDate(String value) {
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,267 @@
+package http.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Renders the HTML pages generated by the server from the templates of a directory.
+ * A template is an UTF-8 file in which {@code {{name}}} is replaced by the HTML-escaped value
+ * of the parameter name. It is compiled once into a list of pre-encoded literal segments and
+ * parameter names, and kept compiled until its file changes, which is checked at most once
+ * per {@link #CHECK_INTERVAL} milliseconds.
+ * Pages are rendered straight into UTF-8 bytes, in buffers taken from a shared pool, so that
+ * they can be written to a file and sent to the client without intermediate String.
+ */
+public class TemplateEngine {
+
+    /** Milliseconds between two checks of the modification time of a template. */
+    public static final long CHECK_INTERVAL = 1000;
+
+    private static final int POOL_SIZE = 64;
+    private static final int BUFFER_SIZE = 4096;
+    // pages grown past that size are left to the garbage collector
+    private static final int MAX_POOLED_SIZE = 1024 * 1024;
+
+    /**
+     * Compiled template: literals[0], names[0], literals[1], ..., literals[names.length].
+     */
+    public static final class Template {
+        private final byte[][] literals;
+        private final String[] names;
+
+        private Template(byte[][] literals, String[] names) {
+            this.literals = literals;
+            this.names = names;
+        }
+
+        /**
+         * Compiles the source of a template.
+         * @param source content of the template
+         * @return the compiled template
+         */
+        public static Template compile(String source) {
+            List<byte[]> literals = new ArrayList<>();
+            List<String> names = new ArrayList<>();
+            int from = 0;
+            for (; ; ) {
+                int open = source.indexOf("{{", from);
+                int close = open < 0 ? -1 : source.indexOf("}}", open + 2);
+                if (close < 0) {
+                    literals.add(source.substring(from).getBytes(StandardCharsets.UTF_8));
+                    break;
+                }
+                literals.add(source.substring(from, open).getBytes(StandardCharsets.UTF_8));
+                names.add(source.substring(open + 2, close).trim());
+                from = close + 2;
+            }
+            return new Template(literals.toArray(new byte[0][]), names.toArray(new String[0]));
+        }
+
+        /**
+         * Renders the template after the bytes already in the page.
+         * @param values values of the parameters, a missing one renders as nothing
+         * @param page   page to render into
+         */
+        public void render(Map<String, String> values, Page page) {
+            for (int i = 0; i < names.length; i++) {
+                page.append(literals[i]);
+                String value = values.get(names[i]);
+                if (value != null) {
+                    page.appendEscaped(value);
+                }
+            }
+            page.append(literals[names.length]);
+        }
+    }
+
+    /**
+     * Rendered page, in a pooled buffer which goes back to the pool when the page is closed.
+     */
+    public static final class Page implements AutoCloseable {
+        private final ArrayBlockingQueue<Page> pool;
+        private byte[] bytes = new byte[BUFFER_SIZE];
+        private int length;
+
+        private Page(ArrayBlockingQueue<Page> pool) {
+            this.pool = pool;
+        }
+
+        /**
+         * @return buffer holding the page from its index 0, valid until the page is closed
+         */
+        public byte[] getBytes() {
+            return bytes;
+        }
+
+        public int getLength() {
+            return length;
+        }
+
+        /**
+         * @param out where to write the page
+         * @throws IOException
+         */
+        public void writeTo(OutputStream out) throws IOException {
+            out.write(bytes, 0, length);
+        }
+
+        @Override
+        public void close() {
+            length = 0;
+            if (bytes.length <= MAX_POOLED_SIZE) {
+                pool.offer(this);
+            }
+        }
+
+        private void ensureCapacity(int extra) {
+            if (length + extra > bytes.length) {
+                byte[] grown = new byte[Math.max(bytes.length * 2, length + extra)];
+                System.arraycopy(bytes, 0, grown, 0, length);
+                bytes = grown;
+            }
+        }
+
+        private void append(byte[] literal) {
+            ensureCapacity(literal.length);
+            System.arraycopy(literal, 0, bytes, length, literal.length);
+            length += literal.length;
+        }
+
+        private void appendAscii(String s) {
+            for (int i = 0; i < s.length(); i++) {
+                bytes[length++] = (byte) s.charAt(i);
+            }
+        }
+
+        /**
+         * Appends a value encoded in UTF-8, with the HTML special characters escaped.
+         */
+        private void appendEscaped(String value) {
+            int n = value.length();
+            // the longest escape, &quot;, is 6 bytes
+            ensureCapacity(n * 6);
+            for (int i = 0; i < n; i++) {
+                char c = value.charAt(i);
+                switch (c) {
+                    case '&':
+                        appendAscii("&amp;");
+                        break;
+                    case '<':
+                        appendAscii("&lt;");
+                        break;
+                    case '>':
+                        appendAscii("&gt;");
+                        break;
+                    case '"':
+                        appendAscii("&quot;");
+                        break;
+                    case '\'':
+                        appendAscii("&#39;");
+                        break;
+                    default:
+                        if (c < 0x80) {
+                            bytes[length++] = (byte) c;
+                        } else if (c < 0x800) {
+                            bytes[length++] = (byte) (0xc0 | c >> 6);
+                            bytes[length++] = (byte) (0x80 | c & 0x3f);
+                        } else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(value.charAt(i + 1))) {
+                            int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                            bytes[length++] = (byte) (0xf0 | codePoint >> 18);
+                            bytes[length++] = (byte) (0x80 | codePoint >> 12 & 0x3f);
+                            bytes[length++] = (byte) (0x80 | codePoint >> 6 & 0x3f);
+                            bytes[length++] = (byte) (0x80 | codePoint & 0x3f);
+                        } else if (Character.isSurrogate(c)) {
+                            // unpaired surrogate, not encodable
+                            bytes[length++] = '?';
+                        } else {
+                            bytes[length++] = (byte) (0xe0 | c >> 12);
+                            bytes[length++] = (byte) (0x80 | c >> 6 & 0x3f);
+                            bytes[length++] = (byte) (0x80 | c & 0x3f);
+                        }
+                }
+            }
+        }
+    }
+
+    /**
+     * Compiled template with the modification time of its file.
+     */
+    private static final class Entry {
+        private final Template template;
+        private final long lastModified;
+        private final long checkedAt;
+
+        private Entry(Template template, long lastModified, long checkedAt) {
+            this.template = template;
+            this.lastModified = lastModified;
+            this.checkedAt = checkedAt;
+        }
+    }
+
+    private final Path directory;
+    private final Map<String, Entry> templates = new ConcurrentHashMap<>();
+    private final ArrayBlockingQueue<Page> pool = new ArrayBlockingQueue<>(POOL_SIZE);
+
+    /**
+     * @param directory directory of the templates
+     */
+    public TemplateEngine(Path directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Returns a compiled template, compiling it again if its file changed.
+     * @param name file name of the template in the directory
+     * @return the compiled template
+     * @throws IOException if the template cannot be read
+     */
+    public Template get(String name) throws IOException {
+        Entry entry = templates.get(name);
+        long now = System.currentTimeMillis();
+        if (entry != null && now - entry.checkedAt < CHECK_INTERVAL) {
+            return entry.template;
+        }
+        Path file = directory.resolve(name);
+        long lastModified;
+        try {
+            lastModified = Files.getLastModifiedTime(file).toMillis();
+        } catch (NoSuchFileException e) {
+            templates.remove(name);
+            throw e;
+        }
+        Template template;
+        if (entry != null && entry.lastModified == lastModified) {
+            template = entry.template;
+        } else {
+            template = Template.compile(new String(Files.readAllBytes(file), StandardCharsets.UTF_8));
+        }
+        templates.put(name, new Entry(template, lastModified, now));
+        return template;
+    }
+
+    /**
+     * Renders a template into a pooled page, to be closed once written.
+     * @param name   file name of the template in the directory
+     * @param values values of the parameters
+     * @return the rendered page
+     * @throws IOException if the template cannot be read
+     */
+    public Page render(String name, Map<String, String> values) throws IOException {
+        Template template = get(name);
+        Page page = pool.poll();
+        if (page == null) {
+            page = new Page(pool);
+        }
+        template.render(values, page);
+        return page;
+    }
+}
@@ -0,0 +1,432 @@
+package http.server;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Server side of a TLS connection over a SocketChannel, driven by an {@link SSLEngine}.
+ * Reads and writes the plaintext of the connection and follows the mode of the channel:
+ * <ul>
+ *     <li>blocking, the reads wait for a record, within the SO_TIMEOUT of the socket, and the
+ *     writes send everything;</li>
+ *     <li>non-blocking, the reads return 0 and the writes accept fewer bytes when the socket
+ *     is not ready. The records not sent yet are kept until {@link #flush()} can write them,
+ *     and a read may leave records it already received in the buffer, see
+ *     {@link #hasBufferedInput()}.</li>
+ * </ul>
+ * The handshake is advanced by the first reads and writes, or completed by {@link #handshake()}.
+ * One thread may read while others write: the records are unwrapped under one lock and
+ * wrapped under another.
+ */
+final class TlsChannel implements ByteChannel, GatheringByteChannel {
+
+    private static final ByteBuffer[] NO_DATA = new ByteBuffer[0];
+    private static final int RECORD_HEADER = 5;
+
+    private final SocketChannel channel;
+    private final SSLEngine engine;
+    private final TlsContext context;
+    // received records, in write mode
+    private final ByteBuffer netIn;
+    // decrypted bytes not read yet, in read mode
+    private final ByteBuffer appIn;
+    // records to send, in read mode
+    private final ByteBuffer netOut;
+    private final Object readLock = new Object();
+    private final Object writeLock = new Object();
+    private final long start = System.currentTimeMillis();
+    private volatile boolean handshaken;
+    private boolean inputClosed;
+    private InputStream socketInput;
+
+    /**
+     * @param channel connected channel, blocking or not
+     * @param context TLS settings of the listener
+     */
+    TlsChannel(SocketChannel channel, TlsContext context) throws IOException {
+        this.channel = channel;
+        this.context = context;
+        this.engine = context.createEngine();
+        this.netIn = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+        this.appIn = ByteBuffer.allocate(engine.getSession().getApplicationBufferSize());
+        this.appIn.flip();
+        this.netOut = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+        this.netOut.flip();
+        engine.beginHandshake();
+    }
+
+    /**
+     * Advances the handshake as far as the socket allows, in blocking mode until it completes.
+     * @return true once the handshake is complete
+     * @throws IOException if the handshake failed or the client went away
+     */
+    boolean handshake() throws IOException {
+        if (handshaken) {
+            return true;
+        }
+        synchronized (readLock) {
+            synchronized (writeLock) {
+                try {
+                    for (; ; ) {
+                        switch (engine.getHandshakeStatus()) {
+                            case NEED_TASK:
+                                runTasks();
+                                break;
+                            case NEED_WRAP:
+                                if (!flushRecords()) {
+                                    return false;
+                                }
+                                wrap(NO_DATA, 0, 0);
+                                break;
+                            case NEED_UNWRAP:
+                            case NEED_UNWRAP_AGAIN:
+                                // the records of the server go out before waiting for the client
+                                if (!flushRecords() || !unwrap(true)) {
+                                    return false;
+                                }
+                                if (inputClosed) {
+                                    throw new EOFException("connection closed during the handshake");
+                                }
+                                break;
+                            default:
+                                handshaken = true;
+                                context.handshakeCompleted(engine.getSession(), start);
+                                flushRecords();
+                                return true;
+                        }
+                    }
+                } catch (IOException e) {
+                    context.handshakeFailed();
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return protocol negotiated with ALPN, such as h2, or null if the client did not ask
+     */
+    String getApplicationProtocol() {
+        String protocol = engine.getApplicationProtocol();
+        return protocol == null || protocol.isEmpty() ? null : protocol;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        if (!handshake()) {
+            return 0;
+        }
+        synchronized (readLock) {
+            int count = 0;
+            while (dst.hasRemaining()) {
+                if (appIn.hasRemaining()) {
+                    int n = Math.min(appIn.remaining(), dst.remaining());
+                    ByteBuffer slice = appIn.duplicate();
+                    slice.limit(slice.position() + n);
+                    dst.put(slice);
+                    appIn.position(appIn.position() + n);
+                    count += n;
+                    continue;
+                }
+                // the socket is only read while nothing was returned, a blocking read waits for no more
+                if (inputClosed || !unwrap(count == 0)) {
+                    break;
+                }
+                respondToClient();
+            }
+            return count == 0 && inputClosed ? -1 : count;
+        }
+    }
+
+    /**
+     * @return true if a record or decrypted bytes are already there for the next read
+     */
+    boolean hasBufferedInput() {
+        synchronized (readLock) {
+            if (appIn.hasRemaining()) {
+                return true;
+            }
+            if (netIn.position() < RECORD_HEADER) {
+                return false;
+            }
+            int length = (netIn.get(3) & 0xff) << 8 | netIn.get(4) & 0xff;
+            return netIn.position() >= RECORD_HEADER + length;
+        }
+    }
+
+    /**
+     * @return number of decrypted bytes a read returns without waiting
+     */
+    int available() {
+        synchronized (readLock) {
+            return appIn.remaining();
+        }
+    }
+
+    /**
+     * @return stream reading the plaintext of a connection in blocking mode
+     */
+    InputStream inputStream() {
+        return new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                int n = read(b, 0, 1);
+                return n < 0 ? -1 : b[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (len == 0) {
+                    return 0;
+                }
+                int n;
+                do {
+                    n = TlsChannel.this.read(ByteBuffer.wrap(b, off, len));
+                } while (n == 0);
+                return n;
+            }
+
+            @Override
+            public int available() {
+                return TlsChannel.this.available();
+            }
+
+            @Override
+            public void close() throws IOException {
+                TlsChannel.this.close();
+            }
+        };
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        return (int) write(new ByteBuffer[]{src}, 0, 1);
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs) throws IOException {
+        return write(srcs, 0, srcs.length);
+    }
+
+    /**
+     * Encrypts the bytes into records and sends them, in non-blocking mode as far as the
+     * socket accepts them: the last record may be left for {@link #flush()}.
+     * @return number of plaintext bytes consumed
+     */
+    @Override
+    public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        if (!handshake()) {
+            return 0;
+        }
+        synchronized (writeLock) {
+            long count = 0;
+            while (hasRemaining(srcs, offset, length) && flushRecords()) {
+                SSLEngineResult result = wrap(srcs, offset, length);
+                // a session ticket may go out before the data
+                if (result.bytesConsumed() == 0 && result.bytesProduced() == 0) {
+                    throw new SSLException("cannot write in handshake state " + result.getHandshakeStatus());
+                }
+                count += result.bytesConsumed();
+            }
+            flushRecords();
+            return count;
+        }
+    }
+
+    /**
+     * Sends the records left by a non-blocking write, and continues the handshake if it
+     * waited for the socket.
+     * @return true if none is left
+     * @throws IOException
+     */
+    boolean flush() throws IOException {
+        if (!handshaken) {
+            handshake();
+        }
+        synchronized (writeLock) {
+            return flushRecords();
+        }
+    }
+
+    /**
+     * @return true if records wait for the socket to accept them
+     */
+    boolean hasPendingOutput() {
+        synchronized (writeLock) {
+            return netOut.hasRemaining();
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    /**
+     * Sends close_notify if the socket accepts it at once, then closes the channel.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            synchronized (writeLock) {
+                engine.closeOutbound();
+                if (flushRecords()) {
+                    wrap(NO_DATA, 0, 0);
+                    flushRecords();
+                }
+            }
+        } catch (IOException e) {
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Unwraps the next record into the decrypted bytes, which must be empty.
+     * @param mayRead whether the socket can be read if no complete record was received yet
+     * @return false if no record could be unwrapped without reading the socket, or without
+     * blocking in non-blocking mode
+     */
+    private boolean unwrap(boolean mayRead) throws IOException {
+        for (; ; ) {
+            SSLEngineResult result;
+            netIn.flip();
+            appIn.compact();
+            try {
+                result = engine.unwrap(netIn, appIn);
+            } finally {
+                netIn.compact();
+                appIn.flip();
+            }
+            switch (result.getStatus()) {
+                case OK:
+                    return true;
+                case CLOSED:
+                    inputClosed = true;
+                    return true;
+                case BUFFER_UNDERFLOW:
+                    if (!mayRead) {
+                        return false;
+                    }
+                    int nbRead = readRecords();
+                    if (nbRead < 0) {
+                        inputClosed = true;
+                        return true;
+                    }
+                    if (nbRead == 0) {
+                        return false;
+                    }
+                    break;
+                default:
+                    throw new SSLException("unexpected unwrap status " + result.getStatus());
+            }
+        }
+    }
+
+    /**
+     * Answers the messages the client may send after the handshake: the reply to close_notify,
+     * or a key update.
+     */
+    private void respondToClient() throws IOException {
+        for (; ; ) {
+            switch (engine.getHandshakeStatus()) {
+                case NEED_TASK:
+                    runTasks();
+                    break;
+                case NEED_WRAP:
+                    synchronized (writeLock) {
+                        if (!flushRecords()) {
+                            return;
+                        }
+                        wrap(NO_DATA, 0, 0);
+                        flushRecords();
+                    }
+                    if (engine.isOutboundDone()) {
+                        return;
+                    }
+                    break;
+                default:
+                    return;
+            }
+        }
+    }
+
+    private SSLEngineResult wrap(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        SSLEngineResult result;
+        netOut.compact();
+        try {
+            result = engine.wrap(srcs, offset, length, netOut);
+        } finally {
+            netOut.flip();
+        }
+        if (result.getStatus() == SSLEngineResult.Status.CLOSED && result.bytesProduced() == 0
+                && hasRemaining(srcs, offset, length)) {
+            throw new ClosedChannelException();
+        }
+        if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+            throw new SSLException("record larger than the packet buffer");
+        }
+        return result;
+    }
+
+    /**
+     * Reads the socket into the received records, through the stream of the socket in
+     * blocking mode so that the SO_TIMEOUT applies.
+     * @return number of bytes read, -1 at the end of the stream
+     */
+    private int readRecords() throws IOException {
+        if (!channel.isBlocking()) {
+            return channel.read(netIn);
+        }
+        if (socketInput == null) {
+            socketInput = channel.socket().getInputStream();
+        }
+        int nbRead = socketInput.read(netIn.array(), netIn.arrayOffset() + netIn.position(), netIn.remaining());
+        if (nbRead > 0) {
+            netIn.position(netIn.position() + nbRead);
+        }
+        return nbRead;
+    }
+
+    /**
+     * Writes the records to send, the caller holds the write lock.
+     * @return true if all of them were written
+     */
+    private boolean flushRecords() throws IOException {
+        while (netOut.hasRemaining()) {
+            if (channel.write(netOut) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Runs the handshake computations, signatures and key exchanges, on the calling thread.
+     */
+    private void runTasks() {
+        Runnable task;
+        while ((task = engine.getDelegatedTask()) != null) {
+            task.run();
+        }
+    }
+
+    private static boolean hasRemaining(ByteBuffer[] srcs, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            if (srcs[i].hasRemaining()) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
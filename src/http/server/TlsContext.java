@@ -0,0 +1,114 @@
+package http.server;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+import java.io.File;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * TLS settings of the HTTPS listener: the SSLContext built from the keystore, whose session
+ * cache lets the clients resume their sessions, and the SSLEngine of each connection, which
+ * negotiates HTTP/2 or HTTP/1.1 with ALPN.
+ * Counts the full and resumed handshakes for the metrics.
+ */
+public class TlsContext {
+
+    private final SSLContext context;
+    private final String[] protocols;
+    private final String[] applicationProtocols;
+    private final AtomicLong handshakes = new AtomicLong();
+    private final AtomicLong resumed = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+
+    /**
+     * Loads the keystore of the configuration, PKCS12 or JKS.
+     *
+     * @param config server configuration
+     * @throws IOException if the keystore cannot be read or holds no usable key
+     */
+    public TlsContext(ServerConfig config) throws IOException {
+        // read by the JDK when the first context is created, JDK 13+ only
+        System.setProperty("jdk.tls.server.enableSessionTicketExtension",
+                Boolean.toString(config.isTlsSessionTickets()));
+        System.setProperty("jdk.tls.rejectClientInitiatedRenegotiation", "true");
+        char[] password = config.getKeystorePassword().toCharArray();
+        try {
+            KeyStore keyStore = KeyStore.getInstance(new File(config.getKeystore()), password);
+            KeyManagerFactory keys = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            keys.init(keyStore, password);
+            context = SSLContext.getInstance("TLS");
+            context.init(keys.getKeyManagers(), null, null);
+        } catch (GeneralSecurityException | IOException | IllegalArgumentException e) {
+            throw new IOException("cannot load the keystore " + config.getKeystore() + ": " + e.getMessage(), e);
+        }
+        SSLSessionContext sessions = context.getServerSessionContext();
+        sessions.setSessionCacheSize(config.getTlsSessionCache());
+        sessions.setSessionTimeout(config.getTlsSessionTimeout());
+        protocols = config.getTlsProtocols().toArray(new String[0]);
+        applicationProtocols = config.isHttp2() ? new String[]{"h2", "http/1.1"} : new String[]{"http/1.1"};
+        try {
+            createEngine();
+        } catch (IllegalArgumentException e) {
+            throw new IOException("invalid tls-protocols " + config.getTlsProtocols() + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return engine of a new server connection, its handshake not started
+     */
+    SSLEngine createEngine() {
+        SSLEngine engine = context.createSSLEngine();
+        engine.setUseClientMode(false);
+        SSLParameters parameters = engine.getSSLParameters();
+        parameters.setProtocols(protocols);
+        // the first protocol of the server the client supports
+        parameters.setApplicationProtocols(applicationProtocols);
+        parameters.setUseCipherSuitesOrder(true);
+        engine.setSSLParameters(parameters);
+        return engine;
+    }
+
+    /**
+     * Counts a completed handshake. A resumed session was created by an earlier handshake.
+     * @param session session of the connection
+     * @param start time the handshake started, from {@link System#currentTimeMillis()}
+     */
+    void handshakeCompleted(SSLSession session, long start) {
+        handshakes.incrementAndGet();
+        if (session.getCreationTime() < start) {
+            resumed.incrementAndGet();
+        }
+    }
+
+    void handshakeFailed() {
+        failures.incrementAndGet();
+    }
+
+    /**
+     * @return number of completed handshakes, resumed or not
+     */
+    public long getHandshakeCount() {
+        return handshakes.get();
+    }
+
+    /**
+     * @return number of handshakes which resumed a session
+     */
+    public long getResumedCount() {
+        return resumed.get();
+    }
+
+    /**
+     * @return number of handshakes which failed or were abandoned by the client
+     */
+    public long getFailureCount() {
+        return failures.get();
+    }
+}
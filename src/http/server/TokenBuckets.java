@@ -0,0 +1,103 @@
+package http.server;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token buckets keyed by a string, such as a client address and a route, which refill at a
+ * fixed rate up to a burst.
+ * A bucket is a single long, the time at which it is full again, updated by compareAndSet:
+ * taking a token pushes that time one interval later, and the token is refused if the bucket
+ * would then be full later than one burst from now. Buckets are created on first use in a
+ * table whose size is bounded: once it is full, one thread at a time sweeps it while the
+ * others go on, removing first the buckets which are full again, which loses nothing since a
+ * new bucket starts full, then arbitrary ones if every client is still limited.
+ */
+final class TokenBuckets {
+
+    private final Map<String, AtomicLong> buckets = new ConcurrentHashMap<>();
+    private final AtomicBoolean sweeping = new AtomicBoolean();
+    private volatile int maxSize;
+    // nanoseconds to earn a token, and to fill an empty bucket
+    private volatile long interval;
+    private volatile long capacity;
+
+    /**
+     * @param rate    tokens earned per second
+     * @param burst   tokens a full bucket holds
+     * @param maxSize maximum number of buckets kept
+     */
+    TokenBuckets(int rate, int burst, int maxSize) {
+        configure(rate, burst, maxSize);
+    }
+
+    /**
+     * Changes the limits, the buckets in use keep their level.
+     * @param rate    tokens earned per second
+     * @param burst   tokens a full bucket holds
+     * @param maxSize maximum number of buckets kept
+     */
+    void configure(int rate, int burst, int maxSize) {
+        long interval = 1_000_000_000L / Math.max(rate, 1);
+        this.interval = interval;
+        this.capacity = interval * Math.max(burst, 1);
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Takes a token from a bucket.
+     * @param key key of the bucket
+     * @param now current time from {@link System#nanoTime()}
+     * @return 0 if a token was taken, otherwise the nanoseconds until one is available
+     */
+    long acquire(String key, long now) {
+        AtomicLong bucket = buckets.get(key);
+        if (bucket == null) {
+            if (buckets.size() >= maxSize) {
+                sweep(now);
+            }
+            bucket = buckets.computeIfAbsent(key, k -> new AtomicLong(now));
+        }
+        long interval = this.interval;
+        long capacity = this.capacity;
+        for (; ; ) {
+            long fullAt = bucket.get();
+            long next = Math.max(fullAt, now) + interval;
+            if (next - now > capacity) {
+                return next - now - capacity;
+            }
+            if (bucket.compareAndSet(fullAt, next)) {
+                return 0;
+            }
+        }
+    }
+
+    int size() {
+        return buckets.size();
+    }
+
+    /**
+     * Makes room in the table, unless another thread is already doing it.
+     * Removes the full buckets, then arbitrary ones down to three quarters of the maximum size
+     * so that the next sweep is not due at once.
+     */
+    private void sweep(long now) {
+        if (!sweeping.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            buckets.values().removeIf(bucket -> bucket.get() - now <= 0);
+            int target = maxSize / 4 * 3;
+            Iterator<AtomicLong> it = buckets.values().iterator();
+            while (buckets.size() > target && it.hasNext()) {
+                it.next();
+                it.remove();
+            }
+        } finally {
+            sweeping.set(false);
+        }
+    }
+}
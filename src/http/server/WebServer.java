@@ -3,444 +3,1231 @@
 package http.server;
 
 import java.io.*;
-import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.concurrent.CountDownLatch;
 
 /**
  * Java Webserver implemented using Sockets.
  * Handles most popular HTTP Request such as GET, POST, etc.
  * Users can interact with the server by using a client such as postman
  * or in the browser at localhost:{PORT_NUMBER}.
+ * The server runs in the background from {@link #start()} to {@link #stop()}, which lets the
+ * requests in progress complete; its configuration can be reloaded meanwhile.
  */
 public class WebServer {
 
+    // time left to the handlers of aborted connections to fail and delete their temporary files
+    private static final long ABORT_GRACE_MILLIS = 1000;
 
-    private static final String AUTHORIZED_DIRECTORY = "doc";
-    private static final String AUTHORIZED_USER_DIRECTORY = "doc/users/";
-    private static final String INDEX_PATH = "doc/index.html";
-    private static final String ERROR_PATH = "doc/404.html";
-    private static final String HANDLE_REQUEST = "HandleRequest";
+    // shared by every connection, replaced by start() with the configured one
+    private static StaticCache cache = new StaticCache(0);
+    private static FileStore store = new FileStore(FileStore.Durability.WRITE, cache);
+    private static volatile StaticFileHandler staticFiles = new StaticFileHandler(cache, store, MimeTypes.builtIn(),
+            new ServerConfig(0));
+    private static final Metrics metrics = new Metrics();
+    // null when requests are not logged
+    private static AccessLog accessLog;
+    private static volatile Router router = routes(new ServerConfig(0));
+    private static AdmissionControl admission = new AdmissionControl(new ServerConfig(0));
+    // created by start(), it runs a thread
+    private static WriteTimeout writeTimeout;
+    // keep-alive connections of the blocking engine waiting without a worker, null in the other modes
+    private static IdleConnections idleConnections;
 
+    // replaced by reload(), read by the connections when they open
+    private volatile ServerConfig config;
+    private final ConnectionRegistry registry = new ConnectionRegistry();
+    private final CountDownLatch stopped = new CountDownLatch(1);
+    private WorkerPool pool;
+    // one of them, depending on the engine
+    private Listener listener;
+    private NioServer nio;
+    // null without an HTTPS listener
+    private TlsContext tls;
+    private Listener tlsListener;
+    private boolean stopping;
+
+    public WebServer(ServerConfig config) {
+        this.config = config;
+    }
 
     /**
      * Start the application.
      *
-     * @param args port to start the server on
+     * @param args port to start the server on, followed by optional flags (see {@link ServerConfig#fromArgs})
      */
     public static void main(String[] args) {
 
-        if (args.length != 1) {
-            System.out.println("Usage: java EchoServer <EchoServer port>");
+        if (args.length < 1) {
+            System.out.println("Usage: java -jar HTTP-Server.jar <port> [--engine=blocking|nio] [--event-loops=N]"
+                    + " [--executor=pool|virtual|thread]"
+                    + " [--workers=N] [--queue=N] [--rejection=reject|caller-runs] [--stats-interval=SECONDS]"
+                    + " [--keep-alive-timeout=SECONDS] [--max-requests=N] [--max-request-line=BYTES]"
+                    + " [--max-header-size=BYTES] [--max-body-size=BYTES]"
+                    + " [--zero-copy-threshold=BYTES] [--cache-size=BYTES] [--path-cache-size=N]"
+                    + " [--index=LIST] [--compression=on|off]"
+                    + " [--compression-min-size=BYTES] [--max-form-parameters=N] [--max-form-field-size=BYTES]"
+                    + " [--durability=async|write|fsync] [--access-log=FILE] [--access-log-format=common|combined]"
+                    + " [--access-log-buffer=N] [--access-log-overflow=drop|block] [--access-log-max-size=BYTES]"
+                    + " [--access-log-rotation=SECONDS] [--mime-types=FILE] [--http2=on|off]"
+                    + " [--http2-max-streams=N] [--http2-max-connections=N] [--http2-window=BYTES]"
+                    + " [--config=FILE] [--doc-root=DIR]"
+                    + " [--templates=DIR] [--shutdown-timeout=SECONDS] [--reload-interval=SECONDS]"
+                    + " [--tls-port=PORT] [--keystore=FILE] [--keystore-password=PASSWORD] [--tls-protocols=LIST]"
+                    + " [--tls-session-cache=N] [--tls-session-timeout=SECONDS] [--tls-session-tickets=on|off]"
+                    + " [--max-connections-per-ip=N] [--rate-limit=N] [--rate-burst=N] [--rate-limit-table=N]"
+                    + " [--adaptive-concurrency=on|off] [--max-concurrency=N] [--acceptors=N] [--reuse-port=on|off]"
+                    + " [--backlog=N] [--tcp-nodelay=on|off] [--send-buffer=BYTES] [--receive-buffer=BYTES]"
+                    + " [--read-timeout=SECONDS] [--write-timeout=SECONDS]");
             System.exit(1);
         }
         try {
-            int serverPort = Integer.parseInt(args[0]);
+            ServerConfig config = ServerConfig.fromArgs(args);
+            int serverPort = config.getPort();
             System.out.println("Working Directory = " + System.getProperty("user.dir"));
             if (serverPort < 1024 || serverPort > 65535) {
                 System.err.println("Error, the port must be an integer between 1024 and 65535");
                 System.exit(1);
             }
 
-            WebServer ws = new WebServer();
-            ws.start(serverPort);
-        } catch (NumberFormatException e) {
-            System.err.println("Error, the port number must be an integer");
+            WebServer ws = new WebServer(config);
+            ws.start();
+            // ctrl-c or a kill lets the requests in progress complete before the JVM exits
+            Runtime.getRuntime().addShutdownHook(new Thread(ws::stop, "shutdown"));
+            ws.await();
+        } catch (IllegalArgumentException e) {
+            System.err.println("Error, " + e.getMessage());
+        } catch (IOException e) {
+            System.out.println("Error: " + e);
+            System.exit(1);
+        } catch (InterruptedException e) {
         }
     }
 
     /**
-     * WebServer constructor.
+     * Starts the server on the configured port, and on the HTTPS port if one is configured.
+     * Returns once the ports are bound, the connections are then accepted and served by
+     * background threads until {@link #stop()}.
+     *
+     * @throws IOException if a port cannot be bound or the keystore cannot be loaded
      */
-    protected void start(int port) {
-        ServerSocket s;
-        Socket client = null;
-
+    public synchronized void start() throws IOException {
+        int port = config.getPort();
+        if (config.getTlsPort() > 0) {
+            tls = new TlsContext(config);
+        }
         System.out.println("Webserver starting up on port " + port);
         System.out.println("(press ctrl-c to exit)");
+        pool = new WorkerPool(config);
+        System.out.println("Executing clients with " + pool.getMode() + " mode");
+        cache = new StaticCache(config.getCacheSize(), config.getPathCacheSize());
+        store = new FileStore(config.getDurability(), cache);
+        staticFiles = new StaticFileHandler(cache, store, mimeTypes(config), config);
+        router = routes(config);
+        admission = new AdmissionControl(config);
+        writeTimeout = new WriteTimeout(config.getWriteTimeout() * 1000L);
+        if (config.getAccessLog() != null) {
+            try {
+                accessLog = new AccessLog(Paths.get(config.getAccessLog()), config.getAccessLogFormat(),
+                        config.getAccessLogBuffer(), config.getAccessLogOverflow(), config.getAccessLogMaxSize(),
+                        config.getAccessLogRotation() * 1000L);
+            } catch (IOException e) {
+                System.out.println("Error: " + e);
+            }
+        }
         try {
-            // create the main server socket
-            s = new ServerSocket(port);
-        } catch (Exception e) {
+            cache.watch(Paths.get(config.getDocRoot()));
+        } catch (IOException e) {
             System.out.println("Error: " + e);
+        }
+        registerMetrics(pool, tls);
+        if (config.getStatsInterval() > 0) {
+            startStatsReporter(pool, config.getStatsInterval());
+        }
+        if (config.getEngine() == ServerConfig.Engine.NIO) {
+            nio = new NioServer(config, pool, registry, tls);
+            nio.start(port);
+        } else {
+            if (pool.getMode() == WorkerPool.Mode.POOL) {
+                // with virtual or per-connection threads, a connection waiting for a request costs nothing
+                IdleConnections idle = idleConnections = new IdleConnections();
+                metrics.register("http_server_connections_parked", "gauge",
+                        "Keep-alive connections waiting for their next request without a worker.", idle::size);
+            }
+            // the connections are accepted through channels so that the client sockets have one to send files
+            listener = new Listener("acceptor", port, config);
+            if (tls != null) {
+                try {
+                    tlsListener = new Listener("tls-acceptor", config.getTlsPort(), config);
+                } catch (IOException e) {
+                    listener.close();
+                    throw e;
+                }
+            }
+            System.out.println("Waiting for connection (" + config.getAcceptors() + " acceptors per port)");
+            listener.start(channel -> accepted(channel, null));
+            if (tls != null) {
+                tlsListener.start(channel -> accepted(channel, tls));
+            }
+        }
+        if (tls != null) {
+            System.out.println("Serving HTTPS on port " + config.getTlsPort());
+        }
+        if (config.getConfigFile() != null && config.getReloadInterval() > 0) {
+            startConfigReloader(Paths.get(config.getConfigFile()));
+        }
+    }
+
+    /**
+     * Stops the server within the configured shutdown timeout.
+     * @see #stop(long)
+     */
+    public void stop() {
+        stop(config.getShutdownTimeout() * 1000L);
+    }
+
+    /**
+     * Stops the server gracefully: stops accepting connections, closes the idle ones and lets
+     * the others complete their current request, then waits for the pending file modifications
+     * and closes the access log. The connections still open when the timeout expires are
+     * aborted. Does nothing if the server is not running.
+     * @param timeoutMillis how long to wait for the requests in progress
+     */
+    public void stop(long timeoutMillis) {
+        synchronized (this) {
+            if (pool == null || stopping) {
+                return;
+            }
+            stopping = true;
+        }
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        System.out.println("Webserver shutting down, draining " + registry.size() + " connections");
+        if (nio != null) {
+            nio.stopAccepting();
+        } else {
+            listener.close();
+            if (tlsListener != null) {
+                tlsListener.close();
+            }
+        }
+        if (!registry.drain(timeoutMillis)) {
+            System.out.println("Shutdown timeout expired, connections still open were closed");
+        }
+        if (idleConnections != null) {
+            idleConnections.close();
+            idleConnections = null;
+        }
+        if (nio != null) {
+            nio.stop();
+        }
+        pool.shutdown();
+        pool.awaitTermination(Math.max(deadline - System.currentTimeMillis(), ABORT_GRACE_MILLIS));
+        if (!store.shutdown(Math.max(deadline - System.currentTimeMillis(), ABORT_GRACE_MILLIS))) {
+            System.out.println("Error: file modifications still pending at shutdown");
+        }
+        AccessLog log = accessLog;
+        if (log != null) {
+            log.close();
+        }
+        System.out.println("Webserver stopped");
+        stopped.countDown();
+    }
+
+    /**
+     * Waits for the server to be stopped.
+     * @throws InterruptedException if the current thread is interrupted
+     */
+    public void await() throws InterruptedException {
+        stopped.await();
+    }
+
+    /**
+     * Reads the configuration again and applies it without a restart, so that the connections,
+     * the cache and the threads stay warm: the number of workers, the cache size, the timeouts
+     * and limits, the document root, the templates, the MIME types, the compression and the
+     * HTTP/2 settings. The blocking engine applies the keep-alive timeout and the request
+     * limits to the connections opened afterwards. The options which need a restart are
+     * reported and otherwise ignored.
+     * @return false if the configuration is invalid, the server then keeps the current one
+     */
+    public synchronized boolean reload() {
+        ServerConfig previous = config;
+        ServerConfig next;
+        try {
+            next = previous.reload();
+        } catch (IllegalArgumentException e) {
+            System.err.println("Error, " + e.getMessage());
+            return false;
+        }
+        if (pool == null || stopping) {
+            return false;
+        }
+        pool.resize(next.getWorkerThreads());
+        pool.setMaxReaders(next.getHttp2MaxConnections());
+        cache.setMaxSize(next.getCacheSize());
+        cache.setMaxResources(next.getPathCacheSize());
+        if (!next.getDocRoot().equals(previous.getDocRoot()) || previous.getCacheSize() <= 0 && next.getCacheSize() > 0) {
+            try {
+                cache.watch(Paths.get(next.getDocRoot()));
+            } catch (IOException e) {
+                System.out.println("Error: " + e);
+            }
+        }
+        staticFiles = new StaticFileHandler(cache, store, mimeTypes(next), next);
+        router = routes(next);
+        admission.reconfigure(next);
+        writeTimeout.setTimeout(next.getWriteTimeout() * 1000L);
+        if (nio != null) {
+            nio.reconfigure(next);
+        } else {
+            listener.reconfigure(next);
+            if (tlsListener != null) {
+                tlsListener.reconfigure(next);
+            }
+        }
+        config = next;
+        for (String name : previous.restartRequired(next)) {
+            System.out.println("Option " + name + " only changes on a restart");
+        }
+        System.out.println("Configuration reloaded");
+        return true;
+    }
+
+    /**
+     * Checks the configuration file every reload interval and reloads the configuration when
+     * the file is modified.
+     * @param file configuration file
+     */
+    private void startConfigReloader(Path file) {
+        Thread reloader = new Thread(() -> {
+            long modified = lastModified(file);
+            try {
+                for (; ; ) {
+                    int interval = config.getReloadInterval();
+                    if (interval <= 0) {
+                        return;
+                    }
+                    Thread.sleep(interval * 1000L);
+                    long current = lastModified(file);
+                    if (current != modified) {
+                        modified = current;
+                        reload();
+                    }
+                }
+            } catch (InterruptedException e) {
+            }
+        }, "config-reloader");
+        reloader.setDaemon(true);
+        reloader.start();
+    }
+
+    private static long lastModified(Path file) {
+        try {
+            return Files.getLastModifiedTime(file).toMillis();
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @param config server configuration
+     * @return the configured MIME types, or the built-in ones if the file cannot be read
+     */
+    private static MimeTypes mimeTypes(ServerConfig config) {
+        if (config.getMimeTypes() != null) {
+            try {
+                return MimeTypes.load(Paths.get(config.getMimeTypes()));
+            } catch (IOException e) {
+                System.out.println("Error: " + e);
+            }
+        }
+        return MimeTypes.builtIn();
+    }
+
+    /**
+     * Blocking engine: hands a connection accepted by a {@link Listener} to the worker pool.
+     * @param channel channel of the connection
+     * @param tls TLS settings of the HTTPS port, null for HTTP
+     */
+    private void accepted(SocketChannel channel, TlsContext tls) {
+        Socket client = channel.socket();
+        String address = client.getInetAddress().getHostAddress();
+        if (!admission.openConnection(address)) {
+            rejectClient(client, tls != null, "429 Too Many Requests");
             return;
         }
-        System.out.println("Waiting for connection");
-        for (; ; ) {
+        try {
+            ClientHandler clientSock = new ClientHandler(client, config, pool, registry, tls);
+            if (!pool.submit(clientSock)) {
+                admission.closeConnection(address);
+                rejectClient(client, tls != null, "503 Service Unavailable");
+            }
+        } catch (Exception e1) {
+            System.out.println("Error: " + e1);
+            e1.printStackTrace();
+        }
+    }
+
+    /**
+     * Answers a client refused before it takes a worker, with 503 if the worker pool had no
+     * room for it or 429 if its address has too many connections, then closes its connection.
+     * An HTTPS client is only disconnected, the handshake would need a worker.
+     * @param client Socket of the rejected client, in blocking mode
+     * @param secure whether the client connected to the HTTPS port
+     * @param status status of the response
+     */
+    static void rejectClient(Socket client, boolean secure, String status) {
+        if (!secure) {
             try {
-                // wait for a connection
-                client = s.accept();
-                ClientHandler clientSock = new ClientHandler(client);
-                new Thread(clientSock).start();
-            } catch (Exception e1) {
-                System.out.println("Error: " + e1);
-                e1.printStackTrace();
+                ConnectionOutputStream clientOutput = new ConnectionOutputStream(client.getOutputStream());
+                clientOutput.setKeepAlive(false);
+                clientOutput.response(status).header(ResponseWriter.RETRY_AFTER, AdmissionControl.OVERLOAD_RETRY_AFTER).send();
+                clientOutput.flush();
+            } catch (Exception e) {
             }
         }
+        try {
+            client.close();
+        } catch (Exception e) {
+        }
+    }
+
+    /**
+     * Registers the handlers of the server, each one a single instance shared by every request.
+     * The index of the document root answers /, the files of the document root are served under
+     * /doc/ and the form actions under /HandleRequest/. Any other path is forbidden.
+     * The paths under /doc/ go through the {@link ResourceResolver}: reads get the index of a
+     * directory, writes the path as is.
+     * @param config server configuration
+     * @return the routes of the server
+     */
+    private static Router routes(ServerConfig config) {
+        Router routes = new Router();
+        StaticFileHandler files = staticFiles;
+        ResourceResolver resolver = new ResourceResolver(config, cache);
+        routes.add("GET", "/", (request, body, out, parameters) -> files.doGET(request, out, resolver.resolve("")))
+                .add("HEAD", "/", (request, body, out, parameters) -> files.doHEAD(request, out, resolver.resolve("")))
+                .add("OPTIONS", "/", (request, body, out, parameters) -> ClientHandler.doOPTIONS(out, resolver.resolve("")));
+        String doc = "/doc/*path";
+        routes.add("GET", doc, (request, body, out, parameters) -> files.doGET(request, out, resolver.resolve(parameters.get("path"))))
+                .add("HEAD", doc, (request, body, out, parameters) -> files.doHEAD(request, out, resolver.resolve(parameters.get("path"))))
+                .add("POST", doc, (request, body, out, parameters) -> ClientHandler.doPOST(body, out, resolver.locate(parameters.get("path"))))
+                .add("PUT", doc, (request, body, out, parameters) -> ClientHandler.doPUT(body, out, resolver.locate(parameters.get("path"))))
+                .add("DELETE", doc, (request, body, out, parameters) -> ClientHandler.doDELETE(out, resolver.locate(parameters.get("path"))))
+                .add("OPTIONS", doc, (request, body, out, parameters) -> ClientHandler.doOPTIONS(out, resolver.resolve(parameters.get("path"))));
+        routes.add("GET", "/metrics", (request, body, out, parameters) -> metrics.doGET(out));
+        new HandleRequest(new FormDecoder(config.getMaxFormParameters(), config.getMaxFormFieldSize()),
+                new TemplateEngine(Paths.get(config.getTemplates())), config.getDocRoot()).register(routes);
+        return routes;
+    }
+
+    /**
+     * @return cache of the static files, to be invalidated when a file is modified
+     */
+    static StaticCache getCache() {
+        return cache;
+    }
+
+    /**
+     * @return watchdog of the blocking writes to the clients
+     */
+    static WriteTimeout getWriteTimeout() {
+        return writeTimeout;
+    }
+
+    /**
+     * @return admission control of the connections and the requests
+     */
+    static AdmissionControl getAdmission() {
+        return admission;
+    }
+
+    /**
+     * @return metrics of the server, recorded by the connections and the handlers
+     */
+    static Metrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Exposes the statistics of the worker pool, of the cache, of the admission control and of
+     * the TLS handshakes with the metrics. The resumption hit rate is the ratio of the resumed
+     * handshakes to all of them.
+     * @param pool pool running the client handlers
+     * @param tls TLS settings of the HTTPS port, null without one
+     */
+    private static void registerMetrics(WorkerPool pool, TlsContext tls) {
+        metrics.register("http_server_workers_active", "gauge", "Worker tasks currently running.", pool::getActiveCount);
+        metrics.register("http_server_workers_queued", "gauge", "Tasks waiting for a worker.", pool::getQueuedCount);
+        metrics.register("http_server_workers_rejected_total", "counter", "Tasks the pool had no room for.",
+                pool::getRejectedCount);
+        metrics.register("http_server_cache_bytes", "gauge", "Bytes kept in the static cache, the headers of the files kept without their content.", () -> cache.getSize());
+        metrics.register("http_server_cache_hits_total", "counter", "Static cache hits.", () -> cache.getHitCount());
+        metrics.register("http_server_cache_misses_total", "counter", "Static cache misses.", () -> cache.getMissCount());
+        metrics.register("http_server_cache_evictions_total", "counter", "Static cache evictions.",
+                () -> cache.getEvictionCount());
+        metrics.register("http_server_cache_invalidations_total", "counter", "Static cache invalidations.",
+                () -> cache.getInvalidationCount());
+        metrics.register("http_server_admission_connections_rejected_total", "counter",
+                "Connections refused because their address had too many.", () -> admission.getConnectionsRejected());
+        metrics.register("http_server_admission_rate_limited_total", "counter",
+                "Requests refused with 429 by the rate limit.", () -> admission.getRateLimited());
+        metrics.register("http_server_admission_overloaded_total", "counter",
+                "Requests refused with 503 by the concurrency limit of their route.", () -> admission.getOverloaded());
+        metrics.register("http_server_admission_buckets", "gauge", "Client and route pairs whose rate is tracked.",
+                () -> admission.getBucketCount());
+        metrics.register("http_server_admission_concurrency_limit", "gauge",
+                "Sum of the adaptive concurrency limits of the routes.", () -> admission.getConcurrencyLimit());
+        AccessLog log = accessLog;
+        if (log != null) {
+            metrics.register("http_server_access_log_dropped_total", "counter",
+                    "Access log records dropped because the buffer was full.", log::getDroppedCount);
+        }
+        if (tls != null) {
+            metrics.register("http_server_tls_handshakes_total", "counter", "Completed TLS handshakes.",
+                    tls::getHandshakeCount);
+            metrics.register("http_server_tls_handshakes_resumed_total", "counter",
+                    "TLS handshakes which resumed a session.", tls::getResumedCount);
+            metrics.register("http_server_tls_handshake_failures_total", "counter",
+                    "TLS handshakes which failed or were abandoned.", tls::getFailureCount);
+        }
+    }
+
+    /**
+     * @return store through which the files are modified
+     */
+    static FileStore getStore() {
+        return store;
+    }
+
+    /**
+     * Periodically prints the worker pool and cache statistics so that the pool can be sized.
+     * @param pool pool to report on
+     * @param interval seconds between two reports
+     */
+    private static void startStatsReporter(WorkerPool pool, int interval) {
+        Thread reporter = new Thread(() -> {
+            try {
+                for (; ; ) {
+                    Thread.sleep(interval * 1000L);
+                    System.out.println(pool);
+                    System.out.println(cache);
+                    System.out.println(admission);
+                }
+            } catch (InterruptedException e) {
+            }
+        }, "stats-reporter");
+        reporter.setDaemon(true);
+        reporter.start();
     }
 
     /**
      * ClientHandler class implements Runnable because we want our
      * server to be able to handle multiple clients simultaneously with multithreading.
+     * The request handling itself only depends on the connection streams so that the
+     * NIO engine can reuse it.
      */
-    private static class ClientHandler implements Runnable {
+    static class ClientHandler implements Runnable, ConnectionRegistry.Connection, IdleConnections.Parked {
         private final Socket client;
+        private final String address;
+        private final ServerConfig config;
+        private final WorkerPool pool;
+        private final ConnectionRegistry registry;
+        // null on the HTTP port
+        private final TlsContext tls;
+        // guarded by this: a request is in progress, the connection must close, it switched to HTTP/2,
+        // it waits for its next request without a worker, it is closed
+        private boolean busy;
+        private boolean closing;
+        private Http2Connection http2;
+        private boolean parked;
+        private boolean closed;
+        // set by the thread serving the connection, which closes them unless the connection is
+        // parked or handed over to an HTTP/2 reader
+        private TlsChannel secure;
+        private WriteTimeout.Guard guard;
+        private ConnectionOutputStream clientOutput;
+        private BufferedInputStream in;
+        private RequestParser parser;
+        private int served;
+        private boolean handedOver;
+
         // Constructor
-        public ClientHandler(Socket socket) {
+        public ClientHandler(Socket socket, ServerConfig config, WorkerPool pool, ConnectionRegistry registry,
+                             TlsContext tls) {
             this.client = socket;
+            this.address = socket.getInetAddress().getHostAddress();
+            this.config = config;
+            this.pool = pool;
+            this.registry = registry;
+            this.tls = tls;
+        }
+
+        /**
+         * Closes the socket if the connection waits for the next request, otherwise the current
+         * request completes first.
+         */
+        @Override
+        public synchronized void drain() {
+            if (http2 != null) {
+                http2.drain();
+                return;
+            }
+            closing = true;
+            if (!busy) {
+                abort();
+            }
+        }
+
+        @Override
+        public void abort() {
+            boolean idle;
+            synchronized (this) {
+                idle = parked;
+                parked = false;
+            }
+            try {
+                client.close();
+            } catch (IOException e) {
+            }
+            if (idle) {
+                // no worker will see the connection again
+                close();
+            }
+        }
+
+        /**
+         * Gives the connection a worker again once the client sent its next request, or answers
+         * 503 if the pool has no room for it.
+         */
+        @Override
+        public void resume() {
+            synchronized (this) {
+                if (!parked) {
+                    // aborted meanwhile
+                    return;
+                }
+                parked = false;
+            }
+            if (!pool.offer(this)) {
+                try {
+                    clientOutput.setKeepAlive(false);
+                    clientOutput.response("503 Service Unavailable")
+                            .header(ResponseWriter.RETRY_AFTER, AdmissionControl.OVERLOAD_RETRY_AFTER).send();
+                } catch (Exception e) {
+                }
+                close();
+            }
+        }
+
+        /**
+         * Closes the connection, which stayed idle for the keep-alive timeout.
+         */
+        @Override
+        public void expire() {
+            synchronized (this) {
+                parked = false;
+            }
+            close();
         }
 
         /**
-         * Function to run when our thread is started.
+         * Marks the connection busy once the first byte of a request arrived.
+         * @return false if the connection must close instead
+         */
+        private synchronized boolean startRequest() {
+            busy = !closing;
+            return busy;
+        }
+
+        /**
+         * @return false if the connection must close instead of waiting for the next request
+         */
+        private synchronized boolean endRequest() {
+            busy = false;
+            return !closing;
+        }
+
+        private synchronized boolean isClosing() {
+            return closing;
+        }
+
+        /**
+         * Function to run when our thread is started, and again whenever the connection is resumed.
+         * Serves the requests of the connection one after the other until the client or the
+         * server closes it, the connection stays idle for too long or it reaches the maximum
+         * number of requests. On the HTTPS port, the handshake completes first, within the
+         * keep-alive timeout. Once a request started, the client must send the rest of it within
+         * the read timeout, and read the response within the write timeout. Between two requests,
+         * a connection with nothing to read is parked in the {@link IdleConnections} when the
+         * workers are a bounded pool, so that it gives its worker back until the client speaks.
          */
         @Override
         public void run() {
+            boolean idle = false;
             try {
-                handleClient(this.client);
+                boolean resumed = in != null;
+                if (!resumed && !open()) {
+                    // counted by the TLS context, nothing to answer
+                    return;
+                }
+                idle = serve(resumed);
+            } catch (SocketTimeoutException e) {
+                // idle connection, or a client too slow to send its request, nothing to answer
             } catch (Exception e1) {
+                if (isClosing()) {
+                    // closed by a shutdown
+                    return;
+                }
                 System.out.println("Error: " + e1);
                 e1.printStackTrace();
                 try {
-                    sendHeader(client, "500 Internal Server Error");
+                    clientOutput.setKeepAlive(false);
+                    clientOutput.response("500 Internal Server Error").send();
                 } catch (Exception e2) {
                 }
-                try {
-                    client.close();
-                } catch (Exception e) {
+            } finally {
+                if (!idle && !handedOver) {
+                    close();
                 }
-
             }
         }
 
         /**
-         * Handles the client actions once there is a client connected.
-         * Reads the request parameters and acts accordingly.
-         * @param client Socket currently connected.
+         * Registers the connection and opens its streams, once the handshake completed on the
+         * HTTPS port.
+         * @return false if the handshake failed
          * @throws IOException
          */
-        private void handleClient(Socket client) throws IOException {
-            BufferedInputStream in = new BufferedInputStream(client.getInputStream());
-            String request = new String();
-
-            //Reads all request parameters until a CRLF sequence
-            int currentByte = '\0', prevByte = '\0';
-            boolean newline = false;
-            while ((currentByte = in.read()) != -1 && !(newline && prevByte == '\r' && currentByte == '\n')) {
-                if (prevByte == '\r' && currentByte == '\n') {
-                    newline = true;
-                } else if (!(prevByte == '\n' && currentByte == '\r')) {
-                    newline = false;
-                }
-                prevByte = currentByte;
-                request += (char) currentByte;
-            }
-
-            System.out.println("request: " + request);
-            if (request.isEmpty()) {
-                sendHeader(client, "400 Bad Request");
-                return;
-            }
-
-            /**
-             * Parse the request parameters
-             */
-            String[] requestsLines = request.split("\r\n");
-            String[] requestLine = requestsLines[0].split(" ");
-            String method = requestLine[0];
-            String filename = requestLine[1].substring(1, requestLine[1].length());
-            String version = requestLine[2];
-            String host = requestsLines[1].split(" ")[1];
-
-            boolean requestToHandle = false;
-
-            List<String> headers = new ArrayList<>();
-            for (int h = 2; h < requestsLines.length - 1; h++) {
-                String header = requestsLines[h];
-                if (requestsLines[h].startsWith("Content-Type: application/x-www-form-urlencoded")) {
-                    requestToHandle = true;
+        private boolean open() throws IOException {
+            metrics.connectionOpened();
+            registry.add(this);
+            client.setSoTimeout(config.getKeepAliveTimeout() * 1000);
+            guard = writeTimeout.guard(client);
+            WritableByteChannel channel = client.getChannel();
+            InputStream socketInput;
+            if (tls != null) {
+                channel = secure = new TlsChannel(client.getChannel(), tls);
+                try {
+                    secure.handshake();
+                } catch (IOException e) {
+                    return false;
                 }
-                headers.add(header);
+                socketInput = secure.inputStream();
+            } else {
+                socketInput = client.getInputStream();
             }
-            /**
-             * If resource is empty, redirect to index file
-             * If it's withing the authorized directory, call the corresponding method
-             * Otherwise, access is forbidden for security purposes
-             */
-            try {
-                if (headers.isEmpty() || method.isEmpty()) {
-                    sendHeader(client, "400 Bad Request");
-                    return;
+            OutputStream socketOutput = channel != null
+                    ? ConnectionOutputStream.channelOutput(channel, guard)
+                    : client.getOutputStream();
+            ConnectionOutputStream output = clientOutput = new ConnectionOutputStream(socketOutput, channel);
+            output.setWriteGuard(guard);
+            // the responses wait in the output buffer until reading would block on the socket,
+            // so that the responses to pipelined requests are sent together
+            in = new BufferedInputStream(new FilterInputStream(socketInput) {
+                @Override
+                public int read() throws IOException {
+                    flushIfIdle();
+                    int b = super.read();
+                    if (b >= 0) {
+                        metrics.addBytesIn(1);
+                    }
+                    return b;
                 }
 
-                if (filename.startsWith(HANDLE_REQUEST)) {
-                    HandleRequest handleRequest = new HandleRequest();
-                    if (method.equals("POST") && requestToHandle) {
-                        handleRequest.doPOST(in, client);
-                    } else {
-                        sendHeader(client, "501 Not Implemented");
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    flushIfIdle();
+                    int nbRead = super.read(b, off, len);
+                    if (nbRead > 0) {
+                        metrics.addBytesIn(nbRead);
                     }
+                    return nbRead;
+                }
 
-                } else if (filename.isEmpty()) {
-                    if (method.equals("GET")) {
-                        doGET(client, INDEX_PATH);
-                    } else if (method.equals("HEAD")) {
-                        doHEAD(client, INDEX_PATH);
-                    } else if (method.equals("OPTIONS")) {
-                        doOPTIONS(client, INDEX_PATH);
-                    } else {
-                        sendHeader(client, "403 Forbidden");
+                private void flushIfIdle() throws IOException {
+                    if (super.available() == 0) {
+                        output.flush();
                     }
+                }
+            });
+            parser = new RequestParser(config.getMaxRequestLine(), config.getMaxHeaderSize());
+            parser.getRequest().setRemoteAddress(address);
+            return true;
+        }
 
-                } else if (filename.startsWith(AUTHORIZED_DIRECTORY)) {
-                    if (method.equals("GET")) {
-                        doGET(client, filename);
-                    } else if (method.equals("POST")) {
-                        doPOST(in, client, filename);
-                    } else if (method.equals("PUT")) {
-                        doPUT(in, client, filename);
-                    } else if (method.equals("HEAD")) {
-                        doHEAD(client, filename);
-                    } else if (method.equals("DELETE")) {
-                        doDELETE(client, filename);
-                    } else if (method.equals("OPTIONS")) {
-                        doOPTIONS(client, filename);
-                    } else {
-                        sendHeader(client, "501 Not Implemented");
+        /**
+         * Serves the requests of the connection until it must close, or until none is waiting
+         * and the connection can be parked.
+         * @param readable true if the client sent something since the connection was parked
+         * @return true if the connection was parked, to be run again on its next request
+         * @throws IOException
+         */
+        private boolean serve(boolean readable) throws IOException {
+            int idleTimeout = config.getKeepAliveTimeout() * 1000;
+            IdleConnections idle = idleConnections;
+            for (; ; ) {
+                if (!readable && idle != null && client.getChannel() != null && !hasBufferedInput()) {
+                    clientOutput.flush();
+                    synchronized (this) {
+                        if (closing) {
+                            return false;
+                        }
+                        parked = true;
                     }
-                } else {
-                    sendHeader(client, "403 Forbidden");
+                    idle.park(client.getChannel(), idleTimeout, this);
+                    return true;
+                }
+                // the connection is idle until the first byte of the next request arrives
+                in.mark(1);
+                if (in.read() < 0 || !startRequest()) {
+                    return false;
+                }
+                in.reset();
+                client.setSoTimeout(config.getReadTimeout() * 1000);
+                served++;
+                boolean keepAlive = handleClient(in, clientOutput, parser,
+                        served >= config.getMaxRequests() || registry.isDraining());
+                if (!endRequest() || !keepAlive) {
+                    return false;
+                }
+                client.setSoTimeout(idleTimeout);
+                readable = false;
+            }
+        }
+
+        /**
+         * @return true if bytes of the connection were already received and buffered, so that
+         * the next request must be read without waiting for the socket
+         */
+        private boolean hasBufferedInput() throws IOException {
+            return in.available() > 0 || secure != null && secure.hasBufferedInput();
+        }
+
+        /**
+         * Sends what is left in the output buffer, then closes the connection, once.
+         */
+        private void close() {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+            }
+            try {
+                if (clientOutput != null) {
+                    clientOutput.flush();
                 }
             } catch (Exception e) {
-                try {
-                    e.printStackTrace();
-                    sendHeader(client, "500 Internal Server Error");
-                } catch (Exception e2) {
+            }
+            try {
+                if (secure != null) {
+                    secure.close();
+                } else {
+                    client.close();
                 }
+            } catch (Exception e) {
+            }
+            if (guard != null) {
+                guard.close();
             }
-            in.close();
+            metrics.connectionClosed();
+            admission.closeConnection(address);
+            registry.remove(this);
         }
 
+        /**
+         * Reads the head of the next request of a connected client and handles the request.
+         * @param in stream the request is read from, positioned at the start of the request
+         * @param clientOutput stream the response is written to
+         * @param parser parser of the connection
+         * @param lastRequest true if the connection must be closed after this request
+         * @return true if the connection can be used for another request
+         * @throws IOException
+         */
+        private boolean handleClient(BufferedInputStream in, ConnectionOutputStream clientOutput, RequestParser parser, boolean lastRequest) throws IOException {
+            try {
+                if (!parser.readHead(in)) {
+                    // the client closed the connection between two requests
+                    return false;
+                }
+            } catch (HttpParseException e) {
+                clientOutput.setKeepAlive(false);
+                clientOutput.response(e.getStatus()).send();
+                metrics.record(null, e.getStatus(), 0);
+                return false;
+            }
+            HttpRequest request = parser.getRequest();
+            boolean preface = config.isHttp2() && Http2Connection.isPreface(request);
+            if (preface || config.isHttp2() && Http2Connection.isUpgrade(request)) {
+                if (pool.reserveReader()) {
+                    switchToHttp2(request, in, clientOutput);
+                    return false;
+                }
+                if (preface) {
+                    // no room for another HTTP/2 connection, and the client speaks nothing else
+                    return false;
+                }
+                // the upgrade is optional, the request is answered in HTTP/1.1
+            }
+            return handleRequest(request, in, clientOutput, lastRequest, config);
+        }
 
         /**
-         * Given a client and a filename to access, returns to the client the content of the file if it exists
-         * or 404 otherwise.
-         *
-         * @param client
-         * @param filename
+         * Hands the connection over to an {@link Http2Connection} run by a reader thread of the
+         * pool, reserved by the caller, so that the worker returns to the requests: the streams of
+         * the connection are handled by the workers while the reader waits for the next frame.
+         * The reader closes the connection once the client or the server ended it.
+         * @param request PRI or upgrade request
+         * @param in stream positioned after the head of the request
+         * @param clientOutput stream the frames are written to
          * @throws IOException
          */
-        private void doGET(Socket client, String filename) throws IOException {
-            File file = new File(filename);
-            if (file.exists() && file.isFile()) {
-                Path filePath = Paths.get(filename);
-                String contentType = guessContentType(filePath);
-                sendContentResponse(client, "200 OK", contentType, Files.readAllBytes(filePath), file.length());
-            } else {
-                sendHeader(client, "404 Not Found");
+        private void switchToHttp2(HttpRequest request, BufferedInputStream in, ConnectionOutputStream clientOutput) throws IOException {
+            HttpRequest upgrade = Http2Connection.isUpgrade(request) ? request : null;
+            Http2Connection connection = new Http2Connection(config, pool, address);
+            synchronized (this) {
+                http2 = connection;
+                if (closing) {
+                    connection.drain();
+                }
             }
+            // the connection is HTTP/2 until it is closed, idle between its frames
+            client.setSoTimeout(config.getKeepAliveTimeout() * 1000);
+            handedOver = pool.startReader(() -> {
+                try {
+                    connection.serve(in, clientOutput, upgrade);
+                } finally {
+                    close();
+                }
+            });
         }
 
         /**
-         * Given a client and a filename to access, returns to the client the headers
-         * that a GET request would return.
-         * @param client
-         * @param filename
+         * Handles a parsed request.
+         * Reads the request parameters and acts accordingly.
+         * @param request request line and headers
+         * @param in stream positioned at the start of the request body
+         * @param clientOutput stream the response is written to
+         * @param lastRequest true if the connection must be closed after this request
+         * @param config server configuration
+         * @return true if the connection can be used for another request
          * @throws IOException
          */
-        private void doHEAD(Socket client, String filename) throws IOException {
-            File file = new File(filename);
-            if (file.exists() && file.isFile()) {
-                Path filePath = Paths.get(filename);
-                String contentType = guessContentType(filePath);
-                sendHeader(client, "200 OK", contentType, file.length());
-            } else {
-                sendHeader(client, "404 Not Found");
+        static boolean handleRequest(HttpRequest request, InputStream in, ConnectionOutputStream clientOutput, boolean lastRequest, ServerConfig config) throws IOException {
+            long start = System.nanoTime();
+            long written = clientOutput.getBytesWritten();
+            Router.Match route = route(request);
+            try {
+                return handleRequest(request, route, in, clientOutput, lastRequest, config);
+            } finally {
+                record(request, route, clientOutput, written, start);
             }
         }
 
         /**
-         * handles the POST request.
-         * Creates a resource if the specified file doesn't exist already.
-         * Otherwise, appends the new information to the specified file.
-         *
-         * @param in
-         * @param client
-         * @param filename
+         * Handles the request of an HTTP/2 stream, whose body is delimited by the frames.
+         * @param request request line and headers
+         * @param body body of the request
+         * @param clientOutput stream the response of the stream is written to
          * @throws IOException
          */
-        private void doPOST(BufferedInputStream in, Socket client, String filename) throws IOException {
-            File file = new File(filename);
-            boolean appendMode = file.exists();
-            //Output stream will be in append mode if the file exists, otherwise in the beginning
-            BufferedOutputStream fOut = new BufferedOutputStream(new FileOutputStream(file, appendMode));
-            byte[] buffer = new byte[256];
-            while (in.available() > 0) {
-                int nbRead = in.read(buffer);
-                fOut.write(buffer, 0, nbRead);
-            }
-            if (appendMode) {
-                sendHeader(client, "200 OK");
-            } else {
-                sendHeader(client, "201 Created");
+        static void handleStream(HttpRequest request, InputStream body, ConnectionOutputStream clientOutput) throws IOException {
+            long start = System.nanoTime();
+            Router.Match route = route(request);
+            try {
+                if (!request.getTarget().startsWith("/")) {
+                    clientOutput.response("400 Bad Request").send();
+                    return;
+                }
+                AdmissionControl.Permit permit = admit(request, route);
+                if (!permit.isAdmitted()) {
+                    // the connection discards the body the handler does not read
+                    permit.reject(clientOutput);
+                    return;
+                }
+                try {
+                    dispatch(request, route, body, clientOutput);
+                } finally {
+                    permit.release(clientOutput.getStatus());
+                }
+            } finally {
+                record(request, route, clientOutput, 0, start);
             }
-            fOut.flush();
-            fOut.close();
+        }
+
+        private static Router.Match route(HttpRequest request) {
+            return request.getTarget().startsWith("/") ? router.find(request.getMethod(), request.getTarget()) : null;
         }
 
         /**
-         * Implementation of the HTTP PUT request method according to the specifications listed on
-         * <a href=https://developer.mozilla.org/en-US/docs/Web/HTTP/Methods/PUT>the mozilla developer docs</a>
-         *
-         * @param in
-         * @param client
-         * @param filename
+         * Passes a request with a handler through the admission control, the others are
+         * answered 403 or 405 at no cost anyway.
+         * @param route route of the request, or null if no route matches its path
          */
-        private void doPUT(BufferedInputStream in, Socket client, String filename) throws IOException {
-            File file = new File(filename);//Output stream will be in append mode if the file exists, otherwise in the beginning
-            boolean exists = file.exists();
-            PrintWriter writer = new PrintWriter(filename);
-            writer.print("");
-            writer.close();
-            BufferedOutputStream fOut = new BufferedOutputStream(new FileOutputStream(file));
-
-            byte[] buffer = new byte[256];
-            while (in.available() > 0) {
-                int nbRead = in.read(buffer);
-                fOut.write(buffer, 0, nbRead);
-            }
-            if (exists) {
-                sendHeader(client, "204 No Content");
-            } else {
-                sendHeader(client, "201 Created");
+        private static AdmissionControl.Permit admit(HttpRequest request, Router.Match route) {
+            if (route == null || route.getRoute() == null) {
+                return AdmissionControl.ADMITTED;
             }
-            fOut.flush();
-            fOut.close();
+            return admission.admit(request.getRemoteAddress(), route.getRoute());
         }
 
         /**
-         * Implementation of the HTTP DELETE method according to the specifications listed on
-         * <a href="https://developer.mozilla.org/en-US/docs/Web/HTTP/Methods/DELETE">the mozilla developer docs</a>
-         * @param client
-         * @param filename
+         * Counts a handled request in the metrics and the access log.
+         * @param written bytes written to the stream before the response
+         * @param start time the handling started, from {@link System#nanoTime()}
+         */
+        private static void record(HttpRequest request, Router.Match route, ConnectionOutputStream clientOutput, long written, long start) {
+            long latency = System.nanoTime() - start;
+            metrics.record(route == null ? null : route.getRoute(), clientOutput.getStatus(), latency);
+            AccessLog log = accessLog;
+            if (log != null) {
+                log.log(request, clientOutput.getStatus(), clientOutput.getBytesWritten() - written, latency);
+            }
+        }
+
+        /**
+         * Answers a request whose route is already looked up.
+         * @param route route of the request, or null if no route matches its path
+         */
+        private static boolean handleRequest(HttpRequest request, Router.Match route, InputStream in, ConnectionOutputStream clientOutput, boolean lastRequest, ServerConfig config) throws IOException {
+            String version = request.getVersion();
+            HttpHeaders headers = request.getHeaders();
+            String host = headers.get("Host");
+
+            // HTTP/1.1 connections are persistent unless the client asks otherwise, HTTP/1.0 ones only on demand
+            boolean keepAlive = version.equals("HTTP/1.1")
+                    ? !headers.containsToken("Connection", "close")
+                    : headers.containsToken("Connection", "keep-alive");
+            clientOutput.setKeepAlive(keepAlive && !lastRequest);
+            if (!version.startsWith("HTTP/1.")) {
+                clientOutput.setKeepAlive(false);
+                clientOutput.response("505 HTTP Version Not Supported").send();
+                return false;
+            }
+            AdmissionControl.Permit permit = admit(request, route);
+            if (!permit.isAdmitted()) {
+                // refused before 100 Continue, the body is not worth reading to reuse the connection
+                String length = headers.get("Content-Length");
+                if (headers.contains("Transfer-Encoding") || length != null && !length.equals("0")) {
+                    clientOutput.setKeepAlive(false);
+                }
+                permit.reject(clientOutput);
+                return clientOutput.isKeepAlive();
+            }
+            try {
+                InputStream body = openBody(request, in, clientOutput, config.getMaxBodySize());
+                if (body == null) {
+                    return false;
+                }
+                if ((host == null && version.equals("HTTP/1.1")) || !request.getTarget().startsWith("/")) {
+                    clientOutput.response("400 Bad Request").send();
+                } else if (!dispatch(request, route, body, clientOutput)) {
+                    return false;
+                }
+                // skip what the handler did not read so that the next request starts at the right place
+                try {
+                    body.close();
+                } catch (HttpParseException e) {
+                    return false;
+                }
+                return clientOutput.isKeepAlive();
+            } finally {
+                permit.release(clientOutput.getStatus());
+            }
+        }
+
+        /**
+         * Passes a request to the handler of its route.
+         * @param route route of the request, or null if no route matches its path
+         * @param body body of the request
+         * @return false if the request failed and the connection must be closed
          * @throws IOException
          */
-        private void doDELETE(Socket client, String filename) throws IOException {
+        private static boolean dispatch(HttpRequest request, Router.Match route, InputStream body, ConnectionOutputStream clientOutput) throws IOException {
+            // paths without a route are forbidden for security purposes
             try {
-                File file = new File(filename);//Output stream will be in append mode if the file exists, otherwise in the beginning
-                boolean exists = file.exists();
-                boolean deleted = false;
-                if (file.exists() && file.isFile()) {
-                    deleted = file.delete();
-                }
-                if (deleted) {
-                    sendHeader(client, "204 No Content");
-                } else if (!exists) {
-                    sendHeader(client, "404 Not Found");
+                if (route == null) {
+                    clientOutput.response("403 Forbidden").send();
+                } else if (route.getHandler() == null) {
+                    clientOutput.response("405 Method Not Allowed")
+                            .header(ResponseWriter.ALLOW, String.join(", ", route.getAllowedMethods()))
+                            .send();
                 } else {
-                    sendHeader(client, "403 Forbidden");
+                    route.getHandler().handle(request, body, clientOutput, route.getParameters());
                 }
+            } catch (SocketTimeoutException e) {
+                // the client stopped sending the body
+                clientOutput.setKeepAlive(false);
+                clientOutput.response("408 Request Timeout").send();
+                return false;
+            } catch (HttpParseException e) {
+                // invalid or too large body, the rest of it cannot be skipped
+                clientOutput.setKeepAlive(false);
+                clientOutput.response(e.getStatus()).send();
+                return false;
             } catch (Exception e) {
-                e.printStackTrace();
+                try {
+                    e.printStackTrace();
+                    clientOutput.setKeepAlive(false);
+                    clientOutput.response("500 Internal Server Error").send();
+                } catch (Exception e2) {
+                }
+                return false;
             }
+            return true;
         }
 
         /**
-         * Implementation of the HTTP DELETE method according to the specifications listed on
-         * <a href="https://developer.mozilla.org/en-US/docs/Web/HTTP/Methods/OPTIONS">the mozilla developer docs</a>
-         * @param client
-         * @param filename
+         * Gives access to the body of a request as it arrives, without reading it in memory.
+         * The body is delimited by Content-Length or decoded from the chunked transfer coding.
+         * Answers the interim 100 Continue when the client waits for it before sending the body.
+         * @param request request line and headers
+         * @param in stream positioned at the start of the request body
+         * @param clientOutput stream the response is written to
+         * @param maxBodySize maximum size of the request body
+         * @return the body, or null if the request was refused and the connection must be closed
          * @throws IOException
          */
-        private void doOPTIONS(Socket client, String filename) throws IOException {
-            File file = new File(filename);
-            if (file.exists() && file.isFile()) {
-                sendHeader(client, "200 OK", "OPTIONS, GET, HEAD, POST, PUT, DELETE");
+        static InputStream openBody(HttpRequest request, InputStream in, ConnectionOutputStream clientOutput, long maxBodySize) throws IOException {
+            HttpHeaders headers = request.getHeaders();
+            InputStream body;
+            if (headers.contains("Transfer-Encoding")) {
+                if (!"chunked".equalsIgnoreCase(headers.get("Transfer-Encoding"))) {
+                    // without a known coding the end of the body cannot be found
+                    clientOutput.setKeepAlive(false);
+                    clientOutput.response("501 Not Implemented").send();
+                    return null;
+                }
+                if (headers.contains("Content-Length")) {
+                    // conflicting framing, RFC 7230 section 3.3.3: where the body ends is unknown
+                    clientOutput.setKeepAlive(false);
+                    clientOutput.response("400 Bad Request").send();
+                    return null;
+                }
+                body = new ChunkedInputStream(in, maxBodySize);
             } else {
-                sendHeader(client, "404 Not Found");
+                long contentLength;
+                try {
+                    contentLength = headers.getLong("Content-Length", 0);
+                } catch (NumberFormatException e) {
+                    clientOutput.setKeepAlive(false);
+                    clientOutput.response("400 Bad Request").send();
+                    return null;
+                }
+                if (contentLength > maxBodySize) {
+                    clientOutput.setKeepAlive(false);
+                    clientOutput.response("413 Payload Too Large").send();
+                    return null;
+                }
+                body = new ContentLengthInputStream(in, contentLength);
+            }
+            if (request.getVersion().equals("HTTP/1.1") && headers.containsToken("Expect", "100-continue")) {
+                clientOutput.write(ResponseWriter.CONTINUE);
+                clientOutput.flush();
             }
+            return body;
         }
 
+
         /**
-         * Sends a response with only a header and the response status
-         * @param client
-         * @param status
+         * handles the POST request.
+         * Creates a resource if the specified file doesn't exist already.
+         * Otherwise, appends the new information to the specified file.
+         *
+         * @param in
+         * @param clientOutput
+         * @param resource
          * @throws IOException
          */
-        private static void sendHeader(Socket client, String status) throws IOException {
-            OutputStream clientOutput = client.getOutputStream();
-            clientOutput.write(("HTTP/1.1 " + status + "\r\n").getBytes());
-            clientOutput.write("\r\n".getBytes());
-            clientOutput.flush();
-            clientOutput.close();
+        static void doPOST(InputStream in, ConnectionOutputStream clientOutput, ResourceResolver.Resource resource) throws IOException {
+            if (refuseWrite(clientOutput, resource)) {
+                return;
+            }
+            // appended by the store after the other writes to the file, never interleaved with them
+            if (store.append(resource.getPath(), in)) {
+                clientOutput.response("200 OK").send();
+            } else {
+                clientOutput.response("201 Created").send();
+            }
         }
 
         /**
-         * Sends a header with the response status the content type and the content length for the HEAD request.
-         * @param client
-         * @param status
-         * @param contentType
-         * @param length
-         * @throws IOException
+         * Implementation of the HTTP PUT request method according to the specifications listed on
+         * <a href=https://developer.mozilla.org/en-US/docs/Web/HTTP/Methods/PUT>the mozilla developer docs</a>
+         *
+         * @param in
+         * @param clientOutput
+         * @param resource
          */
-        private static void sendHeader(Socket client, String status, String contentType, long length) throws IOException {
-            OutputStream clientOutput = client.getOutputStream();
-            clientOutput.write(("HTTP/1.1 " + status + "\r\n").getBytes());
-            clientOutput.write(("Content-Type: " + contentType + "\r\n").getBytes());
-            clientOutput.write(("Content-Length: " + length + "\r\n").getBytes());
-            clientOutput.write("\r\n".getBytes());
-            clientOutput.flush();
-            clientOutput.close();
+        static void doPUT(InputStream in, ConnectionOutputStream clientOutput, ResourceResolver.Resource resource) throws IOException {
+            if (refuseWrite(clientOutput, resource)) {
+                return;
+            }
+            // written aside then renamed over the file, readers never see a partial content
+            if (store.replace(resource.getPath(), in)) {
+                clientOutput.response("204 No Content").send();
+            } else {
+                clientOutput.response("201 Created").send();
+            }
         }
 
         /**
-         * Sends a response with a header and a body for the GET request
-         * @param client
-         * @param status
-         * @param contentType
-         * @param content
+         * Implementation of the HTTP DELETE method according to the specifications listed on
+         * <a href="https://developer.mozilla.org/en-US/docs/Web/HTTP/Methods/DELETE">the mozilla developer docs</a>
+         * @param clientOutput
+         * @param resource
          * @throws IOException
          */
-        private static void sendContentResponse(Socket client, String status, String contentType, byte[] content, long length) throws IOException {
-            OutputStream clientOutput = client.getOutputStream();
-            clientOutput.write(("HTTP/1.1 " + status + "\r\n").getBytes());
-            clientOutput.write(("Content-Type: " + contentType + "\r\n").getBytes());
-            clientOutput.write(("Content-Length: " + length + "\r\n").getBytes());
-            clientOutput.write("\r\n".getBytes());
-            clientOutput.write(content);
-            clientOutput.write("\r\n\r\n".getBytes());
-            clientOutput.flush();
-            clientOutput.close();
+        static void doDELETE(ConnectionOutputStream clientOutput, ResourceResolver.Resource resource) throws IOException {
+            if (refuseWrite(clientOutput, resource)) {
+                return;
+            }
+            if (store.delete(resource.getPath())) {
+                clientOutput.response("204 No Content").send();
+            } else {
+                clientOutput.response("404 Not Found").send();
+            }
         }
 
         /**
-         * Sends a header with the allowed http requests for the OPTIONS request
-         * @param client
-         * @param status
-         * @param allows
+         * Implementation of the HTTP DELETE method according to the specifications listed on
+         * <a href="https://developer.mozilla.org/en-US/docs/Web/HTTP/Methods/OPTIONS">the mozilla developer docs</a>
+         * @param clientOutput
+         * @param resource
          * @throws IOException
          */
-        private static void sendHeader(Socket client, String status, String allows) throws IOException {
-            OutputStream clientOutput = client.getOutputStream();
-            clientOutput.write(("HTTP/1.1 " + status + "\r\n").getBytes());
-            clientOutput.write(("Allow: " + allows + "\r\n").getBytes());
-            clientOutput.write(("Content-Length: 0" + "\r\n").getBytes());
-            clientOutput.write("\r\n\r\n".getBytes());
-            clientOutput.flush();
-            clientOutput.close();
+        static void doOPTIONS(ConnectionOutputStream clientOutput, ResourceResolver.Resource resource) throws IOException {
+            String error = resource.getError();
+            if (error != null) {
+                clientOutput.response(error).send();
+            } else if (resource.isFile()) {
+                clientOutput.response("200 OK").header(ResponseWriter.ALLOW, "OPTIONS, GET, HEAD, POST, PUT, DELETE").send();
+            } else {
+                clientOutput.response("404 Not Found").send();
+            }
         }
 
         /**
-         *
-         * @param filePath path to the file
-         * @return content type of the file
-         * @throws IOException
+         * Answers a write to a path outside the document root, which cannot be decoded, or to a directory.
+         * @return true if the write is refused
          */
-        private static String guessContentType(Path filePath) throws IOException {
-            return Files.probeContentType(filePath);
+        private static boolean refuseWrite(ConnectionOutputStream clientOutput, ResourceResolver.Resource resource) throws IOException {
+            String error = resource.getError();
+            if (error == null && resource.isDirectory()) {
+                error = "403 Forbidden";
+            }
+            if (error != null) {
+                clientOutput.response(error).send();
+                return true;
+            }
+            return false;
         }
     }
 }
@@ -0,0 +1,312 @@
+package http.server;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Executes the connection handlers of the WebServer.
+ * Three execution modes are available:
+ * <ul>
+ *     <li>POOL: a fixed number of worker threads fed by a bounded queue</li>
+ *     <li>VIRTUAL: one virtual thread per connection (JDK 21+)</li>
+ *     <li>THREAD: one new platform thread per connection, without any limit</li>
+ * </ul>
+ * Keeps track of the active, queued and rejected tasks so that the pool can be sized.
+ * The frame readers of the HTTP/2 connections run on threads of their own, in a bounded number,
+ * and never on the workers: a connection waits for its next frame as long as it is open, and
+ * its streams must always find a worker, as must the HTTP/1.1 requests.
+ */
+public class WorkerPool {
+
+    /**
+     * How connection handlers are executed.
+     */
+    public enum Mode {
+        POOL, VIRTUAL, THREAD;
+
+        static Mode parse(String value) {
+            try {
+                return valueOf(value.toUpperCase());
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("executor must be pool, virtual or thread");
+            }
+        }
+    }
+
+    /**
+     * What the pool does when all workers are busy and the queue is full.
+     * REJECT lets the caller answer 503, CALLER_RUNS executes the task on the submitting thread.
+     */
+    public enum RejectionPolicy {
+        REJECT, CALLER_RUNS;
+
+        static RejectionPolicy parse(String value) {
+            try {
+                return valueOf(value.toUpperCase().replace('-', '_'));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("rejection must be reject or caller-runs");
+            }
+        }
+    }
+
+    private final Mode mode;
+    private final RejectionPolicy rejectionPolicy;
+    private final ExecutorService executor;
+    private final ExecutorService readers;
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicInteger readerCount = new AtomicInteger();
+    private volatile int maxReaders;
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * Creates the pool described by the configuration.
+     * Falls back to the POOL mode if virtual threads are not available on this JVM.
+     *
+     * @param config server configuration
+     */
+    public WorkerPool(ServerConfig config) {
+        Mode requested = config.getExecutorMode();
+        ExecutorService virtual = requested == Mode.VIRTUAL ? newVirtualThreadExecutor() : null;
+        if (requested == Mode.VIRTUAL && virtual == null) {
+            System.err.println("Virtual threads require JDK 21+, falling back to the worker pool");
+            requested = Mode.POOL;
+        }
+        this.mode = requested;
+        this.rejectionPolicy = config.getRejectionPolicy();
+        switch (mode) {
+            case VIRTUAL:
+                this.executor = virtual;
+                break;
+            case THREAD:
+                this.executor = Executors.newCachedThreadPool(namedThreads("client"));
+                break;
+            default:
+                int queueCapacity = config.getQueueCapacity();
+                BlockingQueue<Runnable> queue = queueCapacity > 0
+                        ? new ArrayBlockingQueue<>(queueCapacity)
+                        : new SynchronousQueue<>();
+                this.executor = new ThreadPoolExecutor(config.getWorkerThreads(), config.getWorkerThreads(),
+                        60L, TimeUnit.SECONDS, queue, namedThreads("worker"), new ThreadPoolExecutor.AbortPolicy());
+        }
+        ExecutorService virtualReaders = mode == Mode.VIRTUAL ? newVirtualThreadExecutor() : null;
+        this.readers = virtualReaders != null ? virtualReaders : Executors.newCachedThreadPool(namedThreads("http2-reader"));
+        this.maxReaders = config.getHttp2MaxConnections();
+    }
+
+    /**
+     * Submits a task to the pool.
+     *
+     * @param task the task to run
+     * @return false if the pool is saturated and the task was rejected, true otherwise
+     */
+    public boolean submit(Runnable task) {
+        Runnable tracked = track(task);
+        try {
+            executor.execute(tracked);
+            return true;
+        } catch (RejectedExecutionException e) {
+            if (rejectionPolicy == RejectionPolicy.CALLER_RUNS && !executor.isShutdown()) {
+                tracked.run();
+                return true;
+            }
+            rejected.incrementAndGet();
+            return false;
+        }
+    }
+
+    /**
+     * Submits a task that must not run on the calling thread, whatever the rejection policy:
+     * the thread of an HTTP/2 connection would otherwise stop reading the frames its streams
+     * wait for.
+     *
+     * @param task the task to run
+     * @return false if the pool is saturated and the task was rejected, true otherwise
+     */
+    public boolean offer(Runnable task) {
+        try {
+            executor.execute(track(task));
+            return true;
+        } catch (RejectedExecutionException e) {
+            rejected.incrementAndGet();
+            return false;
+        }
+    }
+
+    /**
+     * Reserves the thread of a connection switching to HTTP/2, to be started with
+     * {@link #startReader}.
+     *
+     * @return false if as many HTTP/2 connections as allowed are open
+     */
+    public boolean reserveReader() {
+        for (; ; ) {
+            int count = readerCount.get();
+            if (count >= maxReaders) {
+                return false;
+            }
+            if (readerCount.compareAndSet(count, count + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Runs the frame reader of an HTTP/2 connection on its own thread, outside the workers.
+     * The reservation made by {@link #reserveReader} is released once the reader returns.
+     *
+     * @param reader the read loop of the connection
+     * @return false if the server is shutting down and the reader was not started
+     */
+    public boolean startReader(Runnable reader) {
+        try {
+            readers.execute(() -> {
+                try {
+                    reader.run();
+                } finally {
+                    readerCount.decrementAndGet();
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            readerCount.decrementAndGet();
+            return false;
+        }
+    }
+
+    private Runnable track(Runnable task) {
+        return () -> {
+            active.incrementAndGet();
+            try {
+                task.run();
+            } finally {
+                active.decrementAndGet();
+            }
+        };
+    }
+
+    /**
+     * Stops accepting new tasks, running tasks are allowed to finish.
+     */
+    public void shutdown() {
+        executor.shutdown();
+        readers.shutdown();
+    }
+
+    /**
+     * Waits for the running and queued tasks, and the HTTP/2 readers, to finish after a {@link #shutdown()}.
+     *
+     * @param timeoutMillis how long to wait
+     * @return false if tasks were still running when the delay expired
+     */
+    public boolean awaitTermination(long timeoutMillis) {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        try {
+            return executor.awaitTermination(Math.max(timeoutMillis, 0), TimeUnit.MILLISECONDS)
+                    && readers.awaitTermination(Math.max(deadline - System.currentTimeMillis(), 0), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Changes the number of worker threads of the POOL mode, the other modes have no limit.
+     * Surplus workers exit once their current task is done.
+     *
+     * @param workers number of worker threads
+     */
+    public void resize(int workers) {
+        if (!(executor instanceof ThreadPoolExecutor)) {
+            return;
+        }
+        ThreadPoolExecutor pool = (ThreadPoolExecutor) executor;
+        // the core size may never exceed the maximum size
+        if (workers > pool.getMaximumPoolSize()) {
+            pool.setMaximumPoolSize(workers);
+            pool.setCorePoolSize(workers);
+        } else {
+            pool.setCorePoolSize(workers);
+            pool.setMaximumPoolSize(workers);
+        }
+    }
+
+    /**
+     * Changes the number of HTTP/2 connections open at once, the open ones are kept.
+     *
+     * @param maxReaders maximum number of HTTP/2 connections
+     */
+    public void setMaxReaders(int maxReaders) {
+        this.maxReaders = maxReaders;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * @return number of tasks currently running
+     */
+    public int getActiveCount() {
+        return active.get();
+    }
+
+    /**
+     * @return number of tasks waiting for a worker, always 0 outside of the POOL mode
+     */
+    public int getQueuedCount() {
+        if (executor instanceof ThreadPoolExecutor) {
+            return ((ThreadPoolExecutor) executor).getQueue().size();
+        }
+        return 0;
+    }
+
+    /**
+     * @return number of HTTP/2 connections with a reader
+     */
+    public int getReaderCount() {
+        return readerCount.get();
+    }
+
+    /**
+     * @return number of tasks rejected since the pool was created
+     */
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    @Override
+    public String toString() {
+        return "WorkerPool[mode=" + mode + ", active=" + getActiveCount() + ", queued=" + getQueuedCount()
+                + ", rejected=" + getRejectedCount() + ", http2Readers=" + getReaderCount() + "]";
+    }
+
+    /**
+     * Looks up Executors.newVirtualThreadPerTaskExecutor by reflection so that the server
+     * still compiles and runs on Java 11.
+     *
+     * @return the executor, or null if virtual threads are not supported
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException | UnsupportedOperationException e) {
+            return null;
+        }
+    }
+
+    private static ThreadFactory namedThreads(String prefix) {
+        AtomicInteger counter = new AtomicInteger();
+        return r -> new Thread(r, prefix + "-" + counter.incrementAndGet());
+    }
+}
@@ -0,0 +1,111 @@
+package http.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Bounds the time a blocking write to a client may take. A Java socket has no write timeout,
+ * so a client which stops reading would keep the writing thread forever: each connection
+ * writing in blocking mode has a {@link Guard} which marks the start and the end of its
+ * writes, and one thread closes, once per second, the connections whose write started longer
+ * than the timeout ago. The blocked write then fails as if the client had gone away.
+ * Marking a write costs two volatile writes, the guards are only registered once per
+ * connection.
+ */
+final class WriteTimeout {
+
+    private static final long CHECK_INTERVAL = 1000;
+
+    /**
+     * Writes of one connection.
+     */
+    final class Guard implements Closeable {
+        private final Closeable connection;
+        // start of the write in progress, 0 if none
+        private volatile long since;
+
+        private Guard(Closeable connection) {
+            this.connection = connection;
+        }
+
+        /**
+         * Marks the start of a write.
+         */
+        void begin() {
+            since = System.currentTimeMillis();
+        }
+
+        /**
+         * Marks the end of the write, completed or failed.
+         */
+        void end() {
+            since = 0;
+        }
+
+        /**
+         * Stops watching the connection, once it is closed.
+         */
+        @Override
+        public void close() {
+            guards.remove(this);
+        }
+
+        private void check(long now, long timeout) {
+            long start = since;
+            if (start != 0 && now - start > timeout) {
+                try {
+                    connection.close();
+                } catch (IOException e) {
+                }
+                guards.remove(this);
+            }
+        }
+    }
+
+    private final Set<Guard> guards = ConcurrentHashMap.newKeySet();
+    private volatile long timeout;
+
+    /**
+     * @param timeout milliseconds a write may take
+     */
+    WriteTimeout(long timeout) {
+        this.timeout = timeout;
+        Thread watchdog = new Thread(this::watch, "write-timeout");
+        watchdog.setDaemon(true);
+        watchdog.start();
+    }
+
+    /**
+     * @param timeout milliseconds the next writes may take
+     */
+    void setTimeout(long timeout) {
+        this.timeout = timeout;
+    }
+
+    /**
+     * Watches the writes of a connection.
+     * @param connection closed when a write takes too long
+     * @return the guard of the connection, to be closed with the connection
+     */
+    Guard guard(Closeable connection) {
+        Guard guard = new Guard(connection);
+        guards.add(guard);
+        return guard;
+    }
+
+    private void watch() {
+        try {
+            for (; ; ) {
+                Thread.sleep(CHECK_INTERVAL);
+                long now = System.currentTimeMillis();
+                long timeout = this.timeout;
+                for (Guard guard : guards) {
+                    guard.check(now, timeout);
+                }
+            }
+        } catch (InterruptedException e) {
+        }
+    }
+}
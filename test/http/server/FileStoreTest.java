@@ -0,0 +1,89 @@
+package http.server;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Set;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class FileStoreTest {
+
+    private Path dir;
+    private FileStore store;
+
+    @Before
+    public void setUp() throws IOException {
+        Assume.assumeTrue(FileSystems.getDefault().supportedFileAttributeViews().contains("posix"));
+        dir = Files.createTempDirectory("filestore");
+        store = new FileStore(FileStore.Durability.WRITE, new StaticCache(0));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (store != null) {
+            store.shutdown(5000);
+        }
+        if (dir != null) {
+            try (Stream<Path> files = Files.walk(dir)) {
+                for (Path file : (Iterable<Path>) files.sorted((a, b) -> b.compareTo(a))::iterator) {
+                    Files.delete(file);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void rewriteKeepsPermissions() throws IOException {
+        for (String mode : new String[]{"rw-r--r--", "rw-r-----", "rwxr-xr-x"}) {
+            Path file = dir.resolve("perm.txt");
+            Files.write(file, "before".getBytes(StandardCharsets.UTF_8));
+            Files.setPosixFilePermissions(file, PosixFilePermissions.fromString(mode));
+            assertTrue(replace(file, "after"));
+            assertEquals("after", new String(Files.readAllBytes(file), StandardCharsets.UTF_8));
+            assertEquals(mode, PosixFilePermissions.toString(Files.getPosixFilePermissions(file)));
+        }
+    }
+
+    @Test
+    public void newFileGetsDefaultPermissions() throws IOException {
+        Path reference = Files.createFile(dir.resolve("reference.txt"));
+        Path file = dir.resolve("new.txt");
+        assertFalse(replace(file, "content"));
+        Set<PosixFilePermission> permissions = Files.getPosixFilePermissions(file);
+        assertEquals(Files.getPosixFilePermissions(reference), permissions);
+    }
+
+    @Test
+    public void startReplaceLeavesNoTemporaryFile() throws IOException {
+        Path file = dir.resolve("page.html");
+        try (FileStore.Replacement out = store.startReplace(file.toString())) {
+            out.write("<p>page</p>".getBytes(StandardCharsets.UTF_8));
+            out.commit();
+        }
+        try (FileStore.Replacement out = store.startReplace(file.toString())) {
+            out.write("not committed".getBytes(StandardCharsets.UTF_8));
+        }
+        try (Stream<Path> files = Files.list(dir)) {
+            assertEquals(1, files.count());
+        }
+        assertEquals("<p>page</p>", new String(Files.readAllBytes(file), StandardCharsets.UTF_8));
+    }
+
+    private boolean replace(Path file, String content) throws IOException {
+        return store.replace(file.toString(), new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8)));
+    }
+}
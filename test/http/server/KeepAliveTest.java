@@ -0,0 +1,120 @@
+package http.server;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class KeepAliveTest {
+
+    private static final int WORKERS = 2;
+
+    private Path docRoot;
+    private WebServer server;
+    private final List<Socket> clients = new ArrayList<>();
+
+    @Before
+    public void setUp() throws IOException {
+        docRoot = Files.createTempDirectory("keepalive");
+        Files.write(docRoot.resolve("hello.txt"), "hello".getBytes(StandardCharsets.UTF_8));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        for (Socket client : clients) {
+            client.close();
+        }
+        if (server != null) {
+            server.stop(1000);
+        }
+        Files.delete(docRoot.resolve("hello.txt"));
+        Files.delete(docRoot);
+    }
+
+    @Test(timeout = 30000)
+    public void idleConnectionsDoNotHoldTheWorkersOnTheBlockingEngine() throws IOException {
+        idleConnectionsDoNotHoldTheWorkers("blocking");
+    }
+
+    @Test(timeout = 30000)
+    public void idleConnectionsDoNotHoldTheWorkersOnTheNioEngine() throws IOException {
+        idleConnectionsDoNotHoldTheWorkers("nio");
+    }
+
+    private void idleConnectionsDoNotHoldTheWorkers(String engine) throws IOException {
+        int port = freePort();
+        server = new WebServer(ServerConfig.fromArgs(new String[]{Integer.toString(port), "--engine=" + engine,
+                "--workers=" + WORKERS, "--keep-alive-timeout=60", "--doc-root=" + docRoot}));
+        server.start();
+        // as many keep-alive connections as workers, idle after their first request
+        for (int i = 0; i < WORKERS; i++) {
+            Socket client = connect(port);
+            assertEquals("HTTP/1.1 200 OK", get(client, false));
+        }
+        // the keep-alive timeout is far longer than the read timeout of the new client
+        Socket client = connect(port);
+        assertEquals("HTTP/1.1 200 OK", get(client, true));
+        for (Socket idle : clients.subList(0, WORKERS)) {
+            assertEquals("HTTP/1.1 200 OK", get(idle, false));
+        }
+    }
+
+    private Socket connect(int port) throws IOException {
+        Socket client = new Socket("localhost", port);
+        client.setSoTimeout(5000);
+        clients.add(client);
+        return client;
+    }
+
+    /**
+     * Sends a GET of hello.txt and reads the whole response.
+     * @return status line of the response
+     */
+    private static String get(Socket client, boolean close) throws IOException {
+        String request = "GET /doc/hello.txt HTTP/1.1\r\nHost: localhost\r\n"
+                + (close ? "Connection: close\r\n" : "") + "\r\n";
+        client.getOutputStream().write(request.getBytes(StandardCharsets.ISO_8859_1));
+        InputStream in = client.getInputStream();
+        ByteArrayOutputStream head = new ByteArrayOutputStream();
+        while (!head.toString("ISO-8859-1").endsWith("\r\n\r\n")) {
+            int b = in.read();
+            assertTrue("connection closed before the end of the head", b >= 0);
+            head.write(b);
+        }
+        String[] lines = head.toString("ISO-8859-1").split("\r\n");
+        int length = 0;
+        for (String line : lines) {
+            if (line.regionMatches(true, 0, "Content-Length:", 0, 15)) {
+                length = Integer.parseInt(line.substring(15).trim());
+            }
+        }
+        byte[] body = new byte[length];
+        int read = 0;
+        while (read < length) {
+            int n = in.read(body, read, length - read);
+            assertTrue("connection closed before the end of the body", n >= 0);
+            read += n;
+        }
+        assertEquals("hello", new String(body, StandardCharsets.UTF_8));
+        return lines[0];
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket probe = new ServerSocket(0)) {
+            return probe.getLocalPort();
+        }
+    }
+}